@@ -21,6 +21,7 @@ package fi.hip.sicxoss;
 
 import java.io.*;
 import java.util.*;
+import javax.net.ssl.SSLContext;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.server.Connector;
@@ -58,6 +59,8 @@ public class LocalGateway {
     private static int DEFAULT_WEBDAV_PORT = 7654;
     private static int DEFAULT_LOOKUP_PORT = 7766;
     private static String DEFAULT_LOOKUP_SERVER = "kreml.jookos.org:7766";
+    // megabytes, for the hot tier of the stores
+    private static int DEFAULT_HOT_QUOTA = 1024;
 
     public interface LocalGatewayObserver {
         
@@ -79,6 +82,7 @@ public class LocalGateway {
     private List<Thread> threads;
     private List<LocalGatewayObserver> observers;
     private GatewayUI ui;
+    private SSLContext tlsContext;
     public static boolean startUI = true;
 
     public LocalGateway(String filename) 
@@ -138,18 +142,46 @@ public class LocalGateway {
         }
     }
 
-    private DataStore createDiskDataStore(String name) 
+    private DataStore createDataStore(String name) 
         throws Exception {
 
         log.info("Creating the '" + name + "' data cache..");
 
         Properties p = props.getChildren("store").getChildren(name);
-        p.setProperty("type", "disk");
         p.setProperty("location", name);
         String loc = getConfig("stores.prefix") + File.separator + name;
 
-        DiskDataStore store = new DiskDataStore(name);
-        store.init(loc, p, this);
+        // in an object storage, if one is configured
+        String endpoint = getConfig("stores.object.endpoint");
+        String hotPrefix = getConfig("stores.hot.prefix");
+        if (endpoint != null) {
+            String prefix = (hotPrefix != null? "cold." : "");
+            p.setProperty(prefix + "type", "object");
+            for (String k : new String[] { "endpoint", "bucket", "region", "access_key", "secret_key" }) {
+                String v = getConfig("stores.object." + k);
+                if (v != null)
+                    p.setProperty(prefix + k, v);
+            }
+        }
+
+        // with a faster disk for the hot data, tiered
+        DataStore store;
+        if (hotPrefix != null) {
+            p.setProperty("type", "tiered");
+            p.setProperty("hot.location", hotPrefix + File.separator + name);
+            TieredDataStore tds = new TieredDataStore(name);
+            tds.init(loc, p, getConfigInt("stores.hot.quota", DEFAULT_HOT_QUOTA) * 1024L * 1024L, this);
+            store = tds;
+        } else if (endpoint != null) {
+            ObjectDataStore ods = new ObjectDataStore(name);
+            ods.init(loc, p, this);
+            store = ods;
+        } else {
+            p.setProperty("type", "disk");
+            DiskDataStore dds = new DiskDataStore(name);
+            dds.init(loc, p, this);
+            store = dds;
+        }
 
         dataStores.put(name, store);
         store.start();
@@ -165,6 +197,10 @@ public class LocalGateway {
         String t = p.getProperty("type");
         if (t == null || t.equals("disk")) {
             store = new DiskDataStore(name);
+        } else if (t.equals("tiered")) {
+            store = new TieredDataStore(name);
+        } else if (t.equals("object")) {
+            store = new ObjectDataStore(name);
         } else {
             log.error("unknown data store type: " + t);
             return null;
@@ -225,7 +261,7 @@ public class LocalGateway {
         throws Exception {
 
         if (store == null)
-            store = createDiskDataStore("store_for_" + name);
+            store = createDataStore("store_for_" + name);
 
         log.info("Creating the '" + name + "' remote share, mounted at " + path + ", using the data cache '" + store.getName() + "'");
         String loc = getConfig("shares.prefix") + File.separator + name;
@@ -250,7 +286,7 @@ public class LocalGateway {
         throws Exception {
 
         LocalUser user = (LocalUser)users.values().toArray()[0];
-        DataStore store = createDiskDataStore("store_for_" + name);
+        DataStore store = createDataStore("store_for_" + name);
 
         log.info("Creating the '" + name + "' remote share, mounted at " + path + ", using the data cache '" + store.getName() + "'");
         String loc = getConfig("shares.prefix") + File.separator + name;
@@ -408,6 +444,19 @@ public class LocalGateway {
         props.setProperty(key, "" + value);
     }
 
+    /**
+     * Returns the TLS context used for the peer and lookup
+     * connections. The key is read from the keystore given by
+     * tls.keystore, or generated if none is configured.
+     */
+    public synchronized SSLContext getTLSContext() 
+        throws Exception {
+
+        if (tlsContext == null)
+            tlsContext = TLSLayer.createContext(getConfig("tls.keystore"), getConfig("tls.keystore.password"));
+        return tlsContext;
+    }
+
     public String getConfig(String key) {
         return props.getProperty(key);
     }
@@ -416,6 +465,18 @@ public class LocalGateway {
         return Integer.parseInt(props.getProperty(key));
     }
 
+    /* returns the value, or the default if it is missing or broken */
+    public int getConfigInt(String key, int def) {
+        try {
+            String v = props.getProperty(key);
+            if (v != null)
+                return Integer.parseInt(v.trim());
+        } catch (Exception ex) {
+            log.warn("invalid value for " + key + ": " + props.getProperty(key));
+        }
+        return def;
+    }
+
     private boolean initDefaultConfig()
         throws Exception {
 
@@ -449,7 +510,7 @@ public class LocalGateway {
         LocalUser local = createLocalUser(name, fullName);
         
         /* generate the default share */
-        DataStore store = createDiskDataStore("default");
+        DataStore store = createDataStore("default");
         ShareModel share = createShare(sharen, "/" + sharen, store.getName(), local.getName());
 
         saveConfig();
@@ -467,7 +528,7 @@ public class LocalGateway {
         LocalUser local = createLocalUser(name, fullName);
         
         /* generate the default share */
-        DataStore store = createDiskDataStore("default");
+        DataStore store = createDataStore("default");
         ShareModel share = createShare(sharen, "/" + sharen, store.getName(), local.getName());
 
         saveConfig();
@@ -483,7 +544,7 @@ public class LocalGateway {
         importLocalUser(local);
 
         /* generate the default share */
-        DataStore store = createDiskDataStore("default");
+        DataStore store = createDataStore("default");
         ShareModel share = createShare(sharen, "/" + sharen, store.getName(), local.getName());
 
         saveConfig();
@@ -635,6 +696,32 @@ public class LocalGateway {
                 
         lookup = new LookupServer(networkEngine);
         lookup.init(getConfigInt("lookup.port"));
+        lookup.setNotifyWindow(getConfigInt("lookup.notify.window", (int)LookupServer.DEFAULT_NOTIFY_WINDOW));
+        lookup.setAcceptRate(getConfigInt("lookup.accept.rate", 0));
+        lookup.setRequireMutual(!"false".equals(getConfig("lookup.forward.mutual")));
+        int tlsPort = getConfigInt("lookup.tls.port", -1);
+        if (tlsPort > 0)
+            lookup.initTLS(tlsPort, getTLSContext());
+
+        // the other servers of the cluster, host:port as the gateways
+        // know them. we are the one with our port, unless told otherwise
+        String nodes = getConfig("lookup.cluster");
+        if (nodes != null && nodes.trim().length() > 0) {
+            List<String> nl = new ArrayList<String>();
+            for (String n : nodes.split(","))
+                if (n.trim().length() > 0)
+                    nl.add(n.trim());
+
+            String self = getConfig("lookup.cluster.self");
+            for (int i = 0; self == null && i < nl.size(); i++)
+                if (nl.get(i).endsWith(":" + getConfigInt("lookup.port")))
+                    self = nl.get(i);
+            if (self == null)
+                throw new Exception("could not tell which of the lookup cluster nodes we are, set lookup.cluster.self");
+            
+            lookup.initCluster(nl, self, getConfig("lookup.cluster.secret"));
+            lookup.getCluster().setGossipInterval(getConfigInt("lookup.cluster.gossip", (int)LookupCluster.DEFAULT_GOSSIP_INTERVAL));
+        }
     }
 
     public void startLookup()
@@ -648,8 +735,11 @@ public class LocalGateway {
     public void stopLookup()
         throws Exception {
         
-        if (lookup != null)
+        if (lookup != null) {
+            // the users come back over a while, not all at once
+            lookup.drain(getConfigInt("lookup.drain.spread", 30) * 1000L);
             lookup.stop();
+        }
     }
 
     public void initNetwork() 
@@ -864,7 +954,7 @@ public class LocalGateway {
             if (params[params.length-1].equals("new_share")) {
                 lg.createShare(params[0], params[1], params[2], params[3]);
             } else if (params[params.length-1].equals("new_store")) {
-                lg.createDiskDataStore(params[0]);
+                lg.createDataStore(params[0]);
             } else if (params[params.length-1].equals("export_user")) {
                 LocalUser user = lg.users.get(params[0]);
                 if (user == null)
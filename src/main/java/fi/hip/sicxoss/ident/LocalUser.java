@@ -455,9 +455,12 @@ public class LocalUser
     public synchronized User addContact(User user, ShareModel share) {
         log.info("should add user " + user + " to share " + share);
 
+        boolean known = (contactManager.findUser(user.getId()) != null);
         user = contactManager.addContact(user);
         if (share != null)
             connMan.addContact(user, share);
+        else if (!known && connMan != null)
+            connMan.watchContact(user);
         
         for (LocalUserObserver luo : observers)
             try { luo.contactAdded(this, user, share); } catch (Exception ex) { log.warn("observer failed: " + ex); }
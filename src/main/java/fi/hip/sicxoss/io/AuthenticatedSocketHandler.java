@@ -24,7 +24,10 @@ import java.nio.*;
 import java.nio.channels.*;
 import java.nio.channels.spi.*;
 import java.net.*;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import javax.crypto.KeyAgreement;
 
 import org.apache.log4j.Logger;
 
@@ -42,6 +45,9 @@ public abstract class AuthenticatedSocketHandler
 
     private static final Logger log = Logger.getLogger(AuthenticatedSocketHandler.class);
 
+    private static final String GREETING = "sicxoss:0.1:Hello!";
+    private static final String BUSY_GREETING = "sicxoss:0.1:Busy!";
+
     // for session authentication
     private String localNonce;
     private String remoteNonce;
@@ -53,10 +59,21 @@ public abstract class AuthenticatedSocketHandler
     protected boolean isAuthenticated = false;
     private String addr;
 
-    private int[] reconnect_timing;
-    private int reconnectIndex;
+    private Backoff reconnectBackoff;
     private ConnectionReconnector connRec;
 
+    // for resuming sessions. the connecting side offers a ticket,
+    // and holds back its own response until it knows whether the
+    // other side took it.
+    private boolean outgoing = false;
+    private boolean offerTicket = true;
+    private KeyPair dhKeys;
+    private SessionTicketCache.Ticket offeredTicket;
+    private SessionTicketCache.Ticket resumeTicket;
+    private boolean responsePending;
+    // turned away, we do not talk anymore
+    private boolean refused = false;
+
 /**
  * AuthenticatedSocketHandler class.
  *
@@ -74,7 +91,6 @@ public abstract class AuthenticatedSocketHandler
         throws Exception {
         super(sc);
 
-        reconnectIndex = 0;
         initAuthentication(localUser, remoteUser);
     }
 
@@ -85,7 +101,7 @@ public abstract class AuthenticatedSocketHandler
         throws Exception {
         super(sa);
 
-        reconnectIndex = 0;
+        outgoing = true;
         initAuthentication(localUser, remoteUser);
     }
 
@@ -94,10 +110,18 @@ public abstract class AuthenticatedSocketHandler
      */
     public AuthenticatedSocketHandler(String str, LocalUser localUser, User remoteUser) 
         throws Exception {
-        super(str);
+        this(str, null, localUser, remoteUser);
+    }
+
+    /**
+     * create an outgoing socket from the given local address
+     */
+    public AuthenticatedSocketHandler(String str, InetSocketAddress local, LocalUser localUser, User remoteUser) 
+        throws Exception {
+        super(a2s(str), local);
 
         addr = str;
-        reconnectIndex = 0;
+        outgoing = true;
         initAuthentication(localUser, remoteUser);
     }
 
@@ -109,6 +133,16 @@ public abstract class AuthenticatedSocketHandler
         this.acceptAnon = accept;
     }
 
+    /**
+     * Whether we offer to resume a session when connecting. Sockets
+     * that may end up in a simultaneous open (hole punching) must not,
+     * as both ends would then hold back their response waiting for
+     * the other.
+     */
+    protected void setOfferTicket(boolean offer) {
+        this.offerTicket = offer;
+    }
+
     private void initAuthentication(LocalUser localUser, User remoteUser) {
 
         this.localUser = localUser;
@@ -117,14 +151,28 @@ public abstract class AuthenticatedSocketHandler
         this.localNonce = null;
         this.remoteNonce = null;
         this.isAuthenticated = false;
+        this.dhKeys = null;
+        this.offeredTicket = null;
+        this.resumeTicket = null;
+        this.responsePending = false;
     }
 
     /** sets the reconnect timer */
-    protected void setReconnectTiming(int[] timing, ConnectionReconnector connRec) {
-        this.reconnect_timing = timing;
+    protected void setReconnectBackoff(Backoff backoff, ConnectionReconnector connRec) {
+        this.reconnectBackoff = backoff;
         this.connRec = connRec;
     }
 
+    /**
+     * The other side's hint of how long (ms) to wait before
+     * reconnecting.
+     */
+    protected void setRetryAfter(long millis) {
+        log.info("we are asked to come back in " + millis + "ms");
+        if (reconnectBackoff != null)
+            reconnectBackoff.setHint(millis);
+    }
+
     /** passes the data to the client for processing */
     public abstract void gotAuthenticatedDataStream(DataInputStream in)
         throws Exception;
@@ -135,20 +183,16 @@ public abstract class AuthenticatedSocketHandler
     private final void callAuthenticationComplete(boolean success) {
 
         if (success) {
-            reconnectIndex = 0;
+            if (reconnectBackoff != null)
+                reconnectBackoff.reset();
             disableTimeOut(); // and we're done!
         }
 
         authenticationComplete(success);
 
         if (!success) {
-            if (reconnect_timing != null) {
-                long nextReconnect = System.currentTimeMillis() + reconnect_timing[reconnectIndex];
-                reconnectIndex++;
-                if (reconnectIndex >= reconnect_timing.length)
-                    reconnectIndex = reconnect_timing.length - 1;
-                connRec.reschedule(this, nextReconnect);
-            }
+            if (reconnectBackoff != null)
+                connRec.reschedule(this, System.currentTimeMillis() + reconnectBackoff.next());
             
             initAuthentication(localUser, remoteUser);
         }
@@ -188,7 +232,11 @@ public abstract class AuthenticatedSocketHandler
     public void gotDataStream(DataInputStream in)
         throws Exception {
 
-        if (isAuthenticated) {
+        if (refused) {
+
+            return;
+
+        } else if (isAuthenticated) {
 
             gotAuthenticatedDataStream(in);
 
@@ -200,26 +248,32 @@ public abstract class AuthenticatedSocketHandler
             //log.debug("processing remote nonce..");
             String greeting = in.readUTF();
             String ident = in.readUTF();
-            if (ident.length() != 0 && ((localUser == null) || (localUser.getId().toString().compareTo(ident) != 0))) {
+            if (BUSY_GREETING.equals(greeting)) {
+                // the other side is too busy to talk to us now
+                String after = in.readUTF();
+                try {
+                    setRetryAfter(Long.parseLong(after));
+                } catch (NumberFormatException nfe) {
+                    log.warn("got an invalid retry-after from a busy peer: " + after);
+                }
+                close();
+                return;
+            } else if (ident.length() != 0 && ((localUser == null) || (localUser.getId().toString().compareTo(ident) != 0))) {
                 log.error("the lookup server is  expecting someone else: " + ident);
                 authError(); return;
             } else {
                 remoteNonce = in.readUTF();
-                
-                DataOutputStream out = sendDataStream();
-                if (localUser != null) {
-
-                    SignableProperties sp = new SignableProperties();
-                    sp.setProperty("nonce", remoteNonce);
-                    localUser.sign(sp);
-
-                    out.writeUTF(localUser.getSignedTextData());
-                    out.writeUTF(sp.getSignedTextData());
-                } else {
-                    out.writeUTF("");
-                    out.writeUTF("");
-                }
-                out.close();
+                String ticketId = (in.available() > 0? in.readUTF() : "");
+
+                if (!outgoing && ticketId.length() > 0)
+                    resumeTicket = SessionTicketCache.getInstance().get(ticketId, getLocalId());
+
+                if (resumeTicket != null)
+                    sendResumeProof(resumeTicket);
+                else if (offeredTicket != null)
+                    responsePending = true;
+                else
+                    sendFullResponse();
                 setTimeOutAfter(5000); // we don't want to wait forever
             }
             //log.debug("processing remote nonce.. done");
@@ -228,6 +282,12 @@ public abstract class AuthenticatedSocketHandler
             //log.debug("processing remote user");
             String users = in.readUTF();
             String props = in.readUTF();
+            String ext = (in.available() > 0? in.readUTF() : "");
+            if (ext.startsWith("resume:")) {
+                gotResumeProof(ext.substring(7));
+                return;
+            }
+
             User user = null;
             if (users.length() > 0 && props.length() > 0) {
 
@@ -244,6 +304,15 @@ public abstract class AuthenticatedSocketHandler
                 } else if (!user.verify(sp)) {
                     log.error("signature on signed nonce does not verify");
                     authError(); return;
+                } else if (isTLS() && !checkChannel(sp.getProperty("channel"))) {
+                    log.error("the signed nonce is not bound to this TLS channel");
+                    authError(); return;
+                }
+
+                // the key agreement must be signed as well
+                if (ext.length() > 0 && !ext.equals(sp.getProperty("dh"))) {
+                    log.warn("the key agreement was not signed, not creating a session ticket");
+                    ext = "";
                 }
             
             } else if (!acceptAnon || remoteUser != null) {
@@ -257,12 +326,168 @@ public abstract class AuthenticatedSocketHandler
             } else {
                 log.error("ok, we are now connected to " + user);
                 realRemoteUser = user;
+
+                // the other side did not take our ticket
+                if (responsePending) {
+                    SessionTicketCache.getInstance().remove(offeredTicket);
+                    offeredTicket = null;
+                    responsePending = false;
+                    sendFullResponse();
+                }
+                createTicket(ext);
+
                 isAuthenticated = true;
                 callAuthenticationComplete(true);
             }
         }
     }
 
+    /* checks the other side's proof of knowing the session ticket */
+    private void gotResumeProof(String proof)
+        throws Exception {
+
+        SessionTicketCache.Ticket t = (outgoing? offeredTicket : resumeTicket);
+        if (t == null) {
+            log.error("got a session ticket proof, but no ticket was agreed on");
+            authError(); return;
+        } else if (!t.checkProof(getRole(!outgoing), getInitiatorNonce(), getAcceptorNonce(), 
+                                 getChannelBinding(), proof)) {
+            log.error("the session ticket proof does not verify");
+            SessionTicketCache.getInstance().remove(t);
+            authError(); return;
+        }
+
+        User user = t.getPeer();
+        if (user == null && (!acceptAnon || remoteUser != null)) {
+            log.error("we got an anon user, but we are not accepting it");
+            authError(); return;
+        } else if (remoteUser != null && remoteUser.getId().compareTo(user.getId()) != 0) {
+            log.error("we got connected to the wrong user");
+            authError(); return;
+        }
+
+        if (responsePending) {
+            responsePending = false;
+            sendResumeProof(t);
+        }
+
+        log.info("resumed the session with " + user);
+        realRemoteUser = user;
+        isAuthenticated = true;
+        callAuthenticationComplete(true);
+    }
+
+    private String getLocalId() {
+        return (localUser != null? localUser.getId() : null);
+    }
+
+    /* whom we remember the tickets by */
+    private String getTicketKey() {
+
+        if (!outgoing)
+            return "in:" + (realRemoteUser != null? realRemoteUser.getId() : getRemoteAddressAsString());
+        else if (remoteUser != null)
+            return "user:" + remoteUser.getId();
+        else
+            return "addr:" + (addr != null? addr : getRemoteAddressAsString());
+    }
+
+    /* whether the other side signed the same TLS channel we see */
+    private boolean checkChannel(String channel) {
+
+        String ours = getChannelBinding();
+        return ours != null && ours.equals(channel);
+    }
+
+    /* sends our profile and the signed nonce, starting a new session */
+    private void sendFullResponse() 
+        throws Exception {
+
+        String dh = "";
+        if (SessionTicketCache.getInstance().isEnabled()) {
+            try {
+                KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+                kpg.initialize(256);
+                dhKeys = kpg.generateKeyPair();
+                dh = DataUtil.toHex(dhKeys.getPublic().getEncoded());
+            } catch (Exception ex) {
+                log.warn("could not create the key agreement: " + ex);
+                dhKeys = null;
+            }
+        }
+
+        DataOutputStream out = sendDataStream();
+        if (localUser != null) {
+
+            SignableProperties sp = new SignableProperties();
+            sp.setProperty("nonce", remoteNonce);
+            String channel = getChannelBinding();
+            if (channel != null)
+                sp.setProperty("channel", channel);
+            if (dh.length() > 0)
+                sp.setProperty("dh", dh);
+            localUser.sign(sp);
+
+            out.writeUTF(localUser.getSignedTextData());
+            out.writeUTF(sp.getSignedTextData());
+        } else {
+            out.writeUTF("");
+            out.writeUTF("");
+        }
+        out.writeUTF(dh);
+        out.close();
+    }
+
+    private static String getRole(boolean initiator) {
+        return (initiator? SessionTicketCache.ROLE_INITIATOR : SessionTicketCache.ROLE_ACCEPTOR);
+    }
+
+    private String getInitiatorNonce() {
+        return (outgoing? localNonce : remoteNonce);
+    }
+
+    private String getAcceptorNonce() {
+        return (outgoing? remoteNonce : localNonce);
+    }
+
+    /* proves that we have the ticket, instead of the full response */
+    private void sendResumeProof(SessionTicketCache.Ticket t) 
+        throws Exception {
+
+        DataOutputStream out = sendDataStream();
+        out.writeUTF("");
+        out.writeUTF("");
+        out.writeUTF("resume:" + t.createProof(getRole(outgoing), getInitiatorNonce(), getAcceptorNonce(), 
+                                               getChannelBinding()));
+        out.close();
+    }
+
+    /* makes a ticket of the key agreement, if both sides did one */
+    private void createTicket(String remoteDh) {
+
+        if (dhKeys == null || remoteDh.length() == 0)
+            return;
+        try {
+            KeyFactory kf = KeyFactory.getInstance("EC");
+            PublicKey pk = kf.generatePublic(new X509EncodedKeySpec(DataUtil.toBytes(remoteDh)));
+            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            ka.init(dhKeys.getPrivate());
+            ka.doPhase(pk, true);
+
+            // bind it to this session's nonces, in the same order on both sides
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ka.generateSecret());
+            boolean first = localNonce.compareTo(remoteNonce) < 0;
+            digest.update((first? localNonce : remoteNonce).getBytes());
+            digest.update((first? remoteNonce : localNonce).getBytes());
+
+            SessionTicketCache.getInstance().create(digest.digest(), getLocalId(), getTicketKey(), realRemoteUser);
+        } catch (Exception ex) {
+            log.warn("could not create a session ticket: " + ex);
+        }
+        dhKeys = null;
+    }
+
     public User getRemoteUser() {
         return realRemoteUser;
     }
@@ -278,16 +503,42 @@ public abstract class AuthenticatedSocketHandler
                 
             // start: greeting, possible target (may be empty), nonce.
             DataOutputStream out = sendDataStream();
-            out.writeUTF("sicxoss:0.1:Hello!");
+            out.writeUTF(GREETING);
             if (remoteUser != null)
                 out.writeUTF(remoteUser.getId());
             else
                 out.writeUTF(""); // we're not looking for anyone special
             out.writeUTF(localNonce);
+
+            // offer to resume an earlier session
+            if (outgoing && offerTicket)
+                offeredTicket = SessionTicketCache.getInstance().getForPeer(getLocalId(), getTicketKey());
+            out.writeUTF(offeredTicket != null? offeredTicket.getId() : "");
             out.close();
             setTimeOutAfter(5000); // we don't want to wait forever
         } catch (Exception ex) {
             log.warn("exception while starting the dialog: " + ex);
         }
     }
+
+    /**
+     * Turns the other side away before authenticating, telling it
+     * when (ms) to try again. In place of the greeting, with the
+     * same layout, so older peers just fail to authenticate.
+     */
+    public void refuse(long retryAfter) {
+
+        log.info("refusing a connection, come back in " + retryAfter + "ms");
+        refused = true;
+        try {
+            DataOutputStream out = sendDataStream();
+            out.writeUTF(BUSY_GREETING);
+            out.writeUTF("");
+            out.writeUTF(Long.toString(retryAfter));
+            out.close();
+        } catch (Exception ex) {
+            log.warn("exception while refusing: " + ex);
+        }
+        close();
+    }
 }
@@ -0,0 +1,79 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A pool of direct byte buffers. Direct buffers are expensive to
+ * allocate (and free), so the ones used for the per-connection
+ * network buffers are recycled here.
+ * @author koskela
+ */
+public class BufferPool {
+
+    // how many free buffers of each size we keep
+    public static final int MAX_FREE = 64;
+
+    private static BufferPool instance = new BufferPool();
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    private Hashtable<Integer, LinkedList<ByteBuffer>> free;
+
+    public BufferPool() {
+        free = new Hashtable<Integer, LinkedList<ByteBuffer>>();
+    }
+
+    /**
+     * Returns a cleared buffer of at least the given size.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+
+        LinkedList<ByteBuffer> l = free.get(size);
+        if (l != null && l.size() > 0) {
+            ByteBuffer ret = l.removeFirst();
+            ret.clear();
+            return ret;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after
+     * this.
+     */
+    public synchronized void release(ByteBuffer bb) {
+
+        if (bb == null || !bb.isDirect())
+            return;
+
+        LinkedList<ByteBuffer> l = free.get(bb.capacity());
+        if (l == null) {
+            l = new LinkedList<ByteBuffer>();
+            free.put(bb.capacity(), l);
+        }
+        if (l.size() < MAX_FREE)
+            l.add(bb);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Reads what there is of a buffer, between its position and
+ * limit. The buffer should be one of the stream's own (a duplicate).
+ * @author koskela
+ */
+public class ByteBufferInputStream
+    extends InputStream {
+
+    private ByteBuffer bb;
+
+    public ByteBufferInputStream(ByteBuffer bb) {
+        this.bb = bb;
+    }
+
+    public int read() {
+        return (bb.hasRemaining()? bb.get() & 0xff : -1);
+    }
+
+    public int read(byte[] b, int off, int len) {
+        if (len == 0)
+            return 0;
+        if (!bb.hasRemaining())
+            return -1;
+        len = Math.min(len, bb.remaining());
+        bb.get(b, off, len);
+        return len;
+    }
+
+    public long skip(long n) {
+        int s = (int)Math.max(0, Math.min(n, bb.remaining()));
+        bb.position(bb.position() + s);
+        return s;
+    }
+
+    public int available() {
+        return bb.remaining();
+    }
+}
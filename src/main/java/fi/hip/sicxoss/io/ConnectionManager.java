@@ -24,6 +24,7 @@ import java.security.*;
 import java.net.*;
 import java.util.*;
 import java.nio.channels.*;
+import javax.net.ssl.SSLContext;
 
 import org.apache.log4j.Logger;
 
@@ -49,7 +50,10 @@ public class ConnectionManager
     private NetworkEngine engine;
     private LocalGateway gw;
     
-    private Hashtable<DataSocketHandler, Long> rescheduledHandlers;
+    // the reconnects waiting, soonest first. only the latest one of
+    // each handler (in scheduledWakeups) counts, the rest are skipped
+    private PriorityQueue<Wakeup> rescheduledHandlers;
+    private Hashtable<DataSocketHandler, Wakeup> scheduledWakeups;
     private long nextWakeUp;
     private Hashtable<String, CMLookupSocketHandler> lookupHandlers;
 
@@ -58,19 +62,44 @@ public class ConnectionManager
 
     // for incoming connections
     private CMServerSocketHandler ssHandler;
+    private CMServerSocketHandler tlsHandler;
+
+    // finds the contacts in the same network
+    private LanDiscovery lanDiscovery;
+
+    // what we registered with last
+    private User lastRegistration;
+    private String lastRegistrationState;
 
     // the observers
     private List<ConnectionManagerObserver> observers;
 
+    // upload rate limits. rates are in bytes per second
+    private TokenBucket uploadLimiter;
+    private Hashtable<String, TokenBucket> contactUploadLimiters;
+
+    // the hole punching going on, by contact
+    private Hashtable<String, HolePuncher> punches;
+
+    // the connection races going on
+    private List<AddressRace> races;
+
     public ConnectionManager(LocalUser user, LocalGateway gw) {
         this.localUser = user;
         this.gw = gw;
         this.engine = gw.getNetworkEngine();
-        this.rescheduledHandlers = new Hashtable();
+        this.rescheduledHandlers = new PriorityQueue<Wakeup>();
+        this.scheduledWakeups = new Hashtable<DataSocketHandler, Wakeup>();
         this.nextWakeUp = -1;
         this.lookupHandlers = new Hashtable();
         this.contacts = new Hashtable();
         this.observers = new ArrayList();
+        this.uploadLimiter = new TokenBucket("global", 0);
+        this.contactUploadLimiters = new Hashtable<String, TokenBucket>();
+        this.punches = new Hashtable<String, HolePuncher>();
+        this.races = new ArrayList<AddressRace>();
+        // how long (seconds) a peer may resume its session without signing
+        SessionTicketCache.getInstance().setLifetime(gw.getConfigInt("auth.ticket.lifetime", 1800) * 1000L);
         engine.addClient(this);
         setDaemon(true);
     }
@@ -90,6 +119,8 @@ public class ConnectionManager
         extends ServerSocketHandler {
 
         private ConnectionManager cm;
+        // set if the accepted connections use TLS
+        private SSLContext tlsContext;
 
         public CMServerSocketHandler(ConnectionManager cm) 
             throws Exception {
@@ -98,10 +129,18 @@ public class ConnectionManager
             // we could do some sort of upnp magic, if we wanted..
         }
 
+        public CMServerSocketHandler(ConnectionManager cm, SSLContext tlsContext) 
+            throws Exception {
+            this(cm);
+            this.tlsContext = tlsContext;
+        }
+
         public void gotAccept(SocketChannel sc) {
             log.info("we accept peer connection!");
             try {
                 CMSocketHandler sh = new CMSocketHandler(sc, cm);
+                if (tlsContext != null)
+                    sh.enableTLS(tlsContext, false);
                 eng.addHandler(sh);
                 sh.startAuthentication();
             } catch (Exception ex) {
@@ -115,17 +154,62 @@ public class ConnectionManager
         extends AuthenticatedSocketHandler {
 
         private ConnectionManager connMan;
+        // made by hole punching, not to be reconnected
+        private boolean punched = false;
+        // when we started connecting, and how long (ms) it took. no
+        // initializers, connecting starts in the super constructor
+        private long connectStarted;
+        private long connectTime;
 
         public CMSocketHandler(String str, User remote, ConnectionManager connMan) 
             throws Exception {
             super(str, connMan.getLocalUser(), remote);
             this.connMan = connMan;
+            addLimiter(connMan.getUploadLimiter());
+        }
+
+        /* a hole punching attempt from the given local address */
+        public CMSocketHandler(String str, InetSocketAddress local, User remote, ConnectionManager connMan) 
+            throws Exception {
+            super(str, local, connMan.getLocalUser(), remote);
+            this.connMan = connMan;
+            addLimiter(connMan.getUploadLimiter());
+            setPunched();
+        }
+
+        /**
+         * Marks the socket as one made by hole punching. These are not
+         * reconnected (the holes close), and do not offer session
+         * tickets, as both ends may think they are the connecting one.
+         */
+        public void setPunched() {
+            punched = true;
+            setOfferTicket(false);
+        }
+
+        public boolean isPunched() {
+            return punched;
+        }
+
+        public void gotConnecting() {
+            connectStarted = System.currentTimeMillis();
+        }
+
+        public void gotConnected() {
+            connectTime = System.currentTimeMillis() - connectStarted;
+            super.gotConnected();
+        }
+
+        /** how long the connecting took, ms */
+        public long getConnectTime() {
+            return connectTime;
         }
 
         public CMSocketHandler(SocketChannel sc, ConnectionManager connMan) 
             throws Exception {
             super(sc, connMan.getLocalUser(), null);
             this.connMan = connMan;
+            addLimiter(connMan.getUploadLimiter());
         }
 
         public void gotAuthenticatedDataStream(DataInputStream in)
@@ -151,7 +235,9 @@ public class ConnectionManager
                     connMan.getContactConnectionManager(getRemoteUser()).directConnectionEstablished(this);
                     
                     // reschedule only if we have successfully connected to this once
-                    setReconnectTiming(new int[] { 20000, 20000, 60000 }, connMan);
+                    if (!punched)
+                        setReconnectBackoff(new Backoff(gw.getConfigInt("peer.reconnect.min", 20) * 1000L,
+                                                        gw.getConfigInt("peer.reconnect.max", 60) * 1000L), connMan);
                 }
             } else if (getRemoteUser() != null) {
                 // this may be an incoming from an untrusted. do not create a ccm!
@@ -173,10 +259,19 @@ public class ConnectionManager
         private Hashtable<ShareID, ShareModel> shares;
         private User contact;
         private ConnectionManager connMan;
+        // the pool of direct connections, keyed by address
         private Hashtable<String, CMSocketHandler> sockets;
+        private CMSocketHandler control;
         private List<CMLookupSocketHandler> activeLookups;
         private boolean hadLookupConnection;
         private boolean hadDirectConnection;
+        // when we last asked the contact to punch a hole
+        private long lastPunch = 0;
+        // the address that worked last, and the race to find it
+        private String preferredAddress;
+        private AddressRace race;
+        // where we last heard of him in the local network
+        private InetAddress lanAddress;
 
         public ContactConnectionManager(User user, ConnectionManager connMan) {
             this.connMan = connMan;
@@ -189,11 +284,59 @@ public class ConnectionManager
             updateContactInfo(user, null);
         }
 
-        public MessageSocketHandler getConnection(boolean requireDirect) {
-
+        /* the authenticated direct connections */
+        private synchronized List<CMSocketHandler> getDirectConnections() {
+            List<CMSocketHandler> ret = new ArrayList<CMSocketHandler>();
             for (CMSocketHandler cmsh : sockets.values())
                 if (cmsh.isConnected() && cmsh.getRemoteUser() != null)
-                    return cmsh;
+                    ret.add(cmsh);
+            return ret;
+        }
+
+        /* the socket for the control messages. we stick to one so
+         * they arrive in order, and off the bulk sockets if we can */
+        private synchronized CMSocketHandler getControlConnection() {
+
+            if (control != null && control.isConnected() && sockets.contains(control))
+                return control;
+            control = null;
+            List<CMSocketHandler> conns = getDirectConnections();
+            if (conns.size() > 0)
+                control = conns.get(0);
+            return control;
+        }
+
+        /**
+         * Returns the connection on which a new stream should go: the
+         * one with the least streaming going on. The control socket
+         * is used only if there is nothing else.
+         */
+        public synchronized MessageSocketHandler getStreamingConnection() {
+
+            CMSocketHandler ctrl = getControlConnection();
+            CMSocketHandler ret = null;
+            for (CMSocketHandler cmsh : getDirectConnections()) {
+                if (ret == null || ret == ctrl ||
+                    (cmsh != ctrl && cmsh.getStreamingLoad() < ret.getStreamingLoad()))
+                    ret = cmsh;
+            }
+            if (ret != null)
+                return ret;
+            return getConnection(false);
+        }
+
+        public int getStreamingConnectionCount() {
+            int ret = getDirectConnections().size();
+            if (ret > 1)
+                ret--; // the control one
+            return ret;
+        }
+
+        public MessageSocketHandler getConnection(boolean requireDirect) {
+
+            CMSocketHandler ctrl = getControlConnection();
+            if (ctrl != null)
+                return ctrl;
             if (requireDirect)
                 return null;
 
@@ -209,9 +352,9 @@ public class ConnectionManager
         public DataOutputStream sendDataStream(boolean requireDirect)
             throws Exception {
 
-            for (CMSocketHandler cmsh : sockets.values())
-                if (cmsh.isConnected() && cmsh.getRemoteUser() != null)
-                    return cmsh.sendDataStream();
+            CMSocketHandler ctrl = getControlConnection();
+            if (ctrl != null)
+                return ctrl.sendDataStream();
             if (requireDirect)
                 return null;
         
@@ -272,6 +415,16 @@ public class ConnectionManager
                 break;
             }
 
+            case PUNCH: {
+
+                boolean reply = in.readBoolean();
+                List<String> addrs = new ArrayList<String>();
+                while (in.available() > 0)
+                    addrs.add(in.readUTF());
+                punchGot(reply, addrs);
+                break;
+            }
+
             case STREAM_START: {
 
                 String to = in.readUTF();
@@ -343,7 +496,9 @@ public class ConnectionManager
                         DataID dataId = DataID.parse(did);
                         long start = in.readLong();
                         long finish = in.readLong();
-                        share.dataRequestGot(contact, dataId, start, finish);
+                        // older peers do not send the priority
+                        boolean interactive = in.available() > 0 && in.readBoolean();
+                        share.dataRequestGot(contact, dataId, start, finish, interactive);
                         break;
                     }
                     case DATA_BLOCK: {
@@ -425,37 +580,244 @@ public class ConnectionManager
             updateStatusToShares();
             
             // if we don't have a connection, but have the ip address
-            // etc, try to establish one!
-            String addr = contact.getProperty("address");
-            if (addr != null) {
-                log.info("we should try and connect to " + addr + " if we haven't already!");
+            // etc, try to establish one! prefer the encrypted one.
+            boolean tls = (contact.getProperty("tls_address") != null && connMan.isPeerTLSEnabled());
+            List<String> addrs = getAddresses(tls);
+            if (addrs.size() > 0) {
+                log.info("we should try and connect to " + addrs + " if we haven't already!");
                 
-                // check if we have a connection to him & that address already
-                // .. or have a connection which is pending.
-                // .. and establish only if we have shares with him!
-                if (/*!sockets.containsKey(addr) &&*/ !hasDirectConnection()
-                    && shares.size() > 0) {
-
-                    // clear out the old connections
-                    for (String k : sockets.keySet()) {
-                        CMSocketHandler cmsh = sockets.get(k);
-                        cmsh.close();
-                        cmsh.cancel();
-                    }
-                    sockets.clear();
-
-                    try {
-                        CMSocketHandler cmsh = new CMSocketHandler(addr, user, connMan);
-                        sockets.put(addr, cmsh);
-                        engine.addHandler(cmsh);
-                    } catch (Exception ex) {
-                        log.error("error connecting to " + user + " using address " + addr);
-                    }
+                // .. establish only if we have shares with him!
+                // with many addresses, race them to find the one
+                // that works, unless we know that already
+                if (shares.size() > 0 && race == null) {
+                    if (hasDirectConnection() || addrs.size() == 1)
+                        fillPool(addrs.get(0), tls);
+                    else
+                        race = connMan.startRace(this, contact, addrs, tls);
                 }
             } else
                 log.debug("no address included in update!");
+
+            // he is likely behind a nat, in which case the address
+            // does not work. try punching through it at the same time.
+            if (lookup != null && shares.size() > 0 && !hasDirectConnection())
+                requestPunch();
+        }
+
+        /**
+         * Asks the contact (through the lookup) to punch a hole with
+         * us, sending the addresses we can be reached at.
+         */
+        private void requestPunch() {
+
+            long now = System.currentTimeMillis();
+            if (!connMan.isPunchEnabled() || now - lastPunch < connMan.getPunchInterval())
+                return;
+            List<String> addrs = connMan.getPunchCandidates();
+            if (addrs.size() == 0) {
+                log.debug("we do not know our nat address, can't punch");
+                return;
+            }
+            lastPunch = now;
+            log.info("asking " + contact + " to punch a hole to " + addrs);
+            sendPunch(false, addrs);
+        }
+
+        private void sendPunch(boolean reply, List<String> addrs) {
+
+            try {
+                DataOutputStream dos = sendDataStream(false);
+                if (dos == null)
+                    return;
+                dos.writeUTF(NetworkMessage.MessageType.PUNCH.toString());
+                dos.writeBoolean(reply);
+                for (String a : addrs)
+                    dos.writeUTF(a);
+                dos.close();
+            } catch (Exception ex) {
+                log.warn("error sending the punch: " + ex);
+            }
+        }
+
+        /* the contact wants to punch, or replies to our request */
+        private void punchGot(boolean reply, List<String> addrs) {
+
+            if (!connMan.isPunchEnabled() || hasDirectConnection() || shares.size() == 0) {
+                log.debug("not punching a hole to " + contact);
+                return;
+            }
+            if (!reply) {
+                List<String> ours = connMan.getPunchCandidates();
+                if (ours.size() == 0)
+                    return;
+                sendPunch(true, ours);
+            }
+            connMan.startPunch(this, addrs);
+        }
+
+        /**
+         * The contact announced itself in the local network. We use
+         * the address the beacon came from (with the port the contact
+         * gave) before the rest.
+         */
+        public void lanPeerFound(User user, InetAddress from) {
+
+            if (!from.equals(lanAddress))
+                log.info("found " + user + " in the local network at " + from);
+            lanAddress = from;
+            updateContactInfo(user, null);
+        }
+
+        public boolean isPunchTLS() {
+            return contact.getProperty("tls_address") != null && connMan.isPeerTLSEnabled();
         }
         
+        /**
+         * The addresses of the contact, the one that worked last
+         * first, then alternating between ipv6 and ipv4 (as in RFC
+         * 8305), in the order the contact gave them. Older gateways
+         * give just the one.
+         */
+        private List<String> getAddresses(boolean tls) {
+
+            List<String> all = new ArrayList<String>();
+            String list = contact.getProperty(tls? "tls_addresses" : "addresses");
+            if (list != null)
+                for (String a : list.split(","))
+                    if (a.trim().length() > 0 && !all.contains(a.trim()))
+                        all.add(a.trim());
+            String addr = contact.getProperty(tls? "tls_address" : "address");
+            if (addr != null && !all.contains(addr))
+                all.add(addr);
+
+            // the one seen in the local network first
+            String lan = null;
+            if (lanAddress != null && addr != null) {
+                lan = SocketHandler.s2a(lanAddress, SocketHandler.a2s(addr).getPort());
+                if (!all.contains(lan))
+                    all.add(lan);
+            }
+
+            List<String> v6 = new ArrayList<String>();
+            List<String> v4 = new ArrayList<String>();
+            for (String a : all)
+                if (!a.equals(preferredAddress))
+                    (a.startsWith("[")? v6 : v4).add(a);
+
+            List<String> ret = new ArrayList<String>();
+            if (preferredAddress != null && all.contains(preferredAddress))
+                ret.add(preferredAddress);
+            if (lan != null && !ret.contains(lan)) {
+                ret.add(lan);
+                (lan.startsWith("[")? v6 : v4).remove(lan);
+            }
+            for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+                if (i < v6.size())
+                    ret.add(v6.get(i));
+                if (i < v4.size())
+                    ret.add(v4.get(i));
+            }
+            return ret;
+        }
+
+        /**
+         * Called when racing the addresses is over. The winner goes
+         * into the pool, which is then filled up using its address,
+         * and the rest are closed.
+         */
+        protected synchronized void raceFinished(AddressRace r, CMSocketHandler winner, boolean tls) {
+
+            race = null;
+            for (CMSocketHandler cmsh : r.getAttempts())
+                if (cmsh != winner)
+                    dropSocket(cmsh);
+            if (winner == null) {
+                log.info("could not connect to any of the addresses of " + contact);
+                return;
+            }
+
+            preferredAddress = winner.getAddress();
+            log.info("using " + preferredAddress + " for " + contact + ", connected in " + winner.getConnectTime() + " ms");
+            if (!sockets.contains(winner)) {
+                // the first slot that is free, or whose socket is
+                // neither up nor on its way up. that one is replaced
+                for (int i = 0; ; i++) {
+                    String key = preferredAddress + "#" + i;
+                    CMSocketHandler old = sockets.get(key);
+                    if (old != null && (old.isConnected() || old.isConnectionPending()))
+                        continue;
+                    if (old != null)
+                        dropSocket(old);
+                    sockets.put(key, winner);
+                    break;
+                }
+            }
+            fillPool(preferredAddress, tls);
+        }
+
+        /* closes a socket for good, and forgets it */
+        private synchronized void dropSocket(CMSocketHandler cmsh) {
+            sockets.values().remove(cmsh);
+            cmsh.close();
+            cmsh.cancel();
+        }
+
+        /* the sockets that are up, or on their way up */
+        private synchronized int getLiveSocketCount() {
+            int ret = 0;
+            for (CMSocketHandler cmsh : sockets.values())
+                if (cmsh.isConnected() || cmsh.isConnectionPending())
+                    ret++;
+            return ret;
+        }
+
+        /**
+         * Opens connections to the given address until we have as
+         * many as the pool size allows. The sockets that are dead or
+         * to some other (old) address are dropped, the working ones
+         * are left alone. The sockets are for the latest version of
+         * the contact we have.
+         */
+        private synchronized void fillPool(String addr, boolean tls) {
+
+            List<String> dead = new ArrayList<String>();
+            for (String k : sockets.keySet()) {
+                CMSocketHandler cmsh = sockets.get(k);
+                if (cmsh.isConnected() || cmsh.isConnectionPending())
+                    continue;
+                if (!hasDirectConnection() || (cmsh.getAddress() != null && !cmsh.getAddress().equals(addr)))
+                    dead.add(k);
+            }
+            for (String k : dead) {
+                CMSocketHandler cmsh = sockets.remove(k);
+                cmsh.close();
+                cmsh.cancel();
+            }
+
+            int size = connMan.getPoolSize();
+            for (int i = 0; i < size && getLiveSocketCount() < size; i++) {
+                String key = addr + "#" + i;
+                CMSocketHandler old = sockets.get(key);
+                if (old != null && (old.isConnected() || old.isConnectionPending()))
+                    continue;
+                if (old != null) {
+                    old.close();
+                    old.cancel();
+                }
+
+                try {
+                    CMSocketHandler cmsh = new CMSocketHandler(addr, contact, connMan);
+                    if (tls)
+                        cmsh.enableTLS(connMan.getTLSContext(), true);
+                    sockets.put(key, cmsh);
+                    engine.addHandler(cmsh);
+                } catch (Exception ex) {
+                    log.error("error connecting to " + contact + " using address " + addr);
+                    break;
+                }
+            }
+        }
+
         public synchronized void directConnectionEstablished(CMSocketHandler cmsh) {
             log.info("direct connection established!");
             if (!sockets.contains(cmsh))
@@ -531,6 +893,29 @@ public class ConnectionManager
             log.error("error initializing server socket: " + ex);
         }
 
+        if (isPeerTLSEnabled()) {
+            try {
+                this.tlsHandler = new CMServerSocketHandler(this, getTLSContext());
+                engine.addHandler(this.tlsHandler);
+            } catch (Exception ex) {
+                log.error("error initializing the TLS server socket: " + ex);
+            }
+        }
+
+        // and the discovery in the local network
+        if (isLanDiscoveryEnabled()) {
+            try {
+                String group = gw.getConfig("lan.discovery.group");
+                lanDiscovery = new LanDiscovery((group != null? group : LanDiscovery.DEFAULT_GROUP),
+                                                gw.getConfigInt("lan.discovery.port", LanDiscovery.DEFAULT_PORT),
+                                                gw.getConfigInt("lan.discovery.interval", 30) * 1000,
+                                                new CMLanListener());
+                lanDiscovery.start(engine);
+            } catch (Exception ex) {
+                log.warn("could not start the discovery in the local network: " + ex);
+            }
+        }
+
         // connect to the lookup server(s) & maintain and monitor those connections
         while (true) {
             try {
@@ -560,6 +945,225 @@ public class ConnectionManager
         return localUser;
     }
 
+    public LocalGateway getGateway() {
+        return gw;
+    }
+
+    /**
+     * The gateway-wide upload limit (upload.limit), shared by all
+     * the sockets of this connection manager.
+     */
+    public TokenBucket getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    /**
+     * The upload limit for a single contact. Configured with
+     * upload.limit.contact.<user id>, or upload.limit.contact.default
+     * for all contacts without a limit of their own.
+     */
+    public TokenBucket getContactUploadLimiter(User contact) {
+
+        TokenBucket ret = null;
+        synchronized (contactUploadLimiters) {
+            ret = contactUploadLimiters.get(contact.getId());
+            if (ret == null) {
+                ret = new TokenBucket(contact.getId(), 0);
+                contactUploadLimiters.put(contact.getId(), ret);
+            }
+        }
+        int def = gw.getConfigInt("upload.limit.contact.default", 0);
+        ret.setRate(gw.getConfigInt("upload.limit.contact." + contact.getId(), def));
+        return ret;
+    }
+
+    /**
+     * Re-reads the limits from the configuration, so they can be
+     * changed at runtime.
+     */
+    public void refreshUploadLimits() {
+
+        uploadLimiter.setRate(gw.getConfigInt("upload.limit", 0));
+        int def = gw.getConfigInt("upload.limit.contact.default", 0);
+        synchronized (contactUploadLimiters) {
+            for (String uid : contactUploadLimiters.keySet())
+                contactUploadLimiters.get(uid).setRate(gw.getConfigInt("upload.limit.contact." + uid, def));
+        }
+    }
+
+    /**
+     * Whether we accept and make encrypted peer connections. This is
+     * on unless peer.tls is set to false.
+     */
+    public boolean isPeerTLSEnabled() {
+        return !"false".equals(gw.getConfig("peer.tls"));
+    }
+
+    public SSLContext getTLSContext() 
+        throws Exception {
+        return gw.getTLSContext();
+    }
+
+    /**
+     * Whether we try to punch through nats to the contacts we can't
+     * connect to directly. This is on unless peer.punch is false.
+     */
+    public boolean isPunchEnabled() {
+        return !"false".equals(gw.getConfig("peer.punch"));
+    }
+
+    /**
+     * Whether we look for the contacts in the local network with
+     * multicast. On unless lan.discovery is false.
+     */
+    public boolean isLanDiscoveryEnabled() {
+        return !"false".equals(gw.getConfig("lan.discovery"));
+    }
+
+    /* passes the contacts found in the local network on */
+    private class CMLanListener
+        implements LanDiscovery.PeerListener {
+
+        public User getAnnouncement()
+            throws Exception {
+            return getLocalRegistrationUser();
+        }
+
+        public void peerFound(User user, InetAddress from) {
+
+            // only those we share with, as with the lookup's updates
+            ContactConnectionManager ccm = contacts.get(user.getId());
+            if (ccm == null || !localUser.contactManager().isTrusted(user))
+                return;
+            ccm.lanPeerFound(user, from);
+        }
+    }
+
+    /* how often (ms) we may ask a contact to punch, peer.punch.interval seconds */
+    public long getPunchInterval() {
+        return gw.getConfigInt("peer.punch.interval", 60) * 1000L;
+    }
+
+    /* the lookup connection we punch from; the first one that has
+     * told us how we look like */
+    private CMLookupSocketHandler getPunchLookup() {
+
+        for (String ls : getLookupServers()) {
+            CMLookupSocketHandler lsh = lookupHandlers.get(ls);
+            if (lsh != null && lsh.isConnected() && lsh.getMirrorAddress() != null)
+                return lsh;
+        }
+        return null;
+    }
+
+    /**
+     * The addresses a contact should punch to: how the lookup sees
+     * our lookup connection (the address of our nat), and the local
+     * address of it, for those in the same network.
+     */
+    public List<String> getPunchCandidates() {
+
+        List<String> ret = new ArrayList<String>();
+        CMLookupSocketHandler lsh = getPunchLookup();
+        if (lsh == null)
+            return ret;
+        ret.add(lsh.getMirrorAddress());
+        try {
+            String la = InetAddress.getLocalHost().getHostAddress() + ":" + lsh.getLocalAddress().getPort();
+            if (!ret.contains(la))
+                ret.add(la);
+        } catch (Exception ex) {
+            log.debug("no local address: " + ex);
+        }
+        return ret;
+    }
+
+    /**
+     * Starts punching a hole to the contact's addresses, or adds them
+     * to the punching going on already.
+     */
+    protected void startPunch(ContactConnectionManager ccm, List<String> addrs) {
+
+        String id = ccm.getContact().getId();
+        synchronized (punches) {
+            HolePuncher hp = punches.get(id);
+            if (hp != null && !hp.isDone()) {
+                hp.addTargets(addrs);
+                return;
+            }
+
+            CMLookupSocketHandler lsh = getPunchLookup();
+            if (lsh == null)
+                return;
+            try {
+                hp = new HolePuncher(lsh.getLocalAddress().getPort(), new CMPunchClient(ccm),
+                                     HolePuncher.DEFAULT_RETRY, gw.getConfigInt("peer.punch.timeout", HolePuncher.DEFAULT_TIMEOUT));
+                hp.addTargets(addrs);
+                punches.put(id, hp);
+                hp.start(engine);
+            } catch (Exception ex) {
+                log.warn("could not start punching to " + ccm.getContact() + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Makes the hole punching connections for a contact. With TLS,
+     * the one with the smaller id is the client end of the handshake,
+     * and so must be the one connecting; it drops the connections
+     * the other one gets through. (When the SYNs cross, both ends are
+     * connecting, and the rule keeps them agreeing.)
+     */
+    private class CMPunchClient
+        implements HolePuncher.PunchClient {
+
+        private ContactConnectionManager ccm;
+
+        public CMPunchClient(ContactConnectionManager ccm) {
+            this.ccm = ccm;
+        }
+
+        private boolean isTLSClient() {
+            return localUser.getId().compareTo(ccm.getContact().getId()) < 0;
+        }
+
+        public DataSocketHandler punchConnect(String target, InetSocketAddress local)
+            throws Exception {
+
+            CMSocketHandler cmsh = new CMSocketHandler(target, local, ccm.getContact(), ConnectionManager.this);
+            if (ccm.isPunchTLS())
+                cmsh.enableTLS(getTLSContext(), isTLSClient());
+            return cmsh;
+        }
+
+        public void punchAccepted(SocketChannel sc)
+            throws Exception {
+
+            if (ccm.isPunchTLS() && isTLSClient()) {
+                log.debug("dropping a punched connection, we should be the one connecting");
+                sc.close();
+                return;
+            }
+            CMSocketHandler cmsh = new CMSocketHandler(sc, ConnectionManager.this);
+            cmsh.setPunched();
+            if (ccm.isPunchTLS())
+                cmsh.enableTLS(getTLSContext(), false);
+            engine.addHandler(cmsh);
+            cmsh.startAuthentication();
+        }
+
+        public boolean punchSucceeded() {
+            return ccm.hasDirectConnection();
+        }
+
+        public void punchEnded(HolePuncher hp, boolean success) {
+            synchronized (punches) {
+                if (punches.get(ccm.getContact().getId()) == hp)
+                    punches.remove(ccm.getContact().getId());
+            }
+        }
+    }
+
     public User getLocalRegistrationUser() 
         throws Exception {
         
@@ -570,42 +1174,185 @@ public class ConnectionManager
             InetSocketAddress sa = new InetSocketAddress(InetAddress.getLocalHost(), ssHandler.getLocalAddress().getPort());
             ret.setProperty("address", sa.getAddress().getHostAddress() + ":" + sa.getPort());
         }
+        if (tlsHandler != null) {
+            InetSocketAddress sa = new InetSocketAddress(InetAddress.getLocalHost(), tlsHandler.getLocalAddress().getPort());
+            ret.setProperty("tls_address", sa.getAddress().getHostAddress() + ":" + sa.getPort());
+        }
+
+        // a port forward on the nat, for instance
+        if (gw.getConfig("peer.address") != null)
+            ret.setProperty("address", gw.getConfig("peer.address"));
+        if (tlsHandler != null && gw.getConfig("peer.tls_address") != null)
+            ret.setProperty("tls_address", gw.getConfig("peer.tls_address"));
+
+        // and all the others we might be reached at
+        if (ssHandler != null)
+            ret.setProperty("addresses", join(getLocalAddresses(ret.getProperty("address"), ssHandler.getLocalAddress().getPort())));
+        if (tlsHandler != null)
+            ret.setProperty("tls_addresses", join(getLocalAddresses(ret.getProperty("tls_address"), tlsHandler.getLocalAddress().getPort())));
+
+        // if nothing has changed, re-use the old one. this keeps the
+        // version the same, so the lookup can send it by reference
+        String state = ret.getData();
+        if (lastRegistration != null && state.equals(lastRegistrationState))
+            return lastRegistration;
+
         ret.setProperty("modified", DataUtil.dateToString(new Date()));
         localUser.sign(ret);
+        lastRegistration = ret;
+        lastRegistrationState = state;
         return ret;
     }
 
+    private static String join(List<String> list) {
+        StringBuffer buf = new StringBuffer();
+        for (String s : list) {
+            if (buf.length() > 0)
+                buf.append(',');
+            buf.append(s);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * The addresses we may be reached at on the given port: the main
+     * one, those of all the network interfaces that are up, and our
+     * addresses as the lookup servers see them (which work if the nat
+     * keeps the port, or has it forwarded).
+     */
+    private List<String> getLocalAddresses(String main, int port) {
+
+        List<String> ret = new ArrayList<String>();
+        if (main != null)
+            ret.add(main);
+        try {
+            Enumeration<NetworkInterface> nis = NetworkInterface.getNetworkInterfaces();
+            while (nis != null && nis.hasMoreElements()) {
+                NetworkInterface ni = nis.nextElement();
+                if (!ni.isUp() || ni.isLoopback())
+                    continue;
+                Enumeration<InetAddress> ias = ni.getInetAddresses();
+                while (ias.hasMoreElements()) {
+                    InetAddress ia = ias.nextElement();
+                    // link-local ones would need the interface as well
+                    if (ia.isLinkLocalAddress() || ia.isMulticastAddress())
+                        continue;
+                    String a = SocketHandler.s2a(ia, port);
+                    if (!ret.contains(a))
+                        ret.add(a);
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("could not list the network interfaces: " + ex);
+        }
+
+        for (CMLookupSocketHandler lsh : lookupHandlers.values()) {
+            String m = lsh.getMirrorAddress();
+            if (m == null)
+                continue;
+            String a = SocketHandler.s2a(SocketHandler.a2s(m).getAddress(), port);
+            if (!ret.contains(a))
+                ret.add(a);
+        }
+        return ret;
+    }
+
+    /**
+     * Registers again with the lookups if our profile has changed,
+     * as when they tell us how we look like from the outside.
+     */
+    protected void updateRegistration() {
+
+        User old = lastRegistration;
+        try {
+            User u = getLocalRegistrationUser();
+            if (u == old)
+                return;
+            for (CMLookupSocketHandler lsh : lookupHandlers.values())
+                if (lsh.isConnected() && lsh.isAuthenticated)
+                    lsh.sendRegister(u);
+        } catch (Exception ex) {
+            log.warn("error while updating the registration: " + ex);
+        }
+    }
+
+    /**
+     * The lookup servers we should be connected to. lookup.server may
+     * list several servers of a lookup cluster (comma-separated), of
+     * which we use lookup.replicas (2 by default): the one our id
+     * hashes to, as the cluster expects, and the ones after it.
+     */
+    public List<String> getLookupServers() {
+
+        List<String> all = new ArrayList<String>();
+        String conf = gw.getConfig("lookup.server");
+        if (conf != null)
+            for (String ls : conf.split(","))
+                if (ls.trim().length() > 0)
+                    all.add(ls.trim());
+
+        int replicas = gw.getConfigInt("lookup.replicas", 2);
+        if (all.size() <= replicas)
+            return all;
+        return new ConsistentHash<String>(all).get(localUser.getId().toString(), replicas);
+    }
+
     private void loop()
         throws Exception {
 
-        String ls = gw.getConfig("lookup.server");
-        CMLookupSocketHandler lookupConn = lookupHandlers.get(ls);
-        if (lookupConn == null) {
-            try {
-                lookupConn = new CMLookupSocketHandler(ls, this);
-                lookupHandlers.put(ls, lookupConn);
-                engine.addHandler(lookupConn);
-            } catch (Exception ex) {
-                log.warn("error while trying to connect to the lookup server: " + ex);
+        refreshUploadLimits();
+
+        for (String ls : getLookupServers()) {
+            CMLookupSocketHandler lookupConn = lookupHandlers.get(ls);
+            if (lookupConn == null) {
+                try {
+                    lookupConn = new CMLookupSocketHandler(ls, this);
+                    if ("true".equals(gw.getConfig("lookup.tls")))
+                        lookupConn.enableTLS(getTLSContext(), true);
+                    lookupHandlers.put(ls, lookupConn);
+                    engine.addHandler(lookupConn);
+                } catch (Exception ex) {
+                    log.warn("error while trying to connect to the lookup server " + ls + ": " + ex);
+                }
             }
         }
 
         ArrayList<DataSocketHandler> wakeups = new ArrayList();
         synchronized (rescheduledHandlers) {
             long now = System.currentTimeMillis();
-            long next = -1;
-            for (DataSocketHandler sh : rescheduledHandlers.keySet()) {
-                long wut = rescheduledHandlers.get(sh);
-                if (wut < now) {
-                    wakeups.add(sh);
-                } else if (next == -1 || wut < next)
-                    next = wut;
+            nextWakeUp = -1;
+            Wakeup w;
+            while ((w = rescheduledHandlers.peek()) != null) {
+                if (scheduledWakeups.get(w.handler) != w)
+                    rescheduledHandlers.poll(); // replaced or cancelled
+                else if (w.time <= now) {
+                    rescheduledHandlers.poll();
+                    scheduledWakeups.remove(w.handler);
+                    wakeups.add(w.handler);
+                } else {
+                    nextWakeUp = w.time;
+                    break;
+                }
             }
+        }
 
-            for (DataSocketHandler sh : wakeups)
-                rescheduledHandlers.remove(sh);
-
-            nextWakeUp = next;
+        // move the connection races on
+        long now = System.currentTimeMillis();
+        List<AddressRace> rs = null;
+        synchronized (races) {
+            rs = new ArrayList<AddressRace>(races);
+        }
+        for (AddressRace r : rs) {
+            long next = r.step(now);
+            if (next < 0) {
+                synchronized (races) {
+                    races.remove(r);
+                }
+            } else
+                synchronized (rescheduledHandlers) {
+                    if (nextWakeUp < 0 || next < nextWakeUp)
+                        nextWakeUp = next;
+                }
         }
         for (DataSocketHandler sh : wakeups)
             try {
@@ -615,10 +1362,134 @@ public class ConnectionManager
             }
     }
 
+    /**
+     * Starts racing connections to the addresses of a contact.
+     */
+    protected AddressRace startRace(ContactConnectionManager ccm, User user, List<String> addrs, boolean tls) {
+
+        AddressRace r = new AddressRace(ccm, user, addrs, tls);
+        synchronized (races) {
+            races.add(r);
+        }
+        synchronized (rescheduledHandlers) {
+            nextWakeUp = System.currentTimeMillis();
+            rescheduledHandlers.notify();
+        }
+        return r;
+    }
+
+    /**
+     * Races connections to the addresses of a contact, Happy Eyeballs
+     * style (RFC 8305). The addresses are tried in turn, each
+     * peer.race.delay ms (250) after the previous one, or right away
+     * if the earlier ones have failed already, without waiting for
+     * those to finish. Once one gets connected, the others have a
+     * moment (RACE_GRACE) to do so as well, and the one that took the
+     * least time to connect wins. Moved on by the manager's thread.
+     */
+    protected class AddressRace {
+
+        private static final int RACE_GRACE = 50;
+        private static final int RACE_POLL = 20;
+        private static final int RACE_TIMEOUT = 20000;
+
+        private ContactConnectionManager ccm;
+        private User user;
+        private List<String> addrs;
+        private boolean tls;
+        private List<CMSocketHandler> attempts;
+        private int next;
+        private int delay;
+        private long nextStart;
+        private long decideAt;
+        private long giveUpAt;
+
+        public AddressRace(ContactConnectionManager ccm, User user, List<String> addrs, boolean tls) {
+            this.ccm = ccm;
+            this.user = user;
+            this.addrs = addrs;
+            this.tls = tls;
+            this.attempts = new ArrayList<CMSocketHandler>();
+            this.next = 0;
+            this.delay = gw.getConfigInt("peer.race.delay", 250);
+            this.nextStart = 0;
+            this.decideAt = -1;
+            this.giveUpAt = System.currentTimeMillis() + RACE_TIMEOUT;
+        }
+
+        public List<CMSocketHandler> getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Moves the race on, returns when it should be called next,
+         * or -1 when it is over.
+         */
+        public long step(long now) {
+
+            CMSocketHandler best = null;
+            boolean pending = false;
+            for (CMSocketHandler cmsh : attempts) {
+                if (cmsh.isConnected()) {
+                    if (best == null || cmsh.getConnectTime() < best.getConnectTime())
+                        best = cmsh;
+                } else if (cmsh.isConnectionPending())
+                    pending = true;
+            }
+
+            if (best != null && decideAt < 0)
+                decideAt = now + RACE_GRACE;
+            if (best != null && (now >= decideAt || !pending)) {
+                ccm.raceFinished(this, best, tls);
+                return -1;
+            }
+            if (best == null && (now > giveUpAt || (!pending && next >= addrs.size()))) {
+                ccm.raceFinished(this, null, tls);
+                return -1;
+            }
+
+            if (best == null && next < addrs.size() && (now >= nextStart || !pending)) {
+                String addr = addrs.get(next++);
+                log.info("racing a connection to " + addr);
+                try {
+                    CMSocketHandler cmsh = new CMSocketHandler(addr, user, ConnectionManager.this);
+                    if (tls)
+                        cmsh.enableTLS(getTLSContext(), true);
+                    attempts.add(cmsh);
+                    engine.addHandler(cmsh);
+                } catch (Exception ex) {
+                    log.warn("error connecting to " + addr + ": " + ex);
+                }
+                nextStart = now + delay;
+            }
+            return now + RACE_POLL;
+        }
+    }
+
+    /* a reconnect waiting in the queue */
+    private static class Wakeup
+        implements Comparable<Wakeup> {
+
+        private long time;
+        private DataSocketHandler handler;
+
+        public Wakeup(long time, DataSocketHandler handler) {
+            this.time = time;
+            this.handler = handler;
+        }
+
+        public int compareTo(Wakeup w) {
+            return (time < w.time? -1 : (time > w.time? 1 : 0));
+        }
+    }
+
     @Override
     public void reschedule(AuthenticatedSocketHandler sh, long millis) {
         synchronized (rescheduledHandlers) {
-            rescheduledHandlers.put(sh, new Long(millis));
+            // the earlier one (if any) is left in the queue, and skipped
+            Wakeup w = new Wakeup(millis, sh);
+            scheduledWakeups.put(sh, w);
+            rescheduledHandlers.add(w);
             if (nextWakeUp < 0 || millis < nextWakeUp)
                 nextWakeUp = millis;
             rescheduledHandlers.notify();
@@ -628,7 +1499,7 @@ public class ConnectionManager
     @Override
     public void cancelReschedule(AuthenticatedSocketHandler sh) {
         synchronized (rescheduledHandlers) {
-            rescheduledHandlers.remove(sh);
+            scheduledWakeups.remove(sh);
         }
     }
 
@@ -637,16 +1508,20 @@ public class ConnectionManager
 
         private ConnectionManager connMan;
         private boolean lastState;
+        // how the lookup sees us, host:port
+        private String mirrorAddress;
 
         public CMLookupSocketHandler(String str, ConnectionManager connMan) 
             throws Exception {
-            super(str, connMan.getLocalUser(), null);
+            // the port is shared with the hole punching
+            super(str, (connMan.isPunchEnabled()? new InetSocketAddress(0) : null), connMan.getLocalUser(), null);
             lastState = false;
             this.connMan = connMan;
             setAcceptAnon(true);
+            addLimiter(connMan.getUploadLimiter());
             // when to try and reconnect if the connection fails
-            setReconnectTiming(new int[] { 1000, 1000, 1000, 2000, 4000, 10000,
-                                           20000, 20000, 60000 }, connMan);
+            setReconnectBackoff(new Backoff(gw.getConfigInt("lookup.reconnect.min", 1) * 1000L,
+                                            gw.getConfigInt("lookup.reconnect.max", 60) * 1000L), connMan);
         }
 
         public void gotConnected() {
@@ -704,42 +1579,78 @@ public class ConnectionManager
                 break;
             }
 
+            case RETRY_AFTER: {
+                // the lookup is going away, and tells when to come back
+                setRetryAfter(in.readLong());
+                break;
+            }
+
             case NETWORK_MIRROR: {
+                // the first one is this connection, the rest the
+                // other ones we have to the lookup
+                mirrorAddress = null;
                 while (in.available() > 0) {
                     String addr = in.readUTF();
                     log.debug("read inet address: " + addr);
+                    if (mirrorAddress == null)
+                        mirrorAddress = addr;
                 }
+                // we publish these as well
+                connMan.updateRegistration();
                 break;
             }
 
             case CONTACT_UPDATE: {
+                // the versions we took, and the references we
+                // couldn't resolve
+                List<String> acks = new ArrayList<String>();
+                List<String> refreshes = new ArrayList<String>();
                 while (in.available() > 0) {
                     String cupdate = in.readUTF();
                     log.debug("read contact update: " + cupdate);
                     try {
-                        User u = User.fromData(cupdate);
+                        User u = null;
+                        boolean ref = cupdate.startsWith(NetworkMessage.CONTACT_REF_PREFIX);
+                        if (ref)
+                            u = resolveContactRef(cupdate.substring(NetworkMessage.CONTACT_REF_PREFIX.length()));
+                        else
+                            u = User.fromData(cupdate);
+                        if (u == null) {
+                            log.info("got a reference to a contact version we don't have, asking for it: " + cupdate);
+                            int p = cupdate.lastIndexOf('/');
+                            if (p > NetworkMessage.CONTACT_REF_PREFIX.length())
+                                refreshes.add(cupdate.substring(NetworkMessage.CONTACT_REF_PREFIX.length(), p));
+                            continue;
+                        }
                         ContactConnectionManager ccm = contacts.get(u.getId());
                         if (getLocalUser().contactManager().isTrusted(u) && ccm != null) {
                             ccm.updateContactInfo(u, this);
+                            String version = u.getProperty("modified");
+                            if (!ref && version != null)
+                                acks.add(u.getId() + "/" + version);
                         } else
                             log.warn("got contact update for someone we don't care for");
                     } catch (Exception ex) {
                         log.warn("exception while processing contact update: " + ex);
                     }
                 }
+                sendContactList(NetworkMessage.MessageType.CONTACT_ACK, acks);
+                sendContactList(NetworkMessage.MessageType.CONTACT_REFRESH, refreshes);
 
                 // store those somewhere, and 
                 break;
             }
 
             case CONTACT_DISCONNECT: {
-                String cid = in.readUTF();
-                log.debug("got contact disconnect: " + cid);
-                ContactConnectionManager ccm = contacts.get(cid);
-                if (ccm != null) {
-                    // todo: here we are assuming only ONE lookup
-                    // server connection, which might not be the case
-                    ccm.contactDisconnect(this);
+                while (in.available() > 0) {
+                    String cid = in.readUTF();
+                    log.debug("got contact disconnect: " + cid);
+                    ContactConnectionManager ccm = contacts.get(cid);
+                    if (ccm != null) {
+                        // he may still be reachable through the
+                        // other lookup servers we are connected to
+                        ccm.contactDisconnect(this);
+                    }
                 }
                 break;
             }
@@ -752,6 +1663,56 @@ public class ConnectionManager
                 dos.close();
         }
 
+        /**
+         * The address of this connection as the lookup sees it, that
+         * is, our address outside the nat (if any). Null until the
+         * lookup has told.
+         */
+        public String getMirrorAddress() {
+            return (isConnected()? mirrorAddress : null);
+        }
+
+        /* sends the lookup a CONTACT_ACK or CONTACT_REFRESH, if there is anything to send */
+        private void sendContactList(NetworkMessage.MessageType type, List<String> entries) {
+
+            if (entries.isEmpty())
+                return;
+            try {
+                DataOutputStream dos = sendDataStream();
+                dos.writeUTF(type.toString());
+                for (String e : entries)
+                    dos.writeUTF(e);
+                dos.close();
+            } catch (Exception ex) {
+                log.warn("error sending " + type + " to the lookup: " + ex);
+            }
+        }
+
+        /* finds the contact a CONTACT_UPDATE refers to, id/version */
+        private User resolveContactRef(String ref) {
+
+            int p = ref.indexOf('/');
+            if (p < 0)
+                return null;
+            ContactConnectionManager ccm = contacts.get(ref.substring(0, p));
+            if (ccm == null)
+                return null;
+            User u = ccm.getContact();
+            if (!ref.substring(p+1).equals(u.getProperty("modified")))
+                return null;
+            return u;
+        }
+
+        public void sendRegister(User u)
+            throws Exception {
+
+            DataOutputStream dos = sendDataStream();
+            dos.writeUTF(NetworkMessage.MessageType.REGISTER.toString());
+            dos.writeUTF(u.getData());
+            dos.writeUTF(NetworkMessage.FEATURE_CONTACT_REFS);
+            dos.close();
+        }
+
         public boolean sendAddContact(User contact) {
 
             log.info("sending 'add contact' for " + contact);
@@ -790,11 +1751,7 @@ public class ConnectionManager
                 
                 // perform a REGISTER
                 try {
-                    User u = connMan.getLocalRegistrationUser();
-                    DataOutputStream dos = sendDataStream();
-                    dos.writeUTF(NetworkMessage.MessageType.REGISTER.toString());
-                    dos.writeUTF(u.getData());
-                    dos.close();
+                    sendRegister(connMan.getLocalRegistrationUser());
                 } catch (Exception ex) {
                     log.warn("error while registering: " +ex);
                     close();
@@ -802,10 +1759,12 @@ public class ConnectionManager
 
                 // send contacts..
                 try {
-                    // only those with which we have shares!
+                    // those with which we have shares, and the others
+                    // we know. the lookup passes on only what both
+                    // ends have asked for
                     DataOutputStream dos = sendDataStream();
                     dos.writeUTF(NetworkMessage.MessageType.ADD_CONTACTS.toString());
-                    for (String uid : connMan.getContactIds()) {
+                    for (String uid : connMan.getWatchedIds()) {
                         dos.writeUTF(uid);
                     }
                     dos.close();
@@ -832,6 +1791,27 @@ public class ConnectionManager
             return contacts.keySet();
     }
 
+    /* the ones we ask the lookups about: the share contacts, and
+     * the others we know */
+    private Set<String> getWatchedIds() {
+        Set<String> ret = new LinkedHashSet<String>(getContactIds());
+        for (User u : localUser.contactManager().getContacts())
+            if (!u.getId().equals(localUser.getId()))
+                ret.add(u.getId());
+        return ret;
+    }
+
+    /**
+     * Asks the lookups about a contact we have no share with. They
+     * forward only between those that have each other as contacts,
+     * so without this no one new could reach us (with an invite).
+     */
+    public void watchContact(User user) {
+        for (CMLookupSocketHandler lc : lookupHandlers.values())
+            if (lc.isAuthenticated)
+                lc.sendAddContact(user);
+    }
+
     /**
      * Adds a user to the connection management.  The
      * ConnectionManager should now add this user to the people with
@@ -876,16 +1856,43 @@ public class ConnectionManager
 
         DataOutputStream ret = getContactConnectionManager(user).sendDataStream(requireDirect);
         if (ret == null && blindAcceptable) {
-            // create a multiplexing for all our 
-            List<OutputStream> ol = new ArrayList();
+            // any one of the lookups will do; with a cluster, sending
+            // through all of them would deliver it several times
             for (CMLookupSocketHandler lh : lookupHandlers.values())
-                ol.add(lh.sendForwardingDataStream(user, getLocalUser()));
-            if (ol.size() > 0)
-                ret = MultiplexingDataOutputStream.create(ol);
+                if (lh.isConnected()) {
+                    ret = lh.sendForwardingDataStream(user, getLocalUser());
+                    break;
+                }
         }
         return ret;
     }
 
+    /**
+     * The connection on which a new stream to the user should go.
+     * With a pool of sockets, this spreads the streams over them.
+     */
+    public MessageSocketHandler getContactStreamingConnection(User user) 
+        throws Exception {
+        
+        return getContactConnectionManager(user).getStreamingConnection();
+    }
+
+    /**
+     * How many sockets we have for streaming to the user, that is,
+     * into how many parts a big upload should be split.
+     */
+    public int getContactStreamingConnectionCount(User user) {
+        return getContactConnectionManager(user).getStreamingConnectionCount();
+    }
+
+    /**
+     * How many direct connections we keep to each contact,
+     * peer.pool.size. One socket does not fill a long fat pipe.
+     */
+    public int getPoolSize() {
+        return Math.max(1, gw.getConfigInt("peer.pool.size", 1));
+    }
+
     /**
      * Tries to get a connection
      */
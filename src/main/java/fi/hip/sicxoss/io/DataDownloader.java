@@ -37,6 +37,10 @@ import fi.hip.sicxoss.io.message.*;
  * connectionmanagers to communicate with them. It will act as a
  * blocking InputStream for clients, feeding the data forward as it is
  * received.
+ *
+ * For erasure-coded data, the fragments are downloaded in parallel,
+ * each by a downloader of its own, and the data is put together from
+ * the first k of them to arrive.
  * @author koskela
  */
 public class DataDownloader 
@@ -46,6 +50,10 @@ public class DataDownloader
     
     public static final long MAX_DOWNLOAD_WAIT = 20 * 1000;
 
+    // the sets of fragments tried before giving up on putting the
+    // data together
+    public static final int MAX_DECODE_TRIES = 16;
+
     // store where to deposit the data, when done
         
     // inputstream from which the data can be read. or actually an outputstream
@@ -63,9 +71,35 @@ public class DataDownloader
     private byte tmpbuf[] = new byte[DataSocketHandler.NETBUF_SIZE];
     private Hashtable<DataSocketHandler, long[]> streamingLimits;
 
+    // when put together from fragments: the ones we have, the sets
+    // of them that did not give the data, and the data once it is
+    // done
+    private ErasureScheme scheme;
+    private BitSet fragmentsGot;
+    private List<BitSet> decodesFailed;
+    private boolean decodeStarted;
+    private volatile boolean decoding;
+    private volatile boolean failed;
+    private volatile long progressed;
+    private File decoded;
+
+    // the download this is a fragment for
+    private DataDownloader parent;
+
     public DataDownloader(DataID dataId, ShareModel model) {
+        this(dataId, model, null);
+    }
+
+    /**
+     * @param scheme how the data is split into fragments, null if it
+     * is downloaded as it is
+     */
+    public DataDownloader(DataID dataId, ShareModel model, ErasureScheme scheme) {
         this.dataId = dataId;
         this.model = model;
+        this.scheme = scheme;
+        this.fragmentsGot = new BitSet();
+        this.decodesFailed = new ArrayList<BitSet>();
         this.streams = new ArrayList();
         this.streamingLimits = new Hashtable();
         this.monitor = new BandwidthMonitor();
@@ -113,6 +147,10 @@ public class DataDownloader
 
         log.info("we are requesting " + dataId + " from " + start + " to " + finish);
         monitor.start();
+        if (scheme != null) {
+            requestFragments();
+            return;
+        }
 
         /* future revisions:
 
@@ -285,6 +323,153 @@ public class DataDownloader
         */
     }
 
+    /* asks for the fragments we don't have yet, all of them at once
+     * so that the slow or missing peers don't hold us up */
+    private void requestFragments() {
+
+        DataStore store = model.getDataStore();
+        long fl = scheme.getFragmentLength(dataId.getLength());
+        for (int i = 0; i < scheme.getFragments(); i++) {
+            synchronized (fragmentsGot) {
+                if (fragmentsGot.get(i))
+                    continue;
+            }
+            DataID fid = scheme.getFragmentId(dataId, i);
+            if (store.hasData(fid, 0, fl)) {
+                fragmentGot(i);
+            } else {
+                DataDownloader dl = model.getFragmentDownloader(fid);
+                dl.parent = this;
+                dl.requestData(0, fl);
+            }
+        }
+    }
+
+    /* a fragment has made it to the store. once we have enough,
+     * the data is put together */
+    private void fragmentGot(int index) {
+
+        synchronized (fragmentsGot) {
+            fragmentsGot.set(index);
+        }
+        tryDecode();
+    }
+
+    /* puts the data together from a set of the fragments we have
+     * that has not been tried yet. if there is none, we wait for
+     * more fragments, or give up if there are no more to come */
+    private void tryDecode() {
+
+        int[] present = null;
+        synchronized (fragmentsGot) {
+            if (decodeStarted || failed)
+                return;
+            boolean tries = decodesFailed.size() < MAX_DECODE_TRIES;
+            if (tries)
+                present = scheme.nextSubset(fragmentsGot, decodesFailed);
+            if (present != null) {
+                decodeStarted = true;
+                decoding = true;
+            } else if (tries && fragmentsGot.cardinality() < scheme.getFragments())
+                return;
+            else
+                failed = true;
+        }
+        if (present == null) {
+            giveUp();
+            return;
+        }
+
+        final int[] use = present;
+        new Thread("decoder for " + dataId) {
+            public void run() {
+                decode(use);
+            }
+        }.start();
+    }
+
+    /* none of the sets gave the data. the fragments we got go, as we
+     * can't tell which of them are bad, and so does this download;
+     * the next one fetches them again */
+    private void giveUp() {
+
+        List<Integer> got = new ArrayList<Integer>();
+        synchronized (fragmentsGot) {
+            for (int i = fragmentsGot.nextSetBit(0); i > -1; i = fragmentsGot.nextSetBit(i + 1))
+                got.add(i);
+        }
+        log.error("could not put " + dataId + " together from fragments " + got);
+        model.downloadFailed(this, scheme, got);
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    private void decode(int[] present) {
+
+        log.info("putting " + dataId + " together from fragments " + Arrays.toString(present));
+        File file = null;
+        try {
+            file = scheme.decode(model.getDataStore(), dataId, present, model.getStorageRoot());
+        } catch (Exception ex) {
+            log.error("error putting " + dataId + " together: " + ex);
+        }
+
+        BitSet used = new BitSet();
+        for (int i : present)
+            used.set(i);
+        if (file == null) {
+            synchronized (fragmentsGot) {
+                decodesFailed.add(used);
+                decodeStarted = false;
+            }
+            decoding = false;
+            tryDecode();
+            return;
+        }
+
+        synchronized (this) {
+            decoding = false;
+            monitor.stop();
+            decoded = model.downloadComplete(this, file);
+            log.info("download complete with avg speed " + monitor.avgSpeed());
+
+            // feed the waiting streams
+            for (DataDownloaderSourceStream ds : waitingStreams) {
+                try {
+                    readFile(ds, decoded, 0);
+                } catch (Exception ex) {
+                    log.error("exception while reading the data put together: " + ex);
+                    ds.fis = null;
+                }
+            }
+            waitingStreams.clear();
+            this.notifyAll();
+        }
+
+        // the ones in the sets that failed, but not in this one, are
+        // suspect. they are made again from the data we now have
+        BitSet suspect = new BitSet();
+        synchronized (fragmentsGot) {
+            for (BitSet f : decodesFailed)
+                suspect.or(f);
+        }
+        suspect.andNot(used);
+        if (!suspect.isEmpty()) {
+            List<Integer> bad = new ArrayList<Integer>();
+            for (int i = suspect.nextSetBit(0); i > -1; i = suspect.nextSetBit(i + 1))
+                bad.add(i);
+            model.fragmentsBad(dataId, scheme, bad);
+        }
+    }
+
+    /* when we last got anything, for the streams waiting for data */
+    private long getLastProgress(DataDownloaderSourceStream ds) {
+        if (decoding)
+            return System.currentTimeMillis();
+        return Math.max(ds.lastBytesGot, progressed);
+    }
+
     /* sends an appropriate query to a contact .. */
     public boolean sendDataQuery(User contact) {
         // todo: we should ask only for what we need!
@@ -393,7 +578,7 @@ public class DataDownloader
         // we assume that all data we have got / are getting has a request
         for (DownloadRequest req : newreqs) {
             if (req.length() > 0) {
-                if (model.requestDataBlock(contact, dataId, req.start, req.finish))
+                if (model.requestDataBlock(contact, dataId, req.start, req.finish, isInteractive()))
                     req.respondedTo = new Date();
             } else
                 log.warn("we have a zero-length request!");
@@ -401,6 +586,11 @@ public class DataDownloader
         //printReqs(requests, "at end");
     }
 
+    /* whether someone is actually waiting for the data */
+    public boolean isInteractive() {
+        return streams.size() > 0 || (parent != null && parent.isInteractive());
+    }
+
     public InputStream getStream(long start, long finish) {
         DataDownloaderSourceStream ddss = new DataDownloaderSourceStream(this, start, finish);
         streams.add(ddss);
@@ -657,6 +847,8 @@ public class DataDownloader
             }
             partOut.write(buf, len-toWrite, toWrite);
             monitor.update(toWrite);
+            if (parent != null)
+                parent.progressed = System.currentTimeMillis();
         }
 
         // see if we should combine some of the parts..
@@ -697,6 +889,8 @@ public class DataDownloader
             partOut.targetFile = model.downloadComplete(this, partOut.targetFile);
 
             log.info("download complete with avg speed " + monitor.avgSpeed());
+            if (parent != null)
+                parent.fragmentGot(ErasureScheme.getFragmentIndex(dataId));
         }
 
         // feed into the waiting streams. most data will be passed this way
@@ -741,6 +935,11 @@ public class DataDownloader
     */
 
     private synchronized void read(DataDownloaderSourceStream ds) {
+
+        if (failed) {
+            ds.read = -1;
+            return;
+        }
             
         // check if we have a cached filestream:
         try {
@@ -760,18 +959,24 @@ public class DataDownloader
         }
 
         // do we have any data already.. ?
+        if (decoded != null) {
+            try {
+                readFile(ds, decoded, 0);
+            } catch (Exception ex) {
+                log.error("exception while reading the data put together: " + ex);
+                ds.fis = null;
+            }
+            return;
+        }
+
         long climit = ds.pos + ds.max;
         for (CountingFileOutputStream out : parts) {
             if (out.start < climit && out.limit > ds.pos) {
                 // found one. read as much as we can from it.
-                int skip = (int)(ds.pos - out.start);
-                    
                 // we cache the fileinputstream, as 99.99% of the cases
                 // will ask for data from the same file, in order.
                 try {
-                    ds.fis = new CountingFileInputStream(out.targetFile, out.start);
-                    ds.fis.skip(skip);
-                    ds.read = ds.fis.read(ds.buf, ds.off, ds.max);
+                    readFile(ds, out.targetFile, out.start);
                     return;
                 } catch (Exception ex) {
                     log.error("exception while reading file part: " + ex);
@@ -786,16 +991,26 @@ public class DataDownloader
         waitingStreams.add(ds);
         //log.debug("no data available, taking a nap then.");
         try {
-            long waittime = MAX_DOWNLOAD_WAIT - (System.currentTimeMillis() - ds.lastBytesGot);
-            while (waittime > 0 && waitingStreams.contains(ds)) {
+            long waittime = MAX_DOWNLOAD_WAIT - (System.currentTimeMillis() - getLastProgress(ds));
+            while (waittime > 0 && waitingStreams.contains(ds) && !failed) {
                 this.wait(waittime);
-                waittime = MAX_DOWNLOAD_WAIT - (System.currentTimeMillis() - ds.lastBytesGot);
+                waittime = MAX_DOWNLOAD_WAIT - (System.currentTimeMillis() - getLastProgress(ds));
             }
             waitingStreams.remove(ds);
         } catch (Exception ex) {}
         //log.debug("good morning! i've been served " + ds.read + " bytes.");
     }
 
+    /* reads what the stream wants from a file that has the data
+     * from start on. the stream is kept for the next read */
+    private void readFile(DataDownloaderSourceStream ds, File file, long start)
+        throws IOException {
+
+        ds.fis = new CountingFileInputStream(file, start);
+        ds.fis.skip(ds.pos - start);
+        ds.read = ds.fis.read(ds.buf, ds.off, ds.max);
+    }
+
     /**
      * Called from the streams. returns the number of bytes available
      * from the given position.
@@ -846,7 +1061,7 @@ public class DataDownloader
                 lastBytesGot = System.currentTimeMillis();
             else {
                 // if we're over a maximum, report that!
-                if ((System.currentTimeMillis() - lastBytesGot) > MAX_DOWNLOAD_WAIT) {
+                if ((System.currentTimeMillis() - dl.getLastProgress(this)) > MAX_DOWNLOAD_WAIT) {
                     log.info("data retrieval timeout. we have nothing to offer!");
                     this.read = -1;
                 }
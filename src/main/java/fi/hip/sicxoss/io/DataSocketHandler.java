@@ -25,6 +25,8 @@ import java.nio.channels.*;
 import java.nio.channels.spi.*;
 import java.net.*;
 import java.util.*;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +41,8 @@ public abstract class DataSocketHandler
     protected boolean closed = false;
     protected boolean shouldClose = false;
     private SocketAddress sa;
+    // where outgoing sockets are bound to, if somewhere special
+    private InetSocketAddress bindAddress;
     
     private ArrayList<ByteBuffer> inbuf;
     private ArrayList<ByteBuffer> outbuf;
@@ -48,10 +52,29 @@ public abstract class DataSocketHandler
     // for the streaming
     private volatile int streamCount = -1;
     private DataSocketStreamer currentStreamer;
-    private List<DataSocketStreamer> queuedStreamers;
+    private StreamScheduler scheduler;
+    private long streamedBytes = 0;
     protected DataSocketStreamReceiver currentReceiver;
     private long bytesToDrain = 0;
 
+    // upload rate limiting. the socket-wide ones apply to everything,
+    // the session ones only to the data of the current streamer.
+    private List<TokenBucket> limiters = new ArrayList<TokenBucket>();
+    private List<TokenBucket> sessionLimiters = new ArrayList<TokenBucket>();
+    private long throttledUntil = -1;
+
+    // the smallest amount we wait for when throttled
+    private static final int MIN_THROTTLED_WRITE = 8 * 1024;
+
+    // the encryption, if enabled
+    private TLSLayer tls;
+    private SSLContext tlsContext;
+    private boolean tlsClient;
+
+    // set when whoever consumes our data can't keep up. we stop
+    // reading the socket so the sender will block on its end.
+    private boolean readPaused = false;
+
     /**
      * Interface for classes that want to send continuous, prioritized
      * data (such as streams)
@@ -105,7 +128,9 @@ public abstract class DataSocketHandler
         this.closed = false;
         this.shouldClose = false;
         this.timeOut = -1;
-        this.queuedStreamers = new ArrayList();
+        this.scheduler = new StreamScheduler();
+        this.throttledUntil = -1;
+        this.readPaused = false;
     }
     
     /**
@@ -126,8 +151,19 @@ public abstract class DataSocketHandler
      */
     public DataSocketHandler(SocketAddress sa) 
         throws Exception {
+        this(sa, null);
+    }
+
+    /**
+     * create an outgoing socket from the given local address. The
+     * port is shared (SO_REUSEADDR / SO_REUSEPORT), so several
+     * sockets may use it.
+     */
+    public DataSocketHandler(SocketAddress sa, InetSocketAddress local) 
+        throws Exception {
 
         this.sa = sa;
+        this.bindAddress = local;
         reconnect();
     }
 
@@ -145,7 +181,7 @@ public abstract class DataSocketHandler
 
     public String getRemoteAddressAsString() {
         InetSocketAddress isa = (InetSocketAddress)this.sa;
-        return isa.getAddress().getHostAddress() + ":" + isa.getPort();
+        return s2a(isa.getAddress(), isa.getPort());
     }
 
     public InetSocketAddress getLocalAddress() {
@@ -166,6 +202,16 @@ public abstract class DataSocketHandler
         this.sc = SocketChannel.open();
         setChannel(sc);
         sc.configureBlocking(false);
+        if (bindAddress != null) {
+            setPortReuse(sc);
+            sc.socket().bind(bindAddress);
+        }
+        if (tlsContext != null) {
+            if (tls != null)
+                tls.close();
+            sc.socket().setTcpNoDelay(true);
+            tls = new TLSLayer(TLSLayer.createEngine(tlsContext, (InetSocketAddress)sa, tlsClient), sc);
+        }
         
         boolean conn = sc.connect(sa);
         if (eng != null) {
@@ -175,6 +221,42 @@ public abstract class DataSocketHandler
             handleConnect();
     }
 
+    /**
+     * Enables TLS on this socket. Must be called before anything has
+     * been read or written; for outgoing sockets, right after
+     * creating them. Reconnects will use TLS as well.
+     * @param client whether we are the client end of the handshake
+     */
+    public synchronized void enableTLS(SSLContext ctx, boolean client) 
+        throws Exception {
+
+        tlsContext = ctx;
+        tlsClient = client;
+        // the handshake is a bunch of small writes, which nagle would
+        // hold back waiting for acks
+        sc.socket().setTcpNoDelay(true);
+        tls = new TLSLayer(TLSLayer.createEngine(ctx, (InetSocketAddress)sa, client), sc);
+    }
+
+    public boolean isTLS() {
+        return tls != null;
+    }
+
+    /**
+     * The binding of the TLS channel, null if TLS is not used.
+     * @see TLSLayer#getChannelBinding
+     */
+    public String getChannelBinding() {
+        return (tls != null? tls.getChannelBinding() : null);
+    }
+
+    /**
+     * The TLS session of the connection, null if TLS is not used.
+     */
+    public SSLSession getTLSSession() {
+        return (tls != null? tls.getSession() : null);
+    }
+
     public boolean isConnected() {
         return sc.isConnected() && !closed;
     }
@@ -228,6 +310,8 @@ public abstract class DataSocketHandler
         shouldClose = true;
         if (outbuf.size() == 0 || !sc.isConnected()) {
             closed = true;
+            if (tls != null)
+                tls.close();
             try {
                 sc.socket().close();
             } catch (Exception ex) {}
@@ -271,11 +355,23 @@ public abstract class DataSocketHandler
 
     public synchronized int write(byte[] data, int off, int len, boolean priority) {
             
+        if (write(ByteBuffer.wrap(data, off, len), priority) < 0)
+            return -1;
+        return data.length;
+    }
+
+    /**
+     * Queues the buffer for writing as-is, without copying it. The
+     * contents must not change until it has been written; for data
+     * shared between many sockets, pass read-only duplicates.
+     * @return the number of bytes queued, -1 on error
+     */
+    public synchronized int write(ByteBuffer buf, boolean priority) {
+
         if (shouldClose)
             return -1;
-            
-        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
 
+        int len = buf.remaining();
         if (priority) {
             if (streamCount < 0) {
                 log.error("bad sockethandler state: we are not streaming");
@@ -284,12 +380,28 @@ public abstract class DataSocketHandler
             }
             outbuf.add(streamCount, buf);
             streamCount++;
+            streamedBytes += len;
         } else
             outbuf.add(buf);
         
         if (outbuf.size() == 1)
             updateInterests();
-        return data.length;
+        return len;
+    }
+
+    public int stream(ByteBuffer buf) {
+
+        return write(buf, true);
+    }
+
+    /**
+     * How many bytes are queued for writing.
+     */
+    public synchronized long getQueuedBytes() {
+        long total = 0;
+        for (ByteBuffer bb : outbuf)
+            total += bb.remaining();
+        return total;
     }
 
     public int read(byte[] buf) {
@@ -317,6 +429,58 @@ public abstract class DataSocketHandler
         return p - startp;
     }
 
+    /**
+     * Takes up to max bytes of the received data without copying
+     * it. The returned buffer is a read-only view of our input
+     * buffer, which we won't touch again, so it can be queued for
+     * writing on another socket as-is.
+     * @return the data, or null if there is none
+     */
+    public synchronized ByteBuffer readBuffer(int max) {
+
+        while (inbuf.size() > 0) {
+            ByteBuffer bb = inbuf.get(0);
+            int r = Math.min(bb.remaining(), max);
+            if (r < 1) {
+                // an empty one still being filled is kept
+                if (bb.limit() < bb.capacity())
+                    return null;
+                inbuf.remove(0);
+                continue;
+            }
+            
+            ByteBuffer ret = bb.slice();
+            ret.limit(r);
+            bb.position(bb.position() + r);
+            if (!bb.hasRemaining())
+                inbuf.remove(0);
+            return ret.asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * Stops reading from the socket until resumed. Used to push back
+     * on the sender when we can't pass the data on fast enough.
+     */
+    public synchronized void pauseReading() {
+        if (!readPaused) {
+            readPaused = true;
+            updateInterests();
+        }
+    }
+
+    public synchronized void resumeReading() {
+        if (readPaused) {
+            readPaused = false;
+            updateInterests();
+        }
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
     public synchronized int available() {
         int total = 0;
         for (ByteBuffer bb : inbuf) {
@@ -355,6 +519,80 @@ public abstract class DataSocketHandler
         return true;
     }
 
+    /**
+     * Adds a rate limit that applies to everything written to this
+     * socket.
+     */
+    public synchronized void addLimiter(TokenBucket bucket) {
+        if (!limiters.contains(bucket))
+            limiters.add(bucket);
+    }
+
+    public synchronized void removeLimiter(TokenBucket bucket) {
+        limiters.remove(bucket);
+    }
+
+    /**
+     * Sets the rate limits for the data of the current streaming
+     * session (per-share or per-contact limits). These are cleared
+     * when the session ends.
+     */
+    public synchronized void setSessionLimiters(List<TokenBucket> buckets) {
+        sessionLimiters.clear();
+        if (buckets != null)
+            sessionLimiters.addAll(buckets);
+    }
+
+    /* how many bytes we may write right now */
+    private long getWriteAllowance(boolean streamed) {
+
+        long ret = Long.MAX_VALUE;
+        for (TokenBucket tb : limiters)
+            ret = Math.min(ret, tb.available());
+        if (streamed)
+            for (TokenBucket tb : sessionLimiters)
+                ret = Math.min(ret, tb.available());
+        return ret;
+    }
+
+    private void consumeTokens(long bytes, boolean streamed) {
+
+        for (TokenBucket tb : limiters)
+            tb.consume(bytes);
+        if (streamed)
+            for (TokenBucket tb : sessionLimiters)
+                tb.consume(bytes);
+    }
+
+    /* takes a break from writing until we have tokens for the given amount */
+    private void throttle(long bytes, boolean streamed) {
+
+        if (bytes > MIN_THROTTLED_WRITE)
+            bytes = MIN_THROTTLED_WRITE;
+        long delay = 1;
+        for (TokenBucket tb : limiters)
+            delay = Math.max(delay, tb.delayFor(bytes));
+        if (streamed)
+            for (TokenBucket tb : sessionLimiters)
+                delay = Math.max(delay, tb.delayFor(bytes));
+
+        throttledUntil = System.currentTimeMillis() + delay;
+        eng.scheduleWakeup(this, throttledUntil);
+    }
+
+    public boolean isThrottled() {
+        return throttledUntil > -1;
+    }
+
+    protected synchronized void wakeUp() 
+        throws Exception {
+
+        if (throttledUntil > -1 && throttledUntil <= System.currentTimeMillis()) {
+            throttledUntil = -1;
+            updateInterests();
+        }
+    }
+
     public synchronized boolean setStreamReceiver(DataSocketStreamReceiver rec) {
 
         if (currentReceiver != null)
@@ -376,23 +614,78 @@ public abstract class DataSocketHandler
         return true;
     }
 
-    public synchronized void queueForStreaming(DataSocketStreamer streamer) {
+    public void queueForStreaming(DataSocketStreamer streamer) {
+
+        queueForStreaming(streamer, StreamScheduler.DEFAULT_WEIGHT);
+    }
+
+    /**
+     * Queues a streamer with the given weight. The weight is the
+     * share of the streaming bandwidth the streamer gets when
+     * competing with others on this connection.
+     */
+    public synchronized void queueForStreaming(DataSocketStreamer streamer, int weight) {
+
+        // add to queue and start immediately, if nothing is going on
+        scheduler.add(streamer, weight);
+        if (outbuf.size() == 0 && currentStreamer == null)
+            startNextStreamer();
+    }
+
+    /**
+     * Returns how many bytes the current streamer may stream in this
+     * session. Streamers should end their sessions when they have
+     * sent this much, and re-queue themselves.
+     */
+    public synchronized long getStreamingAllowance() {
 
-        // add to queue or start immediately, if nothing is going on
-        if (outbuf.size() == 0 && currentStreamer == null) {
-            currentStreamer = streamer;
+        return scheduler.getAllowance(currentStreamer);
+    }
+
+    /**
+     * How many streamers are queued or streaming on this socket. Not
+     * synchronized, so it can be used when picking a socket without
+     * locking them all; the value is only a hint.
+     */
+    public int getStreamingLoad() {
+        return scheduler.size() + (currentStreamer != null? 1 : 0);
+    }
+
+    private void startNextStreamer() {
+
+        currentStreamer = scheduler.next();
+        if (currentStreamer != null) {
             streamCount = 0;
+            streamedBytes = 0;
             currentStreamer.streamingStarted();
-        } else
-            queuedStreamers.add(streamer);
+        }
     }
 
 
+    /* the channel reads and writes, through TLS if enabled */
+    private int channelRead(ByteBuffer bb) 
+        throws IOException {
+        if (tls != null)
+            return tls.read(bb);
+        return sc.read(bb);
+    }
+
+    private int channelWrite(ByteBuffer bb) 
+        throws IOException {
+        if (tls != null)
+            return tls.write(bb);
+        return sc.write(bb);
+    }
+
     protected synchronized void handleRead() 
         throws Exception {
 
         //log.debug("handle read");
 
+        // closed by another thread after the select
+        if (closed)
+            return;
+
         ByteBuffer bb = null;
         if (inbuf.size() > 0) {
             bb = inbuf.get(inbuf.size()-1);
@@ -410,7 +703,14 @@ public abstract class DataSocketHandler
             int ol = bb.limit();
             bb.position(ol);
             bb.limit(bb.capacity());
-            r = sc.read(bb);
+            try {
+                r = channelRead(bb);
+            } catch (IOException ex) {
+                // reset by the other end. as good as closed, and
+                // the socket would stay readable otherwise
+                log.debug("error reading: " + ex);
+                r = -1;
+            }
             bb.limit(ol + (r > 0? r : 0));
             bb.position(op);
             if (r > 0)
@@ -431,26 +731,43 @@ public abstract class DataSocketHandler
         }
             
         if (r < 0) {
+            // (we may have closed already while handling the data)
+            boolean wasClosed = closed;
+            if (tls != null)
+                tls.close();
             try {
                 sc.socket().close();
                 sc.close();
             } catch (Exception ex) {}
             closed = true;
-            gotClose();
+            if (!wasClosed)
+                gotClose();
             updateInterests();
-        } 
-        // todo: update interests if we want to take a break from receiving stuff!
+        } else if (tls != null) {
+            // the handshake may have changed what we are waiting for
+            updateInterests();
+        }
     }
 
 
     protected synchronized void handleWrite()
         throws Exception {
 
+        // whatever the TLS layer has pending goes first
+        if (tls != null && !tls.flush()) {
+            updateInterests();
+            return;
+        }
+
         while (outbuf.size() > 0 || streamCount == 0) {
 
             // check if the currently streaming client has more to add
             if (streamCount == 0 && !currentStreamer.dataRequired()) {
-                currentStreamer.streamingEnded();
+                DataSocketStreamer ended = currentStreamer;
+                scheduler.sessionEnded(ended, streamedBytes);
+                sessionLimiters.clear();
+                ended.streamingEnded();
+                scheduler.retire(ended);
                 currentStreamer = null;
                 streamCount = -1;
             }
@@ -462,8 +779,24 @@ public abstract class DataSocketHandler
             if (streamCount == 0 || outbuf.size() == 0)
                 break;
             
+            // the rate limits. we stop asking for OP_WRITE until we
+            // have tokens again, so we won't spin on the selector.
             ByteBuffer bb = outbuf.get(0);
-            int w = sc.write(bb);
+            boolean streamed = streamCount > 0;
+            long allowed = getWriteAllowance(streamed);
+            if (allowed < 1) {
+                throttle(bb.remaining(), streamed);
+                break;
+            }
+
+            int ol = bb.limit();
+            if (allowed < bb.remaining())
+                bb.limit(bb.position() + (int)allowed);
+            int w = channelWrite(bb);
+            bb.limit(ol);
+            if (w > 0)
+                consumeTokens(w, streamed);
+
             if (!bb.hasRemaining()) {
                 outbuf.remove(0);
                 if (streamCount > 0)
@@ -478,15 +811,13 @@ public abstract class DataSocketHandler
                 close();
             else {
                 // initiate another streamer, if we have one queued.
-                if (currentStreamer == null && queuedStreamers.size() > 0) {
-                    currentStreamer = queuedStreamers.remove(0);
-                    streamCount = 0;
-                    currentStreamer.streamingStarted();
-                }
+                if (currentStreamer == null && scheduler.size() > 0)
+                    startNextStreamer();
             }
 
             updateInterests();
-        }
+        } else if (isThrottled())
+            updateInterests();
     }
 
     protected void handleConnect() 
@@ -509,6 +840,13 @@ public abstract class DataSocketHandler
         }
     }
 
+    private boolean wantsWrite() {
+        if (tls != null && tls.wantsWrite())
+            return true;
+        return outbuf.size() > 0 && streamCount != 0 && !isThrottled() && 
+            (tls == null || tls.canWrite());
+    }
+
     protected int getInterestSet() {
         int ret = 0;
         if (closed)
@@ -516,7 +854,12 @@ public abstract class DataSocketHandler
         else if (sc.isConnectionPending())
             ret = SelectionKey.OP_CONNECT;
         else
-            ret = (closed? 0 : (SelectionKey.OP_READ | (outbuf.size() > 0 && streamCount != 0? SelectionKey.OP_WRITE : 0)));
+            ret = ((readPaused? 0 : SelectionKey.OP_READ) | (wantsWrite()? SelectionKey.OP_WRITE : 0));
         return ret;
     }
+
+    /* a paused socket has no interests, but is still alive */
+    protected boolean isIdle() {
+        return !closed;
+    }
 }
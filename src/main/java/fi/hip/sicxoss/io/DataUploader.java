@@ -27,6 +27,7 @@ import org.apache.log4j.Logger;
 import fi.hip.sicxoss.ident.*;
 import fi.hip.sicxoss.model.*;
 import fi.hip.sicxoss.io.message.*;
+import fi.hip.sicxoss.LocalGateway;
 
 
 /**
@@ -39,6 +40,10 @@ public class DataUploader
 
     private static final Logger log = Logger.getLogger(DataUploader.class);
 
+    // the smallest part a request is split into when striping it over
+    // several sockets
+    public static final long MIN_STRIPE = 1024 * 1024;
+
     private User contact;
     private DataID dataId;
     private long start; 
@@ -46,6 +51,7 @@ public class DataUploader
     private InputStream in;
     private long tempFinish;
     private long sessionLimit = 1024 * 500; // per stream
+    private boolean interactive;
     private byte[] buf = new byte[DataSocketHandler.NETBUF_SIZE];
     private MessageSocketHandler conn = null;
     private ShareModel share;
@@ -54,15 +60,36 @@ public class DataUploader
 
     public DataUploader(User contact,
                         DataID dataId, long start, long finish, ShareModel share) {
+        this(contact, dataId, start, finish, share, false);
+    }
+
+    /**
+     * @param interactive whether someone is waiting for the data
+     * right now (a WebDAV client), or it is just a prefetch
+     */
+    public DataUploader(User contact,
+                        DataID dataId, long start, long finish, ShareModel share,
+                        boolean interactive) {
 
         this.start = start;
         this.finish = finish;
         this.dataId = dataId;
         this.contact = contact;
         this.share = share;
+        this.interactive = interactive;
         this.monitor = new BandwidthMonitor();
     }
 
+    /* the weight we use when competing with other streams */
+    private int getStreamWeight() {
+
+        LocalGateway gw = share.getConnectionManager().getGateway();
+        if (interactive)
+            return gw.getConfigInt("stream.weight.interactive", 4);
+        else
+            return gw.getConfigInt("stream.weight.background", 1);
+    }
+
     public void start() 
         throws Exception {
             
@@ -91,9 +118,9 @@ public class DataUploader
             } else
                 throw new Exception("error sending bytes, could not get contact data stream");
         } else {
-            conn = share.getConnectionManager().getContactConnection(contact, false);
+            conn = share.getConnectionManager().getContactStreamingConnection(contact);
             if (conn != null)
-                conn.queueForStreaming(this);
+                conn.queueForStreaming(this, getStreamWeight());
             else
                 throw new Exception("no connection to contact available!");
         }
@@ -130,13 +157,22 @@ public class DataUploader
             
         // set how much we are asking to stream in this session
         try {
+            long limit = conn.getStreamingAllowance();
+            if (limit > sessionLimit)
+                limit = sessionLimit;
             tempFinish = finish;
-            if (tempFinish - start > sessionLimit)
-                tempFinish = start + sessionLimit;
+            if (tempFinish - start > limit)
+                tempFinish = start + limit;
                 
             // stream the header. we add the recipient so we are
             // able to stream stuff in exactly the same way,
             // whether through to lookup or direct.
+            // the share & contact limits apply to this session only
+            List<TokenBucket> limits = new ArrayList<TokenBucket>();
+            limits.add(share.getUploadLimiter());
+            limits.add(share.getConnectionManager().getContactUploadLimiter(contact));
+            conn.setSessionLimiters(limits);
+
             DataOutputStream dos = conn.sendDataStream(true);
             dos.writeUTF(NetworkMessage.MessageType.STREAM_START.toString());
             dos.writeUTF(contact.getId().toString());
@@ -156,7 +192,17 @@ public class DataUploader
     public void streamingEnded() {
         if (start < finish) {
             log.debug("stream session ended, queueing for more.");
-            conn.queueForStreaming(this);
+            // move over to another socket if ours went down
+            if (!conn.isConnected()) {
+                try {
+                    MessageSocketHandler c = share.getConnectionManager().getContactStreamingConnection(contact);
+                    if (c != null)
+                        conn = c;
+                } catch (Exception ex) {
+                    log.warn("could not get a new connection for the upload: " + ex);
+                }
+            }
+            conn.queueForStreaming(this, getStreamWeight());
         } else {
             log.info("upload ended.");
             monitor.stop();
@@ -49,6 +49,48 @@ public class DataUtil {
         }
     }
 
+    /**
+     * Writes the object so that the file has either the old or the
+     * new one, never a torn one: to a temp file first, synced, then
+     * moved over.
+     */
+    public static boolean writeObjectAtomic(Serializable obj, File file) {
+        try {
+            return writeAtomic(serialize(obj), file);
+        } catch (IOException ex) {
+            log.error("error while writing object: " + ex);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the data so that the file has either the old or the new
+     * data, never a torn mix. The rename replaces the file atomically
+     * where it can (not on windows, which won't rename over a file).
+     */
+    public static boolean writeAtomic(byte[] data, File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(data);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("could not move " + tmp + " to " + file);
+            }
+            return true;
+        } catch (Exception ex) {
+            log.error("error while writing " + file + ": " + ex);
+            tmp.delete();
+            return false;
+        }
+    }
+
     public static Object readObject(String file) {
         Object ret = null;
         try {
@@ -116,12 +158,12 @@ public class DataUtil {
         return bos.toByteArray();
     }
 
-    public static int transfer(InputStream in, OutputStream out) 
+    public static long transfer(InputStream in, OutputStream out) 
         throws IOException {
         
         byte[] buf = new byte[10*1024];
         int r;
-        int total = 0;
+        long total = 0;
         while ((r = in.read(buf)) > -1) {
             out.write(buf, 0, r);
             total += r;
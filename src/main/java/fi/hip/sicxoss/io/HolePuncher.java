@@ -0,0 +1,197 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.net.*;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HolePuncher
+ *
+ * TCP hole punching to a peer behind a NAT. We listen on the local
+ * port of our lookup connection, whose mapping in our NAT the lookup
+ * server has told us (NETWORK_MIRROR) and we have told the peer, and
+ * keep connecting from that same port to the addresses the peer gave
+ * us. Our attempts open our NAT for the peer's attempts, and the
+ * other way round, so after a round or two one of them gets through
+ * (either way, or as a simultaneous open when the SYNs cross).
+ *
+ * The connections are made and taken care of by the client; the
+ * puncher only keeps them coming until the client tells that one has
+ * got through, or the time is up.
+ * @author koskela
+ */
+public class HolePuncher
+    extends ServerSocketHandler {
+
+    private static final Logger log = Logger.getLogger(HolePuncher.class);
+
+    public static final int DEFAULT_RETRY = 200;
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    /** the one who wants the connection */
+    public interface PunchClient {
+
+        /**
+         * Creates a connection from the given local address to the
+         * target. The puncher adds it to the engine.
+         */
+        public DataSocketHandler punchConnect(String target, InetSocketAddress local)
+            throws Exception;
+
+        /**
+         * A connection from the peer got through.
+         */
+        public void punchAccepted(SocketChannel sc)
+            throws Exception;
+
+        /**
+         * Whether we have a (working) connection, and can stop.
+         */
+        public boolean punchSucceeded();
+
+        /**
+         * Called once we stop, whether we got through or not.
+         */
+        public void punchEnded(HolePuncher hp, boolean success);
+    }
+
+    private PunchClient client;
+    private InetSocketAddress local;
+    private List<String> targets;
+    private Hashtable<String, DataSocketHandler> attempts;
+    private int retry;
+    private long deadline;
+    private boolean done;
+    private int attemptCount;
+
+    /**
+     * @param port the local port to punch from, that of the lookup connection
+     * @param retry how often (ms) failed attempts are made again
+     * @param timeout how long (ms) we try
+     */
+    public HolePuncher(int port, PunchClient client, int retry, int timeout)
+        throws Exception {
+        super(new InetSocketAddress(port), true);
+        this.local = new InetSocketAddress(port);
+        this.client = client;
+        this.targets = new ArrayList<String>();
+        this.attempts = new Hashtable<String, DataSocketHandler>();
+        this.retry = retry;
+        this.deadline = System.currentTimeMillis() + timeout;
+        this.done = false;
+        this.attemptCount = 0;
+    }
+
+    /**
+     * Starts punching on the given engine.
+     */
+    public void start(NetworkEngine ne)
+        throws Exception {
+        log.info("punching from port " + local.getPort() + " to " + targets);
+        ne.addHandler(this);
+        ne.scheduleWakeup(this, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds addresses to try. The peer may have several (the one seen
+     * by each lookup server, the local one).
+     */
+    public synchronized void addTargets(Collection<String> addrs) {
+        for (String a : addrs)
+            if (!targets.contains(a))
+                targets.add(a);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public int getLocalPort() {
+        return local.getPort();
+    }
+
+    /** how many connections we have tried */
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void gotAccept(SocketChannel sc) {
+        if (sc == null)
+            return;
+        log.info("got a connection through the hole from " + sc.socket().getRemoteSocketAddress());
+        try {
+            client.punchAccepted(sc);
+        } catch (Exception ex) {
+            log.warn("error accepting the punched connection: " + ex);
+            try { sc.close(); } catch (Exception ex2) {}
+        }
+    }
+
+    /* runs a round of attempts, on the engine's thread */
+    protected void wakeUp()
+        throws Exception {
+
+        if (done)
+            return;
+        long now = System.currentTimeMillis();
+        if (client.punchSucceeded() || now > deadline) {
+            finish();
+            return;
+        }
+
+        synchronized (this) {
+            for (String t : targets) {
+                DataSocketHandler old = attempts.get(t);
+                if (old != null && (old.isConnected() || old.isConnectionPending()))
+                    continue;
+                try {
+                    DataSocketHandler sh = client.punchConnect(t, local);
+                    attempts.put(t, sh);
+                    attemptCount++;
+                    eng.addHandler(sh);
+                } catch (Exception ex) {
+                    log.debug("could not connect to " + t + ": " + ex);
+                }
+            }
+        }
+        eng.scheduleWakeup(this, now + retry);
+    }
+
+    /* stops listening, and the attempts that have not got anywhere */
+    private void finish() {
+
+        done = true;
+        close();
+        synchronized (this) {
+            for (DataSocketHandler sh : attempts.values())
+                if (!sh.isConnected())
+                    sh.close();
+        }
+        boolean success = client.punchSucceeded();
+        log.info("punching from port " + local.getPort() + " done after " + attemptCount + " attempts: " +
+                 (success? "got through" : "gave up"));
+        client.punchEnded(this, success);
+    }
+}
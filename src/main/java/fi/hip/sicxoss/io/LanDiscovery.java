@@ -0,0 +1,255 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.net.*;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.ident.*;
+
+/**
+ * LanDiscovery
+ *
+ * Finds peers in the same network without the lookup server. Each
+ * gateway sends its signed profile (the one it registers with the
+ * lookup, with its addresses) as a beacon to a multicast group every
+ * now and then, and listens to the others'. A beacon from someone new
+ * is answered with our own right away, so two gateways find each
+ * other within a round trip of the first one.
+ *
+ * The signatures are checked before the peers are passed on, but
+ * anyone can repeat a beacon; the connection's authentication is
+ * what tells whether the peer really is there.
+ * @author koskela
+ */
+public class LanDiscovery
+    extends SocketHandler {
+
+    private static final Logger log = Logger.getLogger(LanDiscovery.class);
+
+    public static final String DEFAULT_GROUP = "239.255.77.66";
+    public static final int DEFAULT_PORT = 7767;
+
+    private static final String MAGIC = "sicxoss:lan:1\n";
+    private static final int MAX_BEACON = 16 * 1024;
+    // the verified beacons we remember, so repeats are not checked again
+    private static final int MAX_SEEN = 256;
+    // how often we may answer the new ones
+    private static final int MIN_ANSWER_INTERVAL = 1000;
+
+    /** the one interested in the peers */
+    public interface PeerListener {
+
+        /** what we announce, our signed profile */
+        public User getAnnouncement()
+            throws Exception;
+
+        /** someone's beacon, and where it came from */
+        public void peerFound(User user, InetAddress from);
+    }
+
+    private DatagramChannel dc;
+    private InetSocketAddress group;
+    private List<NetworkInterface> interfaces;
+    private PeerListener listener;
+    private int interval;
+    private ByteBuffer inbuf;
+    private Hashtable<String, User> seen;
+    private long lastAnswer;
+    private long nextAnnounce;
+    private boolean answerPending;
+
+    /**
+     * @param interval how often (ms) we announce ourselves
+     */
+    public LanDiscovery(String group, int port, int interval, PeerListener listener)
+        throws Exception {
+
+        InetAddress ga = InetAddress.getByName(group);
+        this.group = new InetSocketAddress(ga, port);
+        this.listener = listener;
+        this.interval = interval;
+        this.inbuf = ByteBuffer.allocate(MAX_BEACON);
+        this.seen = new Hashtable<String, User>();
+        this.interfaces = new ArrayList<NetworkInterface>();
+        this.lastAnswer = 0;
+        this.nextAnnounce = 0;
+        this.answerPending = false;
+
+        // several gateways (users) on the host share the port
+        dc = DatagramChannel.open(ga instanceof Inet6Address? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        dc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        dc.bind(new InetSocketAddress(port));
+        dc.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        Enumeration<NetworkInterface> nis = NetworkInterface.getNetworkInterfaces();
+        while (nis != null && nis.hasMoreElements()) {
+            NetworkInterface ni = nis.nextElement();
+            if (!ni.isUp() || !ni.supportsMulticast())
+                continue;
+            try {
+                dc.join(ga, ni);
+                interfaces.add(ni);
+            } catch (Exception ex) {
+                log.debug("could not join " + group + " on " + ni.getName() + ": " + ex);
+            }
+        }
+        if (interfaces.size() == 0)
+            throw new Exception("no interface to join " + group + " on");
+
+        dc.configureBlocking(false);
+        setChannel(dc);
+    }
+
+    /**
+     * Starts listening and announcing on the given engine.
+     */
+    public void start(NetworkEngine ne)
+        throws Exception {
+        log.info("discovering peers on " + group + " through " + interfaces.size() + " interfaces");
+        ne.addHandler(this);
+        ne.scheduleWakeup(this, System.currentTimeMillis());
+    }
+
+    public void close() {
+        try {
+            if (key != null)
+                key.cancel();
+            if (eng != null)
+                eng.removeHandler(this);
+            dc.close();
+        } catch (Exception ex) {
+            // we were going anyway
+        }
+    }
+
+    /* sends our beacon on all the interfaces */
+    private void announce() {
+
+        try {
+            User u = listener.getAnnouncement();
+            if (u == null)
+                return;
+            ByteBuffer bb = ByteBuffer.wrap((MAGIC + u.getData()).getBytes("UTF-8"));
+            for (NetworkInterface ni : interfaces) {
+                try {
+                    dc.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+                    dc.send(bb.duplicate(), group);
+                } catch (Exception ex) {
+                    log.debug("could not announce on " + ni.getName() + ": " + ex);
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("error announcing: " + ex);
+        }
+    }
+
+    /* the periodic announcement, or a delayed answer */
+    protected void wakeUp()
+        throws Exception {
+
+        if (!dc.isOpen())
+            return;
+        long now = System.currentTimeMillis();
+        announce();
+        if (answerPending) {
+            answerPending = false;
+            lastAnswer = now;
+        }
+        if (now >= nextAnnounce) {
+            nextAnnounce = now + interval;
+            eng.scheduleWakeup(this, nextAnnounce);
+        }
+    }
+
+    /* lets the new ones know of us, but not more often than
+     * MIN_ANSWER_INTERVAL. one answer serves all who came meanwhile */
+    private void answer() {
+
+        if (answerPending)
+            return;
+        long now = System.currentTimeMillis();
+        if (now - lastAnswer >= MIN_ANSWER_INTERVAL) {
+            lastAnswer = now;
+            announce();
+        } else {
+            answerPending = true;
+            eng.scheduleWakeup(this, lastAnswer + MIN_ANSWER_INTERVAL);
+        }
+    }
+
+    protected void handleRead()
+        throws Exception {
+
+        SocketAddress from;
+        while ((from = dc.receive(inbuf)) != null) {
+            inbuf.flip();
+            byte[] data = new byte[inbuf.remaining()];
+            inbuf.get(data);
+            inbuf.clear();
+            beaconGot(new String(data, "UTF-8"), ((InetSocketAddress)from).getAddress());
+        }
+    }
+
+    private void beaconGot(String data, InetAddress from) {
+
+        if (!data.startsWith(MAGIC))
+            return;
+        data = data.substring(MAGIC.length());
+
+        User u = seen.get(data);
+        boolean fresh = (u == null);
+        if (fresh) {
+            try {
+                u = User.fromData(data);
+            } catch (Exception ex) {
+                log.debug("invalid beacon from " + from + ": " + ex);
+                return;
+            }
+            if (seen.size() >= MAX_SEEN)
+                seen.clear();
+            seen.put(data, u);
+        }
+
+        try {
+            User self = listener.getAnnouncement();
+            if (self != null && self.getId().equals(u.getId()))
+                return;
+        } catch (Exception ex) {
+            return;
+        }
+
+        log.debug("got a beacon from " + u + " at " + from);
+        listener.peerFound(u, from);
+
+        // let the new one know of us
+        if (fresh)
+            answer();
+    }
+
+    protected int getInterestSet() {
+        return SelectionKey.OP_READ;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+
+/**
+ * Reads a stream up to a limit, as if it ended there.
+ * @author koskela
+ */
+public class LimitedInputStream
+    extends FilterInputStream {
+
+    private long left;
+
+    public LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.left = limit;
+    }
+
+    public int read()
+        throws IOException {
+        if (left < 1)
+            return -1;
+        int ret = in.read();
+        if (ret > -1)
+            left--;
+        return ret;
+    }
+
+    public int read(byte[] b, int off, int len)
+        throws IOException {
+        if (left < 1)
+            return -1;
+        int ret = in.read(b, off, (int)Math.min(len, left));
+        if (ret > 0)
+            left -= ret;
+        return ret;
+    }
+
+    public long skip(long n)
+        throws IOException {
+        long ret = in.skip(Math.min(n, left));
+        left -= ret;
+        return ret;
+    }
+
+    public int available()
+        throws IOException {
+        return (int)Math.min(in.available(), left);
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+}
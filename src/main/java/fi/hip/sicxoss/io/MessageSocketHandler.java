@@ -42,6 +42,10 @@ public abstract class MessageSocketHandler
 
     private int msgLen = -1;
 
+    // how much a stream forwarder lets pile up in the sink, and in
+    // the source before it stops reading it
+    private static final int FORWARD_HIGH_WATER = 4 * NETBUF_SIZE;
+
     /**
      * create from a existing socket
      */
@@ -58,6 +62,14 @@ public abstract class MessageSocketHandler
         super(sa);
     }
 
+    /**
+     * create an outgoing socket from the given local address
+     */
+    public MessageSocketHandler(SocketAddress sa, InetSocketAddress local) 
+        throws Exception {
+        super(sa, local);
+    }
+
     /**
      * create an outgoing socket
      */
@@ -147,7 +159,9 @@ public abstract class MessageSocketHandler
     }
 
     /**
-     * Use either send message or the get-datastream + send.
+     * Use either send message or the get-datastream + send. The
+     * message data is queued as-is, not copied, so a received message
+     * can be relayed to any number of sockets without re-encoding.
      */
     public synchronized void sendMessage(NetworkMessage msg, boolean priority) {
 
@@ -157,7 +171,7 @@ public abstract class MessageSocketHandler
         len[0] = (byte)(data.length & 0xff);
         len[1] = (byte)((data.length >> 8) & 0xff);
         write(len, 0, len.length, priority);
-        write(data, 0, data.length, priority);
+        write(ByteBuffer.wrap(data).asReadOnlyBuffer(), priority);
     }
 
     public DataOutputStream sendDataStream() {
@@ -223,9 +237,10 @@ public abstract class MessageSocketHandler
     }
 
     /**
-     * Small utility class for forwarding a stream. Keeps a buffer
-     * which it fills as data becomes available, and empties when the
-     * sink is ready to receive more.
+     * Small utility class for forwarding a stream. The data is passed
+     * on to the sink as slices of the source's input buffers, without
+     * copying. If the sink can't keep up, we stop reading the source
+     * until it has caught up.
      */
     public class StreamForwarder 
         implements DataSocketStreamReceiver,
@@ -233,11 +248,8 @@ public abstract class MessageSocketHandler
 
         private MessageSocketHandler src;
         private MessageSocketHandler sink;
-        private byte[] buf = new byte[NETBUF_SIZE];
         private int bytes;
-        private int available;
         private boolean sinkReady;
-        private boolean srcReady;
         private NetworkMessage header;
 
         public StreamForwarder(MessageSocketHandler source,
@@ -246,9 +258,7 @@ public abstract class MessageSocketHandler
             this.src = source;
             this.sink = sink;
             this.bytes = bytes;
-            this.available = 0;
             this.sinkReady = false;
-            this.srcReady = false;
         }
 
         public boolean start(NetworkMessage header) {
@@ -261,62 +271,65 @@ public abstract class MessageSocketHandler
             sink.queueForStreaming(this);
             return true;
         }
+
+        /* moves what the source has to the sink, as long as the sink
+         * isn't too full. returns how many bytes were moved. */
+        private int pump() {
+
+            int total = 0;
+            // (if the sink has gone away, we just drain the source)
+            while (bytes > 0 && (sink.getQueuedBytes() < FORWARD_HIGH_WATER || !sink.isConnected())) {
+                ByteBuffer bb = src.readBuffer(bytes);
+                if (bb == null) {
+                    // nothing more is coming
+                    if (!src.isConnected())
+                        bytes = 0;
+                    break;
+                }
+                bytes -= bb.remaining();
+                total += bb.remaining();
+                if (sink.isConnected())
+                    sink.stream(bb);
+            }
+
+            if (bytes < 1) {
+                src.removeStreamReceiver(this);
+                src.resumeReading();
+            } else if (src.available() >= FORWARD_HIGH_WATER)
+                src.pauseReading();
+            else
+                src.resumeReading();
+            return total;
+        }
             
         public synchronized void dataAvailable(DataSocketHandler conn) {
-            
-            // if we can fit it into the buffer, read it.
-            srcReady = false;
-            if (sinkReady && available < buf.length && bytes > 0) {
-                int l = buf.length - available;
-                if (l > bytes)
-                    l = bytes;
-                int r = conn.read(buf, available, l);
-                //log.debug("got " + r + " bytes, still " + bytes + " to send");
-                if (r > -1) {
-                    available += r;
-                    bytes -= r;
-
-                    // there's probably more
-                    if (r == l)
-                        srcReady = true;
-                    
-                    // are we done yet?
-                    if (bytes < 1)
-                        removeStreamReceiver(this);
-                } else
-                    bytes = 0;
-            } else
-                srcReady = true;
-
-            if (available > 0 && sinkReady)
-                dataRequired();
+
+            // until the sink is ready, the data waits in the source
+            if (sinkReady || !sink.isConnected())
+                pump();
+            else if (src.available() >= FORWARD_HIGH_WATER)
+                src.pauseReading();
         }
         
         public synchronized boolean dataRequired() {
 
-            if (available > 0) {
-                sinkReady = false;
-                sink.stream(buf, 0, available); // we should wait buf really has been written!
-                available = 0;
-                //log.debug("wrote " + available + " bytes");
-            } else {
-                sinkReady = true;
-                if (bytes > 0 && srcReady)
-                    dataAvailable(src);
-            }
-            return bytes > 0 || available > 0;
+            // the sink has written out everything we gave it
+            sinkReady = true;
+            return pump() > 0 || bytes > 0;
         }
         
-        public boolean streamingStarted() {
+        public synchronized boolean streamingStarted() {
             log.info("starting forwarding stream for " + bytes + " bytes");
             if (header != null)
                 sink.sendMessage(header, true);
+            sinkReady = true;
+            pump();
             return bytes > 0;
         }
         
-        public void streamingEnded() {
+        public synchronized void streamingEnded() {
             log.info("ending forwarding stream for " + bytes + " bytes");
-            // notify? nah, we'll just wait for the garbage collector.
+            sinkReady = false;
         }
     }
 
@@ -43,10 +43,35 @@ public class NetworkEngine
     private ArrayList<SocketHandler> handlers;
     private volatile boolean waitForNewHandlers;
     private List<Thread> clients;
+
+    // handlers that want to be woken up at some point
+    private PriorityQueue<Wakeup> wakeups;
+
+    /* a scheduled wakeup for a handler */
+    private class Wakeup
+        implements Comparable<Wakeup> {
+
+        public long time;
+        public SocketHandler handler;
+
+        public Wakeup(SocketHandler handler, long time) {
+            this.handler = handler;
+            this.time = time;
+        }
+
+        public int compareTo(Wakeup other) {
+            if (time < other.time)
+                return -1;
+            if (time > other.time)
+                return 1;
+            return 0;
+        }
+    }
     
     public NetworkEngine() {
         handlers = new ArrayList();
         clients = new ArrayList();
+        wakeups = new PriorityQueue<Wakeup>();
     }
 
     protected Selector getSelector() {
@@ -152,6 +177,58 @@ public class NetworkEngine
         handlers.remove(sh);
     }
 
+    /**
+     * Schedules the handler's wakeUp() to be called from the network
+     * thread at the given time. Used by handlers that have taken a
+     * break from writing (when throttled, for instance).
+     */
+    public void scheduleWakeup(SocketHandler sh, long time) {
+        
+        boolean first = false;
+        synchronized (wakeups) {
+            wakeups.add(new Wakeup(sh, time));
+            first = (wakeups.peek().handler == sh);
+        }
+        if (first && Thread.currentThread() != this)
+            getSelector().wakeup();
+    }
+
+    /* how long we may sleep in select() */
+    private long getSelectTimeout() {
+        
+        long timeout = 1000;
+        synchronized (wakeups) {
+            Wakeup w = wakeups.peek();
+            if (w != null) {
+                long until = w.time - System.currentTimeMillis();
+                if (until < timeout)
+                    timeout = until;
+            }
+        }
+        // 0 would mean forever
+        if (timeout < 1)
+            timeout = 1;
+        return timeout;
+    }
+
+    private void runWakeups() {
+        
+        ArrayList<SocketHandler> due = new ArrayList<SocketHandler>();
+        long now = System.currentTimeMillis();
+        synchronized (wakeups) {
+            while (wakeups.size() > 0 && wakeups.peek().time <= now)
+                due.add(wakeups.poll().handler);
+        }
+        
+        for (SocketHandler sh : due) {
+            try {
+                sh.wakeUp();
+            } catch (Exception ex) {
+                log.warn("error while waking up handler: " + ex);
+            }
+        }
+    }
+
     public void selectLoop()
         throws Exception {
 
@@ -160,7 +237,7 @@ public class NetworkEngine
             // we might get strange write-while-reading and other things
             // therefore we have a one second timeout on these just to avoid
             // too long lags
-            if ((keys = selector.select(1000)) > 0) { 
+            if ((keys = selector.select(getSelectTimeout())) > 0) { 
 
                 // we use an iterator to avoid concurrent edits to the list
                 Set<SelectionKey> readyk = selector.selectedKeys();
@@ -190,6 +267,8 @@ public class NetworkEngine
                 }
             }
             
+            runWakeups();
+
             if (waitForNewHandlers) {
                 synchronized (handlers) {
                     waitForNewHandlers = false;
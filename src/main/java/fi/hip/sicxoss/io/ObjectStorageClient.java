@@ -0,0 +1,438 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.text.SimpleDateFormat;
+import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.util.Backoff;
+
+/**
+ * ObjectStorageClient
+ *
+ * Talks to an S3-compatible object storage: the objects of one
+ * bucket, by path-style URLs (endpoint/bucket/key). Requests are
+ * signed (AWS signature version 4) if there are credentials; the
+ * payloads are not, so the data can be streamed.
+ *
+ * The requests are retried a few times on errors that may pass
+ * (connection problems, 5xx); all of them can be, as the payloads
+ * are given as buffers.
+ * @author koskela
+ */
+public class ObjectStorageClient {
+
+    private static final Logger log = Logger.getLogger(ObjectStorageClient.class);
+
+    private static final int TRIES = 3;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+    private static final String UNSIGNED = "UNSIGNED-PAYLOAD";
+
+    // the largest object that can be copied in one request
+    public static final long MAX_COPY = 5L * 1024 * 1024 * 1024;
+
+    private String endpoint;
+    private String bucket;
+    private String region;
+    private String accessKey;
+    private String secretKey;
+
+    /**
+     * @param endpoint the service, http(s)://host[:port]
+     * @param accessKey the credentials, null for none
+     */
+    public ObjectStorageClient(String endpoint, String bucket, String region,
+                               String accessKey, String secretKey) {
+
+        while (endpoint.endsWith("/"))
+            endpoint = endpoint.substring(0, endpoint.length() - 1);
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.region = (region != null? region : "us-east-1");
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint + "/" + bucket;
+    }
+
+    /* an error response, worth retrying or not */
+    private static class RequestFailed
+        extends IOException {
+
+        private int code;
+
+        RequestFailed(int code, String msg) {
+            super(msg);
+            this.code = code;
+        }
+    }
+
+    private static String encode(String s, boolean path)
+        throws UnsupportedEncodingException {
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : s.getBytes("UTF-8")) {
+            char c = (char)(b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                c == '-' || c == '_' || c == '.' || c == '~' || (path && c == '/'))
+                sb.append(c);
+            else
+                sb.append(String.format("%%%02X", (int)c));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] hmac(byte[] key, String data)
+        throws Exception {
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data.getBytes("UTF-8"));
+    }
+
+    private static String sha256(String data)
+        throws Exception {
+        return DataUtil.toHex(MessageDigest.getInstance("SHA-256").digest(data.getBytes("UTF-8")));
+    }
+
+    /* adds the signature headers to the request */
+    private void sign(HttpURLConnection c, String method, String path, SortedMap<String, String> query,
+                      SortedMap<String, String> headers)
+        throws Exception {
+
+        SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String now = df.format(new Date());
+        String day = now.substring(0, 8);
+
+        URL url = c.getURL();
+        headers.put("host", url.getHost() + (url.getPort() > -1? ":" + url.getPort() : ""));
+        headers.put("x-amz-date", now);
+        headers.put("x-amz-content-sha256", UNSIGNED);
+
+        StringBuilder cq = new StringBuilder();
+        for (Map.Entry<String, String> e : query.entrySet())
+            cq.append(cq.length() > 0? "&" : "").append(encode(e.getKey(), false)).append("=").append(encode(e.getValue(), false));
+        StringBuilder ch = new StringBuilder();
+        StringBuilder sh = new StringBuilder();
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            ch.append(e.getKey()).append(":").append(e.getValue().trim()).append("\n");
+            sh.append(sh.length() > 0? ";" : "").append(e.getKey());
+        }
+        String creq = method + "\n" + encode(path, true) + "\n" + cq + "\n" + ch + "\n" + sh + "\n" + UNSIGNED;
+
+        String scope = day + "/" + region + "/s3/aws4_request";
+        String sts = "AWS4-HMAC-SHA256\n" + now + "\n" + scope + "\n" + sha256(creq);
+        byte[] key = hmac(("AWS4" + secretKey).getBytes("UTF-8"), day);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        String sig = DataUtil.toHex(hmac(key, sts));
+
+        for (Map.Entry<String, String> e : headers.entrySet())
+            if (!e.getKey().equals("host"))
+                c.setRequestProperty(e.getKey(), e.getValue());
+        c.setRequestProperty("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope +
+                             ", SignedHeaders=" + sh + ", Signature=" + sig);
+    }
+
+    /**
+     * Makes a request, once. Returns the connection for reading the
+     * response, or null if there was no such object (404).
+     * @param query name/value pairs, a null value for a flag
+     * @param headers the x-amz-* headers and the like
+     */
+    private HttpURLConnection request(String method, String key, String[] query, String[] headers,
+                                      byte[] body, int off, int len)
+        throws Exception {
+
+        String path = "/" + bucket + "/" + key;
+        SortedMap<String, String> q = new TreeMap<String, String>();
+        for (int i = 0; query != null && i < query.length; i += 2)
+            q.put(query[i], (query[i+1] != null? query[i+1] : ""));
+        StringBuilder qs = new StringBuilder();
+        for (Map.Entry<String, String> e : q.entrySet())
+            qs.append(qs.length() > 0? "&" : "?").append(encode(e.getKey(), false)).append("=").append(encode(e.getValue(), false));
+
+        URL url = new URL(endpoint + encode(path, true) + qs);
+        HttpURLConnection c = (HttpURLConnection)url.openConnection();
+        c.setConnectTimeout(CONNECT_TIMEOUT);
+        c.setReadTimeout(READ_TIMEOUT);
+        c.setRequestMethod(method);
+        c.setUseCaches(false);
+
+        SortedMap<String, String> h = new TreeMap<String, String>();
+        for (int i = 0; headers != null && i < headers.length; i += 2)
+            h.put(headers[i].toLowerCase(), headers[i+1]);
+        if (accessKey != null)
+            sign(c, method, path, q, h);
+        else
+            for (Map.Entry<String, String> e : h.entrySet())
+                c.setRequestProperty(e.getKey(), e.getValue());
+
+        if (body != null) {
+            c.setDoOutput(true);
+            c.setFixedLengthStreamingMode(len);
+            OutputStream out = c.getOutputStream();
+            out.write(body, off, len);
+            out.close();
+        }
+
+        int code = c.getResponseCode();
+        if (code == 404) {
+            c.disconnect();
+            return null;
+        }
+        if (code < 200 || code > 299) {
+            InputStream err = c.getErrorStream();
+            String msg = code + " " + c.getResponseMessage() + (err != null? " " + new String(DataUtil.toBuf(err), "UTF-8") : "");
+            c.disconnect();
+            throw new RequestFailed(code, method + " " + key + ": " + msg);
+        }
+        return c;
+    }
+
+    /* makes the request, retrying the failures that may pass */
+    private HttpURLConnection execute(String method, String key, String[] query, String[] headers,
+                                      byte[] body, int off, int len)
+        throws IOException {
+
+        Backoff backoff = new Backoff(200, 5000);
+        for (int i = 1;; i++) {
+            try {
+                return request(method, key, query, headers, body, off, len);
+            } catch (RequestFailed ex) {
+                if (ex.code < 500 || i >= TRIES)
+                    throw ex;
+                log.debug("retrying " + method + " " + key + ": " + ex);
+            } catch (IOException ex) {
+                if (i >= TRIES)
+                    throw ex;
+                log.debug("retrying " + method + " " + key + ": " + ex);
+            } catch (Exception ex) {
+                throw new IOException("error in " + method + " " + key + ": " + ex);
+            }
+            try {
+                Thread.sleep(backoff.next());
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("interrupted while retrying " + key);
+            }
+        }
+    }
+
+    private static String readResponse(HttpURLConnection c)
+        throws IOException {
+
+        InputStream in = c.getInputStream();
+        try {
+            return new String(DataUtil.toBuf(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /* the contents of the first element of the name in the xml */
+    private static String getElement(String xml, String name) {
+
+        int s = xml.indexOf("<" + name + ">");
+        int e = xml.indexOf("</" + name + ">");
+        if (s < 0 || e < s)
+            return null;
+        return xml.substring(s + name.length() + 2, e)
+            .replace("&quot;", "\"").replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static void done(HttpURLConnection c)
+        throws IOException {
+
+        if (c != null) {
+            InputStream in = c.getInputStream();
+            while (in.read() > -1);
+            in.close();
+        }
+    }
+
+    /**
+     * Uploads an object in one go.
+     */
+    public void put(String key, byte[] data, int off, int len)
+        throws IOException {
+        done(execute("PUT", key, null, null, data, off, len));
+    }
+
+    /**
+     * Returns a stream of the object from start up to (not
+     * including) finish, or null if there is no such object.
+     */
+    public InputStream get(String key, long start, long finish)
+        throws IOException {
+
+        if (finish <= start)
+            return new ByteArrayInputStream(new byte[0]);
+        HttpURLConnection c = execute("GET", key, null, new String[] { "Range", "bytes=" + start + "-" + (finish - 1) }, null, 0, 0);
+        if (c == null)
+            return null;
+        InputStream in = c.getInputStream();
+        if (c.getResponseCode() == 200 && start > 0) {
+            // the range was ignored
+            long s = 0;
+            while (s < start) {
+                long r = in.skip(start - s);
+                if (r < 1)
+                    break;
+                s += r;
+            }
+        }
+        return new LimitedInputStream(in, finish - start);
+    }
+
+    /**
+     * Returns the length of the object, -1 if there is none.
+     */
+    public long head(String key)
+        throws IOException {
+
+        HttpURLConnection c = execute("HEAD", key, null, null, null, 0, 0);
+        if (c == null)
+            return -1;
+        String len = c.getHeaderField("Content-Length");
+        long ret = (len != null? Long.parseLong(len.trim()) : -1);
+        c.disconnect();
+        return ret;
+    }
+
+    public void delete(String key)
+        throws IOException {
+        HttpURLConnection c = execute("DELETE", key, null, null, null, 0, 0);
+        if (c != null)
+            c.disconnect();
+    }
+
+    /**
+     * Starts a multipart upload, returns its id.
+     */
+    public String initiateMultipart(String key)
+        throws IOException {
+
+        HttpURLConnection c = execute("POST", key, new String[] { "uploads", null }, null, new byte[0], 0, 0);
+        String id = (c != null? getElement(readResponse(c), "UploadId") : null);
+        if (id == null)
+            throw new IOException("no upload id for " + key);
+        return id;
+    }
+
+    /**
+     * Uploads a part (numbered from 1), returns its etag.
+     */
+    public String uploadPart(String key, String uploadId, int part, byte[] data, int off, int len)
+        throws IOException {
+
+        HttpURLConnection c = execute("PUT", key, new String[] { "partNumber", "" + part, "uploadId", uploadId }, null, data, off, len);
+        if (c == null)
+            throw new IOException("the upload of " + key + " is gone");
+        String etag = c.getHeaderField("ETag");
+        done(c);
+        return etag;
+    }
+
+    /**
+     * Copies a range of an object as a part, returns its etag.
+     */
+    public String copyPart(String key, String uploadId, int part, String from, long start, long finish)
+        throws IOException {
+
+        HttpURLConnection c = execute("PUT", key, new String[] { "partNumber", "" + part, "uploadId", uploadId },
+                                      new String[] { "x-amz-copy-source", "/" + bucket + "/" + from,
+                                                     "x-amz-copy-source-range", "bytes=" + start + "-" + (finish - 1) },
+                                      new byte[0], 0, 0);
+        String etag = (c != null? getElement(readResponse(c), "ETag") : null);
+        if (etag == null)
+            throw new IOException("could not copy " + from + " to " + key);
+        return etag;
+    }
+
+    /**
+     * Puts the parts (their etags in order) together.
+     */
+    public void completeMultipart(String key, String uploadId, List<String> etags)
+        throws IOException {
+
+        StringBuilder sb = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++)
+            sb.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                .append(etags.get(i).replace("&", "&amp;").replace("\"", "&quot;")).append("</ETag></Part>");
+        sb.append("</CompleteMultipartUpload>");
+        byte[] body = sb.toString().getBytes("UTF-8");
+
+        HttpURLConnection c = execute("POST", key, new String[] { "uploadId", uploadId }, null, body, 0, body.length);
+        // the errors may come with a 200
+        String resp = (c != null? readResponse(c) : "");
+        if (c == null || getElement(resp, "Code") != null)
+            throw new IOException("could not complete the upload of " + key + ": " + resp);
+    }
+
+    public void abortMultipart(String key, String uploadId) {
+        try {
+            HttpURLConnection c = execute("DELETE", key, new String[] { "uploadId", uploadId }, null, null, 0, 0);
+            if (c != null)
+                c.disconnect();
+        } catch (IOException ex) {
+            log.warn("could not abort the upload of " + key + ": " + ex);
+        }
+    }
+
+    /**
+     * Copies an object within the bucket, in parts of the given size
+     * if larger than one request may copy.
+     */
+    public void copy(String from, String to, long length, long partSize)
+        throws IOException {
+
+        if (length <= MAX_COPY) {
+            HttpURLConnection c = execute("PUT", to, null, new String[] { "x-amz-copy-source", "/" + bucket + "/" + from }, new byte[0], 0, 0);
+            String resp = (c != null? readResponse(c) : "");
+            if (c == null || getElement(resp, "Code") != null)
+                throw new IOException("could not copy " + from + " to " + to + ": " + resp);
+            return;
+        }
+
+        String uploadId = initiateMultipart(to);
+        try {
+            List<String> etags = new ArrayList<String>();
+            for (long pos = 0; pos < length; pos += partSize)
+                etags.add(copyPart(to, uploadId, etags.size() + 1, from, pos, Math.min(length, pos + partSize)));
+            completeMultipart(to, uploadId, etags);
+        } catch (IOException ex) {
+            abortMultipart(to, uploadId);
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.security.*;
+
+/**
+ * ParallelDigest
+ *
+ * Calculates a digest on a thread of its own, so the hashing of a
+ * stream overlaps with the reading and writing of it. The data is
+ * passed in a few (direct) buffers that go round: taken with
+ * getBuffer(), filled, used and handed over with update(), after
+ * which they come back once hashed.
+ *
+ * Either digest() or close() has to be called in the end, to give
+ * the buffers back.
+ * @author koskela
+ */
+public class ParallelDigest {
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static ExecutorService hashers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hasher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private MessageDigest md;
+    private LinkedBlockingQueue<ByteBuffer> work;
+    private LinkedBlockingQueue<ByteBuffer> free;
+    private List<ByteBuffer> buffers;
+    private Future<byte[]> result;
+
+    /**
+     * @param size the size of the buffers
+     * @param count how many of them there are
+     */
+    public ParallelDigest(String alg, int size, int count)
+        throws NoSuchAlgorithmException {
+
+        this.md = MessageDigest.getInstance(alg);
+        this.work = new LinkedBlockingQueue<ByteBuffer>();
+        this.free = new LinkedBlockingQueue<ByteBuffer>();
+        this.buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer bb = BufferPool.getInstance().acquire(size);
+            buffers.add(bb);
+            free.add(bb);
+        }
+
+        result = hashers.submit(new Callable<byte[]>() {
+                public byte[] call()
+                    throws Exception {
+                    ByteBuffer bb;
+                    while ((bb = work.take()) != END) {
+                        md.update(bb);
+                        free.add(bb);
+                    }
+                    return md.digest();
+                }
+            });
+    }
+
+    /**
+     * Returns a cleared buffer, once one has been hashed.
+     */
+    public ByteBuffer getBuffer()
+        throws IOException {
+
+        try {
+            ByteBuffer ret;
+            while ((ret = free.poll(100, TimeUnit.MILLISECONDS)) == null)
+                if (result.isDone())
+                    throw new IOException("the hashing has stopped");
+            ret.clear();
+            return ret;
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+    }
+
+    /**
+     * Hands over a buffer taken with getBuffer(), its contents
+     * between the position and limit to be hashed. It must not be
+     * touched after this.
+     */
+    public void update(ByteBuffer bb) {
+        work.add(bb);
+    }
+
+    /**
+     * Waits for the hashing to complete, and returns the digest.
+     */
+    public byte[] digest()
+        throws IOException {
+
+        if (buffers == null)
+            throw new IOException("the digest is closed");
+        try {
+            work.add(END);
+            return result.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("error hashing: " + ex.getCause());
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("interrupted while hashing");
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Stops the hashing, if still going.
+     */
+    public void close() {
+
+        if (buffers == null)
+            return;
+        work.add(END);
+        try {
+            result.get();
+        } catch (Exception ex) {
+            // not interested anymore
+        }
+        release();
+    }
+
+    /* the buffers are not used by the hasher anymore */
+    private void release() {
+        for (ByteBuffer bb : buffers)
+            BufferPool.getInstance().release(bb);
+        buffers = null;
+    }
+}
@@ -44,6 +44,21 @@ public abstract class ServerSocketHandler
 	ssc.socket().bind(sa);
     }
 
+    /**
+     * create a listener on a port shared with other sockets
+     * @see SocketHandler#setPortReuse
+     */
+    public ServerSocketHandler(SocketAddress sa, boolean reuse) 
+        throws Exception {
+
+        ssc = ServerSocketChannel.open();
+        setChannel(ssc);
+	ssc.configureBlocking(false);
+        if (reuse)
+            setPortReuse(ssc);
+	ssc.socket().bind(sa);
+    }
+
     public ServerSocketHandler() 
         throws Exception {
 
@@ -68,4 +83,17 @@ public abstract class ServerSocketHandler
     public InetSocketAddress getLocalAddress() {
         return (InetSocketAddress)ssc.socket().getLocalSocketAddress();
     }
+
+    /** stops listening */
+    public void close() {
+        try {
+            if (key != null)
+                key.cancel();
+            if (eng != null)
+                eng.removeHandler(this);
+            ssc.close();
+        } catch (Exception ex) {
+            // we were going anyway
+        }
+    }
 }
@@ -0,0 +1,222 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.security.*;
+import java.util.*;
+import javax.crypto.*;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.ident.*;
+
+/**
+ * Keeps the session tickets of the AuthenticatedSocketHandlers. A
+ * ticket is a secret shared with a peer, agreed on during a full
+ * (signed) authentication. A peer that reconnects within the
+ * lifetime of the ticket can be authenticated by proving that it
+ * knows the secret, without signing anything or sending its profile
+ * again.
+ *
+ * Tickets are found by their id (the side that accepts the
+ * connection) or by whom they were made with (the connecting side).
+ * @author koskela
+ */
+public class SessionTicketCache {
+
+    private static final Logger log = Logger.getLogger(SessionTicketCache.class);
+
+    public static final String MAC_ALG = "HmacSHA256";
+
+    // who is proving the ticket, the side that connected or the one that accepted
+    public static final String ROLE_INITIATOR = "initiator";
+    public static final String ROLE_ACCEPTOR = "acceptor";
+
+    // the default validity of a ticket, 30 minutes
+    public static final long DEFAULT_LIFETIME = 30 * 60 * 1000;
+
+    // the most tickets we keep
+    public static final int MAX_TICKETS = 4096;
+
+    private static SessionTicketCache instance = new SessionTicketCache();
+
+    public static SessionTicketCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * A ticket. The peer is null if the other end was anonymous.
+     */
+    public static class Ticket {
+
+        private String id;
+        private byte[] secret;
+        private String localId;
+        private String peerKey;
+        private User peer;
+        private long expires;
+
+        private Ticket(byte[] secret, String localId, String peerKey, User peer, long expires) 
+            throws Exception {
+
+            this.secret = secret;
+            this.localId = localId;
+            this.peerKey = peerKey;
+            this.peer = peer;
+            this.expires = expires;
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update("sicxoss-ticket-id".getBytes());
+            digest.update(secret);
+            byte[] h = digest.digest();
+            this.id = DataUtil.toHex(Arrays.copyOf(h, 16));
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public User getPeer() {
+            return peer;
+        }
+
+        public boolean isValid() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * The proof of knowing the secret, bound to one connection:
+         * both of its nonces, the role of the side proving it
+         * (ROLE_INITIATOR or ROLE_ACCEPTOR), so that a proof can not
+         * be reflected back, and the TLS channel, if any.
+         */
+        public String createProof(String role, String initiatorNonce, String acceptorNonce, String channel) 
+            throws Exception {
+
+            Mac mac = Mac.getInstance(MAC_ALG);
+            mac.init(new SecretKeySpec(secret, MAC_ALG));
+            for (String s : new String[] { role, id, initiatorNonce, acceptorNonce, (channel != null? channel : "") }) {
+                byte[] b = s.getBytes("UTF-8");
+                mac.update((byte)(b.length >> 8));
+                mac.update((byte)b.length);
+                mac.update(b);
+            }
+            return DataUtil.toHex(mac.doFinal());
+        }
+
+        public boolean checkProof(String role, String initiatorNonce, String acceptorNonce, String channel, String proof) 
+            throws Exception {
+            return MessageDigest.isEqual(createProof(role, initiatorNonce, acceptorNonce, channel).getBytes(), 
+                                         proof.getBytes());
+        }
+    }
+
+    private long lifetime;
+    private Hashtable<String, Ticket> byId;
+    private Hashtable<String, Ticket> byPeer;
+
+    public SessionTicketCache() {
+        lifetime = DEFAULT_LIFETIME;
+        byId = new Hashtable<String, Ticket>();
+        byPeer = new Hashtable<String, Ticket>();
+    }
+
+    /**
+     * Sets how long new tickets are valid, in milliseconds. 0
+     * disables the tickets.
+     */
+    public void setLifetime(long millis) {
+        this.lifetime = millis;
+    }
+
+    public boolean isEnabled() {
+        return lifetime > 0;
+    }
+
+    private static String key(String localId, String peerKey) {
+        return (localId != null? localId : "") + "/" + peerKey;
+    }
+
+    /**
+     * Creates and stores a ticket for the given secret.
+     * @param localId our user id, or null if we are anonymous
+     * @param peerKey whom the ticket was made with, as used by getForPeer
+     */
+    public synchronized Ticket create(byte[] secret, String localId, String peerKey, User peer) 
+        throws Exception {
+
+        if (byId.size() >= MAX_TICKETS)
+            purge();
+        if (byId.size() >= MAX_TICKETS) {
+            log.warn("too many session tickets, not creating more");
+            return null;
+        }
+
+        // the older tickets with the peer are left to expire, the
+        // other side may still hold any of them (several sockets may
+        // have authenticated at once)
+        Ticket t = new Ticket(secret, localId, peerKey, peer, System.currentTimeMillis() + lifetime);
+        byId.put(key(localId, t.getId()), t);
+        byPeer.put(key(localId, peerKey), t);
+        return t;
+    }
+
+    public synchronized Ticket get(String id, String localId) {
+
+        Ticket t = byId.get(key(localId, id));
+        if (t != null && !t.isValid()) {
+            remove(t);
+            return null;
+        }
+        return t;
+    }
+
+    public synchronized Ticket getForPeer(String localId, String peerKey) {
+
+        Ticket t = byPeer.get(key(localId, peerKey));
+        if (t != null && !t.isValid()) {
+            remove(t);
+            return null;
+        }
+        return t;
+    }
+
+    public synchronized void remove(Ticket t) {
+
+        if (t == null)
+            return;
+        byId.remove(key(t.localId, t.getId()));
+        String k = key(t.localId, t.peerKey);
+        if (byPeer.get(k) == t)
+            byPeer.remove(k);
+    }
+
+    /* drops the expired tickets */
+    private void purge() {
+
+        List<Ticket> old = new ArrayList<Ticket>();
+        for (Ticket t : byId.values())
+            if (!t.isValid())
+                old.add(t);
+        for (Ticket t : old)
+            remove(t);
+    }
+}
@@ -43,7 +43,13 @@ public abstract class SocketHandler {
         int p = str.indexOf(':');
         String addr = "";
         int port = 1234;
-        if (p > -1) {
+        if (str.startsWith("[")) {
+            // ipv6, [addr]:port
+            p = str.indexOf(']');
+            addr = str.substring(1, p);
+            if (str.length() > p + 2)
+                port = Integer.parseInt(str.substring(p+2));
+        } else if (p > -1) {
             addr = str.substring(0, p);
             port = Integer.parseInt(str.substring(p+1));
         } else
@@ -56,6 +62,55 @@ public abstract class SocketHandler {
         */
         return new InetSocketAddress(addr, port);
     }
+
+    /* the other way round, host:port or [host]:port */
+    public static String s2a(InetAddress ia, int port) {
+        if (ia instanceof Inet6Address)
+            return "[" + ia.getHostAddress() + "]:" + port;
+        return ia.getHostAddress() + ":" + port;
+    }
+
+    // SO_REUSEPORT, if the platform has it. it is not in the older
+    // APIs, so it is looked up once by reflection. windows lets the
+    // sockets share a port with SO_REUSEADDR alone, and does not have
+    // it at all.
+    private static Object reusePort;
+    private static java.lang.reflect.Method setOption;
+
+    static {
+        if (!System.getProperty("os.name", "").toLowerCase().startsWith("windows")) {
+            try {
+                reusePort = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+                setOption = Class.forName("java.nio.channels.NetworkChannel")
+                    .getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+            } catch (Exception ex) {
+                log.info("SO_REUSEPORT is not available, hole punching may not work: " + ex);
+                reusePort = null;
+            }
+        }
+    }
+
+    /**
+     * Lets other sockets bind to the same local port. Needed for
+     * hole punching, where we listen and connect from the port of the
+     * lookup connection.
+     */
+    public static void setPortReuse(SelectableChannel ch) 
+        throws Exception {
+
+        if (ch instanceof SocketChannel)
+            ((SocketChannel)ch).socket().setReuseAddress(true);
+        else if (ch instanceof ServerSocketChannel)
+            ((ServerSocketChannel)ch).socket().setReuseAddress(true);
+
+        if (reusePort != null) {
+            try {
+                setOption.invoke(ch, reusePort, Boolean.TRUE);
+            } catch (Exception ex) {
+                log.debug("could not set SO_REUSEPORT: " + ex);
+            }
+        }
+    }
     
     protected void setChannel(SelectableChannel channel) {
         this.channel = channel;
@@ -104,17 +159,34 @@ public abstract class SocketHandler {
         log.debug("handle accept");
     }
         
+    /* called by the engine when a scheduled wakeup fires */
+    protected void wakeUp() 
+        throws Exception {
+        updateInterests();
+    }
+
     protected abstract int getInterestSet();
+
+    /**
+     * Whether the handler should stay registered with the engine even
+     * though it has no interests at the moment.
+     */
+    protected boolean isIdle() {
+        return false;
+    }
         
     protected void updateInterests() {
         int interests = getInterestSet();
 
-        if (interests == 0) {
+        if (interests == 0 && !isIdle()) {
             if (key != null)
                 key.cancel();
             eng.removeHandler(this);
         } else if (key != null && key.interestOps() != interests) {
             key.interestOps(interests);
+            // the engine won't notice until the next select otherwise
+            if (eng != null && Thread.currentThread() != eng)
+                eng.getSelector().wakeup();
         }
     }
 
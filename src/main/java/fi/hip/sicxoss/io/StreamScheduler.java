@@ -0,0 +1,173 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decides which of the streamers queued on a single connection gets
+ * to stream next. This is a deficit round robin: each streamer gets
+ * a quantum of bytes (multiplied by its weight) per round, and is
+ * allowed to stream as long as it has credit left. Streamers that
+ * overshoot (forwarders that can not split their streams, for
+ * instance) go into debt and have to sit out rounds until they have
+ * paid it back.
+ *
+ * The normal, non-streamed, messages are not scheduled here; the
+ * socket sends all of those between the streaming sessions. As the
+ * sessions are bounded by the credit, this guarantees that the control
+ * traffic never waits for more than one quantum.
+ *
+ * Not thread safe, the DataSocketHandler calls this only while
+ * holding its own lock.
+ * @author koskela
+ */
+public class StreamScheduler {
+
+    private static final Logger log = Logger.getLogger(StreamScheduler.class);
+
+    /* how many bytes each weight unit gets per round */
+    public static final int QUANTUM = 64 * 1024;
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /* the state of a single streamer */
+    private class Flow {
+
+        public DataSocketHandler.DataSocketStreamer streamer;
+        public int weight;
+        public long deficit;
+        public boolean queued;
+
+        public Flow(DataSocketHandler.DataSocketStreamer streamer, int weight) {
+            this.streamer = streamer;
+            this.weight = weight;
+            this.deficit = 0;
+            this.queued = false;
+        }
+    }
+
+    // all flows we know of, including the one that is streaming now
+    private Hashtable<DataSocketHandler.DataSocketStreamer, Flow> flows;
+
+    // the round robin of those waiting for their turn
+    private LinkedList<Flow> active;
+
+    public StreamScheduler() {
+        flows = new Hashtable<DataSocketHandler.DataSocketStreamer, Flow>();
+        active = new LinkedList<Flow>();
+    }
+
+    /**
+     * Queues a streamer. Streamers that re-queue themselves keep
+     * whatever credit (or debt) they had from their previous session.
+     */
+    public void add(DataSocketHandler.DataSocketStreamer streamer, int weight) {
+
+        if (weight < 1)
+            weight = DEFAULT_WEIGHT;
+
+        Flow f = flows.get(streamer);
+        if (f == null) {
+            f = new Flow(streamer, weight);
+            flows.put(streamer, f);
+        }
+        f.weight = weight;
+        if (!f.queued) {
+            f.queued = true;
+            active.add(f);
+        }
+    }
+
+    /**
+     * Picks the next streamer, or null if there is no one queued.
+     */
+    public DataSocketHandler.DataSocketStreamer next() {
+
+        if (active.size() == 0)
+            return null;
+
+        // skip the rounds in which no one would be allowed to stream
+        long rounds = -1;
+        for (Flow f : active) {
+            long r = (-f.deficit / (QUANTUM * (long)f.weight)) + 1;
+            if (f.deficit > 0)
+                r = 0;
+            if (rounds < 0 || r < rounds)
+                rounds = r;
+        }
+        if (rounds > 1)
+            for (Flow f : active)
+                f.deficit += (rounds - 1) * QUANTUM * (long)f.weight;
+
+        while (true) {
+            Flow f = active.removeFirst();
+            if (f.deficit <= 0)
+                f.deficit += QUANTUM * (long)f.weight;
+            if (f.deficit > 0) {
+                f.queued = false;
+                return f.streamer;
+            }
+            active.add(f);
+        }
+    }
+
+    /**
+     * The number of bytes the given streamer may stream in its
+     * current session.
+     */
+    public long getAllowance(DataSocketHandler.DataSocketStreamer streamer) {
+
+        Flow f = flows.get(streamer);
+        if (f == null || f.deficit < 1)
+            return QUANTUM;
+        return f.deficit;
+    }
+
+    /**
+     * Charges the streamer for the bytes sent during its session.
+     */
+    public void sessionEnded(DataSocketHandler.DataSocketStreamer streamer, long bytes) {
+
+        Flow f = flows.get(streamer);
+        if (f != null)
+            f.deficit -= bytes;
+    }
+
+    /**
+     * Forgets the streamer if it did not re-queue itself. Idle flows
+     * do not keep their credit, as in any DRR.
+     */
+    public void retire(DataSocketHandler.DataSocketStreamer streamer) {
+
+        Flow f = flows.get(streamer);
+        if (f != null && !f.queued) {
+            if (f.deficit < 0)
+                log.debug("streamer retired with a debt of " + (-f.deficit) + " bytes");
+            flows.remove(streamer);
+        }
+    }
+
+    public int size() {
+        return active.size();
+    }
+}
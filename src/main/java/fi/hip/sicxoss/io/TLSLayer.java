@@ -0,0 +1,406 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.security.cert.*;
+import java.util.*;
+import javax.net.ssl.*;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V1CertificateGenerator;
+
+/**
+ * Non-blocking TLS on top of a SocketChannel, using an SSLEngine. The
+ * DataSocketHandler does its channel reads and writes through this
+ * when TLS has been enabled for it.
+ *
+ * The TLS layer provides only the encryption. The peers are
+ * authenticated as before, by the signed nonces of the
+ * AuthenticatedSocketHandler, so we accept any certificate here.
+ * The signed nonces include the channel binding of the TLS session
+ * though, so that they can not be relayed by someone in the middle.
+ *
+ * The network buffers are direct buffers from the BufferPool, and
+ * are returned there when the layer is closed.
+ * @author koskela
+ */
+public class TLSLayer {
+
+    private static final Logger log = Logger.getLogger(TLSLayer.class);
+
+    private SSLEngine engine;
+    private SocketChannel sc;
+
+    // encrypted data from the network, in 'write' mode
+    private ByteBuffer netIn;
+    // encrypted data to the network, in 'read' mode
+    private ByteBuffer netOut;
+    // decrypted data not yet passed on, in 'read' mode
+    private ByteBuffer appIn;
+
+    private boolean eof;
+    private boolean released;
+
+    public TLSLayer(SSLEngine engine, SocketChannel sc) 
+        throws IOException {
+
+        this.engine = engine;
+        this.sc = sc;
+
+        SSLSession s = engine.getSession();
+        BufferPool pool = BufferPool.getInstance();
+        netIn = pool.acquire(s.getPacketBufferSize());
+        netOut = pool.acquire(s.getPacketBufferSize());
+        netOut.flip();
+        appIn = pool.acquire(s.getApplicationBufferSize());
+        appIn.flip();
+        eof = false;
+        released = false;
+        engine.beginHandshake();
+    }
+
+    /**
+     * Creates an engine for a connection. For outgoing connections,
+     * the engine is created with the peer's address so the session
+     * cache of the context can resume an earlier session instead of
+     * doing a full handshake.
+     */
+    public static SSLEngine createEngine(SSLContext ctx, InetSocketAddress peer, boolean client) {
+
+        SSLEngine ret = null;
+        if (client && peer != null)
+            ret = ctx.createSSLEngine(peer.getAddress().getHostAddress(), peer.getPort());
+        else
+            ret = ctx.createSSLEngine();
+        ret.setUseClientMode(client);
+        return ret;
+    }
+
+    /**
+     * Creates a TLS context. The key is taken from the given
+     * keystore, or if none is given, an ephemeral self-signed one is
+     * generated.
+     */
+    public static SSLContext createContext(String keystore, String password)
+        throws Exception {
+
+        KeyStore ks = null;
+        char[] pw = (password != null? password.toCharArray() : new char[0]);
+        if (keystore != null) {
+            ks = KeyStore.getInstance(keystore.endsWith(".p12")? "PKCS12" : KeyStore.getDefaultType());
+            FileInputStream fis = new FileInputStream(keystore);
+            ks.load(fis, pw);
+            fis.close();
+        } else {
+            log.info("no keystore configured, generating a temporary key for TLS");
+            // the certificate generator asks for the signature by bouncycastle's name
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+            KeyPair kp = kpg.generateKeyPair();
+
+            X500Principal name = new X500Principal("CN=sicxoss");
+            X509V1CertificateGenerator gen = new X509V1CertificateGenerator();
+            gen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
+            gen.setIssuerDN(name);
+            gen.setSubjectDN(name);
+            gen.setNotBefore(new Date(System.currentTimeMillis() - 24L * 3600 * 1000));
+            gen.setNotAfter(new Date(System.currentTimeMillis() + 365L * 24 * 3600 * 1000));
+            gen.setPublicKey(kp.getPublic());
+            gen.setSignatureAlgorithm("SHA256WithRSAEncryption");
+            X509Certificate cert = gen.generate(kp.getPrivate());
+
+            ks = KeyStore.getInstance(KeyStore.getDefaultType());
+            ks.load(null, pw);
+            ks.setKeyEntry("sicxoss", kp.getPrivate(), pw, new java.security.cert.Certificate[] { cert });
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, pw);
+
+        // the identities are checked by the authentication on top,
+        // which is bound to the certificate through getChannelBinding
+        TrustManager[] tms = new TrustManager[] { new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+                public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+            }};
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tms, null);
+        return ctx;
+    }
+
+    /* replaces a buffer with a bigger one, keeping the contents */
+    private ByteBuffer resize(ByteBuffer bb, int size) {
+
+        if (bb.capacity() >= size)
+            return bb;
+        ByteBuffer ret = BufferPool.getInstance().acquire(size);
+        ret.put(bb);
+        ret.flip();
+        BufferPool.getInstance().release(bb);
+        return ret;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /* moves as much decrypted data as fits into the destination */
+    private int drainApp(ByteBuffer dst) {
+
+        int l = Math.min(appIn.remaining(), dst.remaining());
+        if (l < 1)
+            return 0;
+        int ol = appIn.limit();
+        appIn.limit(appIn.position() + l);
+        dst.put(appIn);
+        appIn.limit(ol);
+        return l;
+    }
+
+    /* produces the handshake messages the engine wants to send */
+    private void wrapHandshake()
+        throws IOException {
+
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        while (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            netOut.compact();
+            SSLEngineResult res;
+            try {
+                res = engine.wrap(empty, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (res.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                runTasks();
+            if (res.getStatus() != SSLEngineResult.Status.OK)
+                break;
+        }
+        send();
+    }
+
+    /* writes out what we have encrypted */
+    private boolean send()
+        throws IOException {
+
+        while (netOut.hasRemaining()) {
+            if (sc.write(netOut) < 1)
+                break;
+        }
+        return !netOut.hasRemaining();
+    }
+
+    /**
+     * Writes the pending encrypted data, and any handshake messages
+     * the engine wants to send, to the socket.
+     * @return true if everything has been written
+     */
+    public synchronized boolean flush()
+        throws IOException {
+
+        if (released)
+            return true;
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+            wrapHandshake();
+        return send();
+    }
+
+    /**
+     * Reads and decrypts data from the socket.
+     * @return the number of bytes put into dst, -1 on EOF
+     */
+    public synchronized int read(ByteBuffer dst)
+        throws IOException {
+
+        if (released)
+            return -1;
+        int total = drainApp(dst);
+        if (!dst.hasRemaining())
+            return total;
+
+        if (!eof && sc.read(netIn) < 0)
+            eof = true;
+
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && dst.hasRemaining()) {
+                appIn.compact();
+                SSLEngineResult res;
+                try {
+                    res = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+
+                SSLEngineResult.HandshakeStatus hs = res.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    hs = engine.getHandshakeStatus();
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                    wrapHandshake();
+
+                total += drainApp(dst);
+                SSLEngineResult.Status st = res.getStatus();
+                if (st == SSLEngineResult.Status.CLOSED) {
+                    eof = true;
+                    break;
+                } else if (st == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // the session may have grown its record size
+                    if (appIn.hasRemaining())
+                        break;
+                    appIn = resize(appIn, engine.getSession().getApplicationBufferSize());
+                } else if (st == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    // need more, unless the record is too big for us
+                    int ps = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < ps) {
+                        netIn.compact();
+                        netIn = resize(netIn, ps);
+                        netIn.flip();
+                    }
+                    break;
+                } else if (res.bytesConsumed() == 0 && res.bytesProduced() == 0 &&
+                           engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                    break;
+            }
+        } finally {
+            netIn.compact();
+        }
+
+        if (total == 0 && eof && !appIn.hasRemaining())
+            return -1;
+        return total;
+    }
+
+    /**
+     * Encrypts and writes data from the buffer.
+     * @return how many bytes of src were consumed
+     */
+    public synchronized int write(ByteBuffer src)
+        throws IOException {
+
+        if (released)
+            throw new IOException("TLS connection closed");
+        if (!flush() || !canWrite())
+            return 0;
+
+        netOut.compact();
+        SSLEngineResult res;
+        try {
+            res = engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (res.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+            runTasks();
+        if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+            throw new IOException("TLS connection closed");
+
+        flush();
+        return res.bytesConsumed();
+    }
+
+    /**
+     * Whether application data can be written now, or if we are
+     * waiting for the other end in the handshake.
+     */
+    public boolean canWrite() {
+        SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+        return hs != SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+    }
+
+    /**
+     * Whether we have something of our own to write, regardless of
+     * the application data.
+     */
+    public synchronized boolean wantsWrite() {
+        if (released)
+            return false;
+        return netOut.hasRemaining() ||
+            engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    /**
+     * A value identifying this TLS channel, the same on both ends: a
+     * hash of the server's certificate, as in the tls-server-end-point
+     * binding. Someone in the middle would have to present a
+     * certificate of its own, and the two legs would get different
+     * values. Null if the handshake has not been done.
+     */
+    public String getChannelBinding() {
+
+        try {
+            SSLSession s = engine.getSession();
+            java.security.cert.Certificate[] certs = (engine.getUseClientMode()?
+                                                      s.getPeerCertificates() : s.getLocalCertificates());
+            if (certs == null || certs.length == 0)
+                return null;
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return DataUtil.toHex(md.digest(certs[0].getEncoded()));
+        } catch (SSLPeerUnverifiedException ex) {
+            return null;
+        } catch (Exception ex) {
+            log.warn("could not get the channel binding: " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Sends the close notification (if possible without blocking) and
+     * returns the buffers to the pool.
+     */
+    public synchronized void close() {
+
+        if (released)
+            return;
+        try {
+            engine.closeOutbound();
+            if (sc.isConnected())
+                wrapHandshake();
+        } catch (Exception ex) {
+            log.debug("error while closing the TLS session: " + ex);
+        }
+
+        released = true;
+        BufferPool pool = BufferPool.getInstance();
+        pool.release(netIn);
+        pool.release(netOut);
+        pool.release(appIn);
+        netIn = netOut = appIn = null;
+    }
+}
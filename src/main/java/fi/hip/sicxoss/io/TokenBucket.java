@@ -0,0 +1,129 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+/**
+ * A token bucket for limiting the rate at which something (bytes
+ * written to sockets) happens. The same bucket may be shared by any
+ * number of sockets; a global limit is just a bucket given to all of
+ * them.
+ *
+ * A rate below 1 means unlimited.
+ * @author koskela
+ */
+public class TokenBucket {
+
+    // the smallest burst we allow, so we don't end up doing tiny writes
+    public static final long MIN_BURST = 4 * 1024;
+
+    private String name;
+    private volatile long rate; // bytes per second
+    private long burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(String name, long rate) {
+        this.name = name;
+        this.rate = 0;
+        this.lastRefill = System.currentTimeMillis();
+        setRate(rate);
+    }
+
+    /**
+     * Changes the rate. Can be called at any time, the tokens
+     * collected so far are kept (up to the new burst size).
+     */
+    public synchronized void setRate(long rate) {
+
+        if (rate == this.rate)
+            return;
+
+        refill();
+        this.rate = rate;
+        this.burst = rate / 4; // allow a quarter second worth of bursts
+        if (burst < MIN_BURST)
+            burst = MIN_BURST;
+        if (tokens > burst || this.rate < 1)
+            tokens = burst;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public boolean isLimited() {
+        return rate > 0;
+    }
+
+    private void refill() {
+
+        long now = System.currentTimeMillis();
+        if (rate > 0 && now > lastRefill) {
+            tokens += ((now - lastRefill) * rate) / 1000.0;
+            if (tokens > burst)
+                tokens = burst;
+        }
+        lastRefill = now;
+    }
+
+    /**
+     * Returns the number of bytes that may be sent right now.
+     */
+    public synchronized long available() {
+
+        if (rate < 1)
+            return Long.MAX_VALUE;
+        refill();
+        return (long)tokens;
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket.
+     */
+    public synchronized void consume(long bytes) {
+
+        if (rate < 1)
+            return;
+        refill();
+        tokens -= bytes;
+    }
+
+    /**
+     * Returns in how many milliseconds the given number of bytes will
+     * be available. Requests larger than the burst size are treated
+     * as the burst size.
+     */
+    public synchronized long delayFor(long bytes) {
+
+        if (rate < 1)
+            return 0;
+        if (bytes > burst)
+            bytes = burst;
+        refill();
+        if (tokens >= bytes)
+            return 0;
+        return (long)Math.ceil(((bytes - tokens) * 1000.0) / rate);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket " + name + ", " + (rate > 0? rate + " B/s" : "unlimited");
+    }
+}
@@ -38,8 +38,11 @@ public class NetworkMessage {
             FORWARD, // forward to one or multiple other recipients
             CONTACT_UPDATE, // a callback that a contact's status has been updated
             CONTACT_DISCONNECT, // 
+            CONTACT_ACK, // the contact versions the client has taken (id/version)
+            CONTACT_REFRESH, // the contacts whose whole profile the client wants
             
             NETWORK_MIRROR, // for sending back info on how the peer looks from where i'm at.
+            RETRY_AFTER, // the lookup is going away, when (ms) to come back
 
             SYNC, // sync request ("please send data that I'm missing")
             SYNC_NOTIFY, // sync notification ("this is my current head")
@@ -53,10 +56,29 @@ public class NetworkMessage {
             STREAM_START, // turn the socket into a streaming one
 
             INVITE, // invite to some share
-            INVITE_RESPONSE // response to an invite
+            INVITE_RESPONSE, // response to an invite
+
+            PUNCH, // let's both connect to these addresses (nat traversal)
+
+            CLUSTER_HELLO, // a lookup server node connecting to another
+            CLUSTER_AUTH, // proof of knowing the cluster secret
+            PRESENCE // who is connected to a lookup server node
             }
 
 
+    /* the client capability for contact references in
+     * CONTACT_UPDATE and batched CONTACT_DISCONNECTs, sent after the
+     * REGISTER data */
+    public static final String FEATURE_CONTACT_REFS = "contact-refs";
+
+    /* how a CONTACT_UPDATE refers to a profile the client already
+     * has: the prefix, the user id, '/' and the version (modified
+     * date). the lookup sends these only for the versions the
+     * client has acknowledged with a CONTACT_ACK, and a client that
+     * can't resolve one asks for the profile with a
+     * CONTACT_REFRESH */
+    public static final String CONTACT_REF_PREFIX = "ref:";
+
     private byte[] data;
 
     public NetworkMessage(byte[] data) {
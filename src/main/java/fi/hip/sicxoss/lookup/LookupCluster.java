@@ -0,0 +1,575 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.lookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.io.*;
+import fi.hip.sicxoss.ident.*;
+import fi.hip.sicxoss.io.message.*;
+import fi.hip.sicxoss.util.ConsistentHash;
+
+/**
+ * LookupCluster
+ *
+ * Ties a number of lookup servers together. Each node keeps the
+ * connections of its own users, and tells the other nodes whom it has
+ * (the presence), so the watchers on any node hear of everyone. The
+ * FORWARDs and streams for users connected elsewhere are passed on
+ * to the node holding them.
+ *
+ * The nodes are named by the address the gateways use for them
+ * (host:port), and the links between them go to that same port; the
+ * node with the smaller name opens the link. The users are mapped to
+ * the nodes with a consistent hash. The gateways connect to the owner
+ * of their id (and the nodes following it on the ring), so when we
+ * have not heard where a user is, the owner is the best guess.
+ *
+ * Each node sends the changes in its presence to the others as they
+ * happen, the full presence when a link comes up, and again every now
+ * and then to a random node to fix anything that has been missed.
+ * @author koskela
+ */
+public class LookupCluster {
+
+    private static final Logger log = Logger.getLogger(LookupCluster.class);
+
+    public static final long DEFAULT_GOSSIP_INTERVAL = 10000;
+    private static final long RECONNECT_INTERVAL = 2000;
+
+    // the size at which a presence message is cut (the limit is 64k)
+    private static final int MAX_PRESENCE_MSG = 48 * 1024;
+
+    // the presence message kinds: changes, or the full presence
+    // in one or more parts
+    private static final int PRESENCE_DELTA = 0;
+    private static final int PRESENCE_FULL = 1;
+    private static final int PRESENCE_FULL_END = 2;
+
+    private static final String MAC_ALG = "HmacSHA256";
+
+    private LookupServer ls;
+    private NetworkEngine ne;
+    private String self;
+    private List<String> nodes;
+    private ConsistentHash<String> ring;
+    private byte[] secret;
+    private long gossipInterval = DEFAULT_GOSSIP_INTERVAL;
+    private long nextGossip = 0;
+    private Random random = new Random();
+
+    // the links, and the ones that have been authenticated by node
+    private ConcurrentHashMap<MessageSocketHandler, LinkState> linkStates;
+    private ConcurrentHashMap<String, MessageSocketHandler> links;
+    private ConcurrentHashMap<String, Long> lastAttempts;
+
+    // who is where: user id -> node -> registration
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, User>> presence;
+    // the users in the full presence being received from a node
+    private Hashtable<String, Set<String>> syncing;
+
+    /* the handshake state of a link */
+    private static class LinkState {
+        String node;
+        boolean outgoing;
+        String localNonce;
+        String remoteNonce;
+        boolean verified = false;
+
+        LinkState(String node, boolean outgoing) {
+            this.node = node;
+            this.outgoing = outgoing;
+        }
+    }
+
+    /**
+     * The link we open to another node. The ones opened to us are
+     * LookupSocketHandlers, which pass the messages here once they
+     * see a CLUSTER_HELLO.
+     */
+    public class ClusterLinkHandler
+        extends MessageSocketHandler {
+
+        public ClusterLinkHandler(String node)
+            throws Exception {
+            super(node);
+        }
+
+        public void gotConnected() {
+            sendHello(this);
+        }
+
+        public void gotConnecting() {}
+
+        public void gotClose() {
+            linkClosed(this);
+        }
+
+        public void gotMessage(NetworkMessage msg) {
+            LookupCluster.this.gotMessage(this, msg);
+        }
+    }
+
+    /**
+     * @param nodes the names (host:port) of all the nodes, including this one
+     * @param self the name of this node
+     * @param secret the secret the nodes prove knowing to each other
+     */
+    public LookupCluster(LookupServer ls, NetworkEngine ne, List<String> nodes, String self, String secret) {
+
+        this.ls = ls;
+        this.ne = ne;
+        this.nodes = new ArrayList<String>(nodes);
+        this.self = self;
+        this.ring = new ConsistentHash<String>(nodes);
+        this.secret = secret.getBytes();
+
+        linkStates = new ConcurrentHashMap<MessageSocketHandler, LinkState>();
+        links = new ConcurrentHashMap<String, MessageSocketHandler>();
+        lastAttempts = new ConcurrentHashMap<String, Long>();
+        presence = new ConcurrentHashMap<String, ConcurrentHashMap<String, User>>();
+        syncing = new Hashtable<String, Set<String>>();
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Sets how often (ms) the full presence is sent to a random node.
+     */
+    public void setGossipInterval(long millis) {
+        this.gossipInterval = millis;
+    }
+
+    /**
+     * The node a user belongs to according to the hash.
+     */
+    public String getOwner(String uid) {
+        return ring.get(uid);
+    }
+
+    /**
+     * The nodes we currently have a working link to.
+     */
+    public Set<String> getConnectedNodes() {
+        return new HashSet<String>(links.keySet());
+    }
+
+    /**
+     * Whether the message is the first one of a link from another
+     * node, instead of a user's hello.
+     */
+    public static boolean isHello(NetworkMessage msg) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(msg.getData()));
+            return NetworkMessage.MessageType.CLUSTER_HELLO.toString().equals(in.readUTF());
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    public boolean isLink(MessageSocketHandler h) {
+        return linkStates.containsKey(h);
+    }
+
+    /**
+     * Called periodically by the lookup server. Opens the missing
+     * links and sends the full presence to some node.
+     */
+    public void tick() {
+
+        long now = System.currentTimeMillis();
+        for (String node : nodes) {
+            // the smaller one connects
+            if (node.compareTo(self) <= 0 || links.containsKey(node))
+                continue;
+            Long last = lastAttempts.get(node);
+            if (last != null && last + RECONNECT_INTERVAL > now)
+                continue;
+            lastAttempts.put(node, now);
+            connect(node);
+        }
+
+        if (now >= nextGossip) {
+            nextGossip = now + gossipInterval;
+            List<MessageSocketHandler> l = new ArrayList<MessageSocketHandler>(links.values());
+            if (l.size() > 0)
+                sendFullPresence(l.get(random.nextInt(l.size())));
+        }
+    }
+
+    private void connect(String node) {
+
+        log.info("opening a cluster link to " + node);
+        try {
+            ClusterLinkHandler h = new ClusterLinkHandler(node);
+            linkStates.put(h, new LinkState(node, true));
+            ne.addHandler(h);
+        } catch (Exception ex) {
+            log.warn("error connecting to cluster node " + node + ": " + ex);
+        }
+    }
+
+    /*
+     * the proof of a node knowing the secret, bound to both nonces of
+     * the link, the side of it the node is on and the TLS channel, so
+     * that it is no good on any other link, nor when sent back.
+     */
+    private String createProof(LinkState st, boolean initiator, String node, String channel)
+        throws Exception {
+
+        Mac mac = Mac.getInstance(MAC_ALG);
+        mac.init(new SecretKeySpec(secret, MAC_ALG));
+        String in = (st.outgoing? st.localNonce : st.remoteNonce);
+        String acc = (st.outgoing? st.remoteNonce : st.localNonce);
+        for (String s : new String[] { (initiator? "initiator" : "acceptor"), node, in, acc, 
+                                       (channel != null? channel : "") }) {
+            byte[] b = s.getBytes("UTF-8");
+            mac.update((byte)(b.length >> 8));
+            mac.update((byte)b.length);
+            mac.update(b);
+        }
+        return DataUtil.toHex(mac.doFinal());
+    }
+
+    private void sendHello(MessageSocketHandler h) {
+
+        LinkState st = linkStates.get(h);
+        if (st == null)
+            return;
+        try {
+            st.localNonce = UUID.randomUUID().toString();
+            DataOutputStream dos = h.sendDataStream();
+            dos.writeUTF(NetworkMessage.MessageType.CLUSTER_HELLO.toString());
+            dos.writeUTF(self);
+            dos.writeUTF(st.localNonce);
+            dos.close();
+        } catch (Exception ex) {
+            log.warn("error sending the cluster hello: " + ex);
+            h.close();
+        }
+    }
+
+    private void sendAuth(MessageSocketHandler h, LinkState st)
+        throws Exception {
+
+        DataOutputStream dos = h.sendDataStream();
+        dos.writeUTF(NetworkMessage.MessageType.CLUSTER_AUTH.toString());
+        dos.writeUTF(createProof(st, st.outgoing, self, h.getChannelBinding()));
+        dos.close();
+    }
+
+    /**
+     * Handles a message from another node.
+     */
+    public void gotMessage(MessageSocketHandler h, NetworkMessage msg) {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(msg.getData()));
+        try {
+            NetworkMessage.MessageType type = NetworkMessage.MessageType.valueOf(in.readUTF());
+            LinkState st = linkStates.get(h);
+            if (st == null) {
+                // a link opened to us
+                st = new LinkState(null, false);
+                linkStates.put(h, st);
+            }
+
+            if (!st.verified && type != NetworkMessage.MessageType.CLUSTER_HELLO &&
+                type != NetworkMessage.MessageType.CLUSTER_AUTH) {
+                log.warn("got " + type + " on a cluster link before the handshake");
+                h.close();
+                return;
+            }
+
+            switch (type) {
+            case CLUSTER_HELLO: {
+                String node = in.readUTF();
+                String nonce = in.readUTF();
+                if (!nodes.contains(node) || node.equals(self) ||
+                    (st.node != null && !st.node.equals(node))) {
+                    log.warn("got a cluster hello from an unknown node: " + node);
+                    h.close();
+                    return;
+                }
+                st.node = node;
+                st.remoteNonce = nonce;
+                if (!st.outgoing)
+                    sendHello(h);
+                sendAuth(h, st);
+                break;
+            }
+
+            case CLUSTER_AUTH: {
+                String proof = in.readUTF();
+                if (st.remoteNonce == null || st.localNonce == null ||
+                    !MessageDigest.isEqual(proof.getBytes(), 
+                                           createProof(st, !st.outgoing, st.node, h.getChannelBinding()).getBytes())) {
+                    log.warn("cluster node " + st.node + " failed to authenticate");
+                    h.close();
+                    return;
+                }
+                st.verified = true;
+                linkUp(h, st.node);
+                break;
+            }
+
+            case PRESENCE:
+                gotPresence(st.node, in);
+                break;
+
+            case FORWARD: {
+                // only delivered to our own users, never passed on
+                String to = in.readUTF();
+                String from = in.readUTF();
+                if (!ls.deliverForward(to, from, msg))
+                    log.warn("could not deliver a forward from " + st.node + " to " + to);
+                break;
+            }
+
+            case STREAM_START: {
+                String to = in.readUTF();
+                String from = in.readUTF();
+                String sid = in.readUTF();
+                String did = in.readUTF();
+                long start = in.readLong();
+                long finish = in.readLong();
+
+                MessageSocketHandler sink = ls.getDeliveryConnection(to, from);
+                if (sink == null || !h.forwardTo(sink, (int)(finish-start), msg)) {
+                    log.warn("could not deliver a stream from " + st.node + " to " + to + ", skipping");
+                    h.drainStream((int)(finish-start));
+                }
+                break;
+            }
+
+            default:
+                log.warn("got invalid cluster message type: " + type);
+            }
+        } catch (Exception ex) {
+            log.warn("error processing a cluster message: " + ex);
+        }
+    }
+
+    private void linkUp(MessageSocketHandler h, String node) {
+
+        log.info("cluster link to " + node + " is up");
+        MessageSocketHandler old = links.put(node, h);
+        if (old != null && old != h)
+            old.close();
+        lastAttempts.remove(node);
+        sendFullPresence(h);
+    }
+
+    /**
+     * Called when a link has been closed. Everyone on that node is
+     * considered gone, until we hear from it again.
+     */
+    public void linkClosed(MessageSocketHandler h) {
+
+        LinkState st = linkStates.remove(h);
+        if (st == null || st.node == null || !links.remove(st.node, h))
+            return;
+
+        log.info("cluster link to " + st.node + " went down");
+        List<String> changed = new ArrayList<String>();
+        synchronized (this) {
+            syncing.remove(st.node);
+            for (String uid : presence.keySet())
+                if (setPresence(uid, st.node, null))
+                    changed.add(uid);
+        }
+        for (String uid : changed)
+            ls.clusterPresenceChanged(uid);
+    }
+
+    /* updates what we know of a user on a node. returns whether it changed */
+    private boolean setPresence(String uid, String node, User u) {
+
+        ConcurrentHashMap<String, User> m = presence.get(uid);
+        if (u == null) {
+            if (m == null || m.remove(node) == null)
+                return false;
+            if (m.isEmpty())
+                presence.remove(uid);
+            return true;
+        }
+
+        if (m == null) {
+            m = new ConcurrentHashMap<String, User>();
+            presence.put(uid, m);
+        }
+        User old = m.put(node, u);
+        return old == null || !old.getData().equals(u.getData());
+    }
+
+    private void gotPresence(String node, DataInputStream in)
+        throws Exception {
+
+        int kind = in.readInt();
+        List<String> changed = new ArrayList<String>();
+        synchronized (this) {
+            Set<String> seen = null;
+            if (kind != PRESENCE_DELTA) {
+                seen = syncing.get(node);
+                if (seen == null) {
+                    seen = new HashSet<String>();
+                    syncing.put(node, seen);
+                }
+            }
+
+            while (in.available() > 0) {
+                String uid = in.readUTF();
+                String data = in.readUTF();
+                User u = (data.length() > 0? User.fromData(data) : null);
+                if (seen != null)
+                    seen.add(uid);
+                if (setPresence(uid, node, u))
+                    changed.add(uid);
+            }
+
+            // the ones not in the full presence have left
+            if (kind == PRESENCE_FULL_END) {
+                syncing.remove(node);
+                for (String uid : presence.keySet())
+                    if (!seen.contains(uid) && setPresence(uid, node, null))
+                        changed.add(uid);
+            }
+        }
+        for (String uid : changed)
+            ls.clusterPresenceChanged(uid);
+    }
+
+    private NetworkMessage createPresence(int kind, Map<String, User> users)
+        throws Exception {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF(NetworkMessage.MessageType.PRESENCE.toString());
+        dos.writeInt(kind);
+        for (Map.Entry<String, User> e : users.entrySet()) {
+            dos.writeUTF(e.getKey());
+            dos.writeUTF(e.getValue() != null? e.getValue().getData() : "");
+        }
+        dos.close();
+        return new NetworkMessage(bos.toByteArray());
+    }
+
+    /* sends everyone we have here, in as many parts as needed */
+    private void sendFullPresence(MessageSocketHandler h) {
+
+        try {
+            Map<String, User> part = new HashMap<String, User>();
+            int size = 0;
+            for (User u : ls.getLocalRegistrations()) {
+                String data = u.getData();
+                if (size > 0 && size + data.length() > MAX_PRESENCE_MSG) {
+                    h.sendMessage(createPresence(PRESENCE_FULL, part), false);
+                    part.clear();
+                    size = 0;
+                }
+                part.put(u.getId(), u);
+                size += data.length() + u.getId().length() + 4;
+            }
+            h.sendMessage(createPresence(PRESENCE_FULL_END, part), false);
+        } catch (Exception ex) {
+            log.warn("error sending the presence to a cluster node: " + ex);
+        }
+    }
+
+    /**
+     * Tells the other nodes that a user has registered here, or has
+     * left (u is null).
+     */
+    public void localPresenceChanged(String uid, User u) {
+
+        if (links.isEmpty())
+            return;
+        try {
+            Map<String, User> m = new HashMap<String, User>();
+            m.put(uid, u);
+            NetworkMessage msg = createPresence(PRESENCE_DELTA, m);
+            for (MessageSocketHandler h : links.values())
+                h.sendMessage(msg, false);
+        } catch (Exception ex) {
+            log.warn("error sending a presence change to the cluster: " + ex);
+        }
+    }
+
+    /**
+     * The registration of a user on some other node, null if not
+     * connected anywhere else.
+     */
+    public User getUser(String uid) {
+
+        Map<String, User> m = presence.get(uid);
+        if (m != null)
+            for (User u : m.values())
+                return u;
+        return null;
+    }
+
+    /**
+     * The link to the node holding the user, or if we haven't heard
+     * of him, to the node he belongs to. Null if neither is
+     * available.
+     */
+    public MessageSocketHandler getLink(String uid) {
+
+        Map<String, User> m = presence.get(uid);
+        if (m != null)
+            for (String node : m.keySet()) {
+                MessageSocketHandler h = links.get(node);
+                if (h != null && h.isConnected())
+                    return h;
+            }
+
+        String owner = ring.get(uid);
+        if (owner != null && !owner.equals(self)) {
+            MessageSocketHandler h = links.get(owner);
+            if (h != null && h.isConnected())
+                return h;
+        }
+        return null;
+    }
+
+    /**
+     * Passes a message for a user not connected here to the node
+     * holding him.
+     * @return false if we have nowhere to send it
+     */
+    public boolean forward(String uid, NetworkMessage msg) {
+
+        MessageSocketHandler h = getLink(uid);
+        if (h == null)
+            return false;
+        h.sendMessage(msg, false);
+        return true;
+    }
+}
@@ -25,6 +25,8 @@ import java.nio.channels.*;
 import java.nio.channels.spi.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import javax.net.ssl.SSLContext;
 
 import org.apache.log4j.Logger;
 
@@ -49,6 +51,36 @@ public class LookupServer
     /* where the sockets for each of the clients go */
     private Hashtable<String, UserConnectionHandler> userHandlers;
 
+    /* who is watching whom: user id -> the handlers of the users
+     * that have him as a contact */
+    private ConcurrentHashMap<String, Set<UserConnectionHandler>> watchers;
+
+    /* the presence changes are collected for this long (ms) before
+     * sending them, so a login storm results in one message per
+     * watcher instead of one per login */
+    public static final long DEFAULT_NOTIFY_WINDOW = 250;
+    private long notifyWindow = DEFAULT_NOTIFY_WINDOW;
+
+    // the watchers with presence changes waiting, in the order they are due
+    private LinkedList<UserConnectionHandler> pendingNotifies;
+
+    // the other lookup servers, if we are part of a cluster
+    private LookupCluster cluster;
+
+    // how many connections we take in a second (0 for any number),
+    // the ones over it are told to come back later
+    private int acceptRate = 0;
+    private long acceptWindow = 0;
+    private int acceptCount = 0;
+    private Random random = new Random();
+
+    // whether we forward only between those who have each other as
+    // contacts
+    private boolean requireMutual = true;
+
+    /* the shortest time (ms) we ask anyone to wait */
+    private static final int MIN_RETRY_AFTER = 1000;
+
     /**
      * UserConnectionHandler
      *
@@ -63,16 +95,31 @@ public class LookupServer
         public User user;
 
         // the users he is interested in hearing about
-        private List<String> contacts;
+        private Set<String> contacts;
 
         // the connections to him (might be more than one)
         private List<LookupSocketHandler> connections;
 
         private LookupServer ls;
 
+        // the presence changes waiting to be sent. null for disconnects
+        private LinkedHashMap<String, User> pending;
+        private long notifyDue;
+        // the profile versions he has acknowledged having
+        private Hashtable<String, String> sentVersions;
+        private boolean contactRefs;
+        // the senders that may reach him and have been introduced on
+        // all his connections, so a forward needs no more checking
+        private Set<String> cleared;
+
         public UserConnectionHandler(User user, LookupServer ls) {
             this.user = user;
-            contacts = new ArrayList();
+            pending = new LinkedHashMap<String, User>();
+            notifyDue = -1;
+            sentVersions = new Hashtable<String, String>();
+            contactRefs = false;
+            contacts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            cleared = new HashSet<String>();
             connections = new ArrayList();
             this.ls = ls;
             // we can do 'last seen' etc..
@@ -80,11 +127,48 @@ public class LookupServer
         }
 
         public boolean hasContact(User user) {
-            return contacts.contains(user.getId());
+            return hasContact(user.getId());
+        }
+
+        public boolean hasContact(String uid) {
+            return contacts.contains(uid);
         }
 
         public void addConnection(LookupSocketHandler sh) {
             connections.add(sh);
+            // the new one has not been introduced to anyone
+            synchronized (cleared) {
+                cleared.clear();
+            }
+        }
+
+        /**
+         * Checks that the sender may reach him, and introduces the
+         * sender on the connections that have not heard of him. Once
+         * done, the pair is cached until either one drops the other
+         * from his contacts or he gets a new connection.
+         * @return false if he does not want to hear from the sender
+         */
+        protected boolean admitSender(User sender)
+            throws Exception {
+
+            synchronized (cleared) {
+                if (cleared.contains(sender.getId()))
+                    return true;
+                if (!ls.accepts(this, sender.getId()))
+                    return false;
+                int i = sendIntroduction(sender);
+                log.info("sent " + i + " introductions for " + sender + " to " + user);
+                cleared.add(sender.getId());
+                return true;
+            }
+        }
+
+        /* the sender has to be checked again */
+        protected void forgetSender(String uid) {
+            synchronized (cleared) {
+                cleared.remove(uid);
+            }
         }
         
         public void connectionClosed(LookupSocketHandler sh) {
@@ -107,6 +191,24 @@ public class LookupServer
             return this.user;
         }
 
+        /* stops watching everyone. not synchronized, this is called
+         * with the server locked */
+        protected void clearContacts() {
+            for (String cid : contacts)
+                contactRemoved(cid);
+            contacts.clear();
+        }
+
+        /* he no longer watches, nor may send to the contact */
+        private void contactRemoved(String cid) {
+            ls.removeWatcher(cid, this);
+            sentVersions.remove(cid);
+            forgetSender(cid);
+            UserConnectionHandler other = ls.getUserHandler(cid);
+            if (other != null)
+                other.forgetSender(user.getId());
+        }
+
         protected MultiplexingDataOutputStream getStream() 
             throws IOException {
             
@@ -120,6 +222,35 @@ public class LookupServer
                 return null;
         }
 
+        /* passes a message on to all the connections as-is. the
+         * message data is shared by them, not copied. */
+        protected int relayMessage(NetworkMessage msg) {
+
+            int ret = 0;
+            for (LookupSocketHandler lsh : connections)
+                if (lsh.isConnected()) {
+                    lsh.sendMessage(msg, false);
+                    ret++;
+                }
+            return ret;
+        }
+
+        /* asks him to come back in a while, and lets him go */
+        protected void retryAfter(long millis) {
+            for (LookupSocketHandler lsh : new ArrayList<LookupSocketHandler>(connections))
+                if (lsh.isConnected()) {
+                    try {
+                        DataOutputStream dos = lsh.sendDataStream();
+                        dos.writeUTF(NetworkMessage.MessageType.RETRY_AFTER.toString());
+                        dos.writeLong(millis);
+                        dos.close();
+                    } catch (Exception ex) {
+                        log.warn("error sending retry-after to " + user + ": " + ex);
+                    }
+                    lsh.close();
+                }
+        }
+
         protected AuthenticatedSocketHandler getSocketHandler() {
             for (LookupSocketHandler lsh : connections)
                 if (lsh.isConnected())
@@ -157,7 +288,13 @@ public class LookupServer
                 dos = getStream();
                 dos.writeUTF(NetworkMessage.MessageType.CONTACT_UPDATE.toString());
             }
-            dos.writeUTF(u.getData());
+
+            // just a reference if he already has this version
+            String version = u.getProperty("modified");
+            if (contactRefs && version != null && version.equals(sentVersions.get(u.getId())))
+                dos.writeUTF(NetworkMessage.CONTACT_REF_PREFIX + u.getId() + "/" + version);
+            else
+                dos.writeUTF(u.getData());
             return dos;
         }
 
@@ -170,6 +307,85 @@ public class LookupServer
             dos.close();
         }
 
+        /**
+         * Queues a presence change to be sent with the next batch.
+         * @param u the updated user, or null if the user disconnected
+         */
+        protected void queuePresence(String uid, User u) {
+
+            boolean first = false;
+            synchronized (pending) {
+                // the latest change is what counts
+                pending.remove(uid);
+                pending.put(uid, u);
+                if (notifyDue < 0) {
+                    notifyDue = System.currentTimeMillis() + notifyWindow;
+                    first = true;
+                }
+            }
+            if (first)
+                ls.notifyPending(this);
+        }
+
+        /**
+         * Sends the queued presence changes, updates as one
+         * CONTACT_UPDATE and disconnects as one CONTACT_DISCONNECT
+         * (one per user for the older clients).
+         */
+        protected void flushPresence() {
+
+            List<User> updates = new ArrayList<User>();
+            List<String> disconnects = new ArrayList<String>();
+            synchronized (pending) {
+                for (Map.Entry<String, User> e : pending.entrySet()) {
+                    if (e.getValue() != null)
+                        updates.add(e.getValue());
+                    else
+                        disconnects.add(e.getKey());
+                }
+                pending.clear();
+                notifyDue = -1;
+            }
+
+            try {
+                if (updates.size() > 0) {
+                    DataOutputStream dos = null;
+                    for (User u : updates)
+                        dos = sendContactUpdate(u, dos);
+                    dos.close();
+                }
+
+                if (disconnects.size() > 0 && contactRefs) {
+                    DataOutputStream dos = getStream();
+                    dos.writeUTF(NetworkMessage.MessageType.CONTACT_DISCONNECT.toString());
+                    for (String uid : disconnects)
+                        dos.writeUTF(uid);
+                    dos.close();
+                } else {
+                    for (String uid : disconnects) {
+                        DataOutputStream dos = getStream();
+                        dos.writeUTF(NetworkMessage.MessageType.CONTACT_DISCONNECT.toString());
+                        dos.writeUTF(uid);
+                        dos.close();
+                    }
+                }
+            } catch (Exception ex) {
+                log.warn("error sending presence updates to " + user + ": " + ex);
+            }
+        }
+
+        /* whether he may send to the user, the sender's half of
+         * the check. the receiver's is done where he is connected */
+        private boolean mayContact(String uid) {
+            return !requireMutual || contacts.contains(uid);
+        }
+
+        protected long getNotifyDue() {
+            synchronized (pending) {
+                return notifyDue;
+            }
+        }
+
         /**
          * Processes the packets received from the remove user
          */
@@ -186,17 +402,24 @@ public class LookupServer
                 String data = in.readUTF();
                 User nu = User.fromData(data);
                 if (nu.equals(user)) {
+                    // newer clients tell what they understand
+                    while (in.available() > 0)
+                        if (NetworkMessage.FEATURE_CONTACT_REFS.equals(in.readUTF()))
+                            contactRefs = true;
+
                     // update the user
                     this.user = nu;
                     ls.userRegistered(user);
 
-                    // we send a network mirror-message
-                    dos = getStream();
+                    // we send a network mirror-message, to the
+                    // connection it came on. that one first, it is
+                    // the one the client punches holes from
+                    dos = conn.sendDataStream();
                     dos.writeUTF(NetworkMessage.MessageType.NETWORK_MIRROR.toString());
-                    for (LookupSocketHandler lsh : connections) {
-                        InetSocketAddress addr = lsh.getRemoteAddress();
-                        dos.writeUTF(addr.getAddress().getHostAddress() + ":" + addr.getPort());
-                    }
+                    dos.writeUTF(conn.getRemoteAddressAsString());
+                    for (LookupSocketHandler lsh : connections)
+                        if (lsh != conn)
+                            dos.writeUTF(lsh.getRemoteAddressAsString());
                 }
                 break;
             }
@@ -206,9 +429,8 @@ public class LookupServer
                 while (in.available() > 0) {
                     String cid = in.readUTF();
                     log.debug("read contact " + cid);
-                    if (!contacts.contains(cid)) {
-                        contacts.add(cid);
-                    }
+                    if (contacts.add(cid))
+                        ls.addWatcher(cid, this);
                     
                     // get that contact's info. we should have some
                     // sort of access control here. only send the info
@@ -224,12 +446,36 @@ public class LookupServer
                 break;
             }
 
+            case CONTACT_ACK: {
+                // the versions he has, that can be referred to from now on
+                while (in.available() > 0) {
+                    String ref = in.readUTF();
+                    int p = ref.indexOf('/');
+                    if (p > 0 && contacts.contains(ref.substring(0, p)))
+                        sentVersions.put(ref.substring(0, p), ref.substring(p+1));
+                }
+                break;
+            }
+
+            case CONTACT_REFRESH: {
+                // he didn't have what we referred to, send it all
+                while (in.available() > 0) {
+                    String cid = in.readUTF();
+                    sentVersions.remove(cid);
+                    User u = (contacts.contains(cid)? ls.getUserRegistration(cid) : null);
+                    if (u != null)
+                        dos = sendContactUpdate(u, dos);
+                }
+                break;
+            }
+
             case REMOVE_CONTACTS: {
                 
                 while (in.available() > 0) {
                     String cid = in.readUTF();
                     log.debug("read contact " + cid);
-                    contacts.remove(cid);
+                    if (contacts.remove(cid))
+                        contactRemoved(cid);
                 }
                 break;
             }
@@ -241,14 +487,18 @@ public class LookupServer
                 String from = in.readUTF();
                 UserConnectionHandler uch = getUserHandler(to);
                 
-                if (uch != null) {
+                if (!from.equals(user.getId())) {
+                    log.warn("got a FORWARD from " + user + " on behalf of " + from + ", dropping");
+                } else if (!mayContact(to)) {
+                    log.info("dropping a FORWARD from " + user + " to " + to + ", not a contact");
+                } else if (uch != null) {
                     // if the user receiving the packet has not been
-                    // introduced to this user, do so now.
-
-                    if (!from.equals(user.getId()))
-                        log.warn("got a FORWARD from someone else than the connected user!");
-                    int i = uch.sendIntroduction(user);
-                    log.info("sent " + i + " introductions for " + user + " to " + to);
+                    // introduced to this user, do so now. the
+                    // receiver must have this one as a contact too.
+                    if (!uch.admitSender(user)) {
+                        log.info("dropping a FORWARD from " + user + " to " + to + ", not wanted there");
+                        break;
+                    }
 
                     // note: we pass the message along untouched. this instead of
                     // changing it to a 'FORWARDED'- type of message, as we can do
@@ -256,13 +506,10 @@ public class LookupServer
                     
                     // ..although we will need some sort of loop prevention if we go
                     // into multihopping.
-                    
-                    // some sort of access control here, please. we shouldn't forward everything
-                    // to everyone without permission to do so.
-                    dos = uch.getStream();
-
-                    // a bit hackish. just write the packet as-is
-                    dos.write(((MessageSocketHandler.MessageDataInputStream)in).getData());
+                    uch.relayMessage(((MessageSocketHandler.MessageDataInputStream)in).getMessage());
+                } else if (cluster != null && 
+                           cluster.forward(to, ((MessageSocketHandler.MessageDataInputStream)in).getMessage())) {
+                    log.debug("passed a forward to " + to + " to another lookup node");
                 } else
                     log.warn("got forward to an unknown user!");
                 break;
@@ -278,11 +525,16 @@ public class LookupServer
                 long finish = in.readLong();
                 
                 UserConnectionHandler uch = getUserHandler(to);
-                if (uch != null) {
-                    if (!from.equals(user.getId()))
-                        log.warn("got a FORWARD from someone else than the connected user!");
-                    int i = uch.sendIntroduction(user);
-                    log.info("sent " + i + " introductions for " + user + " to " + to);
+                MessageSocketHandler link = (uch == null && cluster != null? cluster.getLink(to) : null);
+                if (!from.equals(user.getId()) || !mayContact(to)) {
+                    log.warn("got a stream from " + user + " (as " + from + ") to " + to + " that is not allowed, skipping");
+                    conn.drainStream((int)(finish-start));
+                } else if (uch != null) {
+                    if (!uch.admitSender(user)) {
+                        log.info("skipping a stream from " + user + " to " + to + ", not wanted there");
+                        conn.drainStream((int)(finish-start));
+                        break;
+                    }
 
                     AuthenticatedSocketHandler sink = uch.getSocketHandler();
                     if (sink != null && conn.forwardTo(sink, (int)(finish-start),
@@ -292,6 +544,13 @@ public class LookupServer
                         log.warn("could not forward stream, skipping");
                         conn.drainStream((int)(finish-start));
                     }
+                } else if (link != null) {
+                    // the node holding him gets the header and the data as-is
+                    if (!conn.forwardTo(link, (int)(finish-start),
+                                        ((MessageSocketHandler.MessageDataInputStream)in).getMessage())) {
+                        log.warn("could not forward stream to another lookup node, skipping");
+                        conn.drainStream((int)(finish-start));
+                    }
                 } else {
                     log.warn("could not forward stream, unknown user. skipping");
                     conn.drainStream((int)(finish-start));
@@ -336,37 +595,221 @@ public class LookupServer
      */
     protected synchronized void userRegistered(User user) {
         
-        // go through all the handlers, forward the message to everyone that is interested.
+        // forward the message to everyone that is interested.
         log.debug("user regged, sending update");
-        for (UserConnectionHandler uch : userHandlers.values()) {
-            try {
-                if (uch.hasContact(user)) {
-                    log.debug("found one interested");
-                    uch.sendContactUpdate(user, null).close();
-                }
-            } catch (Exception ex) {
-                log.warn("error sending contact update: " + ex);
-            }
-        }
+        for (UserConnectionHandler uch : getWatchers(user.getId()))
+            uch.queuePresence(user.getId(), user);
+        if (cluster != null)
+            cluster.localPresenceChanged(user.getId(), user);
     }
 
     protected synchronized void userDisconnected(User user) {
         
-        for (UserConnectionHandler uch : userHandlers.values()) {
+        UserConnectionHandler old = userHandlers.remove(user.getId());
+        if (old != null)
+            old.clearContacts();
+        if (cluster != null)
+            cluster.localPresenceChanged(user.getId(), null);
+
+        // he may still be connected to some other node of the cluster
+        User other = (cluster != null? cluster.getUser(user.getId()) : null);
+        for (UserConnectionHandler uch : getWatchers(user.getId()))
+            uch.queuePresence(user.getId(), other);
+    }
+
+    /**
+     * Called by the cluster when a user's presence on the other
+     * nodes has changed.
+     */
+    protected void clusterPresenceChanged(String uid) {
+
+        // the watchers know of him already if he is here
+        if (userHandlers.get(uid) != null)
+            return;
+        User u = cluster.getUser(uid);
+        for (UserConnectionHandler uch : getWatchers(uid))
+            uch.queuePresence(uid, u);
+    }
+
+    /**
+     * Delivers a FORWARD passed on by another node of the cluster.
+     * @return false if the user is not connected here
+     */
+    protected boolean deliverForward(String to, String from, NetworkMessage msg) 
+        throws Exception {
+
+        MessageSocketHandler conn = getDeliveryConnection(to, from);
+        if (conn == null)
+            return false;
+        getUserHandler(to).relayMessage(msg);
+        return true;
+    }
+
+    /**
+     * The connection to a local user for something passed on by
+     * another node, after introducing the sender to him.
+     */
+    protected MessageSocketHandler getDeliveryConnection(String to, String from) 
+        throws Exception {
+
+        UserConnectionHandler uch = getUserHandler(to);
+        if (uch == null)
+            return null;
+        User sender = getUserRegistration(from);
+        if (sender != null ? !uch.admitSender(sender) : !accepts(uch, from)) {
+            log.info("not delivering from " + from + " to " + to + ", not wanted there");
+            return null;
+        }
+        return uch.getSocketHandler();
+    }
+
+    /**
+     * The registrations of the users connected to this server.
+     */
+    protected List<User> getLocalRegistrations() {
+        List<User> ret = new ArrayList<User>();
+        for (UserConnectionHandler uch : userHandlers.values())
+            ret.add(uch.getRegistrationInfo());
+        return ret;
+    }
+
+    /**
+     * Sets how long (ms) the presence changes are collected before
+     * sending. 0 sends them right away.
+     */
+    public void setNotifyWindow(long millis) {
+        this.notifyWindow = millis;
+    }
+
+    /**
+     * Whether forwards are passed on only between users that have
+     * each other as contacts (the default), or to anyone.
+     */
+    public void setRequireMutual(boolean mutual) {
+        this.requireMutual = mutual;
+    }
+
+    /**
+     * Whether the user wants to hear from the sender: has him as a
+     * contact, and the sender has the user, if the sender is here.
+     * One on another node of the cluster is checked there.
+     */
+    protected boolean accepts(UserConnectionHandler uch, String from) {
+
+        if (!requireMutual)
+            return true;
+        if (!uch.hasContact(from))
+            return false;
+        UserConnectionHandler sender = userHandlers.get(from);
+        return (sender == null || sender.hasContact(uch.getRegistrationInfo()));
+    }
+
+    /**
+     * Sets how many connections (per second) we accept. Those over
+     * it are turned away with a hint of when to come back, spread
+     * over the following seconds so they don't all return at once.
+     * 0 accepts all.
+     */
+    public void setAcceptRate(int perSecond) {
+        this.acceptRate = perSecond;
+    }
+
+    /* whether to take a new connection now. returns 0 if so, or
+     * how long (ms) it should wait */
+    protected synchronized long admit() {
+
+        if (acceptRate < 1)
+            return 0;
+        long now = System.currentTimeMillis();
+        if (now - acceptWindow >= 1000) {
+            acceptWindow = now;
+            acceptCount = 0;
+        }
+        acceptCount++;
+        if (acceptCount <= acceptRate)
+            return 0;
+
+        // the excess gets the following seconds, in the order it came
+        long over = acceptCount - acceptRate;
+        return (acceptWindow + 1000 - now) + (over / acceptRate) * 1000 + random.nextInt(1000);
+    }
+
+    /**
+     * Lets everyone go, asking them to come back at random times
+     * over the given period (ms), not all at once when we (or
+     * another node) are back. For restarts.
+     */
+    public void drain(long spread) {
+
+        spread = Math.max(spread, MIN_RETRY_AFTER);
+        List<UserConnectionHandler> all = new ArrayList<UserConnectionHandler>(userHandlers.values());
+        log.info("draining " + all.size() + " users over " + spread + "ms");
+        for (UserConnectionHandler uch : all)
+            uch.retryAfter(MIN_RETRY_AFTER + (long)(random.nextDouble() * (spread - MIN_RETRY_AFTER)));
+
+        // give the messages a moment to get out
+        long deadline = System.currentTimeMillis() + 2000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean left = false;
+            for (UserConnectionHandler uch : all)
+                left |= uch.hasConnection();
+            if (!left)
+                break;
             try {
-                if (uch.hasContact(user))
-                    uch.sendContactDisconnect(user);
-            } catch (Exception ex) {
-                log.warn("error sending deregistration update: " + ex);
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                break;
             }
         }
-        userHandlers.remove(user.getId());
+    }
+
+    /* called when a watcher gets its first pending change */
+    protected void notifyPending(UserConnectionHandler uch) {
+
+        if (notifyWindow < 1) {
+            uch.flushPresence();
+            return;
+        }
+        synchronized (pendingNotifies) {
+            pendingNotifies.add(uch);
+            pendingNotifies.notify();
+        }
+    }
+
+    /* the handlers of those who have the user as a contact */
+    protected Collection<UserConnectionHandler> getWatchers(String uid) {
+        Set<UserConnectionHandler> ret = watchers.get(uid);
+        if (ret == null)
+            return Collections.<UserConnectionHandler>emptySet();
+        return ret;
+    }
+
+    /* the add & remove are synchronized so an emptied set is not
+     * dropped while someone is adding to it */
+    protected synchronized void addWatcher(String uid, UserConnectionHandler uch) {
+        Set<UserConnectionHandler> set = watchers.get(uid);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<UserConnectionHandler, Boolean>());
+            watchers.put(uid, set);
+        }
+        set.add(uch);
+    }
+
+    protected synchronized void removeWatcher(String uid, UserConnectionHandler uch) {
+        Set<UserConnectionHandler> set = watchers.get(uid);
+        if (set != null) {
+            set.remove(uch);
+            if (set.isEmpty())
+                watchers.remove(uid);
+        }
     }
 
     protected User getUserRegistration(String uid) {
         UserConnectionHandler uch = userHandlers.get(uid);
         if (uch != null)
             return uch.getRegistrationInfo();
+        if (cluster != null)
+            return cluster.getUser(uid);
         return null;
     }
 
@@ -377,6 +820,8 @@ public class LookupServer
     public LookupServer(NetworkEngine ne) {
         this.ne = ne;
         userHandlers = new Hashtable();
+        watchers = new ConcurrentHashMap<String, Set<UserConnectionHandler>>();
+        pendingNotifies = new LinkedList<UserConnectionHandler>();
     }
 
     public void init(int port) 
@@ -400,12 +845,68 @@ public class LookupServer
         */
     }
 
+    /**
+     * Opens an additional listener for TLS connections.
+     */
+    public void initTLS(int port, SSLContext ctx) 
+        throws Exception {
+
+        log.info("initing the lookup server TLS listener on port " + port);
+	InetSocketAddress isa = new InetSocketAddress(port);
+        LookupServerSocketHandler sh = new LookupServerSocketHandler(isa, this);
+        sh.tlsContext = ctx;
+        ne.addHandler(sh);
+    }
+
+    /**
+     * Joins a cluster of lookup servers.
+     * @param nodes the names (host:port, as the gateways know them) of
+     * all the servers, this one included
+     * @param self the name of this server
+     * @param secret the shared secret of the cluster. Required, as the
+     * links go to the same port as the users' connections
+     */
+    public void initCluster(List<String> nodes, String self, String secret) 
+        throws Exception {
+
+        if (secret == null || secret.length() == 0)
+            throw new Exception("the lookup cluster needs a shared secret, set lookup.cluster.secret");
+        log.info("joining the lookup cluster as " + self + ", nodes: " + nodes);
+        cluster = new LookupCluster(this, ne, nodes, self, secret);
+    }
+
+    public LookupCluster getCluster() {
+        return cluster;
+    }
+
     public void run() {
         
         log.info("doing the lookup server..");
-        try {
-            ne.join();
-        } catch (Exception ex) {
+
+        // send the presence updates as they come due. the window is
+        // the same for everyone, so the list is in order.
+        while (true) {
+            UserConnectionHandler uch = null;
+            try {
+                synchronized (pendingNotifies) {
+                    if (pendingNotifies.size() == 0)
+                        pendingNotifies.wait(1000);
+                    else {
+                        long wait = pendingNotifies.getFirst().getNotifyDue() - System.currentTimeMillis();
+                        if (wait > 0)
+                            pendingNotifies.wait(wait);
+                        else
+                            uch = pendingNotifies.removeFirst();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            if (uch != null)
+                uch.flushPresence();
+            if (cluster != null)
+                cluster.tick();
         }
     }
 
@@ -413,6 +914,8 @@ public class LookupServer
         extends ServerSocketHandler {
 
         private LookupServer ls;
+        // set if the accepted connections use TLS
+        private SSLContext tlsContext;
 
         public LookupServerSocketHandler(SocketAddress sa, LookupServer ls) 
             throws Exception {
@@ -424,7 +927,13 @@ public class LookupServer
             log.info("we accept!");
             try {
                 LookupSocketHandler sh = new LookupSocketHandler(sc, ls);
+                if (tlsContext != null)
+                    sh.enableTLS(tlsContext, false);
                 eng.addHandler(sh);
+
+                long wait = ls.admit();
+                if (wait > 0)
+                    sh.refuse(wait);
             } catch (Exception ex) {
                 log.warn("error accepting socket: " + ex);
             }
@@ -442,13 +951,13 @@ public class LookupServer
 
         private LookupServer ls;
         private UserConnectionHandler uch;
-        private List<String> introductions;
+        private Set<String> introductions;
 
         public LookupSocketHandler(SocketChannel sc, LookupServer ls) 
             throws Exception {
             super(sc, null, null);
             this.ls = ls;
-            this.introductions = new ArrayList();
+            this.introductions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         }
 
         public boolean isIntroduced(User user) {
@@ -475,6 +984,25 @@ public class LookupServer
             uch.processDataStream(in, this);
         }
 
+        /* the other nodes of the cluster connect to the same port,
+         * the first message tells them apart from the users */
+        public void gotMessage(NetworkMessage msg) {
+            LookupCluster cluster = ls.getCluster();
+            if (cluster != null && (cluster.isLink(this) || 
+                                    (!isAuthenticated && LookupCluster.isHello(msg))))
+                cluster.gotMessage(this, msg);
+            else
+                super.gotMessage(msg);
+        }
+
+        public void gotClose() {
+            LookupCluster cluster = ls.getCluster();
+            if (cluster != null && cluster.isLink(this))
+                cluster.linkClosed(this);
+            else
+                super.gotClose();
+        }
+
         public void authenticationComplete(boolean success) {
             log.info("authentication was completed: " + success);
             if (success) {
@@ -0,0 +1,161 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+
+import fi.hip.sicxoss.io.ByteBufferInputStream;
+
+/**
+ * BlobCache
+ *
+ * Keeps the contents of small, recently read blobs in memory, so the
+ * thumbnails, lock files and such that the WebDAV clients keep
+ * asking for are not read from the disk each time. Weighed in bytes,
+ * the least recently used going first.
+ *
+ * The contents are kept in direct buffers, outside the heap, so a
+ * full cache does not add to the work of the garbage collector.
+ * @author koskela
+ */
+public class BlobCache {
+
+    private long capacity;
+    private int maxBlob;
+    private long size;
+    private LinkedHashMap<DataID, ByteBuffer> entries;
+
+    private long hits;
+    private long misses;
+    private long bytesSaved;
+
+    /**
+     * @param capacity the bytes we may keep
+     * @param maxBlob the largest blob we keep
+     */
+    public BlobCache(long capacity, int maxBlob) {
+        this.capacity = capacity;
+        this.maxBlob = maxBlob;
+        this.size = 0;
+        this.entries = new LinkedHashMap<DataID, ByteBuffer>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cache of " + entries.size() + " blobs, " + size + "/" + capacity + " bytes, " +
+            hits + " hits, " + misses + " misses (" + (int)(getHitRatio() * 100) + "%), " +
+            bytesSaved + " bytes saved";
+    }
+
+    /** whether a blob of the length would be kept */
+    public boolean fits(long length) {
+        return length <= maxBlob && length <= capacity;
+    }
+
+    /* a stream of the range of the blob */
+    private static InputStream getStream(ByteBuffer bb, long start, long finish) {
+        bb = bb.duplicate();
+        bb.limit((int)Math.min(finish, bb.capacity()));
+        bb.position((int)Math.min(start, bb.limit()));
+        return new ByteBufferInputStream(bb);
+    }
+
+    /**
+     * Returns a stream of the cached blob from start up to finish,
+     * or null if we don't have it. Counts as a miss then.
+     */
+    public synchronized InputStream get(DataID id, long start, long finish) {
+
+        ByteBuffer bb = entries.get(id);
+        if (bb == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        bytesSaved += Math.max(0, Math.min(finish, bb.capacity()) - start);
+        return getStream(bb, start, finish);
+    }
+
+    /**
+     * Reads the blob into the cache, and returns a stream of the
+     * range of it.
+     */
+    public InputStream put(DataID id, InputStream in, int length, long start, long finish)
+        throws IOException {
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(length);
+        byte[] buf = new byte[Math.min(length, 8192)];
+        try {
+            int r;
+            while (bb.hasRemaining() && (r = in.read(buf, 0, Math.min(buf.length, bb.remaining()))) > -1)
+                bb.put(buf, 0, r);
+        } finally {
+            in.close();
+        }
+        if (bb.hasRemaining())
+            throw new IOException("the blob of " + id + " ended at " + bb.position() + " bytes");
+        bb.flip();
+
+        synchronized (this) {
+            ByteBuffer old = entries.put(id, bb);
+            if (old != null)
+                size -= old.capacity();
+            size += length;
+
+            Iterator<ByteBuffer> it = entries.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                size -= it.next().capacity();
+                it.remove();
+            }
+        }
+        return getStream(bb, start, finish);
+    }
+
+    /** drops the blob, if we have it */
+    public synchronized void invalidate(DataID id) {
+        ByteBuffer bb = entries.remove(id);
+        if (bb != null)
+            size -= bb.capacity();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return (total > 0? (double)hits / total : 0);
+    }
+}
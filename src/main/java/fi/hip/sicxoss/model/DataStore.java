@@ -96,6 +96,13 @@ public interface DataStore {
      */
     public File importFile(DataID id, File file);
 
+    /**
+     * Drops data that was found to be bad, so that it is not served
+     * any further. The use counter is kept, the data can be imported
+     * again.
+     */
+    public void discard(DataID id);
+
     /**
      * returns the data tracker for the given data
      */
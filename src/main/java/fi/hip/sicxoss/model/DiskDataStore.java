@@ -21,11 +21,15 @@ package fi.hip.sicxoss.model;
 
 import java.util.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.security.*;
 
 import org.apache.log4j.Logger;
 
 import fi.hip.sicxoss.io.DataUtil;
+import fi.hip.sicxoss.io.LimitedInputStream;
+import fi.hip.sicxoss.io.ParallelDigest;
 import fi.hip.sicxoss.LocalGateway;
 
 /**
@@ -53,11 +57,56 @@ public class DiskDataStore
 
     public static final String CHECKSUM_ALG = "SHA-1";
 
+    // how often (ms) the tracker changes are written out, and how
+    // many may pile up before that
+    public static final int DEFAULT_FLUSH_INTERVAL = 5000;
+    public static final int DIRTY_THRESHOLD = 1000;
+    // how long (ms) released blobs are kept regardless of the quota,
+    // and how often the quotas are checked
+    public static final long DEFAULT_GRACE_PERIOD = 10 * 60 * 1000;
+    public static final int DEFAULT_SWEEP_INTERVAL = 60 * 1000;
+    // the log is compacted into the snapshot when it has more records
+    // than this, or than there are trackers
+    private static final int COMPACT_MIN = 10000;
+
+    private static final String SNAPSHOT_FILE = "trackers.db";
+    private static final String LOG_FILE = "trackers.log";
+    // the half-written blobs, on the same filesystem as the rest
+    private static final String TMP_DIR = "tmp";
+    // there once the blobs are in the sharded layout
+    private static final String SHARDED_MARKER = "sharded";
+    // how many blobs the migration moves at a go, and the pause between
+    private static final int MIGRATE_BATCH = 500;
+    private static final int MIGRATE_PAUSE = 20;
+    // the memory cache of the small blobs, bytes
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_MAX_BLOB = 64 * 1024;
+    // the blobs read through memory mappings (if enabled) are at
+    // least this large, and this many are kept mapped when not read
+    public static final long DEFAULT_MMAP_MIN = 1024 * 1024;
+    public static final int DEFAULT_MMAP_IDLE = 64;
+    // the buffers the data is stored through, and how many of them
+    // there are, read or written while the others are hashed
+    private static final int STORE_BUFFER_SIZE = 1024 * 1024;
+    private static final int STORE_BUFFERS = 4;
+    // what is hashed of the start of each blob, to find an earlier
+    // copy of what is being stored
+    public static final int PREFIX_LENGTH = 64 * 1024;
+    private static final byte LOG_PUT = 1;
+    private static final byte LOG_REMOVE = 2;
+    private static final byte LOG_PUT_PREFIXED = 3;
+
     private Logger log;
     
     // an index is unneccesary as the filenames are formed from the
-    // hash directly.
+    // hash directly. the blobs are in two levels of directories by
+    // the first bytes of the hash, ab/cd/abcd...blob, as a flat
+    // directory of hundreds of thousands gets slow. older stores
+    // have them flat until migrated.
     private File root;
+    private File tmpDir;
+    private volatile boolean sharded;
+    private Thread migrator;
     private String name;
 
     // for the metadata of each item
@@ -68,6 +117,42 @@ public class DiskDataStore
     private long quotaMax; // the hard-limit MAX we are allowed to store
     private long quotaOptimal; // the optimum we strive for
 
+    // what the blobs on disk take, kept up to date as they come and
+    // go. only the reconciliation looks at the files
+    private long storeSize;
+
+    // the blobs on disk in the order they are dropped, for those no
+    // one uses and those that are. those released (or stored) lately
+    // are kept apart until their grace period is over, as they are
+    // likely to be wanted back (a revision restored, a batch update
+    // re-counting them)
+    private TreeSet<DiskDataTracker> unusedBlobs;
+    private TreeSet<DiskDataTracker> releasedBlobs;
+    private TreeSet<DiskDataTracker> usedBlobs;
+    private long gracePeriod;
+    private int sweepInterval;
+    private boolean sweepScheduled;
+
+    // the trackers changed (null if removed) since the last flush.
+    // they are appended to the log by the flusher, and the log
+    // folded into the snapshot now and then
+    private LinkedHashMap<DataID, DiskDataTracker> dirty;
+    private Object flushLock;
+    private Timer timer;
+    private boolean flushScheduled;
+    private int flushInterval;
+    private int logRecords;
+
+    // the blobs by their length and the hash of their start
+    private Hashtable<String, DiskDataTracker> prefixes;
+
+    // the small blobs read recently, null if disabled
+    private BlobCache cache;
+
+    // the mappings of the large ones, null if disabled
+    private MappedBlobs mapper;
+    private long mmapMin;
+
     /**
      * Tracks the status of the blobs, so we know which ones we can
      * drop.
@@ -105,109 +190,305 @@ public class DiskDataStore
         // the number of entries using it right now
         protected int useCounter;
 
+        // the hash of the start of the blob, if known
+        protected String prefix;
+
         // the id of this thing
         protected DataID id;
 
         // file, cached
         protected transient File file;
 
+        // the size of the blob on disk, 0 if we don't have it
+        protected transient long size;
+
+        // whether in the grace period, and since when (ms)
+        protected transient boolean young;
+        protected transient long released;
+
+        // how many stores are comparing their data to this just now.
+        // not evicted meanwhile
+        protected transient int comparing;
+
         public DiskDataTracker(DataID id) {
             this.id = id;
             this.added = new Date();
         }
 
+        /* where the blob is in the sharded layout */
         public synchronized File getFile(File root) {
             if (file == null)
-                file = new File(root.getAbsolutePath() + File.separator + id.getFileName());
+                file = getShardedFile(root, id.getChecksum());
             return file;
         }
     }
 
-    private synchronized void checkQuota(DiskDataTracker immune) {
-
-        long storeSize = 0;
-        ArrayList<DiskDataTracker> unused = new ArrayList();
-        ArrayList<DiskDataTracker> used = new ArrayList();
-        for (DiskDataTracker dt : trackers.values()) {
-            if (dt != immune)
-                if (dt.useCounter < 1)
-                    unused.add(dt);
-                else
-                    used.add(dt);
-            
-            if (dt.getFile(root).exists())
-                storeSize += dt.getFile(root).length();
-        }
-
-        // how we prioritize data blocks:
-        Comparator cmp = new Comparator<DiskDataTracker>() {
-            public int compare(DiskDataTracker o1,
-                               DiskDataTracker o2) {
-                
-                // prioritizing logic: those that *have* been accessed, or LRU
-                if (o1.accessed == null && o2.accessed != null)
-                    return -1;
-                if (o1.accessed != null && o2.accessed == null)
-                    return 1;
-                if (o1.accessed != null && o2.accessed != null)
-                    return o1.accessed.compareTo(o2.accessed);
+    // how we prioritize data blocks: those that *have* been accessed
+    // are kept, the rest go in LRU order. the id settles the ties
+    private static final Comparator<DiskDataTracker> EVICTION_ORDER = new Comparator<DiskDataTracker>() {
+        public int compare(DiskDataTracker o1,
+                           DiskDataTracker o2) {
                 
-                // acquired? for simplicity, just use stored..
-                if (o1.stored != null && o2.stored != null)
-                    return o1.stored.compareTo(o2.stored);
-                if (o1.stored == null)
-                    return -1;
-                return 1;
-            }
-            
-            public boolean equals(DiskDataTracker obj) {
-                return false;
-            }
-        };
-
-        if (storeSize > quotaOptimal && quotaOptimal > -1) {
-            // sort the unused ones, start deleting.
-            Collections.sort(unused, cmp);
-            while (unused.size() > 0 && storeSize > quotaOptimal) {
-                DiskDataTracker dt = unused.get(0);
-                if (dt.getFile(root).exists()) {
-                    log.debug("quota trimming: deleting " + dt.id + ", " + dt.getFile(root).length() + " bytes");
-                    storeSize -= dt.getFile(root).length();
-                    dt.getFile(root).delete();
-                }
-                unused.remove(0);
-                trackers.remove(dt);
-            }
+            int ret = 0;
+            if (o1.accessed == null && o2.accessed != null)
+                ret = -1;
+            else if (o1.accessed != null && o2.accessed == null)
+                ret = 1;
+            else if (o1.accessed != null && o2.accessed != null)
+                ret = o1.accessed.compareTo(o2.accessed);
+            // acquired? for simplicity, just use stored..
+            else if (o1.stored != null && o2.stored != null)
+                ret = o1.stored.compareTo(o2.stored);
+            else if (o1.stored == null && o2.stored != null)
+                ret = -1;
+            else if (o1.stored != null && o2.stored == null)
+                ret = 1;
+            return (ret != 0? ret : o1.id.compareTo(o2.id));
+        }
+    };
+
+    // the order the released blobs come of age in
+    private static final Comparator<DiskDataTracker> RELEASE_ORDER = new Comparator<DiskDataTracker>() {
+        public int compare(DiskDataTracker o1,
+                           DiskDataTracker o2) {
+            if (o1.released != o2.released)
+                return (o1.released < o2.released? -1 : 1);
+            return o1.id.compareTo(o2.id);
         }
+    };
+
+    private TreeSet<DiskDataTracker> getGeneration(DiskDataTracker dt) {
+        if (dt.useCounter > 0)
+            return usedBlobs;
+        return (dt.young? releasedBlobs : unusedBlobs);
+    }
+
+    /* takes the blob out of the eviction order before changing what
+     * it is ordered by. put back with link() */
+    private void unlink(DiskDataTracker dt) {
+        if (dt.size > 0)
+            getGeneration(dt).remove(dt);
+    }
+
+    private void link(DiskDataTracker dt) {
+        if (dt.size > 0)
+            getGeneration(dt).add(dt);
+    }
+
+    /* starts the grace period of an unlinked blob */
+    private static void setReleased(DiskDataTracker dt, long now) {
+        dt.young = true;
+        dt.released = now;
+    }
+
+    /* the blob of the tracker is now on disk, the given size. if
+     * pinned, it is acquired along with it */
+    private synchronized void blobStored(DiskDataTracker dt, long size, boolean pin) {
+        unlink(dt);
+        storeSize += size - dt.size;
+        dt.size = size;
+        if (dt.stored == null)
+            dt.stored = new Date();
+        if (pin) {
+            dt.useCounter++;
+            dt.acquired = new Date();
+        }
+        // not swept before someone gets to acquire it
+        if (dt.useCounter < 1)
+            setReleased(dt, System.currentTimeMillis());
+        link(dt);
+        if (dt.prefix != null)
+            prefixes.put(getPrefixKey(dt.id.getLength(), dt.prefix), dt);
+        markDirty(dt.id, dt);
+        if (storeSize > quotaMax && quotaMax > -1)
+            scheduleSweep();
+    }
+
+    private static String getPrefixKey(long length, String prefix) {
+        return length + ":" + prefix;
+    }
+
+    /* the blob we have of the length and start, if any. it is kept
+     * for the compare, until done() */
+    private synchronized DiskDataTracker findByPrefix(long length, String prefix) {
+        DiskDataTracker dt = prefixes.get(getPrefixKey(length, prefix));
+        if (dt == null || dt.size != length)
+            return null;
+        dt.comparing++;
+        return dt;
+    }
+
+    private synchronized void compared(DiskDataTracker dt) {
+        dt.comparing--;
+    }
+
+    private synchronized void dropPrefix(DiskDataTracker dt) {
+        if (dt.prefix != null) {
+            String key = getPrefixKey(dt.id.getLength(), dt.prefix);
+            if (prefixes.get(key) == dt)
+                prefixes.remove(key);
+        }
+    }
+
+    /**
+     * Enforces the quotas. The released blobs whose grace period is
+     * over are moved with the unused ones, which are then dropped
+     * (least recently used first) until we are within the optimal
+     * quota. Over the hard limit, the released and even the used
+     * blobs go too.
+     *
+     * Done in the background every now and then, never while a
+     * batch update is re-counting the uses.
+     */
+    public synchronized void sweep() {
+
+        sweepScheduled = false;
+        if (batchUpdateInProgress)
+            return;
+
+        long now = System.currentTimeMillis();
+        Iterator<DiskDataTracker> it = releasedBlobs.iterator();
+        while (it.hasNext()) {
+            DiskDataTracker dt = it.next();
+            if (dt.released + gracePeriod > now)
+                break;
+            it.remove();
+            dt.young = false;
+            unusedBlobs.add(dt);
+        }
+
+        // the unused ones go first, along with their trackers
+        long before = storeSize;
+        if (storeSize > quotaOptimal && quotaOptimal > -1)
+            evict(unusedBlobs, quotaOptimal, true);
         
         if (storeSize > quotaMax && quotaMax > -1) {
-            // sort the used ones, start deleting.
-            Collections.sort(used, cmp);
-            while (used.size() > 0 && storeSize > quotaMax) {
-                DiskDataTracker dt = used.get(0);
-                if (dt.getFile(root).exists()) {
-                    log.debug("quota overrun: deleting " + dt.id + ", " + dt.getFile(root).length() + " bytes");
-                    storeSize -= dt.getFile(root).length();
-                    dt.getFile(root).delete();
-                }
-                used.remove(0);
+            evict(unusedBlobs, quotaMax, true);
+            evict(releasedBlobs, quotaMax, true);
+            evict(usedBlobs, quotaMax, false);
+        }
+
+        if (storeSize != before)
+            log.info("sweep freed " + (before - storeSize) + " bytes. total entries: " + trackers.size() + " occupying " + storeSize + " bytes");
+    }
+
+    /* sweeps as soon as possible */
+    private synchronized void scheduleSweep() {
+        if (!sweepScheduled && timer != null) {
+            sweepScheduled = true;
+            timer.schedule(new TimerTask() {
+                    public void run() {
+                        sweep();
+                    }
+                }, 0);
+        }
+    }
+
+    /* deletes blobs in order until we are within the limit */
+    private void evict(TreeSet<DiskDataTracker> blobs, long limit, boolean forget) {
+
+        Iterator<DiskDataTracker> it = blobs.iterator();
+        while (storeSize > limit && it.hasNext()) {
+            DiskDataTracker dt = it.next();
+            if (dt.comparing > 0)
+                continue;
+            it.remove();
+            log.debug((forget? "quota trimming" : "quota overrun") + ": deleting " + dt.id + ", " + dt.size + " bytes");
+            getBlob(dt.id).delete();
+            if (cache != null)
+                cache.invalidate(dt.id);
+            if (mapper != null)
+                mapper.invalidate(dt.id);
+            dropPrefix(dt);
+            storeSize -= dt.size;
+            dt.size = 0;
+            if (forget) {
+                trackers.remove(dt.id);
+                markDirty(dt.id, null);
             }
         }
+    }
 
-        log.info("quota check complete. total entries: " + trackers.size() + " occupying " + storeSize + " bytes");
-        saveTrackers();
+    /**
+     * Sets the quotas (bytes, -1 for none) for the running store.
+     * Those in the store's properties are read when it is loaded.
+     */
+    public synchronized void setQuota(long max, long optimal) {
+        this.quotaMax = max;
+        this.quotaOptimal = optimal;
+        scheduleSweep();
+    }
+
+    /**
+     * Sets how long (ms) released blobs are kept regardless of the
+     * quota. The grace_period property is read when loaded.
+     */
+    public synchronized void setGracePeriod(long gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /** the ids of the blobs we have on disk */
+    public synchronized List<DataID> getStoredIds() {
+        List<DataID> ret = new ArrayList<DataID>();
+        for (DiskDataTracker dt : trackers.values())
+            if (dt.size > 0)
+                ret.add(dt.id);
+        return ret;
+    }
+
+    /**
+     * Checks what of the blobs we really have on disk, and how much
+     * they take. Done when loaded; the rest of the time the sizes are
+     * kept up as the blobs come and go.
+     *
+     * As we don't know when the unused blobs were released, they all
+     * get a grace period from now.
+     */
+    public synchronized void reconcile() {
+
+        long now = System.currentTimeMillis();
+        storeSize = 0;
+        unusedBlobs.clear();
+        releasedBlobs.clear();
+        usedBlobs.clear();
+        prefixes.clear();
+        for (DiskDataTracker dt : trackers.values()) {
+            File f = getBlob(dt.id);
+            dt.size = (f.exists()? f.length() : 0);
+            storeSize += dt.size;
+            if (dt.useCounter < 1)
+                setReleased(dt, now);
+            link(dt);
+            if (dt.size > 0 && dt.prefix != null)
+                prefixes.put(getPrefixKey(dt.id.getLength(), dt.prefix), dt);
+        }
+        log.info("reconciled " + trackers.size() + " entries occupying " + storeSize + " bytes");
     }
 
     public DiskDataStore(String name) {
         log = Logger.getLogger(getClass().getName() + ":" + name);
         this.name = name;
-        this.trackers = new Hashtable();
+        this.trackers = new Hashtable<DataID, DiskDataTracker>();
         this.batchUpdateInProgress = false;
+        this.storeSize = 0;
+        this.unusedBlobs = new TreeSet<DiskDataTracker>(EVICTION_ORDER);
+        this.releasedBlobs = new TreeSet<DiskDataTracker>(RELEASE_ORDER);
+        this.usedBlobs = new TreeSet<DiskDataTracker>(EVICTION_ORDER);
+        this.gracePeriod = DEFAULT_GRACE_PERIOD;
+        this.sweepInterval = DEFAULT_SWEEP_INTERVAL;
+        this.sweepScheduled = false;
+        this.dirty = new LinkedHashMap<DataID, DiskDataTracker>();
+        this.flushLock = new Object();
+        this.flushScheduled = false;
+        this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+        this.logRecords = 0;
+        this.prefixes = new Hashtable<String, DiskDataTracker>();
     }
 
     @Override
     public String toString() {
-        return "DataStore " + name + " at " + root;
+        return "DataStore " + name + " at " + root + (cache != null? ", " + cache : "") +
+            (mapper != null? ", " + mapper : "");
     }
    
     /* init a new, empty data store */
@@ -222,26 +503,293 @@ public class DiskDataStore
         quotaOptimal = -1; // unlimited
 
         root.mkdirs();
-        saveTrackers();
+        initTmpDir();
+        getFile(SHARDED_MARKER).createNewFile();
+        sharded = true;
+        DataUtil.writeObjectAtomic(trackers, getFile(SNAPSHOT_FILE));
         p.setProperty("quota_max", "" + quotaMax);
         p.setProperty("quota_optimal", "" + quotaOptimal);
+        p.setProperty("grace_period", "" + gracePeriod);
+        p.setProperty("sweep_interval", "" + sweepInterval);
+        p.setProperty("cache_size", "" + DEFAULT_CACHE_SIZE);
+        p.setProperty("cache_max_blob", "" + DEFAULT_CACHE_MAX_BLOB);
+        p.setProperty("mmap", "false");
+        initCache(p);
+    }
+
+    /* the memory cache, by the cache_size and cache_max_blob
+     * properties. none with a zero size */
+    private void initCache(Properties p) {
+
+        long size = DEFAULT_CACHE_SIZE;
+        int maxBlob = DEFAULT_CACHE_MAX_BLOB;
+        if (p.getProperty("cache_size") != null)
+            size = Long.parseLong(p.getProperty("cache_size"));
+        if (p.getProperty("cache_max_blob") != null)
+            maxBlob = Integer.parseInt(p.getProperty("cache_max_blob"));
+        cache = (size > 0 && maxBlob > 0? new BlobCache(size, maxBlob) : null);
+
+        // the mappings, by mmap, mmap_min and mmap_idle
+        mmapMin = DEFAULT_MMAP_MIN;
+        int mmapIdle = DEFAULT_MMAP_IDLE;
+        if (p.getProperty("mmap_min") != null)
+            mmapMin = Long.parseLong(p.getProperty("mmap_min"));
+        if (p.getProperty("mmap_idle") != null)
+            mmapIdle = Integer.parseInt(p.getProperty("mmap_idle"));
+        mapper = ("true".equals(p.getProperty("mmap"))? new MappedBlobs(mmapIdle) : null);
+    }
+
+    /** the memory cache of the store, null if none */
+    public BlobCache getCache() {
+        return cache;
+    }
+
+    /** the memory mappings of the store, null if not used */
+    public MappedBlobs getMapper() {
+        return mapper;
+    }
+
+    private File getFile(String name) {
+        return new File(root.getAbsolutePath() + File.separator + name);
+    }
+
+    /* notes a change (or removal, with null) of a tracker, to be
+     * written out by the flusher */
+    private synchronized void markDirty(DataID id, DiskDataTracker dt) {
+        dirty.put(id, dt);
+        if (dirty.size() >= DIRTY_THRESHOLD && !flushScheduled && timer != null) {
+            flushScheduled = true;
+            timer.schedule(new TimerTask() {
+                    public void run() {
+                        flush(false);
+                    }
+                }, 0);
+        }
     }
 
-    private synchronized void saveTrackers() {
-        DataUtil.writeObject(trackers, root.getAbsolutePath() + File.separator + "trackers.db");
+    /**
+     * Writes the changed trackers to the end of the log, and compacts
+     * the log into the snapshot if it has grown long (or if asked to).
+     */
+    public void flush(boolean compact) {
+
+        synchronized (flushLock) {
+            LinkedHashMap<DataID, DiskDataTracker> batch;
+            byte[] snapshot = null;
+            int count = 0;
+            synchronized (this) {
+                batch = dirty;
+                dirty = new LinkedHashMap<DataID, DiskDataTracker>();
+                flushScheduled = false;
+
+                // the snapshot is of the trackers as they are at the
+                // swap, not later, so that the log (if replayed on it
+                // after a crash) only takes it forward
+                if (compact || logRecords + batch.size() > Math.max(COMPACT_MIN, trackers.size())) {
+                    try {
+                        snapshot = DataUtil.serialize(trackers);
+                        count = trackers.size();
+                    } catch (IOException ex) {
+                        log.error("error taking a snapshot of the trackers: " + ex);
+                    }
+                }
+            }
+
+            if (batch.size() > 0) {
+                try {
+                    FileOutputStream fos = new FileOutputStream(getFile(LOG_FILE), true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                    for (Map.Entry<DataID, DiskDataTracker> e : batch.entrySet())
+                        writeRecord(out, e.getKey(), e.getValue());
+                    out.flush();
+                    fos.getFD().sync();
+                    out.close();
+                    logRecords += batch.size();
+                } catch (Exception ex) {
+                    log.error("error writing the tracker log: " + ex);
+                    // try again next time
+                    synchronized (this) {
+                        batch.putAll(dirty);
+                        dirty = batch;
+                    }
+                    return;
+                }
+            }
+
+            if (snapshot != null)
+                compact(snapshot, count);
+        }
+    }
+
+    /* replaces the snapshot, and starts a new log. everything up to
+     * the snapshot is in the log already, and what came after it is
+     * newer, so if we crash before the old log is gone, replaying it
+     * changes nothing that was not changed */
+    private void compact(byte[] snapshot, int count) {
+
+        if (DataUtil.writeAtomic(snapshot, getFile(SNAPSHOT_FILE))) {
+            getFile(LOG_FILE).delete();
+            log.debug("compacted " + logRecords + " log records into " + count + " trackers");
+            logRecords = 0;
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, DataID id, DiskDataTracker dt)
+        throws IOException {
+
+        // (the tracker may change meanwhile, we write whatever it is
+        // now. removed too)
+        if (dt != null && trackers.get(id) != dt)
+            dt = null;
+        out.writeByte(dt != null? LOG_PUT_PREFIXED : LOG_REMOVE);
+        out.writeUTF(id.toString());
+        if (dt != null) {
+            out.writeLong(dt.added != null? dt.added.getTime() : -1);
+            out.writeLong(dt.accessed != null? dt.accessed.getTime() : -1);
+            out.writeLong(dt.acquired != null? dt.acquired.getTime() : -1);
+            out.writeLong(dt.stored != null? dt.stored.getTime() : -1);
+            out.writeInt(dt.useCounter);
+            out.writeUTF(dt.prefix != null? dt.prefix : "");
+        }
+    }
+
+    private static Date toDate(long time) {
+        return (time < 0? null : new Date(time));
+    }
+
+    /* applies the log on the snapshot. a record cut short by a
+     * crash ends it */
+    private void replayLog() {
+
+        File f = getFile(LOG_FILE);
+        if (!f.exists())
+            return;
+        int count = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                while (true) {
+                    byte op = in.readByte();
+                    DataID id = DataID.parse(in.readUTF());
+                    if (op == LOG_REMOVE) {
+                        trackers.remove(id);
+                    } else {
+                        DiskDataTracker dt = new DiskDataTracker(id);
+                        dt.added = toDate(in.readLong());
+                        dt.accessed = toDate(in.readLong());
+                        dt.acquired = toDate(in.readLong());
+                        dt.stored = toDate(in.readLong());
+                        dt.useCounter = in.readInt();
+                        if (op == LOG_PUT_PREFIXED) {
+                            dt.prefix = in.readUTF();
+                            if (dt.prefix.length() == 0)
+                                dt.prefix = null;
+                        }
+                        trackers.put(id, dt);
+                    }
+                    count++;
+                }
+            } catch (EOFException ex) {
+                // the end
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            log.warn("error reading the tracker log after " + count + " records: " + ex);
+        }
+        log.info("replayed " + count + " tracker log records");
+        logRecords = count;
     }
 
     private File createNewBlobFile() 
         throws Exception {
         
-        File ret = File.createTempFile("tmp", "blob", root);
+        File ret = File.createTempFile("tmp", "blob", tmpDir);
         return ret;
     }
 
+    /* (re)creates the temp directory. what is left there is from
+     * before a crash */
+    private void initTmpDir() {
+        tmpDir = getFile(TMP_DIR);
+        tmpDir.mkdirs();
+        File[] left = tmpDir.listFiles();
+        for (int i = 0; left != null && i < left.length; i++)
+            left[i].delete();
+    }
+
+    /* root/ab/cd/abcd...blob */
+    static File getShardedFile(File root, String checksum) {
+        return new File(root.getAbsolutePath() + File.separator + checksum.substring(0, 2) +
+                        File.separator + checksum.substring(2, 4) +
+                        File.separator + checksum + ".blob");
+    }
+
+    /* where the blob is. until the migration is done, it may still
+     * be in the flat layout */
     private File getBlob(DataID id) {
         
-        String fname = root.getAbsolutePath() + File.separator + id.getFileName();
-        return new File(fname);
+        File ret = getShardedFile(root, id.getChecksum());
+        if (!sharded && !ret.exists()) {
+            File flat = getFile(id.getFileName());
+            if (flat.exists())
+                return flat;
+        }
+        return ret;
+    }
+
+    /* where a new blob goes */
+    private File getBlobTarget(DataID id) {
+        File ret = getShardedFile(root, id.getChecksum());
+        ret.getParentFile().mkdirs();
+        return ret;
+    }
+
+    /**
+     * Moves the blobs of an older store from the flat layout to the
+     * sharded one, a batch at a time. The store is in use meanwhile;
+     * a blob is found in either place until it is done.
+     */
+    public void migrate() {
+
+        String[] names = root.list();
+        log.info("migrating " + (names != null? names.length : 0) + " entries to the sharded layout");
+        int moved = 0;
+        for (int i = 0; names != null && i < names.length; i++) {
+            String n = names[i];
+            File f = getFile(n);
+            if (n.startsWith("tmp") && n.endsWith("blob")) {
+                // a leftover from before the tmp directory
+                f.delete();
+                continue;
+            } else if (!n.endsWith(".blob"))
+                continue;
+            synchronized (this) {
+                File target = getShardedFile(root, n.substring(0, n.length() - 5));
+                target.getParentFile().mkdirs();
+                if (target.exists())
+                    f.delete();
+                else if (!f.renameTo(target)) {
+                    log.warn("could not move " + f + " to " + target + ", leaving it flat");
+                    return;
+                }
+            }
+            if (++moved % MIGRATE_BATCH == 0) {
+                log.info("migrated " + moved + " blobs");
+                try {
+                    Thread.sleep(MIGRATE_PAUSE);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+        try {
+            getFile(SHARDED_MARKER).createNewFile();
+            sharded = true;
+            log.info("migration done, moved " + moved + " blobs");
+        } catch (IOException ex) {
+            log.warn("could not mark the store migrated: " + ex);
+        }
     }
 
     /* from datastore */
@@ -255,21 +803,64 @@ public class DiskDataStore
         if (!root.exists())
             throw new Exception("Root directory is missing: " + path);
 
-        trackers = (Hashtable)DataUtil.readObject(root.getAbsolutePath() + File.separator + "trackers.db");
+        // the file holds what we wrote there
+        @SuppressWarnings("unchecked")
+        Hashtable<DataID, DiskDataTracker> saved = (Hashtable<DataID, DiskDataTracker>)DataUtil.readObject(getFile(SNAPSHOT_FILE).getAbsolutePath());
+        trackers = saved;
         if (trackers == null) {
             log.warn("missing trackers");
-            trackers = new Hashtable();
+            trackers = new Hashtable<DataID, DiskDataTracker>();
         }
+        replayLog();
+        initTmpDir();
+        sharded = getFile(SHARDED_MARKER).exists();
         quotaMax = Long.parseLong(p.getProperty("quota_max"));
         quotaOptimal = Long.parseLong(p.getProperty("quota_optimal"));
+        if (p.getProperty("flush_interval") != null)
+            flushInterval = Integer.parseInt(p.getProperty("flush_interval"));
+        if (p.getProperty("grace_period") != null)
+            gracePeriod = Long.parseLong(p.getProperty("grace_period"));
+        if (p.getProperty("sweep_interval") != null)
+            sweepInterval = Integer.parseInt(p.getProperty("sweep_interval"));
+        initCache(p);
+        reconcile();
     }
 
     @Override
-    public void start() {
+    public synchronized void start() {
+        if (timer != null)
+            return;
+        if (!sharded && migrator == null) {
+            migrator = new Thread("migrator for " + name) {
+                    public void run() {
+                        migrate();
+                    }
+                };
+            migrator.setDaemon(true);
+            migrator.setPriority(Thread.MIN_PRIORITY);
+            migrator.start();
+        }
+        timer = new Timer("flusher for " + name, true);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    flush(false);
+                }
+            }, flushInterval, flushInterval);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, sweepInterval, sweepInterval);
     }
 
     @Override
     public void stop() {
+        synchronized (this) {
+            if (timer != null)
+                timer.cancel();
+            timer = null;
+        }
+        flush(true);
     }
 
     @Override
@@ -284,46 +875,203 @@ public class DiskDataStore
         if (dt == null) {
             dt = new DiskDataTracker(id);
             trackers.put(id, dt);
-            saveTrackers();
+            markDirty(id, dt);
         }
 
         return dt;
     }
 
+    /* fills the buffer, as far as the stream goes. false if it
+     * ended */
+    private static boolean fill(ReadableByteChannel in, ByteBuffer bb)
+        throws IOException {
+
+        while (bb.hasRemaining())
+            if (in.read(bb) < 0)
+                return false;
+        return true;
+    }
+
+    /* the hash of what there is of the prefix in the buffer */
+    private static String getPrefix(ByteBuffer bb)
+        throws NoSuchAlgorithmException {
+
+        MessageDigest md = MessageDigest.getInstance(CHECKSUM_ALG);
+        ByteBuffer b = bb.duplicate();
+        if (b.remaining() > PREFIX_LENGTH)
+            b.limit(b.position() + PREFIX_LENGTH);
+        md.update(b);
+        return DataUtil.toHex(md.digest());
+    }
+
+    private static String getPrefix(File f)
+        throws Exception {
+
+        FileInputStream in = new FileInputStream(f);
+        try {
+            ByteBuffer bb = ByteBuffer.allocate(PREFIX_LENGTH);
+            fill(in.getChannel(), bb);
+            bb.flip();
+            return getPrefix(bb);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* whether the blob has what is in the buffer, at the position */
+    private static boolean matches(FileChannel blob, long pos, ByteBuffer bb, ByteBuffer cmp)
+        throws IOException {
+
+        cmp.clear();
+        cmp.limit(bb.remaining());
+        while (cmp.hasRemaining())
+            if (blob.read(cmp, pos + cmp.position()) < 0)
+                return false;
+        cmp.flip();
+        return cmp.equals(bb);
+    }
+
+    private static void write(FileChannel out, ByteBuffer bb)
+        throws IOException {
+
+        bb = bb.duplicate();
+        while (bb.hasRemaining())
+            out.write(bb);
+    }
+
+    /* copies the start of a blob */
+    private static void copy(FileChannel blob, long length, FileChannel out)
+        throws IOException {
+
+        long pos = 0;
+        while (pos < length)
+            pos += blob.transferTo(pos, length - pos, out);
+    }
+
+    /**
+     * Stores the data, hashing it as it is written. If the start of
+     * it (and its length) matches a blob we have, the data is
+     * compared to that instead of writing it; only if it turns out
+     * to be different is it written after all.
+     */
     @Override
     public DataID store(InputStream in, long length) {
+        return store(in, length, false);
+    }
+
+    /**
+     * Stores the data, acquiring it along with the storing if pinned,
+     * so that it is not swept in between.
+     */
+    public DataID store(InputStream in, long length, boolean pin) {
 
+        ReadableByteChannel rc = Channels.newChannel(in);
+        ParallelDigest digest = null;
+        File outfile = null;
+        FileChannel out = null;
+        FileChannel same = null;
+        DiskDataTracker candidate = null;
         try {
-            MessageDigest digest = MessageDigest.getInstance(CHECKSUM_ALG);
-            DigestInputStream dis = new DigestInputStream(in, digest);
+            digest = new ParallelDigest(CHECKSUM_ALG, STORE_BUFFER_SIZE, STORE_BUFFERS);
+            String prefix = null;
+            ByteBuffer cmp = null;
+            long total = 0;
+            boolean more;
+            do {
+                ByteBuffer bb = digest.getBuffer();
+                more = fill(rc, bb);
+                bb.flip();
 
-            File outfile = createNewBlobFile();
-            FileOutputStream fos = new FileOutputStream(outfile);
+                if (prefix == null) {
+                    prefix = getPrefix(bb);
+                    candidate = findByPrefix(length, prefix);
+                    if (candidate != null) {
+                        try {
+                            same = new FileInputStream(getBlob(candidate.id)).getChannel();
+                            cmp = ByteBuffer.allocate(STORE_BUFFER_SIZE);
+                        } catch (FileNotFoundException ex) {
+                            // discarded
+                        }
+                    }
+                }
 
-            int total = DataUtil.transfer(dis, fos);
-            fos.close();
-            dis.close();
+                if (same != null && !matches(same, total, bb, cmp)) {
+                    // not the same after all. what was up to this is
+                    outfile = createNewBlobFile();
+                    out = new FileOutputStream(outfile).getChannel();
+                    copy(same, total, out);
+                    same.close();
+                    same = null;
+                }
+                if (same == null) {
+                    if (out == null) {
+                        outfile = createNewBlobFile();
+                        out = new FileOutputStream(outfile).getChannel();
+                    }
+                    write(out, bb);
+                }
+                total += bb.remaining();
+                digest.update(bb);
+            } while (more);
 
-            byte[] hash = dis.getMessageDigest().digest();
-            String checksum = DataUtil.toHex(hash);
+            DataID ret = new DataID(DataUtil.toHex(digest.digest()), total);
+            if (same != null) {
+                if (same.size() == total && ret.equals(candidate.id)) {
+                    log.debug("already had " + ret + ", not written again");
+                    outfile = null;
+                } else {
+                    // the same data, but not the same blob. the
+                    // other one is damaged, or got replaced
+                    outfile = createNewBlobFile();
+                    out = new FileOutputStream(outfile).getChannel();
+                    copy(same, total, out);
+                }
+                same.close();
+                same = null;
+            }
 
-            DataID ret = new DataID(checksum, total);
+            if (out != null) {
+                out.close();
+                out = null;
+            }
 
-            // check for overwrites
-            File targetFile = getBlob(ret);
-            if (targetFile.exists())
-                log.warn("file already exists!");
-            outfile.renameTo(targetFile);
-            
-            DiskDataTracker dt = (DiskDataTracker)getDataTracker(ret);
-            if (dt.stored == null)
-                dt.stored = new Date();
-            
-            checkQuota(dt);
+            // in place and recorded at once, so that a sweep does
+            // not take what we found already there
+            synchronized (this) {
+                if (outfile != null) {
+                    File targetFile = getBlobTarget(ret);
+                    if (targetFile.exists() && targetFile.length() == total) {
+                        log.debug("already had " + ret);
+                        outfile.delete();
+                    } else if (!outfile.renameTo(targetFile))
+                        throw new IOException("could not move the blob to " + targetFile);
+                    outfile = null;
+                }
+
+                DiskDataTracker dt = (DiskDataTracker)getDataTracker(ret);
+                dt.prefix = prefix;
+                blobStored(dt, total, pin);
+            }
             return ret;
         } catch (Exception ex) {
             log.warn("error while storing: " + ex);
             return null;
+        } finally {
+            if (candidate != null)
+                compared(candidate);
+            if (digest != null)
+                digest.close();
+            try {
+                if (same != null)
+                    same.close();
+                if (out != null)
+                    out.close();
+                in.close();
+            } catch (IOException ex) {
+                // we're done anyway
+            }
+            if (outfile != null)
+                outfile.delete();
         }
     }
 
@@ -331,33 +1079,46 @@ public class DiskDataStore
     public synchronized void release(DataID id) {
 
         DiskDataTracker dt = (DiskDataTracker)getDataTracker(id);
+        unlink(dt);
         dt.useCounter--;
         if (dt.useCounter == 0)
+            setReleased(dt, System.currentTimeMillis());
+        link(dt);
+        markDirty(id, dt);
+        if (dt.useCounter == 0) {
             log.info("data item " + id + " is not used anymore");
+            if (cache != null)
+                cache.invalidate(id);
+        }
         log.info("released data " + id + ", counter: " + dt.useCounter);
-
-        if (!batchUpdateInProgress)
-            checkQuota(null);
     }
 
     @Override
     public synchronized void acquire(DataID id) {
 
         DiskDataTracker dt = (DiskDataTracker)getDataTracker(id);
+        unlink(dt);
         dt.useCounter++;
         dt.acquired = new Date();
+        link(dt);
+        markDirty(id, dt);
         log.info("acquired data " + id + ", counter: " + dt.useCounter);
-        
-        if (!batchUpdateInProgress)
-            checkQuota(dt);
     }
 
     @Override
     public synchronized void initBatchUpdate() {
         
+        // those no longer used once re-counted count as released now
         batchUpdateInProgress = true;
+        long now = System.currentTimeMillis();
+        usedBlobs.clear();
         for (DiskDataTracker dt : trackers.values()) {
-            dt.useCounter = 0;
+            if (dt.useCounter > 0) {
+                dt.useCounter = 0;
+                setReleased(dt, now);
+                link(dt);
+            }
+            markDirty(dt.id, dt);
         }
     }
 
@@ -365,7 +1126,7 @@ public class DiskDataStore
     public synchronized void batchUpdateComplete() {
 
         batchUpdateInProgress = false;
-        checkQuota(null);
+        scheduleSweep();
     }
 
     @Override
@@ -373,14 +1134,54 @@ public class DiskDataStore
         throws Exception {
 
         DiskDataTracker dt = (DiskDataTracker)getDataTracker(id);
-        dt.accessed = new Date();
-        saveTrackers();
+        synchronized (this) {
+            unlink(dt);
+            dt.accessed = new Date();
+            link(dt);
+            markDirty(id, dt);
+        }
+
+        long length = id.getLength();
+        if (finish < 0 || finish > length)
+            finish = length;
+        start = Math.max(0, Math.min(start, finish));
+
+        BlobCache c = cache;
+        boolean cacheable = (c != null && c.fits(length));
+        if (cacheable) {
+            InputStream ret = c.get(id, start, finish);
+            if (ret != null)
+                return ret;
+        }
+
         File f = getBlob(id);
-        if (f.exists()) {
-            FileInputStream fis = new FileInputStream(f);
-            return fis;
-        } else
+        if (!f.exists())
             return null;
+
+        MappedBlobs m = mapper;
+        if (m != null && length >= mmapMin && length <= Integer.MAX_VALUE && f.length() == length) {
+            try {
+                return m.open(id, f, start, finish);
+            } catch (IOException ex) {
+                log.warn("could not map " + id + ": " + ex);
+            }
+        }
+
+        InputStream ret;
+        try {
+            ret = new FileInputStream(f);
+        } catch (FileNotFoundException ex) {
+            // just moved by the migration
+            ret = new FileInputStream(getBlob(id));
+        }
+        if (cacheable && f.length() == length)
+            return c.put(id, ret, (int)length, start, finish);
+
+        if (start > 0)
+            ((FileInputStream)ret).getChannel().position(start);
+        if (finish < length)
+            ret = new LimitedInputStream(ret, finish - start);
+        return ret;
     }
 
     @Override
@@ -390,34 +1191,97 @@ public class DiskDataStore
 
     @Override
     public File importFile(DataID id, File file) {
+        return importFile(id, file, false);
+    }
+
+    /**
+     * Moves a complete resource into the store, acquiring it along
+     * with the move if pinned.
+     */
+    public File importFile(DataID id, File file, boolean pin) {
         
-        File targetFile = new File(root.getAbsolutePath() + File.separator + id.getFileName());
-        if (targetFile.exists())
-            log.warn("file already exists!");
-        file.renameTo(targetFile);
+        String prefix = null;
+        try {
+            prefix = getPrefix(file);
+        } catch (Exception ex) {
+            log.warn("could not read the start of " + id + ": " + ex);
+        }
 
         // todo: check whether the contents of the file actually
         // matches the id!
 
-        DiskDataTracker dt = (DiskDataTracker)getDataTracker(id);
-        if (dt.stored == null)
-            dt.stored = new Date();
-        
-        checkQuota(dt);
+        File targetFile = getBlobTarget(id);
+        synchronized (this) {
+            if (targetFile.exists())
+                log.warn("file already exists!");
+            file.renameTo(targetFile);
+
+            DiskDataTracker dt = (DiskDataTracker)getDataTracker(id);
+            if (dt.prefix == null)
+                dt.prefix = prefix;
+            blobStored(dt, targetFile.length(), pin);
+        }
         return targetFile;
     }
 
+    /**
+     * Drops all the uses of the blob at once.
+     */
+    public synchronized void unpin(DataID id) {
+
+        DiskDataTracker dt = trackers.get(id);
+        if (dt == null || dt.useCounter < 1)
+            return;
+        unlink(dt);
+        dt.useCounter = 0;
+        setReleased(dt, System.currentTimeMillis());
+        link(dt);
+        markDirty(id, dt);
+    }
+
+    @Override
+    public synchronized void discard(DataID id) {
+
+        log.warn("discarding the data of " + id);
+        getBlob(id).delete();
+        if (cache != null)
+            cache.invalidate(id);
+        if (mapper != null)
+            mapper.invalidate(id);
+        DiskDataTracker dt = trackers.get(id);
+        if (dt != null && dt.size > 0) {
+            unlink(dt);
+            dropPrefix(dt);
+            storeSize -= dt.size;
+            dt.size = 0;
+            markDirty(id, dt);
+        }
+    }
+
     @Override
     public void deleteStore() {
         // delete all the data?
         log.info("deleting the disk data store " + getName());
         for (DiskDataTracker dt : trackers.values()) {
-            File f = dt.getFile(root);
+            File f = getBlob(dt.id);
             if (f != null && f.exists())
                 f.delete();
         }
 
-        File f = new File(root.getAbsolutePath() + File.separator + "trackers.db");
-        f.delete();
+        stop();
+        getFile(SNAPSHOT_FILE).delete();
+        getFile(LOG_FILE).delete();
+
+        if (cache != null)
+            cache.clear();
+        if (mapper != null)
+            mapper.clear();
+        synchronized (this) {
+            storeSize = 0;
+            prefixes.clear();
+            unusedBlobs.clear();
+            releasedBlobs.clear();
+            usedBlobs.clear();
+        }
     }
 }
@@ -0,0 +1,321 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.security.MessageDigest;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.io.DataUtil;
+import fi.hip.sicxoss.util.ReedSolomon;
+
+/**
+ * ErasureScheme
+ *
+ * How a blob is split into k data fragments and m parity ones, any k
+ * of which are enough to put it back together. The data fragments
+ * are the blob cut into k equally long pieces (the last one padded
+ * with zeros), the parity ones are from a Reed-Solomon code over
+ * them.
+ *
+ * The fragments are blobs of their own, with ids derived from the
+ * blob's: <checksum>_<length>_<k>_<m>_<index>, so they can be stored
+ * and moved between the peers like any other data, and anyone
+ * holding the whole blob can make them.
+ * @author koskela
+ */
+public class ErasureScheme {
+
+    private static final Logger log = Logger.getLogger(ErasureScheme.class);
+
+    // how much of each fragment is worked on at a time
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private int k;
+    private int m;
+    private ReedSolomon rs;
+
+    public ErasureScheme(int k, int m) {
+        this.k = k;
+        this.m = m;
+        this.rs = new ReedSolomon(k, m);
+    }
+
+    /**
+     * Parses a "k+m" scheme, null if it isn't one.
+     */
+    public static ErasureScheme parse(String str) {
+
+        try {
+            int p = str.indexOf('+');
+            int k = Integer.parseInt(str.substring(0, p).trim());
+            int m = Integer.parseInt(str.substring(p + 1).trim());
+            if (k > 0 && m > 0 && k + m <= 256)
+                return new ErasureScheme(k, m);
+        } catch (Exception ex) {
+        }
+        log.warn("invalid erasure coding scheme: " + str);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return k + "+" + m;
+    }
+
+    public int getDataFragments() {
+        return k;
+    }
+
+    public int getFragments() {
+        return k + m;
+    }
+
+    public long getFragmentLength(long length) {
+        return (length + k - 1) / k;
+    }
+
+    public DataID getFragmentId(DataID id, int index) {
+        return new DataID(id.getChecksum() + "_" + id.getLength() + "_" + k + "_" + m + "_" + index,
+                          getFragmentLength(id.getLength()));
+    }
+
+    /* the parts of a fragment id, null if it isn't one */
+    private static String[] split(DataID id) {
+
+        String[] ret = id.getChecksum().split("_");
+        return (ret.length == 5? ret : null);
+    }
+
+    public static boolean isFragment(DataID id) {
+        return split(id) != null;
+    }
+
+    /**
+     * The scheme a fragment was made with.
+     */
+    public static ErasureScheme getScheme(DataID fragment) {
+        String[] p = split(fragment);
+        return new ErasureScheme(Integer.parseInt(p[2]), Integer.parseInt(p[3]));
+    }
+
+    /**
+     * The id of the blob a fragment is of.
+     */
+    public static DataID getParentId(DataID fragment) {
+        String[] p = split(fragment);
+        return new DataID(p[0], Long.parseLong(p[1]));
+    }
+
+    public static int getFragmentIndex(DataID fragment) {
+        return Integer.parseInt(split(fragment)[4]);
+    }
+
+    /**
+     * Picks the k fragments to put a blob together from: the first
+     * set of the ones we have that has not been tried yet, in order,
+     * so that the data fragments (which need no decoding) come first.
+     * @return the indexes of the fragments, null if every set has
+     * been tried
+     */
+    public int[] nextSubset(BitSet have, Collection<BitSet> tried) {
+
+        int[] idx = new int[have.cardinality()];
+        for (int n = 0, i = have.nextSetBit(0); i > -1; i = have.nextSetBit(i + 1))
+            idx[n++] = i;
+        if (idx.length < k)
+            return null;
+
+        // the combinations of k out of idx, as positions in it
+        int[] c = new int[k];
+        for (int i = 0; i < k; i++)
+            c[i] = i;
+        while (true) {
+            BitSet set = new BitSet();
+            int[] ret = new int[k];
+            for (int i = 0; i < k; i++) {
+                ret[i] = idx[c[i]];
+                set.set(ret[i]);
+            }
+            if (!tried.contains(set))
+                return ret;
+
+            int i = k - 1;
+            while (i > -1 && c[i] == idx.length - k + i)
+                i--;
+            if (i < 0)
+                return null;
+            c[i]++;
+            for (int j = i + 1; j < k; j++)
+                c[j] = c[j - 1] + 1;
+        }
+    }
+
+    /* reads as much as there is, up to len, and zeros the rest */
+    private static void readChunk(InputStream in, byte[] buf, int len)
+        throws IOException {
+
+        int got = 0;
+        int r;
+        while (got < len && (r = in.read(buf, got, len - got)) > -1)
+            got += r;
+        Arrays.fill(buf, got, len, (byte)0);
+    }
+
+    /**
+     * Makes fragments of a blob in the store. The parity ones take a
+     * pass over the whole blob, so they are made together.
+     * @param which the indexes of the fragments wanted
+     * @return the files of the fragments, null for the ones not wanted
+     */
+    public File[] encode(DataStore store, DataID id, boolean[] which, File dir)
+        throws Exception {
+
+        long length = id.getLength();
+        long fl = getFragmentLength(length);
+        boolean parity = false;
+        for (int i = k; i < k + m; i++)
+            parity |= which[i];
+
+        InputStream[] ins = new InputStream[k];
+        OutputStream[] outs = new OutputStream[k + m];
+        File[] ret = new File[k + m];
+        boolean ok = false;
+        try {
+            for (int i = 0; i < k; i++) {
+                if (!which[i] && !parity)
+                    continue;
+                long s = Math.min(length, i * fl);
+                ins[i] = store.getStream(id, s, Math.min(length, s + fl));
+                if (ins[i] == null)
+                    throw new IOException("no data for " + id);
+            }
+            for (int i = 0; i < k + m; i++) {
+                if (!which[i])
+                    continue;
+                ret[i] = File.createTempFile(getFragmentId(id, i).getChecksum(), ".part", dir);
+                outs[i] = new BufferedOutputStream(new FileOutputStream(ret[i]), CHUNK_SIZE);
+            }
+
+            byte[][] shards = new byte[k + m][CHUNK_SIZE];
+            for (long off = 0; off < fl; off += CHUNK_SIZE) {
+                int len = (int)Math.min(CHUNK_SIZE, fl - off);
+                for (int i = 0; i < k; i++)
+                    if (ins[i] != null)
+                        readChunk(ins[i], shards[i], len);
+                if (parity)
+                    rs.encode(shards, len);
+                for (int i = 0; i < k + m; i++)
+                    if (outs[i] != null)
+                        outs[i].write(shards[i], 0, len);
+            }
+            ok = true;
+        } finally {
+            for (InputStream in : ins)
+                if (in != null)
+                    in.close();
+            for (OutputStream out : outs)
+                if (out != null)
+                    out.close();
+            if (!ok)
+                for (File f : ret)
+                    if (f != null)
+                        f.delete();
+        }
+        return ret;
+    }
+
+    /**
+     * Puts a blob back together from k of its fragments in the
+     * store, checking that it came out right.
+     * @param present the indexes of the fragments to use
+     * @return the file of the blob, null if it didn't match its id
+     */
+    public File decode(DataStore store, DataID id, int[] present, File dir)
+        throws Exception {
+
+        long length = id.getLength();
+        long fl = getFragmentLength(length);
+        int[][] decoder = rs.getDecoder(present);
+
+        File ret = File.createTempFile(id.getChecksum(), ".part", dir);
+        InputStream[] ins = new InputStream[k];
+        RandomAccessFile out = null;
+        boolean ok = false;
+        try {
+            for (int r = 0; r < k; r++) {
+                ins[r] = store.getStream(getFragmentId(id, present[r]), 0, fl);
+                if (ins[r] == null)
+                    throw new IOException("no fragment " + present[r] + " of " + id);
+            }
+
+            out = new RandomAccessFile(ret, "rw");
+            out.setLength(length);
+            byte[][] shards = new byte[k + m][CHUNK_SIZE];
+            for (long off = 0; off < fl; off += CHUNK_SIZE) {
+                int len = (int)Math.min(CHUNK_SIZE, fl - off);
+                for (int r = 0; r < k; r++)
+                    readChunk(ins[r], shards[present[r]], len);
+                rs.decode(shards, present, decoder, len);
+
+                // each data fragment goes to its own place, all but
+                // the padding
+                for (int i = 0; i < k; i++) {
+                    long pos = i * fl + off;
+                    int n = (int)Math.min(len, length - pos);
+                    if (n > 0) {
+                        out.seek(pos);
+                        out.write(shards[i], 0, n);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+
+            MessageDigest md = MessageDigest.getInstance(DiskDataStore.CHECKSUM_ALG);
+            InputStream in = new BufferedInputStream(new FileInputStream(ret), CHUNK_SIZE);
+            try {
+                byte[] buf = new byte[CHUNK_SIZE];
+                int r;
+                while ((r = in.read(buf)) > -1)
+                    md.update(buf, 0, r);
+            } finally {
+                in.close();
+            }
+            ok = DataUtil.toHex(md.digest()).equals(id.getChecksum());
+            if (!ok)
+                log.error("the blob " + id + " put back together from fragments " +
+                          Arrays.toString(present) + " does not match its checksum");
+        } finally {
+            for (InputStream in : ins)
+                if (in != null)
+                    in.close();
+            if (out != null)
+                out.close();
+            if (!ok)
+                ret.delete();
+        }
+        return (ok? ret : null);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import fi.hip.sicxoss.io.ByteBufferInputStream;
+
+/**
+ * MappedBlobs
+ *
+ * Reads the large blobs through memory mappings, one per blob shared
+ * by all who read it. The range requests of media players and the
+ * uploads of a popular blob to several peers then read the page
+ * cache directly instead of each opening and reading the file.
+ *
+ * The mappings are counted by the streams open on them. Those no one
+ * reads are kept for a while, the least recently used dropped (and
+ * unmapped by the collector) once there are too many.
+ * @author koskela
+ */
+public class MappedBlobs {
+
+    private class Mapping {
+
+        private DataID id;
+        private MappedByteBuffer buf;
+        private int refs;
+
+        Mapping(DataID id, MappedByteBuffer buf) {
+            this.id = id;
+            this.buf = buf;
+            this.refs = 0;
+        }
+    }
+
+    private class MappedInputStream
+        extends ByteBufferInputStream {
+
+        private Mapping m;
+
+        MappedInputStream(Mapping m, ByteBuffer bb) {
+            super(bb);
+            this.m = m;
+        }
+
+        public void close() {
+            if (m != null)
+                release(m);
+            m = null;
+        }
+    }
+
+    private int maxIdle;
+    private Hashtable<DataID, Mapping> mappings;
+    // those with no one reading them, least recently used first
+    private LinkedHashMap<DataID, Mapping> idle;
+
+    private long opened;
+    private long mapped;
+
+    /**
+     * @param maxIdle how many mappings are kept without readers
+     */
+    public MappedBlobs(int maxIdle) {
+        this.maxIdle = maxIdle;
+        this.mappings = new Hashtable<DataID, Mapping>();
+        this.idle = new LinkedHashMap<DataID, Mapping>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mappings.size() + " blobs mapped (" + idle.size() + " idle), " +
+            opened + " streams on " + mapped + " mappings";
+    }
+
+    /**
+     * Opens a stream of the blob, in the given file, from start up
+     * to (not including) finish.
+     */
+    public InputStream open(DataID id, File f, long start, long finish)
+        throws IOException {
+
+        Mapping m;
+        synchronized (this) {
+            m = mappings.get(id);
+            if (m == null) {
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    // the mapping stays when the channel is closed
+                    m = new Mapping(id, in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()));
+                } finally {
+                    in.close();
+                }
+                mappings.put(id, m);
+                mapped++;
+            }
+            idle.remove(id);
+            m.refs++;
+            opened++;
+        }
+
+        ByteBuffer bb = m.buf.duplicate();
+        bb.limit((int)Math.min(finish, bb.capacity()));
+        bb.position((int)Math.min(start, bb.limit()));
+        return new MappedInputStream(m, bb);
+    }
+
+    private synchronized void release(Mapping m) {
+
+        if (--m.refs > 0 || mappings.get(m.id) != m)
+            return;
+        idle.put(m.id, m);
+        Iterator<Mapping> it = idle.values().iterator();
+        while (idle.size() > maxIdle && it.hasNext()) {
+            mappings.remove(it.next().id);
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the mapping of a blob that is gone. Those still reading
+     * it may finish.
+     */
+    public synchronized void invalidate(DataID id) {
+        mappings.remove(id);
+        idle.remove(id);
+    }
+
+    public synchronized void clear() {
+        mappings.clear();
+        idle.clear();
+    }
+}
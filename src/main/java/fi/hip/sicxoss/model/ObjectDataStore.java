@@ -0,0 +1,809 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.security.*;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.LocalGateway;
+import fi.hip.sicxoss.io.DataUtil;
+import fi.hip.sicxoss.io.LimitedInputStream;
+import fi.hip.sicxoss.io.ObjectStorageClient;
+
+/**
+ * ObjectDataStore
+ *
+ * The blobs in an S3-compatible object storage, the 'dropbox
+ * account' envisioned in DataStore. The trackers are kept locally
+ * (in the directory of the store), so we know what we have without
+ * asking.
+ *
+ * Data is uploaded in parts of part_size as it is read (a multipart
+ * upload under a temporary name, as the name of a blob is its hash),
+ * several at a time, and then copied in place; there is no local
+ * copy in between. Only what is smaller than a part is uploaded in
+ * one go. Downloaded (imported) files are staged in the directory
+ * while they are uploaded in the background.
+ *
+ * Long reads are done as a number of ranged requests in parallel.
+ *
+ * The unused blobs are deleted once their grace period is over and
+ * the store is over its optimal quota, least recently used first.
+ *
+ * Configured by the properties endpoint, bucket, region, access_key,
+ * secret_key and prefix (of the keys).
+ * @author koskela
+ */
+public class ObjectDataStore
+    implements DataStore {
+
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARALLEL = 4;
+    public static final long DEFAULT_GRACE_PERIOD = 10 * 60 * 1000;
+    public static final int SAVE_INTERVAL = 5000;
+    public static final int SWEEP_INTERVAL = 60 * 1000;
+
+    private static final String TRACKERS_FILE = "trackers.db";
+    private static final String STAGING_DIR = "staging";
+    private static final String INCOMING = "incoming/";
+
+    private Logger log;
+    private String name;
+    private File root;
+    private File stagingDir;
+
+    private ObjectStorageClient client;
+    private String prefix;
+    private int partSize;
+    private int parallel;
+    private long quotaOptimal;
+    private long gracePeriod;
+
+    private Hashtable<DataID, ObjectTracker> trackers;
+    // the blobs being deleted just now
+    private Set<DataID> deleting;
+    // counts the stores and releases, so the sweep can tell which
+    // blobs were used after it picked them
+    private long touches;
+    private boolean dirty;
+    private volatile boolean batchUpdateInProgress;
+    private Timer timer;
+    // the parts being uploaded and read, and the staged files
+    // being uploaded (which wait for their parts)
+    private ExecutorService workers;
+    private ExecutorService uploader;
+
+    /**
+     * What we know of a blob.
+     */
+    static class ObjectTracker
+        implements Serializable,
+                   DataTracker {
+
+        static final long serialVersionUID = 2604139427813577291L;
+
+        public Date getAccessed() { return accessed; }
+        public Date getAdded() { return added; }
+        public Date getAcquired() { return acquired; }
+        // when it made it to the storage, null if not (yet)
+        public Date getStored() { return stored; }
+        public int getUseCounter() { return useCounter; }
+        public DataID getDataId() { return id; }
+
+        protected Date accessed;
+        protected Date added;
+        protected Date acquired;
+        protected Date stored;
+        protected int useCounter;
+        protected DataID id;
+
+        // when it was released (ms), for the grace period
+        protected transient long released;
+        // when it was last stored or released, in ObjectDataStore.touches
+        protected transient long touched;
+
+        public ObjectTracker(DataID id) {
+            this.id = id;
+            this.added = new Date();
+        }
+    }
+
+    public ObjectDataStore(String name) {
+        this.log = Logger.getLogger(getClass().getName() + ":" + name);
+        this.name = name;
+        this.trackers = new Hashtable<DataID, ObjectTracker>();
+        this.deleting = new HashSet<DataID>();
+        this.dirty = false;
+        this.batchUpdateInProgress = false;
+    }
+
+    @Override
+    public String toString() {
+        return "DataStore " + name + " at " + client + "/" + prefix + ", " + trackers.size() + " entries";
+    }
+
+    /* the settings, from the properties */
+    private void configure(String path, Properties p)
+        throws Exception {
+
+        String endpoint = p.getProperty("endpoint");
+        String bucket = p.getProperty("bucket");
+        if (endpoint == null || bucket == null)
+            throw new Exception("no endpoint or bucket for " + name);
+
+        root = new File(path);
+        stagingDir = new File(root, STAGING_DIR);
+        client = new ObjectStorageClient(endpoint, bucket, p.getProperty("region"),
+                                         p.getProperty("access_key"), p.getProperty("secret_key"));
+        prefix = p.getProperty("prefix", name + "/");
+        partSize = (int)Long.parseLong(p.getProperty("part_size", "" + DEFAULT_PART_SIZE));
+        parallel = Integer.parseInt(p.getProperty("parallel", "" + DEFAULT_PARALLEL));
+        quotaOptimal = Long.parseLong(p.getProperty("quota_optimal", "-1"));
+        gracePeriod = Long.parseLong(p.getProperty("grace_period", "" + DEFAULT_GRACE_PERIOD));
+    }
+
+    /**
+     * Inits a new, empty store, its local part at the path.
+     */
+    public void init(String path, Properties p, LocalGateway gw)
+        throws Exception {
+
+        configure(path, p);
+        if (root.exists())
+            throw new Exception("Root directory already exists: " + path);
+        root.mkdirs();
+        stagingDir.mkdirs();
+        p.setProperty("prefix", prefix);
+        p.setProperty("part_size", "" + partSize);
+        p.setProperty("parallel", "" + parallel);
+        p.setProperty("quota_optimal", "" + quotaOptimal);
+        p.setProperty("grace_period", "" + gracePeriod);
+        DataUtil.writeObjectAtomic(trackers, new File(root, TRACKERS_FILE));
+    }
+
+    /* from datastore */
+
+    @Override
+    public void load(String path, Properties p, LocalGateway gw)
+        throws Exception {
+
+        configure(path, p);
+        if (!root.exists())
+            throw new Exception("Root directory is missing: " + path);
+        stagingDir.mkdirs();
+
+        // the file holds what we wrote there
+        @SuppressWarnings("unchecked")
+        Hashtable<DataID, ObjectTracker> saved = (Hashtable<DataID, ObjectTracker>)DataUtil.readObject(new File(root, TRACKERS_FILE).getAbsolutePath());
+        trackers = saved;
+        if (trackers == null) {
+            log.warn("missing trackers");
+            trackers = new Hashtable<DataID, ObjectTracker>();
+        }
+        // we don't know when they were released
+        long now = System.currentTimeMillis();
+        for (ObjectTracker ot : trackers.values())
+            ot.released = now;
+    }
+
+    @Override
+    public synchronized void start() {
+
+        if (timer != null)
+            return;
+        workers = Executors.newFixedThreadPool(parallel, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "object store worker for " + name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        uploader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "object store uploader for " + name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        timer = new Timer("object store timer for " + name, true);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    save();
+                }
+            }, SAVE_INTERVAL, SAVE_INTERVAL);
+        timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, SWEEP_INTERVAL, SWEEP_INTERVAL);
+
+        // what did not make it up before we stopped
+        File[] staged = stagingDir.listFiles();
+        for (int i = 0; staged != null && i < staged.length; i++) {
+            DataID id = getStagedId(staged[i]);
+            if (id != null)
+                queueUpload(id, staged[i]);
+            else
+                staged[i].delete();
+        }
+    }
+
+    @Override
+    public void stop() {
+
+        ExecutorService u;
+        synchronized (this) {
+            if (timer != null)
+                timer.cancel();
+            timer = null;
+            u = uploader;
+            uploader = null;
+        }
+        // what is left staged is uploaded on the next start
+        try {
+            if (u != null) {
+                u.shutdownNow();
+                u.awaitTermination(30, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException ex) {
+        }
+        synchronized (this) {
+            if (workers != null)
+                workers.shutdownNow();
+            workers = null;
+        }
+        save();
+    }
+
+    /* writes the trackers, if changed */
+    private void save() {
+
+        Hashtable<DataID, ObjectTracker> copy;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            dirty = false;
+            copy = new Hashtable<DataID, ObjectTracker>(trackers);
+        }
+        if (!DataUtil.writeObjectAtomic(copy, new File(root, TRACKERS_FILE))) {
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public void deleteStore() {
+
+        log.info("deleting the object data store " + getName());
+        List<DataID> ids;
+        synchronized (this) {
+            ids = new ArrayList<DataID>(trackers.keySet());
+        }
+        for (DataID id : ids) {
+            try {
+                client.delete(getKey(id));
+            } catch (IOException ex) {
+                log.warn("could not delete " + id + ": " + ex);
+            }
+        }
+        stop();
+        File[] staged = stagingDir.listFiles();
+        for (int i = 0; staged != null && i < staged.length; i++)
+            staged[i].delete();
+        new File(root, TRACKERS_FILE).delete();
+        synchronized (this) {
+            trackers.clear();
+        }
+    }
+
+    /* where the blob is. sharded by the start, as many of the
+     * storages partition by the key */
+    private String getKey(DataID id) {
+        String cs = id.getChecksum();
+        return prefix + cs.substring(0, 2) + "/" + cs + "." + id.getLength() + ".blob";
+    }
+
+    private File getStagedFile(DataID id) {
+        return new File(stagingDir, id.getChecksum() + "." + id.getLength() + ".blob");
+    }
+
+    private static DataID getStagedId(File f) {
+        String[] p = f.getName().split("\\.");
+        if (p.length != 3 || !p[2].equals("blob"))
+            return null;
+        try {
+            return new DataID(p[0], Long.parseLong(p[1]));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private synchronized ObjectTracker getTracker(DataID id) {
+
+        ObjectTracker ot = trackers.get(id);
+        if (ot == null) {
+            ot = new ObjectTracker(id);
+            ot.released = System.currentTimeMillis();
+            trackers.put(id, ot);
+            dirty = true;
+        }
+        return ot;
+    }
+
+    private synchronized void setStored(DataID id) {
+        ObjectTracker ot = getTracker(id);
+        if (ot.stored == null)
+            ot.stored = new Date();
+        if (ot.useCounter < 1)
+            ot.released = System.currentTimeMillis();
+        ot.touched = ++touches;
+        dirty = true;
+    }
+
+    private synchronized boolean isStored(DataID id) {
+        ObjectTracker ot = trackers.get(id);
+        return (ot != null && ot.stored != null);
+    }
+
+    /*
+     * whether the blob is in the storage already. if it is, it is
+     * marked stored again along with the check, so that the sweep
+     * will not take it from under us. if the sweep is deleting it
+     * just now, waits for that to be done; it is gone then.
+     */
+    private synchronized boolean keepStored(DataID id)
+        throws InterruptedException {
+
+        while (deleting.contains(id))
+            wait();
+        if (!isStored(id))
+            return false;
+        setStored(id);
+        return true;
+    }
+
+    /* reads the buffer full, as far as the stream goes */
+    private static int fill(InputStream in, byte[] buf)
+        throws IOException {
+
+        int ret = 0;
+        int r;
+        while (ret < buf.length && (r = in.read(buf, ret, buf.length - ret)) > -1)
+            ret += r;
+        return ret;
+    }
+
+    /* uploads the parts read from the stream as the key, hashing
+     * them as we go. returns the id */
+    private DataID upload(InputStream in, final String key, final String uploadId, byte[] first, int firstLen)
+        throws Exception {
+
+        MessageDigest md = MessageDigest.getInstance(DiskDataStore.CHECKSUM_ALG);
+        LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+        List<String> etags = new ArrayList<String>();
+        long total = 0;
+        try {
+            byte[] buf = first;
+            int len = firstLen;
+            while (len > 0) {
+                md.update(buf, 0, len);
+                total += len;
+                final byte[] b = buf;
+                final int l = len;
+                final int part = etags.size() + pending.size() + 1;
+                pending.add(workers.submit(new Callable<String>() {
+                        public String call()
+                            throws Exception {
+                            return client.uploadPart(key, uploadId, part, b, 0, l);
+                        }
+                    }));
+
+                // no more than so many parts (buffers) in flight
+                while (pending.size() >= parallel)
+                    etags.add(pending.removeFirst().get());
+                buf = new byte[partSize];
+                len = fill(in, buf);
+            }
+            while (pending.size() > 0)
+                etags.add(pending.removeFirst().get());
+        } catch (ExecutionException ex) {
+            throw new IOException("error uploading " + key + ": " + ex.getCause());
+        } finally {
+            for (Future<String> f : pending)
+                f.cancel(true);
+        }
+        client.completeMultipart(key, uploadId, etags);
+        return new DataID(DataUtil.toHex(md.digest()), total);
+    }
+
+    @Override
+    public DataID store(InputStream in, long length)
+        throws Exception {
+
+        try {
+            byte[] first = new byte[partSize];
+            int len = fill(in, first);
+            if (len < partSize) {
+                // a small one, in one go
+                MessageDigest md = MessageDigest.getInstance(DiskDataStore.CHECKSUM_ALG);
+                md.update(first, 0, len);
+                DataID ret = new DataID(DataUtil.toHex(md.digest()), len);
+                if (!keepStored(ret)) {
+                    client.put(getKey(ret), first, 0, len);
+                    setStored(ret);
+                }
+                return ret;
+            }
+
+            if (workers == null)
+                throw new IOException("the store is not running");
+            String tmp = prefix + INCOMING + UUID.randomUUID();
+            String uploadId = client.initiateMultipart(tmp);
+            DataID ret;
+            try {
+                ret = upload(in, tmp, uploadId, first, len);
+            } catch (Exception ex) {
+                client.abortMultipart(tmp, uploadId);
+                throw ex;
+            }
+
+            try {
+                String key = getKey(ret);
+                if (keepStored(ret))
+                    log.debug("already had " + ret);
+                else {
+                    if (client.head(key) != ret.getLength())
+                        client.copy(tmp, key, ret.getLength(), partSize);
+                    setStored(ret);
+                }
+            } finally {
+                client.delete(tmp);
+            }
+            return ret;
+        } catch (Exception ex) {
+            log.warn("error while storing: " + ex);
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* uploads a staged file in the background */
+    private void queueUpload(final DataID id, final File file) {
+
+        ExecutorService u = uploader;
+        if (u == null)
+            return;
+        u.submit(new Runnable() {
+                public void run() {
+                    try {
+                        FileInputStream in = new FileInputStream(file);
+                        DataID got = store(in, id.getLength());
+                        if (id.equals(got))
+                            file.delete();
+                        else
+                            log.error("the upload of " + id + " came out as " + got + ", kept at " + file);
+                    } catch (Exception ex) {
+                        log.warn("error uploading " + id + ": " + ex);
+                    }
+                }
+            });
+    }
+
+    @Override
+    public File importFile(DataID id, File file) {
+
+        File staged = getStagedFile(id);
+        if (!file.renameTo(staged)) {
+            log.error("could not stage " + file + " as " + id);
+            return file;
+        }
+        getTracker(id);
+        queueUpload(id, staged);
+        return staged;
+    }
+
+    @Override
+    public void discard(DataID id) {
+
+        log.warn("discarding the data of " + id);
+        getStagedFile(id).delete();
+        synchronized (this) {
+            // being deleted already
+            if (!deleting.add(id))
+                return;
+            ObjectTracker ot = trackers.get(id);
+            if (ot != null) {
+                ot.stored = null;
+                dirty = true;
+            }
+        }
+        try {
+            client.delete(getKey(id));
+        } catch (IOException ex) {
+            log.warn("could not delete " + id + ": " + ex);
+        } finally {
+            synchronized (this) {
+                deleting.remove(id);
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void release(DataID id) {
+
+        ObjectTracker ot = getTracker(id);
+        ot.useCounter--;
+        if (ot.useCounter == 0)
+            ot.released = System.currentTimeMillis();
+        ot.touched = ++touches;
+        dirty = true;
+        log.info("released data " + id + ", counter: " + ot.useCounter);
+    }
+
+    @Override
+    public synchronized void acquire(DataID id) {
+
+        ObjectTracker ot = getTracker(id);
+        ot.useCounter++;
+        ot.acquired = new Date();
+        dirty = true;
+        log.info("acquired data " + id + ", counter: " + ot.useCounter);
+    }
+
+    @Override
+    public synchronized void initBatchUpdate() {
+
+        batchUpdateInProgress = true;
+        long now = System.currentTimeMillis();
+        for (ObjectTracker ot : trackers.values()) {
+            if (ot.useCounter > 0)
+                ot.released = now;
+            ot.useCounter = 0;
+        }
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void batchUpdateComplete() {
+        batchUpdateInProgress = false;
+    }
+
+    /**
+     * Deletes the unused blobs whose grace period is over, least
+     * recently used first, until we are within the optimal quota.
+     */
+    public void sweep() {
+
+        List<ObjectTracker> unused = new ArrayList<ObjectTracker>();
+        long total = 0;
+        long seen;
+        synchronized (this) {
+            if (batchUpdateInProgress || quotaOptimal < 0)
+                return;
+            long now = System.currentTimeMillis();
+            seen = touches;
+            for (ObjectTracker ot : trackers.values()) {
+                if (ot.stored == null)
+                    continue;
+                total += ot.id.getLength();
+                if (ot.useCounter < 1 && ot.released + gracePeriod <= now)
+                    unused.add(ot);
+            }
+        }
+        if (total <= quotaOptimal)
+            return;
+
+        Collections.sort(unused, new Comparator<ObjectTracker>() {
+                public int compare(ObjectTracker o1, ObjectTracker o2) {
+                    long a1 = (o1.accessed != null? o1.accessed.getTime() : o1.stored.getTime());
+                    long a2 = (o2.accessed != null? o2.accessed.getTime() : o2.stored.getTime());
+                    return (a1 < a2? -1 : (a1 > a2? 1 : 0));
+                }
+            });
+        long before = total;
+        for (ObjectTracker ot : unused) {
+            if (total <= quotaOptimal)
+                break;
+            synchronized (this) {
+                // taken back, or stored again, meanwhile?
+                if (ot.useCounter > 0 || ot.touched > seen || batchUpdateInProgress ||
+                    trackers.get(ot.id) != ot)
+                    continue;
+                trackers.remove(ot.id);
+                deleting.add(ot.id);
+                dirty = true;
+            }
+            try {
+                client.delete(getKey(ot.id));
+                total -= ot.id.getLength();
+            } catch (IOException ex) {
+                log.warn("could not delete " + ot.id + ": " + ex);
+            } finally {
+                synchronized (this) {
+                    deleting.remove(ot.id);
+                    notifyAll();
+                }
+            }
+        }
+        log.info("sweep freed " + (before - total) + " bytes, " + total + " bytes stored");
+    }
+
+    /* reads a range in parts, several of them at a time */
+    private class ParallelRangeInputStream
+        extends InputStream {
+
+        private String key;
+        private long next;
+        private long finish;
+        private LinkedList<Future<byte[]>> pending;
+        private byte[] buf;
+        private int pos;
+
+        ParallelRangeInputStream(String key, long start, long finish) {
+            this.key = key;
+            this.next = start;
+            this.finish = finish;
+            this.pending = new LinkedList<Future<byte[]>>();
+            this.buf = new byte[0];
+            this.pos = 0;
+            fetch();
+        }
+
+        private void fetch() {
+            ExecutorService w = workers;
+            while (w != null && pending.size() < parallel && next < finish) {
+                final long s = next;
+                final long f = Math.min(finish, next + partSize);
+                pending.add(w.submit(new Callable<byte[]>() {
+                        public byte[] call()
+                            throws Exception {
+                            InputStream in = client.get(key, s, f);
+                            if (in == null)
+                                throw new IOException("no such object: " + key);
+                            byte[] ret = new byte[(int)(f - s)];
+                            try {
+                                if (fill(in, ret) != ret.length)
+                                    throw new IOException(key + " ended before " + f);
+                            } finally {
+                                in.close();
+                            }
+                            return ret;
+                        }
+                    }));
+                next = f;
+            }
+        }
+
+        /* false at the end */
+        private boolean ensure()
+            throws IOException {
+
+            if (pos < buf.length)
+                return true;
+            if (pending.size() == 0)
+                return false;
+            try {
+                buf = pending.removeFirst().get();
+                pos = 0;
+            } catch (ExecutionException ex) {
+                throw new IOException("error reading " + key + ": " + ex.getCause());
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("interrupted while reading " + key);
+            }
+            fetch();
+            return pos < buf.length;
+        }
+
+        public int read()
+            throws IOException {
+            return (ensure()? buf[pos++] & 0xff : -1);
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException {
+            if (len == 0)
+                return 0;
+            if (!ensure())
+                return -1;
+            len = Math.min(len, buf.length - pos);
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+            return len;
+        }
+
+        public void close() {
+            for (Future<byte[]> f : pending)
+                f.cancel(true);
+            pending.clear();
+            buf = new byte[0];
+        }
+    }
+
+    @Override
+    public InputStream getStream(DataID id, long start, long finish)
+        throws Exception {
+
+        long length = id.getLength();
+        if (finish < 0 || finish > length)
+            finish = length;
+        start = Math.max(0, Math.min(start, finish));
+
+        synchronized (this) {
+            ObjectTracker ot = trackers.get(id);
+            if (ot != null) {
+                ot.accessed = new Date();
+                dirty = true;
+            }
+        }
+
+        // still on its way up?
+        File staged = getStagedFile(id);
+        if (staged.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(staged);
+                in.getChannel().position(start);
+                return new LimitedInputStream(in, finish - start);
+            } catch (FileNotFoundException ex) {
+                // just uploaded
+            }
+        }
+
+        if (!hasData(id, start, finish))
+            return null;
+        if (finish - start > partSize && workers != null)
+            return new ParallelRangeInputStream(getKey(id), start, finish);
+        return client.get(getKey(id), start, finish);
+    }
+
+    @Override
+    public boolean hasData(DataID id, long start, long finish) {
+
+        if (isStored(id) || getStagedFile(id).exists())
+            return true;
+
+        // someone else's, or we lost the trackers
+        try {
+            if (client.head(getKey(id)) == id.getLength()) {
+                setStored(id);
+                return true;
+            }
+        } catch (IOException ex) {
+            log.warn("could not check for " + id + ": " + ex);
+        }
+        return false;
+    }
+
+    @Override
+    public DataTracker getDataTracker(DataID id) {
+        return getTracker(id);
+    }
+}
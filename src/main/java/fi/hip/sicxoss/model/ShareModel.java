@@ -20,6 +20,7 @@
 package fi.hip.sicxoss.model;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import org.apache.log4j.Logger;
@@ -27,6 +28,7 @@ import org.apache.log4j.Logger;
 import fi.hip.sicxoss.ident.*;
 import fi.hip.sicxoss.io.*;
 import fi.hip.sicxoss.io.message.*;
+import fi.hip.sicxoss.util.ConsistentHash;
 import fi.hip.sicxoss.LocalGateway;
 
 /**
@@ -96,6 +98,27 @@ public class ShareModel
     // tadaa..
     private LocalGateway gw;
 
+    // the upload limit for this share
+    private TokenBucket uploadLimiter;
+
+    // the blobs smaller than this are not erasure-coded
+    public static final int DEFAULT_ERASURE_MIN = 1024 * 1024;
+
+    // who keeps which fragments, for the members it was made for
+    private ConsistentHash<String> placement;
+    private Set<String> placementMembers;
+
+    // the erasure-coded blobs in use: how many times each has been
+    // acquired, and what we have pinned for it in the store, each as
+    // many times. the sets are replaced, never changed
+    private Hashtable<DataID, Integer> codedUses;
+    private Hashtable<DataID, Set<DataID>> codedPins;
+    private boolean batchUpdate;
+
+    // the fragments are made one blob at a time, off the network
+    // threads
+    private ThreadPoolExecutor fragmentWorker;
+
     public interface ShareModelObserver {
         public void userAdded(User newUser, User eventIssuer, ShareModel share);
         public void userRemoved(User newUser, User eventIssuer, ShareModel share);
@@ -135,6 +158,18 @@ public class ShareModel
         this.addedKeys = new ArrayList();
         this.revisions = new Hashtable();
         this.gw = gw;
+        this.uploadLimiter = new TokenBucket(name, 0);
+        this.codedUses = new Hashtable<DataID, Integer>();
+        this.codedPins = new Hashtable<DataID, Set<DataID>>();
+        this.fragmentWorker = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                     new ThreadFactory() {
+                                                         public Thread newThread(Runnable r) {
+                                                             Thread t = new Thread(r, "fragment worker for " + ShareModel.this.name);
+                                                             t.setDaemon(true);
+                                                             return t;
+                                                         }
+                                                     });
+        fragmentWorker.allowCoreThreadTimeOut(true);
         connectionManager.addObserver(this);
         setMountRoot(new FolderModel("", ItemID.nullItem(), this));
     }
@@ -1100,6 +1135,7 @@ public class ShareModel
                 newUser = user.addContact(newUser, this);
                 users.put(newUser.getId(), newUser);
                 updateContactFolder();
+                placeAllFragments();
             } else {
                 log.debug("that's me!");
             }
@@ -1123,6 +1159,7 @@ public class ShareModel
             if (newUser.equals(this.user) || users.containsKey(newUser.getId())) {
                 users.remove(newUser.getId());
                 user.removeContact(newUser, this);
+                placeAllFragments();
                 
                 if (local)
                     try {
@@ -1389,8 +1426,281 @@ public class ShareModel
         // .. check if another file is still using that data. if not,
         // then put it into some sort of 'unused' which has a quota on
 
+        // erasure-coded, we let go of what we did pin for it
+        synchronized (this) {
+            Integer uses = codedUses.get(id);
+            if (uses != null) {
+                Set<DataID> pins = codedPins.get(id);
+                if (pins != null)
+                    for (DataID p : pins)
+                        store.release(p);
+                if (uses > 1)
+                    codedUses.put(id, uses - 1);
+                else {
+                    codedUses.remove(id);
+                    codedPins.remove(id);
+                }
+                return;
+            }
+        }
         store.release(id);
     }
+
+    /* the scheme set for the share, if the blob is big enough to be
+     * erasure-coded */
+    private ErasureScheme getConfiguredScheme(DataID id) {
+
+        String str = gw.getConfig("share." + name + ".erasure");
+        if (str == null || ErasureScheme.isFragment(id) ||
+            id.getLength() < gw.getConfigInt("share." + name + ".erasure.min", DEFAULT_ERASURE_MIN))
+            return null;
+        return ErasureScheme.parse(str);
+    }
+
+    /* how many we are, us included */
+    private int getMemberCount() {
+        return users.size() + (users.containsKey(user.getId())? 0 : 1);
+    }
+
+    /**
+     * The erasure coding used for the data in this share, null if the
+     * data is kept as it is. Set by share.<name>.erasure as "k+m",
+     * for blobs of at least share.<name>.erasure.min bytes. Every
+     * member should have the same settings.
+     *
+     * The data is erasure-coded only when there are at least k+m
+     * members, so that no one holds more than one fragment of a
+     * blob. With fewer, everyone keeps a full copy.
+     */
+    public ErasureScheme getErasureScheme(DataID id) {
+
+        ErasureScheme es = getConfiguredScheme(id);
+        if (es == null || getMemberCount() < es.getFragments())
+            return null;
+        return es;
+    }
+
+    /* how the data is fetched: as fragments if it is erasure-coded,
+     * or if we keep fragments of it from when there were more of us.
+     * called with the downloaders locked, so takes no locks */
+    private ErasureScheme getFetchScheme(DataID id) {
+
+        ErasureScheme es = getConfiguredScheme(id);
+        if (es == null || getMemberCount() >= es.getFragments())
+            return es;
+        Set<DataID> pins = codedPins.get(id);
+        if (pins != null)
+            for (DataID p : pins)
+                if (ErasureScheme.isFragment(p))
+                    return es;
+        return null;
+    }
+
+    /**
+     * The fragments of the blob that are ours to keep. They are spread
+     * over the members of the share by a hash ring, one for each.
+     */
+    public synchronized List<Integer> getAssignedFragments(DataID id, ErasureScheme es) {
+
+        Set<String> members = new HashSet<String>(users.keySet());
+        members.add(user.getId());
+        if (!members.equals(placementMembers)) {
+            placement = new ConsistentHash<String>(members);
+            placementMembers = members;
+        }
+
+        List<String> owners = placement.get(id.getChecksum(), es.getFragments());
+        List<Integer> ret = new ArrayList<Integer>();
+        for (int i = 0; i < es.getFragments(); i++)
+            if (owners.get(i % owners.size()).equals(user.getId()))
+                ret.add(i);
+        return ret;
+    }
+
+    /*
+     * Pins in the store what we should keep of an erasure-coded blob,
+     * and lets go of what we no longer should. Each is pinned as many
+     * times as the blob is in use. What we don't have is fetched, or
+     * made if we have the whole data.
+     *
+     * When the members change, the fragments new to us are made from
+     * the data put back together, as the member that had them may be
+     * gone.
+     */
+    private synchronized void placeFragments(DataID id, boolean moved) {
+
+        int uses = codedUses.get(id);
+        Set<DataID> pins = codedPins.get(id);
+        ErasureScheme es = getErasureScheme(id);
+        boolean whole = store.hasData(id, 0, id.getLength());
+
+        // a full copy is kept where the data already is
+        Set<DataID> want = new HashSet<DataID>();
+        if (es == null || pins.contains(id) || (pins.isEmpty() && whole))
+            want.add(id);
+        if (es != null)
+            for (int i : getAssignedFragments(id, es))
+                want.add(es.getFragmentId(id, i));
+
+        boolean make = false;
+        boolean repair = false;
+        for (DataID p : want) {
+            if (pins.contains(p))
+                continue;
+            for (int i = 0; i < uses; i++)
+                store.acquire(p);
+            if (store.hasData(p, 0, p.getLength()))
+                continue;
+            if (p.equals(id)) {
+                // fetched when read, unless the fragments are going
+                DataDownloader dl = getDownloader(id, true);
+                if (moved)
+                    dl.requestData(0, id.getLength());
+            } else if (whole)
+                make = true;
+            else if (moved)
+                repair = true;
+            else
+                getDownloader(p, true).requestData(0, p.getLength());
+        }
+        for (DataID p : pins)
+            if (!want.contains(p))
+                for (int i = 0; i < uses; i++)
+                    store.release(p);
+        codedPins.put(id, want);
+
+        if (make)
+            queueMissingFragments(id);
+        else if (repair)
+            getDownloader(id, true).requestData(0, id.getLength());
+    }
+
+    /* the members changed, the fragments are placed again */
+    private synchronized void placeAllFragments() {
+
+        if (batchUpdate)
+            return;
+        for (DataID id : new ArrayList<DataID>(codedPins.keySet()))
+            placeFragments(id, true);
+    }
+
+    /* whether we have the fragment, or the data to make it from */
+    private boolean hasFragment(DataID fid) {
+        DataID id = ErasureScheme.getParentId(fid);
+        return store.hasData(fid, 0, fid.getLength()) || store.hasData(id, 0, id.getLength());
+    }
+
+    /* makes fragments of a blob we have whole, into the store as
+     * unused so they go when space is needed. on the fragment worker
+     * only, as the making takes a pass over the data */
+    private void makeFragments(DataID id, ErasureScheme es, boolean[] which)
+        throws Exception {
+
+        boolean any = false;
+        for (int i = 0; i < which.length; i++) {
+            DataID f = es.getFragmentId(id, i);
+            which[i] &= !store.hasData(f, 0, f.getLength());
+            any |= which[i];
+        }
+        if (!any)
+            return;
+
+        log.info("making fragments of " + id);
+        File[] files = es.encode(store, id, which, root);
+        for (int i = 0; i < files.length; i++) {
+            DataID f = es.getFragmentId(id, i);
+            if (files[i] == null)
+                continue;
+            if (store.hasData(f, 0, f.getLength()))
+                files[i].delete();
+            else
+                store.importFile(f, files[i]);
+        }
+    }
+
+    /* makes a fragment someone wants. the parity fragments come all
+     * at once */
+    private void makeFragment(DataID fid)
+        throws Exception {
+
+        DataID id = ErasureScheme.getParentId(fid);
+        ErasureScheme es = ErasureScheme.getScheme(fid);
+        int index = ErasureScheme.getFragmentIndex(fid);
+        boolean[] which = new boolean[es.getFragments()];
+        for (int i = 0; i < which.length; i++)
+            which[i] = (i == index || (index >= es.getDataFragments() && i >= es.getDataFragments()));
+        makeFragments(id, es, which);
+    }
+
+    /* makes the fragments we keep of a blob but don't have, once we
+     * have the whole data */
+    private void queueMissingFragments(final DataID id) {
+
+        fragmentWorker.execute(new Runnable() {
+                public void run() {
+                    Set<DataID> pins = codedPins.get(id);
+                    if (pins == null || !store.hasData(id, 0, id.getLength()))
+                        return;
+                    ErasureScheme es = null;
+                    boolean[] which = null;
+                    for (DataID p : pins) {
+                        if (!ErasureScheme.isFragment(p))
+                            continue;
+                        if (es == null) {
+                            es = ErasureScheme.getScheme(p);
+                            which = new boolean[es.getFragments()];
+                        }
+                        which[ErasureScheme.getFragmentIndex(p)] = true;
+                    }
+                    try {
+                        if (es != null)
+                            makeFragments(id, es, which);
+                    } catch (Exception ex) {
+                        log.error("could not make the fragments of " + id + ": " + ex);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Fragments of a blob that turned out bad when it was put back
+     * together. They are dropped, so that we don't pass them on, and
+     * the ones we keep are made again from the data.
+     */
+    public void fragmentsBad(DataID id, ErasureScheme es, List<Integer> bad) {
+
+        for (int i : bad)
+            store.discard(es.getFragmentId(id, i));
+        queueMissingFragments(id);
+    }
+
+    /**
+     * A download that could not be put together from its fragments.
+     * The fragments go, as we can't tell the bad ones, and so does
+     * the download; the next one fetches them again, as we do the
+     * ones we keep.
+     */
+    public void downloadFailed(DataDownloader dd, ErasureScheme es, List<Integer> got) {
+
+        final DataID id = dd.dataId;
+        synchronized (downloaders) {
+            if (downloaders.get(id) == dd)
+                downloaders.remove(id);
+        }
+        for (int i : got)
+            store.discard(es.getFragmentId(id, i));
+
+        // not with the downloader locked
+        fragmentWorker.execute(new Runnable() {
+                public void run() {
+                    Set<DataID> pins = codedPins.get(id);
+                    if (pins != null)
+                        for (DataID p : pins)
+                            if (!store.hasData(p, 0, p.getLength()))
+                                getDownloader(p, true).requestData(0, p.getLength());
+                }
+            });
+    }
     
     @Override
     public void acquire(DataID id) {
@@ -1410,6 +1720,25 @@ public class ShareModel
         // from other shares. So the download being share-specific
         // makes sense
 
+        // erasure-coded, what we keep depends on the members, see
+        // placeFragments. in a batch update, it is done at the end
+        synchronized (this) {
+            Integer uses = codedUses.get(id);
+            if (uses != null || getConfiguredScheme(id) != null) {
+                codedUses.put(id, (uses == null? 1 : uses + 1));
+                if (batchUpdate)
+                    return;
+                Set<DataID> pins = codedPins.get(id);
+                if (pins == null) {
+                    codedPins.put(id, new HashSet<DataID>());
+                    placeFragments(id, false);
+                } else
+                    for (DataID p : pins)
+                        store.acquire(p);
+                return;
+            }
+        }
+
         store.acquire(id);
         if (!store.hasData(id, 0, id.getLength())) {
             DataDownloader dl = getDownloader(id, true);
@@ -1420,17 +1749,32 @@ public class ShareModel
     @Override
     public void initBatchUpdate() {
         log.info("initing a batch update");
+        synchronized (this) {
+            batchUpdate = true;
+            codedUses.clear();
+            codedPins.clear();
+        }
         store.initBatchUpdate();
     }
 
     @Override
     public void batchUpdateComplete() {
         log.info("completing a batch update");
+        synchronized (this) {
+            batchUpdate = false;
+            for (DataID id : codedUses.keySet()) {
+                codedPins.put(id, new HashSet<DataID>());
+                placeFragments(id, false);
+            }
+        }
         store.batchUpdateComplete();
     }
     
     @Override
     public boolean hasData(DataID id, long start, long finish) {
+        if (ErasureScheme.isFragment(id))
+            return hasFragment(id);
+
         // hopefully this will never be called.
         return true;
     }
@@ -1451,6 +1795,11 @@ public class ShareModel
         return store.importFile(id, file);
     }
 
+    @Override
+    public void discard(DataID id) {
+        store.discard(id);
+    }
+
     @Override
     public void deleteStore() {
         // remove all the downloads .. todo
@@ -1468,24 +1817,72 @@ public class ShareModel
      */
 
     public void dataRequestGot(User contact, DataID dataId, long start, long finish) {
+        dataRequestGot(contact, dataId, start, finish, false);
+    }
+
+    public void dataRequestGot(final User contact, final DataID dataId, final long start, final long finish,
+                               final boolean interactive) {
         log.info("got a data request from " + contact + " of " + dataId + " for bytes " + start + ":" + finish);
+
+        // a fragment we have the data for is made first, on the
+        // fragment worker, and the request answered once it is done
+        if (ErasureScheme.isFragment(dataId) && !store.hasData(dataId, start, finish) && hasFragment(dataId)) {
+            fragmentWorker.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            makeFragment(dataId);
+                        } catch (Exception ex) {
+                            log.error("could not make " + dataId + ": " + ex);
+                            return;
+                        }
+                        if (store.hasData(dataId, start, finish))
+                            dataRequestGot(contact, dataId, start, finish, interactive);
+                    }
+                });
+            return;
+        }
         
         // check if we have those bytes. create an uploader if so.
         if (hasData(dataId, start, finish)) {
             log.info("yes, we have the data.");
             
-            try {
-                DataUploader du = new DataUploader(contact, dataId, start, finish, this);
-                du.start();
-                uploaders.add(du);
-            } catch (Exception ex) {
-                log.error("exception while requesting data from peer: " + ex);
+            // with several sockets to the contact, big requests are
+            // split so that each part can go on its own socket
+            int stripes = connectionManager.getContactStreamingConnectionCount(contact);
+            long len = finish - start;
+            if (stripes > (len / DataUploader.MIN_STRIPE))
+                stripes = (int)(len / DataUploader.MIN_STRIPE);
+            if (stripes < 1)
+                stripes = 1;
+
+            long s = start;
+            for (int i = 0; i < stripes; i++) {
+                long f = (i == stripes - 1? finish : s + len / stripes);
+                try {
+                    DataUploader du = new DataUploader(contact, dataId, s, f, this, interactive);
+                    du.start();
+                    uploaders.add(du);
+                } catch (Exception ex) {
+                    log.error("exception while requesting data from peer: " + ex);
+                }
+                s = f;
             }
 
         } else
             log.debug("sorry, nothing like that here.");
     }
 
+    /**
+     * The upload rate limit of this share, share.<name>.upload.limit
+     * in bytes per second. Re-read on every call so it can be changed
+     * at runtime.
+     */
+    public TokenBucket getUploadLimiter() {
+        
+        uploadLimiter.setRate(gw.getConfigInt("share." + name + ".upload.limit", 0));
+        return uploadLimiter;
+    }
+
     public void uploadComplete(DataUploader du) {
 
         log.info("data upload complete.");
@@ -1559,6 +1956,14 @@ public class ShareModel
     }
 
     public boolean requestDataBlock(User contact, DataID dataId, long start, long finish) {
+        return requestDataBlock(contact, dataId, start, finish, false);
+    }
+
+    /**
+     * @param interactive whether a client is waiting for the data, in
+     * which case the peer should prioritize it over prefetches
+     */
+    public boolean requestDataBlock(User contact, DataID dataId, long start, long finish, boolean interactive) {
         log.info("requesting data for " + dataId + " bytes " + start + ":" + finish);
 
         // hmm.. this might be optimized at some point into a
@@ -1572,6 +1977,7 @@ public class ShareModel
                 dos.writeUTF(dataId.toString());
                 dos.writeLong(start);
                 dos.writeLong(finish);
+                dos.writeBoolean(interactive);
                 dos.close();
                 sent = true;
             }
@@ -1618,6 +2024,14 @@ public class ShareModel
         return sent;
     }
 
+    /**
+     * The downloader of a fragment, for the downloader putting the
+     * data together.
+     */
+    public DataDownloader getFragmentDownloader(DataID fid) {
+        return getDownloader(fid, true);
+    }
+
     public File downloadComplete(DataDownloader dd, File file) {
 
         // get id, get file, move everything into the store!
@@ -1631,7 +2045,12 @@ public class ShareModel
         // ok.. now we should also check whether the checksum matches!
         log.info("the download is now complete! located at " + file);
         downloaders.remove(dd.dataId);
-        return store.importFile(dd.dataId, file);
+        File ret = store.importFile(dd.dataId, file);
+
+        // the fragments we keep that no one had
+        if (codedPins.containsKey(dd.dataId))
+            queueMissingFragments(dd.dataId);
+        return ret;
     }
 
     private DataDownloader getDownloader(DataID id, boolean create) {
@@ -1640,7 +2059,7 @@ public class ShareModel
         synchronized (downloaders) {
             dl = downloaders.get(id);
             if (dl == null && create) {
-                dl = new DataDownloader(id, this);
+                dl = new DataDownloader(id, this, getFetchScheme(id));
                 downloaders.put(id, dl);
                 log.debug("created a new downloader for data id " + id);
             }
@@ -0,0 +1,423 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.LocalGateway;
+import fi.hip.sicxoss.util.HierarchicalProperties;
+
+/**
+ * TieredDataStore
+ *
+ * The MultiStoreManager envisioned in DataStore: a small, fast store
+ * (on an SSD) as a cache over a large, slow one (on a disk) that
+ * holds everything.
+ *
+ * New data is written to the hot tier, pinned there, and copied to
+ * the cold one in the background (write-back), after which it is
+ * just cached. Reads are served from the hot tier if it has the
+ * data, and otherwise from the cold one while the data is copied up
+ * (promoted) for the next time. The use counters of the shares are
+ * kept by the cold tier; the hot one drops what it has to by its own
+ * quota, least recently used first.
+ *
+ * The tiers are DiskDataStores, in the locations and with the quotas
+ * given in the store's hot.* and cold.* properties. The cold one may
+ * also be an ObjectDataStore (cold.type object).
+ * @author koskela
+ */
+public class TieredDataStore
+    implements DataStore {
+
+    // how long a failed demotion waits before it is tried again
+    public static final int DEMOTION_RETRY = 30 * 1000;
+
+    private Logger log;
+
+    private String name;
+    private DiskDataStore hot;
+    private DataStore cold;
+
+    // the copying between the tiers. demotions go first, they are
+    // what keeps the data in the hot tier pinned
+    private LinkedBlockingQueue<DataID> demotions;
+    private LinkedBlockingQueue<DataID> promotions;
+    private Set<DataID> queued;
+    private Thread mover;
+    private Timer retries;
+    private volatile boolean running;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong promoted;
+    private AtomicLong demoted;
+
+    public TieredDataStore(String name) {
+        this.log = Logger.getLogger(getClass().getName() + ":" + name);
+        this.name = name;
+        this.demotions = new LinkedBlockingQueue<DataID>();
+        this.promotions = new LinkedBlockingQueue<DataID>();
+        this.queued = Collections.newSetFromMap(new ConcurrentHashMap<DataID, Boolean>());
+        this.running = false;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.promoted = new AtomicLong();
+        this.demoted = new AtomicLong();
+    }
+
+    @Override
+    public String toString() {
+        return "DataStore " + name + ", hot " + hot + ", cold " + cold + ", " +
+            hits + " hits, " + misses + " misses";
+    }
+
+    /* the properties of a tier. linked to the store's, if we can */
+    private static Properties getTierProperties(Properties p, String tier) {
+        if (p instanceof HierarchicalProperties)
+            return ((HierarchicalProperties)p).getChildren(tier);
+
+        Properties ret = new Properties();
+        for (String k : p.stringPropertyNames())
+            if (k.startsWith(tier + "."))
+                ret.setProperty(k.substring(tier.length() + 1), p.getProperty(k));
+        return ret;
+    }
+
+    /* the cold tier, of the type in its properties */
+    private DataStore createColdTier(Properties cp)
+        throws Exception {
+
+        String t = cp.getProperty("type");
+        if (t == null || t.equals("disk"))
+            return new DiskDataStore(name + ":cold");
+        else if (t.equals("object"))
+            return new ObjectDataStore(name + ":cold");
+        throw new Exception("unknown type for the cold tier of " + name + ": " + t);
+    }
+
+    /**
+     * Inits a new, empty store. The cold tier goes to the given
+     * path, the hot one to the hot.location property.
+     * @param hotQuota the bytes the hot tier strives to keep to
+     */
+    public void init(String path, Properties p, long hotQuota, LocalGateway gw)
+        throws Exception {
+
+        String hotPath = p.getProperty("hot.location");
+        if (hotPath == null)
+            throw new Exception("no location for the hot tier of " + name);
+
+        Properties hp = getTierProperties(p, "hot");
+        Properties cp = getTierProperties(p, "cold");
+        hot = new DiskDataStore(name + ":hot");
+        hot.init(hotPath, hp, gw);
+        cold = createColdTier(cp);
+        if (cold instanceof ObjectDataStore)
+            ((ObjectDataStore)cold).init(path, cp, gw);
+        else
+            ((DiskDataStore)cold).init(path, cp, gw);
+
+        // what is in the hot tier is in the cold one too, so it
+        // may go as soon as it is released
+        hp.setProperty("quota_optimal", "" + hotQuota);
+        hp.setProperty("grace_period", "0");
+        hot.setQuota(-1, hotQuota);
+        hot.setGracePeriod(0);
+    }
+
+    /* from datastore */
+
+    @Override
+    public void load(String path, Properties p, LocalGateway gw)
+        throws Exception {
+
+        String hotPath = p.getProperty("hot.location");
+        if (hotPath == null)
+            throw new Exception("no location for the hot tier of " + name);
+
+        hot = new DiskDataStore(name + ":hot");
+        hot.load(hotPath, getTierProperties(p, "hot"), gw);
+        Properties cp = getTierProperties(p, "cold");
+        cold = createColdTier(cp);
+        cold.load(path, cp, gw);
+    }
+
+    @Override
+    public synchronized void start()
+        throws Exception {
+
+        if (running)
+            return;
+        hot.start();
+        cold.start();
+
+        // what did not make it down before we stopped is pinned, and
+        // what did is not (we may have stopped in between)
+        for (DataID id : hot.getStoredIds()) {
+            if (!cold.hasData(id, 0, id.getLength())) {
+                if (hot.getDataTracker(id).getUseCounter() < 1)
+                    hot.acquire(id);
+                queueDemotion(id);
+            } else
+                hot.unpin(id);
+        }
+
+        running = true;
+        retries = new Timer("tier mover retries for " + name, true);
+        mover = new Thread("tier mover for " + name) {
+                public void run() {
+                    moveLoop();
+                }
+            };
+        mover.setDaemon(true);
+        mover.start();
+    }
+
+    @Override
+    public void stop() {
+
+        synchronized (this) {
+            running = false;
+            if (mover != null)
+                mover.interrupt();
+            if (retries != null)
+                retries.cancel();
+            retries = null;
+        }
+        try {
+            if (mover != null)
+                mover.join(5000);
+        } catch (InterruptedException ex) {
+        }
+
+        // the new data has to make it down
+        DataID id;
+        while ((id = demotions.poll()) != null)
+            demote(id);
+
+        hot.stop();
+        cold.stop();
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public void deleteStore() {
+        stop();
+        hot.deleteStore();
+        cold.deleteStore();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getPromoted() {
+        return promoted.get();
+    }
+
+    public long getDemoted() {
+        return demoted.get();
+    }
+
+    private void queueDemotion(DataID id) {
+        if (queued.add(id))
+            demotions.add(id);
+    }
+
+    private void queuePromotion(DataID id) {
+        if (queued.add(id))
+            promotions.add(id);
+    }
+
+    /* tries a demotion that failed again in a while. if we are
+     * stopping, it is left for the next start */
+    private synchronized void retryDemotion(final DataID id) {
+
+        if (retries == null)
+            return;
+        queued.add(id);
+        retries.schedule(new TimerTask() {
+                public void run() {
+                    demotions.add(id);
+                }
+            }, DEMOTION_RETRY);
+    }
+
+    private void moveLoop() {
+
+        while (running) {
+            try {
+                DataID id = demotions.poll();
+                if (id != null) {
+                    demote(id);
+                    continue;
+                }
+                id = promotions.poll(1, TimeUnit.SECONDS);
+                if (id != null)
+                    promote(id);
+            } catch (InterruptedException ex) {
+                break;
+            } catch (Exception ex) {
+                log.warn("error moving data between the tiers: " + ex);
+            }
+        }
+    }
+
+    /* copies new data to the cold tier, and unpins it in the
+     * hot. if that fails, it is tried again later */
+    private void demote(DataID id) {
+
+        boolean done = false;
+        try {
+            if (!cold.hasData(id, 0, id.getLength())) {
+                InputStream in = hot.getStream(id, 0, id.getLength());
+                if (in == null) {
+                    log.error("lost " + id + " before it made it to the cold tier");
+                    hot.unpin(id);
+                    done = true;
+                    return;
+                }
+                DataID got = cold.store(in, id.getLength());
+                if (got == null || !id.equals(got)) {
+                    log.error("the copy of " + id + " in the cold tier came out as " + got);
+                    return;
+                }
+            }
+            // stored more than once meanwhile, it was pinned as many
+            // times
+            hot.unpin(id);
+            demoted.incrementAndGet();
+            done = true;
+        } catch (Exception ex) {
+            log.warn("error demoting " + id + ": " + ex);
+        } finally {
+            queued.remove(id);
+            if (!done)
+                retryDemotion(id);
+        }
+    }
+
+    /* copies data read from the cold tier to the hot one */
+    private void promote(DataID id) {
+
+        try {
+            if (hot.hasData(id, 0, id.getLength()))
+                return;
+            InputStream in = cold.getStream(id, 0, id.getLength());
+            if (in == null)
+                return;
+            DataID got = hot.store(in, id.getLength());
+            if (id.equals(got))
+                promoted.incrementAndGet();
+            else
+                log.warn("the copy of " + id + " in the hot tier came out as " + got);
+        } catch (Exception ex) {
+            log.warn("error promoting " + id + ": " + ex);
+        } finally {
+            queued.remove(id);
+        }
+    }
+
+    @Override
+    public DataID store(InputStream in, long length)
+        throws Exception {
+
+        // pinned until it is in the cold tier
+        DataID ret = hot.store(in, length, true);
+        if (ret != null)
+            queueDemotion(ret);
+        return ret;
+    }
+
+    @Override
+    public File importFile(DataID id, File file) {
+
+        File ret = hot.importFile(id, file, true);
+        queueDemotion(id);
+        return ret;
+    }
+
+    @Override
+    public void discard(DataID id) {
+        hot.discard(id);
+        cold.discard(id);
+    }
+
+    @Override
+    public void release(DataID id) {
+        cold.release(id);
+    }
+
+    @Override
+    public void acquire(DataID id) {
+        cold.acquire(id);
+    }
+
+    @Override
+    public void initBatchUpdate() {
+        cold.initBatchUpdate();
+    }
+
+    @Override
+    public void batchUpdateComplete() {
+        cold.batchUpdateComplete();
+    }
+
+    @Override
+    public InputStream getStream(DataID id, long start, long finish)
+        throws Exception {
+
+        InputStream ret = hot.getStream(id, start, finish);
+        if (ret != null) {
+            hits.incrementAndGet();
+            return ret;
+        }
+
+        misses.incrementAndGet();
+        ret = cold.getStream(id, start, finish);
+        if (ret != null)
+            queuePromotion(id);
+        return ret;
+    }
+
+    @Override
+    public boolean hasData(DataID id, long start, long finish) {
+        return hot.hasData(id, start, finish) || cold.hasData(id, start, finish);
+    }
+
+    @Override
+    public DataTracker getDataTracker(DataID id) {
+        return cold.getDataTracker(id);
+    }
+}
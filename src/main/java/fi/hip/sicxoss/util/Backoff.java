@@ -0,0 +1,86 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.util;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is drawn
+ * from [base, 3 * the previous one], capped. Clients that lost their
+ * connection at the same moment (a server restart) spread out right
+ * from the first retry instead of coming back in lockstep.
+ *
+ * The server may tell when to come back (a retry-after hint); the
+ * next delay is then at least that.
+ * @author koskela
+ */
+public class Backoff {
+
+    private long base;
+    private long cap;
+    private long prev;
+    private long hint;
+    private Random random;
+
+    /**
+     * @param base the shortest delay (ms)
+     * @param cap the longest delay (ms)
+     */
+    public Backoff(long base, long cap) {
+        this.base = base;
+        this.cap = Math.max(base, cap);
+        this.random = new Random();
+        reset();
+    }
+
+    /** the delay (ms) before the next attempt */
+    public synchronized long next() {
+
+        long upper = Math.min(cap, prev * 3);
+        long ret = base;
+        if (upper > base)
+            ret += (long)(random.nextDouble() * (upper - base));
+        prev = ret;
+
+        if (hint > ret)
+            ret = hint;
+        hint = 0;
+        return ret;
+    }
+
+    /** we got through, start over */
+    public synchronized void reset() {
+        prev = base;
+        hint = 0;
+    }
+
+    /**
+     * The server's hint of how long (ms) to wait. Applies to the
+     * next delay only, and is kept within [0, cap]: the hint may
+     * come before the server has proven who it is.
+     */
+    public synchronized void setHint(long millis) {
+        hint = Math.max(0, Math.min(cap, millis));
+    }
+
+    public String toString() {
+        return "backoff " + base + ".." + cap + "ms";
+    }
+}
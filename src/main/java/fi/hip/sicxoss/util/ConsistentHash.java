@@ -0,0 +1,125 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.util;
+
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A consistent hash ring. Keys (user ids) are mapped to nodes so
+ * that adding or removing a node moves only the keys of that node.
+ * Each node is put on the ring a number of times (as 'virtual
+ * nodes') to even out the load.
+ *
+ * The lookup cluster uses this to decide which node a user belongs
+ * to, and the gateways to decide which of the lookup servers to
+ * connect to; both hash the same node names, so they agree.
+ * @author koskela
+ */
+public class ConsistentHash<T> {
+
+    public static final int DEFAULT_REPLICAS = 100;
+
+    private TreeMap<Long, T> ring;
+    private int replicas;
+
+    public ConsistentHash() {
+        this(DEFAULT_REPLICAS);
+    }
+
+    public ConsistentHash(int replicas) {
+        this.replicas = replicas;
+        this.ring = new TreeMap<Long, T>();
+    }
+
+    public ConsistentHash(Collection<T> nodes) {
+        this();
+        for (T node : nodes)
+            add(node);
+    }
+
+    /* the first 8 bytes of the md5 */
+    private static long hash(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] d = md.digest(key.getBytes("UTF-8"));
+            long ret = 0;
+            for (int i = 0; i < 8; i++)
+                ret = (ret << 8) | (d[i] & 0xff);
+            return ret;
+        } catch (Exception ex) {
+            // md5 is always there
+            return key.hashCode();
+        }
+    }
+
+    public synchronized void add(T node) {
+        for (int i = 0; i < replicas; i++)
+            ring.put(hash(node.toString() + "#" + i), node);
+    }
+
+    public synchronized void remove(T node) {
+        for (int i = 0; i < replicas; i++) {
+            long h = hash(node.toString() + "#" + i);
+            if (node.equals(ring.get(h)))
+                ring.remove(h);
+        }
+    }
+
+    /**
+     * Returns the node the key belongs to, null if the ring is empty.
+     */
+    public T get(String key) {
+        List<T> ret = get(key, 1);
+        return (ret.size() > 0? ret.get(0) : null);
+    }
+
+    /**
+     * Returns (at most) the given number of distinct nodes for the
+     * key, the owner first and then the ones following it on the
+     * ring.
+     */
+    public synchronized List<T> get(String key, int count) {
+
+        List<T> ret = new ArrayList<T>();
+        if (ring.isEmpty())
+            return ret;
+
+        long h = hash(key);
+        Iterator<T> i = ring.tailMap(h).values().iterator();
+        boolean wrapped = false;
+        while (ret.size() < count) {
+            if (!i.hasNext()) {
+                if (wrapped)
+                    break;
+                i = ring.values().iterator();
+                wrapped = true;
+            }
+            T node = i.next();
+            if (!ret.contains(node))
+                ret.add(node);
+        }
+        return ret;
+    }
+
+    public synchronized Set<T> getNodes() {
+        return new HashSet<T>(ring.values());
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.util;
+
+import java.util.Arrays;
+
+/**
+ * A systematic Reed-Solomon code over GF(2^8): k data shards are
+ * extended with m parity shards so that any k of the k + m are
+ * enough to get the data shards back. The data shards are kept as
+ * they are, the parity ones are rows of a Cauchy matrix times the
+ * data, which keeps every k x k submatrix of the whole invertible.
+ *
+ * Works a byte position at a time, on equally long shards; the
+ * callers do the splitting and padding.
+ * @author koskela
+ */
+public class ReedSolomon {
+
+    // the field, x^8 + x^4 + x^3 + x^2 + 1
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x > 255)
+                x ^= 0x11d;
+        }
+        for (int i = 255; i < EXP.length; i++)
+            EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++)
+            for (int b = 1; b < 256; b++)
+                MUL[a][b] = (byte)EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inv(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    private int k;
+    private int m;
+
+    // m x k, the parity rows
+    private int[][] parity;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256)
+            throw new IllegalArgumentException("bad shard counts " + dataShards + "+" + parityShards);
+
+        this.k = dataShards;
+        this.m = parityShards;
+        this.parity = new int[m][k];
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < k; j++)
+                parity[i][j] = inv((k + i) ^ j);
+    }
+
+    public int getDataShards() {
+        return k;
+    }
+
+    public int getParityShards() {
+        return m;
+    }
+
+    /* out ^= c * in, for len bytes */
+    private static void mulAdd(int c, byte[] in, byte[] out, int len) {
+
+        if (c == 0)
+            return;
+        if (c == 1) {
+            for (int p = 0; p < len; p++)
+                out[p] ^= in[p];
+        } else {
+            byte[] row = MUL[c];
+            for (int p = 0; p < len; p++)
+                out[p] ^= row[in[p] & 0xff];
+        }
+    }
+
+    /**
+     * Computes the parity shards (k .. k + m - 1) from the first len
+     * bytes of the data shards (0 .. k - 1).
+     */
+    public void encode(byte[][] shards, int len) {
+
+        for (int i = 0; i < m; i++) {
+            byte[] out = shards[k + i];
+            Arrays.fill(out, 0, len, (byte)0);
+            for (int j = 0; j < k; j++)
+                mulAdd(parity[i][j], shards[j], out, len);
+        }
+    }
+
+    /* the row of the whole (k + m) x k matrix for a shard */
+    private int[] getRow(int shard) {
+
+        if (shard >= k)
+            return parity[shard - k].clone();
+        int[] ret = new int[k];
+        ret[shard] = 1;
+        return ret;
+    }
+
+    /* inverts the matrix with gauss-jordan, null if it is singular */
+    private static int[][] invert(int[][] a) {
+
+        int n = a.length;
+        int[][] ret = new int[n][n];
+        for (int i = 0; i < n; i++)
+            ret[i][i] = 1;
+
+        for (int c = 0; c < n; c++) {
+            int p = c;
+            while (p < n && a[p][c] == 0)
+                p++;
+            if (p == n)
+                return null;
+            int[] t = a[c]; a[c] = a[p]; a[p] = t;
+            t = ret[c]; ret[c] = ret[p]; ret[p] = t;
+
+            int f = inv(a[c][c]);
+            for (int j = 0; j < n; j++) {
+                a[c][j] = mul(a[c][j], f);
+                ret[c][j] = mul(ret[c][j], f);
+            }
+            for (int r = 0; r < n; r++) {
+                int g = a[r][c];
+                if (r == c || g == 0)
+                    continue;
+                for (int j = 0; j < n; j++) {
+                    a[r][j] ^= mul(g, a[c][j]);
+                    ret[r][j] ^= mul(g, ret[c][j]);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the matrix that turns the given k shards back into the
+     * data shards, for decode().
+     * @param present the indexes of the k shards we have
+     */
+    public int[][] getDecoder(int[] present) {
+
+        if (present.length != k)
+            throw new IllegalArgumentException("need " + k + " shards, not " + present.length);
+        int[][] a = new int[k][];
+        for (int r = 0; r < k; r++)
+            a[r] = getRow(present[r]);
+        int[][] ret = invert(a);
+        if (ret == null)
+            throw new IllegalArgumentException("the shards given are not independent");
+        return ret;
+    }
+
+    /**
+     * Fills in the data shards that are missing from the first len
+     * bytes of the ones we have.
+     * @param present the indexes of the k shards we have
+     * @param decoder from getDecoder(present)
+     */
+    public void decode(byte[][] shards, int[] present, int[][] decoder, int len) {
+
+        boolean[] have = new boolean[k + m];
+        for (int s : present)
+            have[s] = true;
+
+        for (int d = 0; d < k; d++) {
+            if (have[d])
+                continue;
+            byte[] out = shards[d];
+            Arrays.fill(out, 0, len, (byte)0);
+            for (int r = 0; r < k; r++)
+                mulAdd(decoder[d][r], shards[present[r]], out, len);
+        }
+    }
+}
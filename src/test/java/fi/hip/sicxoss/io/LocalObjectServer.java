@@ -0,0 +1,352 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.security.MessageDigest;
+
+import com.sun.net.httpserver.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * LocalObjectServer
+ *
+ * A stand-in for an S3-compatible object storage, for trying out the
+ * object stores without one: the objects are files under a
+ * directory, one subdirectory per bucket. Does what the
+ * ObjectStorageClient needs; single and multipart uploads (with
+ * copied parts), ranged gets, heads, copies and deletes. The
+ * signatures are not checked. Usage:
+ *
+ *   LocalObjectServer [port] [directory]
+ * @author koskela
+ */
+public class LocalObjectServer
+    implements HttpHandler {
+
+    private static final Logger log = Logger.getLogger(LocalObjectServer.class);
+
+    private static final String UPLOADS = ".uploads";
+
+    private File root;
+    private HttpServer server;
+    private ExecutorService executor;
+    private AtomicLong uploadIds = new AtomicLong(System.currentTimeMillis());
+
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong bytesIn = new AtomicLong();
+    private AtomicLong bytesOut = new AtomicLong();
+
+    public LocalObjectServer(File root) {
+        this.root = root;
+    }
+
+    @Override
+    public String toString() {
+        return "object server at " + (server != null? server.getAddress() : null) + " for " + root + ", " +
+            requests + " requests, " + bytesIn + " bytes in, " + bytesOut + " bytes out";
+    }
+
+    /**
+     * Starts serving on the port (0 for any), returns the endpoint.
+     */
+    public String start(int port, int threads)
+        throws IOException {
+
+        root.mkdirs();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        log.info("serving objects from " + root + " at " + server.getAddress());
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    private static Map<String, String> parseQuery(String q)
+        throws UnsupportedEncodingException {
+
+        Map<String, String> ret = new HashMap<String, String>();
+        if (q == null)
+            return ret;
+        for (String kv : q.split("&")) {
+            int p = kv.indexOf('=');
+            if (p < 0)
+                ret.put(URLDecoder.decode(kv, "UTF-8"), "");
+            else
+                ret.put(URLDecoder.decode(kv.substring(0, p), "UTF-8"), URLDecoder.decode(kv.substring(p + 1), "UTF-8"));
+        }
+        return ret;
+    }
+
+    /* the file of /bucket/key, if a valid one */
+    private File getFile(String path) {
+
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        if (path.indexOf('/') < 1 || path.contains("..") || path.startsWith(UPLOADS))
+            return null;
+        return new File(root, path);
+    }
+
+    private static String etag(File f)
+        throws Exception {
+
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int r;
+            while ((r = in.read(buf)) > -1)
+                md.update(buf, 0, r);
+        } finally {
+            in.close();
+        }
+        return "\"" + DataUtil.toHex(md.digest()) + "\"";
+    }
+
+    private void respond(HttpExchange ex, int code, String xml)
+        throws IOException {
+
+        byte[] body = (xml != null? ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes("UTF-8") : new byte[0]);
+
+        // the jdk server drops the connection after a response without
+        // a body (a head, or an empty one), so the client should not
+        // try to reuse it
+        if (ex.getRequestMethod().equals("HEAD") || body.length == 0)
+            ex.getResponseHeaders().set("Connection", "close");
+        if (xml != null)
+            ex.getResponseHeaders().set("Content-Type", "application/xml");
+        if (ex.getRequestMethod().equals("HEAD") || body.length == 0) {
+            ex.sendResponseHeaders(code, -1);
+        } else {
+            ex.sendResponseHeaders(code, body.length);
+            ex.getResponseBody().write(body);
+        }
+        ex.close();
+    }
+
+    private void error(HttpExchange ex, int code, String err, String msg)
+        throws IOException {
+        respond(ex, code, "<Error><Code>" + err + "</Code><Message>" + msg + "</Message></Error>");
+    }
+
+    /* writes what comes in to the file, through a temp one */
+    private void receive(InputStream in, File f, boolean append)
+        throws IOException {
+
+        f.getParentFile().mkdirs();
+        File tmp = (append? f : new File(f.getPath() + ".tmp" + Thread.currentThread().getId()));
+        OutputStream out = new FileOutputStream(tmp, append);
+        try {
+            bytesIn.addAndGet(DataUtil.transfer(in, out));
+        } finally {
+            out.close();
+        }
+        if (!append && !tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("could not store " + f);
+        }
+    }
+
+    private static void copyRange(File from, long start, long finish, File to)
+        throws IOException {
+
+        to.getParentFile().mkdirs();
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            in.getChannel().transferTo(start, finish - start, out.getChannel());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    public void handle(HttpExchange ex)
+        throws IOException {
+
+        requests.incrementAndGet();
+        try {
+            String method = ex.getRequestMethod();
+            File f = getFile(ex.getRequestURI().getPath());
+            Map<String, String> q = parseQuery(ex.getRequestURI().getRawQuery());
+            if (f == null) {
+                error(ex, 400, "InvalidRequest", "no bucket and key");
+                return;
+            }
+
+            String uploadId = q.get("uploadId");
+            if (uploadId != null && (uploadId.contains("/") || uploadId.contains("..")))
+                uploadId = null;
+            File upload = (uploadId != null? new File(new File(root, UPLOADS), uploadId) : null);
+            if (q.containsKey("uploadId") && (upload == null || !upload.isDirectory())) {
+                error(ex, 404, "NoSuchUpload", "no such upload");
+                return;
+            }
+
+            if (method.equals("POST") && q.containsKey("uploads")) {
+                String id = "u" + uploadIds.incrementAndGet();
+                new File(new File(root, UPLOADS), id).mkdirs();
+                respond(ex, 200, "<InitiateMultipartUploadResult><UploadId>" + id + "</UploadId></InitiateMultipartUploadResult>");
+
+            } else if (method.equals("POST") && upload != null) {
+                String xml = new String(DataUtil.toBuf(ex.getRequestBody()), "UTF-8");
+                File tmp = new File(upload, "complete");
+                tmp.delete();
+                int p = 0;
+                while ((p = xml.indexOf("<PartNumber>", p)) > -1) {
+                    p += "<PartNumber>".length();
+                    String n = xml.substring(p, xml.indexOf("</PartNumber>", p)).trim();
+                    File part = new File(upload, n);
+                    if (!part.exists()) {
+                        error(ex, 400, "InvalidPart", "no part " + n);
+                        return;
+                    }
+                    InputStream in = new FileInputStream(part);
+                    try {
+                        receive(in, tmp, true);
+                    } finally {
+                        in.close();
+                    }
+                }
+                f.getParentFile().mkdirs();
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    error(ex, 500, "InternalError", "could not complete");
+                    return;
+                }
+                for (File part : upload.listFiles())
+                    part.delete();
+                upload.delete();
+                respond(ex, 200, "<CompleteMultipartUploadResult><ETag>" + etag(f).replace("\"", "&quot;") + "</ETag></CompleteMultipartUploadResult>");
+
+            } else if (method.equals("PUT")) {
+                String source = ex.getRequestHeaders().getFirst("x-amz-copy-source");
+                File target = (upload != null? new File(upload, "" + Integer.parseInt(q.get("partNumber"))) : f);
+                if (source != null) {
+                    File from = getFile(URLDecoder.decode(source, "UTF-8"));
+                    if (from == null || !from.isFile()) {
+                        error(ex, 404, "NoSuchKey", "no such source");
+                        return;
+                    }
+                    long start = 0;
+                    long finish = from.length();
+                    String range = ex.getRequestHeaders().getFirst("x-amz-copy-source-range");
+                    if (range != null) {
+                        String[] r = range.substring(range.indexOf('=') + 1).split("-");
+                        start = Long.parseLong(r[0]);
+                        finish = Long.parseLong(r[1]) + 1;
+                    }
+                    File tmp = new File(target.getPath() + ".tmp" + Thread.currentThread().getId());
+                    copyRange(from, start, finish, tmp);
+                    target.delete();
+                    tmp.renameTo(target);
+                    String tag = etag(target).replace("\"", "&quot;");
+                    respond(ex, 200, (upload != null? "<CopyPartResult><ETag>" + tag + "</ETag></CopyPartResult>" :
+                                      "<CopyObjectResult><ETag>" + tag + "</ETag></CopyObjectResult>"));
+                } else {
+                    receive(ex.getRequestBody(), target, false);
+                    ex.getResponseHeaders().set("ETag", etag(target));
+                    respond(ex, 200, null);
+                }
+
+            } else if (method.equals("DELETE")) {
+                if (upload != null) {
+                    for (File part : upload.listFiles())
+                        part.delete();
+                    upload.delete();
+                } else
+                    f.delete();
+                respond(ex, 204, null);
+
+            } else if (method.equals("GET") || method.equals("HEAD")) {
+                if (!f.isFile()) {
+                    error(ex, 404, "NoSuchKey", "no such key");
+                    return;
+                }
+                long length = f.length();
+                long start = 0;
+                long finish = length;
+                String range = ex.getRequestHeaders().getFirst("Range");
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] r = range.substring(6).split("-");
+                    start = Long.parseLong(r[0]);
+                    if (r.length > 1 && r[1].length() > 0)
+                        finish = Math.min(length, Long.parseLong(r[1]) + 1);
+                    if (start >= finish && length > 0) {
+                        error(ex, 416, "InvalidRange", "bad range");
+                        return;
+                    }
+                    ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (finish - 1) + "/" + length);
+                }
+                int code = (range != null? 206 : 200);
+                if (method.equals("HEAD")) {
+                    ex.getResponseHeaders().set("Content-Length", "" + length);
+                    ex.getResponseHeaders().set("Connection", "close");
+                    ex.sendResponseHeaders(code, -1);
+                } else {
+                    ex.sendResponseHeaders(code, (finish - start > 0? finish - start : -1));
+                    FileInputStream in = new FileInputStream(f);
+                    try {
+                        in.getChannel().position(start);
+                        bytesOut.addAndGet(DataUtil.transfer(new LimitedInputStream(in, finish - start), ex.getResponseBody()));
+                    } finally {
+                        in.close();
+                    }
+                }
+                ex.close();
+
+            } else
+                error(ex, 405, "MethodNotAllowed", method);
+        } catch (Exception e) {
+            log.warn("error serving " + ex.getRequestMethod() + " " + ex.getRequestURI() + ": " + e);
+            try {
+                error(ex, 500, "InternalError", "" + e);
+            } catch (Exception e2) {
+                ex.close();
+            }
+        }
+    }
+
+    public static void main(String[] args)
+        throws Exception {
+
+        int port = (args.length > 0? Integer.parseInt(args[0]) : 9000);
+        File dir = new File(args.length > 1? args[1] : "objects");
+        LocalObjectServer los = new LocalObjectServer(dir);
+        System.out.println("endpoint " + los.start(port, 16));
+    }
+}
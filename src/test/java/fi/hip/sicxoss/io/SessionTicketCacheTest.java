@@ -0,0 +1,87 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * SessionTicketCacheTest
+ *
+ * Checks that the proofs of a session ticket are bound to the role of
+ * the side proving it, both nonces and the TLS channel, so that a
+ * proof seen on one connection is no good on another, nor reflected
+ * back on the same one.
+ * @author koskela
+ */
+public class SessionTicketCacheTest {
+
+    private static final String I = SessionTicketCache.ROLE_INITIATOR;
+    private static final String A = SessionTicketCache.ROLE_ACCEPTOR;
+
+    private SessionTicketCache cache;
+    private SessionTicketCache.Ticket ticket;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        cache = new SessionTicketCache();
+        ticket = cache.create("a shared secret".getBytes(), "local", "user:peer", null);
+    }
+
+    @Test
+    public void testLookup() {
+
+        assertSame(ticket, cache.get(ticket.getId(), "local"));
+        assertSame(ticket, cache.getForPeer("local", "user:peer"));
+        assertNull(cache.get(ticket.getId(), "someone else"));
+        cache.remove(ticket);
+        assertNull(cache.get(ticket.getId(), "local"));
+    }
+
+    @Test
+    public void testProof()
+        throws Exception {
+
+        String proof = ticket.createProof(I, "n1", "n2", "tls");
+        assertTrue(ticket.checkProof(I, "n1", "n2", "tls", proof));
+
+        // the acceptor's proof is not the initiator's
+        assertFalse(ticket.checkProof(A, "n1", "n2", "tls", proof));
+        // the nonces are not interchangeable
+        assertFalse(ticket.checkProof(I, "n2", "n1", "tls", proof));
+        assertFalse(ticket.checkProof(I, "n1", "n3", "tls", proof));
+        // another channel
+        assertFalse(ticket.checkProof(I, "n1", "n2", "other", proof));
+        assertFalse(ticket.checkProof(I, "n1", "n2", null, proof));
+        // the fields are not just concatenated
+        assertFalse(ticket.checkProof(I, "n1n", "2", "tls", proof));
+    }
+
+    @Test
+    public void testOtherTicket()
+        throws Exception {
+
+        SessionTicketCache.Ticket other = cache.create("another secret".getBytes(), "local", "user:peer", null);
+        assertFalse(other.getId().equals(ticket.getId()));
+        assertFalse(other.checkProof(A, "n1", "n2", null, ticket.createProof(A, "n1", "n2", null)));
+    }
+}
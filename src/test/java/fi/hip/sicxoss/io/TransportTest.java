@@ -0,0 +1,326 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.io;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * TransportTest
+ *
+ * Sends data over the plaintext and TLS transports on the loopback
+ * interface and checks that it arrives intact, that reconnects resume
+ * the TLS session and that both ends of a TLS channel see the same
+ * channel binding. Run on its own, it compares the throughput of the
+ * two (see main).
+ * @author koskela
+ */
+public class TransportTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    /* a socket that digests what it gets */
+    private static class SinkHandler
+        extends DataSocketHandler {
+
+        private long received = 0;
+        private boolean connected = false;
+        private byte[] buf = new byte[CHUNK];
+        private MessageDigest md;
+
+        public SinkHandler(SocketChannel sc)
+            throws Exception {
+            super(sc);
+            md = MessageDigest.getInstance("SHA-1");
+        }
+
+        public SinkHandler(SocketAddress sa)
+            throws Exception {
+            super(sa);
+            md = MessageDigest.getInstance("SHA-1");
+        }
+
+        public synchronized long getReceived() {
+            return received;
+        }
+
+        public synchronized byte[] getDigest() {
+            return md.digest();
+        }
+
+        public synchronized boolean hasConnected() {
+            return connected;
+        }
+
+        public synchronized void gotData() {
+            int r;
+            while ((r = read(buf)) > 0) {
+                md.update(buf, 0, r);
+                received += r;
+            }
+            notifyAll();
+        }
+
+        public void gotClose() {}
+
+        public synchronized void gotConnected() {
+            connected = true;
+            notifyAll();
+        }
+
+        public void gotConnecting() {}
+
+        public synchronized void waitFor(long bytes)
+            throws Exception {
+            long until = System.currentTimeMillis() + 30000;
+            while (received < bytes && System.currentTimeMillis() < until)
+                wait(10);
+            assertEquals(bytes, received);
+        }
+    }
+
+    private NetworkEngine engine;
+    private ServerSocketHandler server;
+    private SSLContext serverCtx;
+    private SinkHandler accepted;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        engine = new NetworkEngine();
+        engine.init();
+        engine.setDaemon(true);
+        engine.start();
+
+        server = new ServerSocketHandler(new InetSocketAddress("127.0.0.1", 0)) {
+                public void gotAccept(SocketChannel sc)
+                    throws Exception {
+                    SinkHandler sh = new SinkHandler(sc);
+                    if (serverCtx != null)
+                        sh.enableTLS(serverCtx, false);
+                    setAccepted(sh);
+                    eng.addHandler(sh);
+                }
+            };
+        engine.addHandler(server);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private synchronized void setAccepted(SinkHandler sh) {
+        accepted = sh;
+        notifyAll();
+    }
+
+    private synchronized SinkHandler waitAccepted()
+        throws Exception {
+        long until = System.currentTimeMillis() + 10000;
+        while (accepted == null && System.currentTimeMillis() < until)
+            wait(100);
+        assertNotNull("no connection accepted", accepted);
+        SinkHandler ret = accepted;
+        accepted = null;
+        return ret;
+    }
+
+    private SinkHandler connect(SSLContext ctx)
+        throws Exception {
+
+        SinkHandler c = new SinkHandler(new InetSocketAddress("127.0.0.1", server.getLocalAddress().getPort()));
+        if (ctx != null)
+            c.enableTLS(ctx, true);
+        engine.addHandler(c);
+        synchronized (c) {
+            long until = System.currentTimeMillis() + 10000;
+            while (!c.hasConnected() && System.currentTimeMillis() < until)
+                c.wait(100);
+        }
+        assertTrue("could not connect", c.hasConnected());
+        return c;
+    }
+
+    /* sends random data from a new client and checks that it
+     * arrives. returns the time (ms) it took, the handshake excluded */
+    private long transfer(SSLContext ctx, long bytes)
+        throws Exception {
+
+        SinkHandler c = connect(ctx);
+        SinkHandler s = waitAccepted();
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        Random r = new Random(bytes);
+        long sent = 0;
+        long start = System.currentTimeMillis();
+        while (sent < bytes) {
+            // don't queue everything at once, keep a few chunks in flight
+            while (sent - s.getReceived() > 16 * CHUNK)
+                synchronized (s) { s.wait(10); }
+            // the socket queues the array as it is, without copying
+            byte[] data = new byte[CHUNK];
+            r.nextBytes(data);
+            md.update(data);
+            c.write(data);
+            sent += data.length;
+        }
+        s.waitFor(sent);
+        long ret = System.currentTimeMillis() - start;
+        assertArrayEquals(md.digest(), s.getDigest());
+        c.close();
+        s.close();
+        return ret;
+    }
+
+    @Test
+    public void testPlaintext()
+        throws Exception {
+
+        transfer(null, 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void testTLS()
+        throws Exception {
+
+        serverCtx = TLSLayer.createContext(null, null);
+        transfer(TLSLayer.createContext(null, null), 4 * 1024 * 1024);
+    }
+
+    /* a client context that counts the full handshakes, the ones
+     * where the server sends its certificate */
+    private static SSLContext countingContext(final int[] full)
+        throws Exception {
+
+        SSLContext ret = SSLContext.getInstance("TLS");
+        ret.init(null, new TrustManager[] { new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                    synchronized (full) {
+                        full[0]++;
+                    }
+                }
+                public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+            }}, null);
+        return ret;
+    }
+
+    @Test
+    public void testReconnects()
+        throws Exception {
+
+        serverCtx = TLSLayer.createContext(null, null);
+        int[] full = new int[1];
+        SSLContext ctx = countingContext(full);
+        for (int i = 0; i < 10; i++) {
+            SinkHandler c = connect(ctx);
+            SinkHandler s = waitAccepted();
+            c.write(new byte[16]);
+            s.waitFor(16);
+            // the server's reply comes after the session ticket
+            s.write(new byte[16]);
+            c.waitFor(16);
+            assertNotNull(c.getTLSSession());
+            c.close();
+            s.close();
+        }
+
+        // only the first one did the whole handshake
+        synchronized (full) {
+            assertEquals(1, full[0]);
+        }
+    }
+
+    @Test
+    public void testChannelBinding()
+        throws Exception {
+
+        serverCtx = TLSLayer.createContext(null, null);
+        SSLContext ctx = TLSLayer.createContext(null, null);
+
+        SinkHandler c = connect(ctx);
+        SinkHandler s = waitAccepted();
+        c.write(new byte[16]);
+        s.waitFor(16);
+        s.write(new byte[16]);
+        c.waitFor(16);
+
+        String binding = c.getChannelBinding();
+        assertNotNull(binding);
+        assertEquals(binding, s.getChannelBinding());
+        c.close();
+        s.close();
+
+        // a server with another certificate, like one in the middle
+        serverCtx = TLSLayer.createContext(null, null);
+        c = connect(ctx);
+        s = waitAccepted();
+        c.write(new byte[16]);
+        s.waitFor(16);
+        assertEquals(c.getChannelBinding(), s.getChannelBinding());
+        assertFalse(binding.equals(s.getChannelBinding()));
+        c.close();
+        s.close();
+
+        SinkHandler p = connect(null);
+        assertNull(p.getChannelBinding());
+        p.close();
+        waitAccepted().close();
+    }
+
+    /**
+     * Compares the throughput of the transports: sends the same
+     * payload (MB, 256 by default) over plaintext and TLS on the
+     * loopback interface and reports MB/s for both.
+     */
+    public static void main(String[] args)
+        throws Exception {
+
+        long bytes = (args.length > 0? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        TransportTest tt = new TransportTest();
+        tt.setUp();
+        SSLContext sctx = TLSLayer.createContext(null, null);
+        SSLContext ctx = TLSLayer.createContext(null, null);
+
+        // a round of each first, for the jit
+        tt.serverCtx = null;
+        tt.transfer(null, bytes / 8);
+        tt.serverCtx = sctx;
+        tt.transfer(ctx, bytes / 8);
+
+        tt.serverCtx = null;
+        long plain = tt.transfer(null, bytes);
+        tt.serverCtx = sctx;
+        long tls = tt.transfer(ctx, bytes);
+        System.out.println("plaintext: " + String.format("%.1f", bytes / (1024.0 * 1024.0) * 1000 / Math.max(plain, 1)) + " MB/s");
+        System.out.println("TLS: " + String.format("%.1f", bytes / (1024.0 * 1024.0) * 1000 / Math.max(tls, 1)) + " MB/s");
+        tt.tearDown();
+        System.exit(0);
+    }
+}
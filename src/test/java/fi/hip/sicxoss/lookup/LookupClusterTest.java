@@ -0,0 +1,160 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.lookup;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.ident.LocalUser;
+
+/**
+ * LookupClusterTest
+ *
+ * Runs a cluster of lookup servers in one JVM: checks that the nodes
+ * link up, that FORWARDs and streams get between users connected to
+ * different nodes, that a node without the shared secret can not join
+ * and that clustering is refused without a secret.
+ * @author koskela
+ */
+public class LookupClusterTest {
+
+    private static final String SECRET = "the cluster secret";
+    private static final int USERS = 30;
+
+    private static List<LocalUser> users;
+
+    @BeforeClass
+    public static void loadUsers()
+        throws Exception {
+
+        File keydir = new File(System.getProperty("java.io.tmpdir"), "sicxoss-test-keys");
+        keydir.mkdirs();
+        users = SimGateways.loadUsers(USERS, keydir.getPath());
+    }
+
+    /* the names of n nodes on free ports */
+    private static List<String> createNodes(int n)
+        throws Exception {
+
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < n; i++)
+            ret.add("127.0.0.1:" + SimGateways.getFreePort());
+        return ret;
+    }
+
+    private static LookupServer startNode(List<String> nodes, String self, String secret)
+        throws Exception {
+
+        LookupServer ls = SimGateways.startLookup(Integer.parseInt(self.substring(self.indexOf(':') + 1)));
+        ls.initCluster(nodes, self, secret);
+        ls.getCluster().setGossipInterval(1000);
+        return ls;
+    }
+
+    /* waits until each node has a link to all the others */
+    private static boolean waitLinked(List<LookupServer> servers, long timeout)
+        throws Exception {
+
+        long until = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < until) {
+            boolean all = true;
+            for (LookupServer ls : servers)
+                all &= ls.getCluster().getConnectedNodes().size() == servers.size() - 1;
+            if (all)
+                return true;
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    @Test
+    public void testForwards()
+        throws Exception {
+
+        List<String> nodes = createNodes(3);
+        List<LookupServer> servers = new ArrayList<LookupServer>();
+        for (String n : nodes)
+            servers.add(startNode(nodes, n, SECRET));
+        assertTrue("the nodes did not link up", waitLinked(servers, 15000));
+
+        // each user on a different node than its neighbours
+        SimGateways gws = new SimGateways();
+        gws.connect(users, nodes);
+        assertEquals(0, gws.failed.get());
+        assertEquals(USERS, gws.connected.get());
+
+        // the presence of the users gets around
+        for (LookupServer ls : servers)
+            for (LocalUser u : users) {
+                for (int i = 0; i < 50 && ls.getUserRegistration(u.getId()) == null; i++)
+                    Thread.sleep(100);
+                assertNotNull(ls.getUserRegistration(u.getId()));
+            }
+
+        gws.run(2, 100, 10);
+        gws.waitDelivered(10000);
+        assertTrue(gws.forwardsSent.get() > 0);
+        assertEquals(gws.forwardsSent.get(), gws.getLatencyCount());
+        assertEquals(gws.streamsSent.get(), gws.streamsReceived.get());
+        gws.close();
+    }
+
+    @Test
+    public void testWrongSecret()
+        throws Exception {
+
+        List<String> nodes = createNodes(3);
+        List<LookupServer> servers = new ArrayList<LookupServer>();
+        servers.add(startNode(nodes, nodes.get(0), SECRET));
+        servers.add(startNode(nodes, nodes.get(1), SECRET));
+        LookupServer rogue = startNode(nodes, nodes.get(2), "a guess");
+
+        long until = System.currentTimeMillis() + 15000;
+        while (System.currentTimeMillis() < until &&
+               !servers.get(0).getCluster().getConnectedNodes().contains(nodes.get(1)))
+            Thread.sleep(100);
+        assertEquals(Collections.singleton(nodes.get(1)), servers.get(0).getCluster().getConnectedNodes());
+
+        // give the rogue a few rounds of trying
+        Thread.sleep(5000);
+        assertTrue(rogue.getCluster().getConnectedNodes().isEmpty());
+        for (LookupServer ls : servers)
+            assertFalse(ls.getCluster().getConnectedNodes().contains(nodes.get(2)));
+    }
+
+    @Test
+    public void testNoSecret()
+        throws Exception {
+
+        List<String> nodes = createNodes(2);
+        LookupServer ls = SimGateways.startLookup(SimGateways.getFreePort());
+        for (String secret : new String[] { null, "" }) {
+            try {
+                ls.initCluster(nodes, nodes.get(0), secret);
+                fail("clustering without a secret");
+            } catch (Exception ex) {
+            }
+        }
+        assertNull(ls.getCluster());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.lookup;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.ident.LocalUser;
+
+/**
+ * LookupLoadTest
+ *
+ * Puts a lookup server under load with a number of simulated
+ * gateways, which send a mix of FORWARDs and streams to their
+ * contacts through it. Checks that everyone gets connected and that
+ * everything sent is delivered, and reports the rate of connecting,
+ * the latencies of the forwards, the throughput of the relayed
+ * streams and the heap used.
+ *
+ * As a test it does only a small run. The real load is generated by
+ * running it on its own:
+ *
+ *   LookupLoadTest [clients] [seconds] [messages/s] [stream %] [keydir] [lookup host:port]
+ *
+ * The keys of the users are generated once into keydir and re-used
+ * on later runs. Without a lookup address, a lookup server is started
+ * in this JVM (so the heap figures include the simulated clients as
+ * well). Note that each client takes two file descriptors with a
+ * local lookup; raise the limit (ulimit -n) for big runs.
+ * @author koskela
+ */
+public class LookupLoadTest {
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Runs the load against the lookup at the address, or one started
+     * here if null, and reports the figures.
+     */
+    public static SimGateways load(int count, int seconds, int rate, int streamPercent,
+                                   String keydir, String address)
+        throws Exception {
+
+        new File(keydir).mkdirs();
+        List<LocalUser> users = SimGateways.loadUsers(count, keydir);
+
+        long heapStart = usedHeap();
+        if (address == null) {
+            int port = SimGateways.getFreePort();
+            SimGateways.startLookup(port);
+            address = "127.0.0.1:" + port;
+        }
+
+        SimGateways gws = new SimGateways();
+        long time = gws.connect(users, Collections.singletonList(address));
+        long heapConnected = usedHeap();
+        System.out.println("connected " + gws.connected.get() + " clients (" + gws.failed.get() + " failed) in " + 
+                           time + " ms, " + String.format("%.1f", gws.connected.get() * 1000.0 / Math.max(time, 1)) + " connections/s");
+
+        gws.run(seconds, rate, streamPercent);
+        gws.waitDelivered(10000);
+        long heapEnd = usedHeap();
+
+        System.out.println("forwards: " + gws.forwardsSent.get() + " sent, " + gws.getLatencyCount() + " delivered");
+        System.out.println("forward latency: p50 " + String.format("%.2f", gws.getLatency(50)) +
+                           " ms, p90 " + String.format("%.2f", gws.getLatency(90)) +
+                           " ms, p99 " + String.format("%.2f", gws.getLatency(99)) +
+                           " ms, max " + String.format("%.2f", gws.getLatency(100)) + " ms");
+        System.out.println("streams: " + gws.streamsSent.get() + " sent, " + gws.streamsReceived.get() + " delivered, " +
+                           String.format("%.1f", gws.relayed.get() / (1024.0 * 1024.0) / seconds) + " MB/s relayed");
+        System.out.println("heap used: " + heapStart / (1024 * 1024) + " MB at start, " + 
+                           heapConnected / (1024 * 1024) + " MB connected, " + heapEnd / (1024 * 1024) + " MB at the end, " +
+                           String.format("%.1f", (heapConnected - heapStart) / 1024.0 / Math.max(gws.connected.get(), 1)) +
+                           " KB per client");
+        return gws;
+    }
+
+    @Test
+    public void testLoad()
+        throws Exception {
+
+        int count = 20;
+        File keydir = new File(System.getProperty("java.io.tmpdir"), "sicxoss-test-keys");
+        SimGateways gws = load(count, 1, 100, 5, keydir.getPath(), null);
+        assertEquals(0, gws.failed.get());
+        assertEquals(count, gws.connected.get());
+        assertTrue(gws.forwardsSent.get() > 0);
+        assertEquals(gws.forwardsSent.get(), gws.getLatencyCount());
+        assertEquals(gws.streamsSent.get(), gws.streamsReceived.get());
+        gws.close();
+    }
+
+    public static void main(String[] args)
+        throws Exception {
+
+        int count = (args.length > 0? Integer.parseInt(args[0]) : 1000);
+        int seconds = (args.length > 1? Integer.parseInt(args[1]) : 30);
+        int rate = (args.length > 2? Integer.parseInt(args[2]) : 1000);
+        int streamPercent = (args.length > 3? Integer.parseInt(args[3]) : 5);
+        String keydir = (args.length > 4? args[4] : "loadtest-keys");
+        String address = (args.length > 5? args[5] : null);
+
+        load(count, seconds, rate, streamPercent, keydir, address).close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,450 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.lookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.log4j.Logger;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.io.*;
+import fi.hip.sicxoss.ident.*;
+import fi.hip.sicxoss.io.message.*;
+
+/**
+ * NatPunchTest
+ *
+ * Tries out the hole punching between two peers that are both behind
+ * a (simulated) nat. The nats are loopback proxies: the peers connect
+ * to the lookup server through them, and they map each connection to
+ * a port of their own, as a real nat would. What comes in to a mapped
+ * port is passed on to the peer only if the peer has earlier sent
+ * something to where it comes from (address and port restricted
+ * filtering, the common kind); everything else is dropped.
+ *
+ * The peers get their mapped addresses from the lookup
+ * (NETWORK_MIRROR), exchange them with a PUNCH through the lookup,
+ * and punch with the HolePuncher. Checks that a direct connection
+ * does not get through the nats without punching, that one does
+ * with it, and that data gets through the punched connection.
+ * @author koskela
+ */
+public class NatPunchTest {
+
+    private static final Logger log = Logger.getLogger(NatPunchTest.class);
+
+    private static final int CHUNK = 32 * 1024;
+
+    // the simulated internet: the mappings of all the nats by their
+    // inside port, so a nat can tell where a connection really comes from
+    private static Hashtable<Integer, Mapping> mappings = new Hashtable<Integer, Mapping>();
+
+    private NetworkEngine engine;
+
+    /** a port mapping of a nat */
+    private static class Mapping {
+        public NatBox nat;
+        public int inside;
+        public int outside;
+        // where the inside has sent to, by the outside port
+        public Set<Integer> sentTo = Collections.synchronizedSet(new HashSet<Integer>());
+
+        public Mapping(NatBox nat, int inside, int outside) {
+            this.nat = nat;
+            this.inside = inside;
+            this.outside = outside;
+        }
+    }
+
+    /**
+     * The nat. Listens for the connections from its peer to the
+     * lookup, and maps each to a port of its own.
+     */
+    private static class NatBox
+        extends Thread {
+
+        private String name;
+        private ServerSocketChannel inside;
+        private InetSocketAddress server;
+        public AtomicInteger dropped = new AtomicInteger();
+        public AtomicInteger passed = new AtomicInteger();
+
+        public NatBox(String name, InetSocketAddress server)
+            throws Exception {
+            this.name = name;
+            this.server = server;
+            this.inside = ServerSocketChannel.open();
+            inside.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            setDaemon(true);
+        }
+
+        public String getAddress() {
+            return "127.0.0.1:" + inside.socket().getLocalPort();
+        }
+
+        public void run() {
+            try {
+                while (true)
+                    map(inside.accept());
+            } catch (Exception ex) {
+                log.warn(name + ": " + ex);
+            }
+        }
+
+        /* maps an outgoing connection to a port of ours */
+        private void map(SocketChannel in)
+            throws Exception {
+
+            SocketChannel out = SocketChannel.open();
+            SocketHandler.setPortReuse(out);
+            out.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            out.connect(server);
+
+            final Mapping m = new Mapping(this, in.socket().getPort(), out.socket().getLocalPort());
+            m.sentTo.add(server.getPort());
+            mappings.put(m.inside, m);
+            log.info(name + ": mapped " + m.inside + " to " + m.outside);
+            pipe(in, out);
+
+            // what comes in to the mapped port
+            final ServerSocketChannel ssc = ServerSocketChannel.open();
+            SocketHandler.setPortReuse(ssc);
+            ssc.socket().bind(new InetSocketAddress("127.0.0.1", m.outside));
+            Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            while (true)
+                                incoming(m, ssc.accept());
+                        } catch (Exception ex) {
+                            log.warn(name + ": " + ex);
+                        }
+                    }
+                };
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /* passes on what comes to a mapped port, if it has a hole */
+        private void incoming(Mapping m, SocketChannel sc)
+            throws Exception {
+
+            // the connection went out through the sender's nat, if it
+            // has one. that opens a hole there back to us.
+            int from = sc.socket().getPort();
+            Mapping sender = mappings.get(from);
+            if (sender != null) {
+                from = sender.outside;
+                sender.sentTo.add(m.outside);
+            }
+
+            if (!m.sentTo.contains(from)) {
+                log.info(name + ": dropping a connection to " + m.outside + " from " + from);
+                dropped.incrementAndGet();
+                sc.close();
+                return;
+            }
+
+            log.info(name + ": passing a connection from " + from + " to " + m.inside);
+            passed.incrementAndGet();
+            SocketChannel peer = SocketChannel.open(new InetSocketAddress("127.0.0.1", m.inside));
+            pipe(sc, peer);
+        }
+
+        private void pipe(SocketChannel a, SocketChannel b) {
+            new Copier(a, b).start();
+            new Copier(b, a).start();
+        }
+    }
+
+    /* copies one way, closing the other end when done */
+    private static class Copier
+        extends Thread {
+
+        private SocketChannel from;
+        private SocketChannel to;
+
+        public Copier(SocketChannel from, SocketChannel to) {
+            this.from = from;
+            this.to = to;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                InputStream in = from.socket().getInputStream();
+                OutputStream out = to.socket().getOutputStream();
+                byte[] buf = new byte[64 * 1024];
+                int r;
+                while ((r = in.read(buf)) > -1)
+                    out.write(buf, 0, r);
+            } catch (Exception ex) {
+                // one of them went
+            }
+            try { from.close(); } catch (Exception ex) {}
+            try { to.close(); } catch (Exception ex) {}
+        }
+    }
+
+    /**
+     * A peer, with its connection to the lookup. Does the PUNCH
+     * exchange as the ConnectionManager does.
+     */
+    private class Peer
+        extends AuthenticatedSocketHandler
+        implements HolePuncher.PunchClient {
+
+        private LocalUser user;
+        private User contact;
+        private String mirrorAddress;
+        private HolePuncher puncher;
+        private volatile PeerConnection connection;
+        private AtomicLong received = new AtomicLong();
+
+        public Peer(String addr, LocalUser user, User contact)
+            throws Exception {
+            super(addr, new InetSocketAddress(0), user, null);
+            setAcceptAnon(true);
+            this.user = user;
+            this.contact = contact;
+        }
+
+        public void gotConnected() {
+            startAuthentication();
+        }
+
+        public void authenticationComplete(boolean success) {
+
+            if (!success)
+                return;
+            try {
+                DataOutputStream dos = sendDataStream();
+                dos.writeUTF(NetworkMessage.MessageType.REGISTER.toString());
+                dos.writeUTF(user.publicCopy().getData());
+                dos.close();
+
+                dos = sendDataStream();
+                dos.writeUTF(NetworkMessage.MessageType.ADD_CONTACTS.toString());
+                dos.writeUTF(contact.getId());
+                dos.close();
+            } catch (Exception ex) {
+                log.warn("error registering: " + ex);
+            }
+        }
+
+        public void gotAuthenticatedDataStream(DataInputStream in)
+            throws Exception {
+
+            NetworkMessage.MessageType type = NetworkMessage.MessageType.valueOf(in.readUTF());
+            switch (type) {
+            case NETWORK_MIRROR:
+                mirrorAddress = in.readUTF();
+                break;
+            case FORWARD: {
+                in.readUTF(); // to
+                in.readUTF(); // from
+                if (NetworkMessage.MessageType.PUNCH.toString().equals(in.readUTF())) {
+                    boolean reply = in.readBoolean();
+                    List<String> addrs = new ArrayList<String>();
+                    while (in.available() > 0)
+                        addrs.add(in.readUTF());
+                    if (!reply)
+                        sendPunch(true);
+                    punch(addrs);
+                }
+                break;
+            }
+            default:
+            }
+        }
+
+        public String getMirrorAddress() {
+            return mirrorAddress;
+        }
+
+        /* only the mapped address; the local one would get around the nat */
+        public void sendPunch(boolean reply)
+            throws Exception {
+
+            DataOutputStream dos = sendForwardingDataStream(contact, user);
+            dos.writeUTF(NetworkMessage.MessageType.PUNCH.toString());
+            dos.writeBoolean(reply);
+            dos.writeUTF(mirrorAddress);
+            dos.close();
+        }
+
+        private synchronized void punch(List<String> addrs)
+            throws Exception {
+
+            if (puncher == null) {
+                puncher = new HolePuncher(getLocalAddress().getPort(), this,
+                                          HolePuncher.DEFAULT_RETRY, HolePuncher.DEFAULT_TIMEOUT);
+                puncher.addTargets(addrs);
+                puncher.start(engine);
+            } else
+                puncher.addTargets(addrs);
+        }
+
+        public DataSocketHandler punchConnect(String target, InetSocketAddress local)
+            throws Exception {
+            return new PeerConnection(this, target, local);
+        }
+
+        public void punchAccepted(SocketChannel sc)
+            throws Exception {
+            PeerConnection pc = new PeerConnection(this, sc);
+            engine.addHandler(pc);
+            pc.startAuthentication();
+        }
+
+        public boolean punchSucceeded() {
+            return connection != null;
+        }
+
+        public void punchEnded(HolePuncher hp, boolean success) {}
+    }
+
+    /** a connection between the peers */
+    private class PeerConnection
+        extends AuthenticatedSocketHandler {
+
+        private Peer peer;
+
+        public PeerConnection(Peer peer, String target, InetSocketAddress local)
+            throws Exception {
+            super(target, local, peer.user, peer.contact);
+            this.peer = peer;
+            setOfferTicket(false);
+        }
+
+        public PeerConnection(Peer peer, SocketChannel sc)
+            throws Exception {
+            super(sc, peer.user, null);
+            this.peer = peer;
+        }
+
+        public void gotConnected() {
+            startAuthentication();
+        }
+
+        public void authenticationComplete(boolean success) {
+            if (success && peer.connection == null) {
+                log.info(peer.user + " punched through to " + getRemoteUser());
+                peer.connection = this;
+            }
+        }
+
+        public void gotAuthenticatedDataStream(DataInputStream in)
+            throws Exception {
+            peer.received.addAndGet(in.available());
+        }
+    }
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        engine = new NetworkEngine();
+        engine.init();
+        engine.setDaemon(true);
+        engine.start();
+    }
+
+    private static void waitFor(String what, long millis, java.util.concurrent.Callable<Boolean> cond)
+        throws Exception {
+
+        long end = System.currentTimeMillis() + millis;
+        while (!cond.call()) {
+            if (System.currentTimeMillis() > end)
+                throw new Exception("timed out waiting for " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPunch()
+        throws Exception {
+
+        File keydir = new File(System.getProperty("java.io.tmpdir"), "sicxoss-test-keys");
+        keydir.mkdirs();
+        List<LocalUser> users = SimGateways.loadUsers(2, keydir.getPath());
+
+        int port = SimGateways.getFreePort();
+        SimGateways.startLookup(port);
+        InetSocketAddress lookup = new InetSocketAddress("127.0.0.1", port);
+
+        NatBox natA = new NatBox("nat-a", lookup);
+        NatBox natB = new NatBox("nat-b", lookup);
+        natA.start();
+        natB.start();
+
+        final Peer a = new Peer(natA.getAddress(), users.get(0), users.get(1).publicCopy());
+        final Peer b = new Peer(natB.getAddress(), users.get(1), users.get(0).publicCopy());
+        engine.addHandler(a);
+        engine.addHandler(b);
+        waitFor("the registrations", 10000, new java.util.concurrent.Callable<Boolean>() {
+                public Boolean call() { return a.getMirrorAddress() != null && b.getMirrorAddress() != null; }
+            });
+        assertFalse(a.getMirrorAddress().equals("127.0.0.1:" + a.getLocalAddress().getPort()));
+
+        // without punching, the nat should not let us in
+        Socket direct = new Socket();
+        boolean through = false;
+        try {
+            direct.connect(SocketHandler.a2s(b.getMirrorAddress()), 2000);
+            direct.setSoTimeout(1000);
+            through = (direct.getInputStream().read() != -1);
+        } catch (Exception ex) {
+            // dropped
+        }
+        direct.close();
+        assertFalse("a direct connection got through the nat", through);
+        assertEquals(1, natB.dropped.get());
+
+        // and with
+        a.sendPunch(false);
+        waitFor("the punching", 10000, new java.util.concurrent.Callable<Boolean>() {
+                public Boolean call() { return a.connection != null && b.connection != null; }
+            });
+        assertTrue(natA.passed.get() + natB.passed.get() > 0);
+
+        // the one a ended up with may be the one b did not, but both
+        // go to the same place
+        byte[] data = new byte[CHUNK - 64];
+        long sent = 0;
+        for (int i = 0; i < 256; i++) {
+            DataOutputStream dos = a.connection.sendDataStream();
+            dos.write(data);
+            dos.close();
+            sent += data.length;
+            while (a.connection.getQueuedBytes() > 4 * DataSocketHandler.NETBUF_SIZE)
+                Thread.sleep(1);
+        }
+        final long total = sent;
+        waitFor("the data", 30000, new java.util.concurrent.Callable<Boolean>() {
+                public Boolean call() { return b.received.get() >= total; }
+            });
+        assertEquals(total, b.received.get());
+    }
+}
@@ -0,0 +1,456 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.lookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.log4j.Logger;
+
+import fi.hip.sicxoss.LocalGateway;
+import fi.hip.sicxoss.io.*;
+import fi.hip.sicxoss.ident.*;
+import fi.hip.sicxoss.io.message.*;
+
+/**
+ * SimGateways
+ *
+ * A number of simulated gateways for testing lookup servers. Each one
+ * connects and authenticates as a real gateway would, registers,
+ * adds some of the others as contacts (who add it back), and can
+ * then send FORWARDs and streams (STREAM_START + data) to them
+ * through the lookup. Keeps count of what was sent and received, and
+ * the latencies of the forwards.
+ *
+ * The keys of the users are generated once into a directory and
+ * re-used on later runs, as generating many of them takes a while.
+ * @author koskela
+ */
+public class SimGateways {
+
+    private static final Logger log = Logger.getLogger(SimGateways.class);
+
+    private static final int CONTACTS_PER_CLIENT = 10;
+    private static final int STREAM_SIZE = 256 * 1024;
+    // how many handshakes we let go on at once when connecting
+    private static final int MAX_CONNECTING = 200;
+
+    // what the streams send, shared by all
+    private static final ByteBuffer STREAM_DATA = ByteBuffer.allocateDirect(DataSocketHandler.NETBUF_SIZE).asReadOnlyBuffer();
+
+    private NetworkEngine engine;
+    private List<SimClient> clients;
+    private Random random = new Random();
+
+    AtomicInteger connected = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
+    AtomicInteger forwardsSent = new AtomicInteger();
+    AtomicInteger streamsSent = new AtomicInteger();
+    AtomicInteger streamsReceived = new AtomicInteger();
+    AtomicLong relayed = new AtomicLong();
+    AtomicLong otherMessages = new AtomicLong();
+
+    // the latencies (ns) of the delivered forwards
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+
+    /**
+     * A simulated gateway. Talks to the lookup like the
+     * CMLookupSocketHandler, without the rest of the gateway.
+     */
+    class SimClient
+        extends AuthenticatedSocketHandler
+        implements DataSocketHandler.DataSocketStreamReceiver {
+
+        private LocalUser user;
+        private User registration;
+        private List<User> contacts;
+        private long started;
+        private volatile boolean registered = false;
+        // the contacts we have heard are registered
+        private Set<String> heard = new HashSet<String>();
+        private boolean ready = false;
+
+        // the stream being received
+        private long streamLeft;
+
+        public SimClient(String addr, LocalUser user, List<User> contacts)
+            throws Exception {
+            super(addr, user, null);
+            setAcceptAnon(true);
+            this.user = user;
+            this.registration = user.publicCopy();
+            this.contacts = contacts;
+            this.started = System.nanoTime();
+        }
+
+        public boolean isRegistered() {
+            return registered;
+        }
+
+        public void gotConnected() {
+            startAuthentication();
+        }
+
+        public void authenticationComplete(boolean success) {
+
+            if (!success) {
+                if (!registered)
+                    failed.incrementAndGet();
+                registered = false;
+                return;
+            }
+
+            try {
+                DataOutputStream dos = sendDataStream();
+                dos.writeUTF(NetworkMessage.MessageType.REGISTER.toString());
+                dos.writeUTF(registration.getData());
+                dos.writeUTF(NetworkMessage.FEATURE_CONTACT_REFS);
+                dos.close();
+
+                dos = sendDataStream();
+                dos.writeUTF(NetworkMessage.MessageType.ADD_CONTACTS.toString());
+                for (User u : contacts)
+                    dos.writeUTF(u.getId());
+                dos.close();
+                registered = true;
+            } catch (Exception ex) {
+                log.warn("error registering: " + ex);
+                failed.incrementAndGet();
+            }
+        }
+
+        public void gotAuthenticatedDataStream(DataInputStream in)
+            throws Exception {
+
+            NetworkMessage.MessageType type = NetworkMessage.MessageType.valueOf(in.readUTF());
+            switch (type) {
+            case FORWARD: {
+                in.readUTF(); // to
+                in.readUTF(); // from
+                gotLatency(System.nanoTime() - in.readLong());
+                break;
+            }
+
+            case STREAM_START: {
+                in.readUTF(); // to
+                in.readUTF(); // from
+                in.readUTF(); // share
+                in.readUTF(); // data
+                long start = in.readLong();
+                long finish = in.readLong();
+                streamLeft = finish - start;
+                setStreamReceiver(this);
+                break;
+            }
+
+            case CONTACT_UPDATE: {
+                // the whole registration or a reference to it. the
+                // whole ones are acknowledged, as the gateways do
+                List<String> acks = new ArrayList<String>();
+                while (in.available() > 0) {
+                    String c = in.readUTF();
+                    if (c.startsWith(NetworkMessage.CONTACT_REF_PREFIX))
+                        heard.add(c.substring(NetworkMessage.CONTACT_REF_PREFIX.length(), c.lastIndexOf('/')));
+                    else {
+                        User u = User.fromData(c);
+                        heard.add(u.getId());
+                        if (u.getProperty("modified") != null)
+                            acks.add(u.getId() + "/" + u.getProperty("modified"));
+                    }
+                }
+                if (acks.size() > 0) {
+                    DataOutputStream dos = sendDataStream();
+                    dos.writeUTF(NetworkMessage.MessageType.CONTACT_ACK.toString());
+                    for (String a : acks)
+                        dos.writeUTF(a);
+                    dos.close();
+                }
+                // that the contacts are here means that the lookup
+                // has handled both our and their contacts
+                if (!ready && heard.size() >= contacts.size()) {
+                    ready = true;
+                    connected.incrementAndGet();
+                }
+                break;
+            }
+
+            default:
+                otherMessages.incrementAndGet();
+            }
+        }
+
+        /* counts (and throws away) the data of a stream */
+        public void dataAvailable(DataSocketHandler conn) {
+
+            ByteBuffer bb;
+            while (streamLeft > 0 && (bb = readBuffer((int)Math.min(streamLeft, NETBUF_SIZE))) != null) {
+                streamLeft -= bb.remaining();
+                relayed.addAndGet(bb.remaining());
+            }
+            if (streamLeft < 1) {
+                streamsReceived.incrementAndGet();
+                removeStreamReceiver(this);
+            }
+        }
+
+        public User getRandomContact() {
+            return contacts.get(random.nextInt(contacts.size()));
+        }
+
+        public void sendForward(User to)
+            throws Exception {
+
+            DataOutputStream dos = sendForwardingDataStream(to, user);
+            dos.writeLong(System.nanoTime());
+            dos.close();
+            forwardsSent.incrementAndGet();
+        }
+
+        public void sendStream(User to)
+            throws Exception {
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeUTF(NetworkMessage.MessageType.STREAM_START.toString());
+            dos.writeUTF(to.getId());
+            dos.writeUTF(user.getId());
+            dos.writeUTF("loadtest");
+            dos.writeUTF("data");
+            dos.writeLong(0);
+            dos.writeLong(STREAM_SIZE);
+            dos.close();
+            queueForStreaming(new StreamSender(this, new NetworkMessage(bos.toByteArray()), STREAM_SIZE));
+            streamsSent.incrementAndGet();
+        }
+    }
+
+    /* sends the header and the data of a stream */
+    private static class StreamSender
+        implements DataSocketHandler.DataSocketStreamer {
+
+        private MessageSocketHandler conn;
+        private NetworkMessage header;
+        private long left;
+
+        public StreamSender(MessageSocketHandler conn, NetworkMessage header, long size) {
+            this.conn = conn;
+            this.header = header;
+            this.left = size;
+        }
+
+        public boolean streamingStarted() {
+            conn.sendMessage(header, true);
+            return true;
+        }
+
+        public boolean dataRequired() {
+            if (left < 1)
+                return false;
+            ByteBuffer bb = STREAM_DATA.duplicate();
+            if (left < bb.remaining())
+                bb.limit((int)left);
+            left -= bb.remaining();
+            conn.stream(bb);
+            return true;
+        }
+
+        public void streamingEnded() {}
+    }
+
+    public SimGateways()
+        throws Exception {
+
+        this.clients = new ArrayList<SimClient>();
+        engine = new NetworkEngine();
+        engine.init();
+        engine.setDaemon(true);
+        engine.start();
+    }
+
+    private synchronized void gotLatency(long nanos) {
+        if (latencyCount == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        latencies[latencyCount++] = nanos;
+    }
+
+    public synchronized int getLatencyCount() {
+        return latencyCount;
+    }
+
+    /* the given percentile of the latencies, in ms */
+    public synchronized double getLatency(double percentile) {
+        if (latencyCount == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int i = (int)Math.min(sorted.length - 1, Math.floor(sorted.length * percentile / 100.0));
+        return sorted[i] / 1000000.0;
+    }
+
+    /**
+     * Loads the users from the key directory, generating the missing
+     * ones.
+     */
+    public static List<LocalUser> loadUsers(int count, String keydir)
+        throws Exception {
+
+        LocalGateway gw = new LocalGateway(keydir + File.separator + "loadtest.conf");
+        List<LocalUser> ret = new ArrayList<LocalUser>();
+        for (int i = 0; i < count; i++) {
+            String path = keydir + File.separator + "user" + i;
+            LocalUser u = null;
+            if (new File(path).exists())
+                u = LocalUser.load("load" + i, path, gw);
+            if (u == null) {
+                if (i % 100 == 0)
+                    log.info("generating keys for users " + i + "..");
+                u = LocalUser.generate("load" + i, "Load test user " + i, path, gw);
+            }
+            ret.add(u);
+        }
+        return ret;
+    }
+
+    /**
+     * Connects a client for each user, to the given lookup servers in
+     * turn. A client counts as connected once it has heard that all
+     * its contacts are there. Returns the time it took in ms.
+     */
+    public long connect(List<LocalUser> users, List<String> lookups)
+        throws Exception {
+
+        List<User> pub = new ArrayList<User>();
+        for (LocalUser u : users)
+            pub.add(u.publicCopy());
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < users.size(); i++) {
+            // the neighbours on a ring, so the contacts are mutual
+            // (the lookup forwards only between those)
+            List<User> contacts = new ArrayList<User>();
+            for (int d = 1; d <= CONTACTS_PER_CLIENT / 2; d++)
+                for (int j : new int[] { i + d, i - d + users.size() }) {
+                    User c = pub.get(j % users.size());
+                    if (c != pub.get(i) && !contacts.contains(c))
+                        contacts.add(c);
+                }
+
+            SimClient sc = new SimClient(lookups.get(i % lookups.size()), users.get(i), contacts);
+            clients.add(sc);
+            engine.addHandler(sc);
+
+            // don't flood the accept queue
+            while (i - connected.get() - failed.get() > MAX_CONNECTING)
+                Thread.sleep(1);
+        }
+        while (connected.get() + failed.get() < users.size() &&
+               System.currentTimeMillis() - start < 60000)
+            Thread.sleep(10);
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Sends the given rate of messages for the given time, the given
+     * percentage of them being streams.
+     */
+    public void run(int seconds, int rate, int streamPercent)
+        throws Exception {
+
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long sent = 0;
+        while (System.currentTimeMillis() < end) {
+            long due = (System.currentTimeMillis() - start) * rate / 1000;
+            for (; sent < due; sent++) {
+                SimClient c = clients.get(random.nextInt(clients.size()));
+                if (!c.isRegistered() || c.contacts.size() == 0)
+                    continue;
+                try {
+                    if (random.nextInt(100) < streamPercent)
+                        c.sendStream(c.getRandomContact());
+                    else
+                        c.sendForward(c.getRandomContact());
+                } catch (Exception ex) {
+                    log.warn("error sending: " + ex);
+                }
+            }
+            Thread.sleep(1);
+        }
+
+        // let the last ones arrive
+        Thread.sleep(2000);
+    }
+
+    /**
+     * Waits until everything sent has been delivered, or the time
+     * runs out.
+     */
+    public void waitDelivered(long timeout)
+        throws Exception {
+
+        long until = System.currentTimeMillis() + timeout;
+        while (System.currentTimeMillis() < until &&
+               (getLatencyCount() < forwardsSent.get() || streamsReceived.get() < streamsSent.get()))
+            Thread.sleep(100);
+    }
+
+    public List<SimClient> getClients() {
+        return clients;
+    }
+
+    public void close() {
+        for (SimClient c : clients)
+            c.close();
+    }
+
+    /**
+     * A port that was free a moment ago.
+     */
+    public static int getFreePort()
+        throws Exception {
+
+        ServerSocket ss = new ServerSocket(0);
+        int port = ss.getLocalPort();
+        ss.close();
+        return port;
+    }
+
+    /**
+     * Starts a lookup server, with a network engine of its own, on the
+     * given port.
+     */
+    public static LookupServer startLookup(int port)
+        throws Exception {
+
+        NetworkEngine ne = new NetworkEngine();
+        ne.init();
+        ne.setDaemon(true);
+        LookupServer ls = new LookupServer(ne);
+        ls.init(port);
+        ls.setDaemon(true);
+        // starts the lookup's thread as well
+        ne.start();
+        return ls;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.io.DataUtil;
+
+/**
+ * DiskDataStoreTest
+ *
+ * Stores data that the store already has while the store is swept,
+ * and checks that what the store is compared against is kept. And
+ * that the trackers are as they were when the store is loaded
+ * again, from the snapshot and the log.
+ * @author koskela
+ */
+public class DiskDataStoreTest {
+
+    private File dir;
+    private DiskDataStore store;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        dir = File.createTempFile("diskstoretest", "");
+        dir.delete();
+        store = new DiskDataStore("test");
+        store.init(new File(dir, "store").getPath(), new Properties(), null);
+    }
+
+    @After
+    public void tearDown() {
+        store.deleteStore();
+    }
+
+    private static byte[] random(int length) {
+        byte[] ret = new byte[length];
+        new Random(length).nextBytes(ret);
+        return ret;
+    }
+
+    private static byte[] read(DataStore store, DataID id)
+        throws Exception {
+        InputStream in = store.getStream(id, 0, id.getLength());
+        assertNotNull(in);
+        try {
+            return DataUtil.toBuf(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSweepWhileComparing()
+        throws Exception {
+
+        final byte[] data = random(3 * 1024 * 1024 + 5);
+        DataID id = store.store(new ByteArrayInputStream(data), data.length);
+        assertNotNull(id);
+
+        // unused, and swept at once
+        store.setGracePeriod(0);
+        store.setQuota(-1, 0);
+
+        // the sweep comes in the middle of the compare
+        InputStream in = new ByteArrayInputStream(data) {
+                private boolean swept;
+                @Override
+                public synchronized int read(byte[] b, int off, int len) {
+                    if (pos > 1024 * 1024 && !swept) {
+                        swept = true;
+                        store.sweep();
+                    }
+                    return super.read(b, off, len);
+                }
+            };
+        assertEquals(id, store.store(in, data.length));
+        assertTrue(store.hasData(id, 0, id.getLength()));
+        assertArrayEquals(data, read(store, id));
+
+        // and once the compare is done, it can go
+        store.sweep();
+        assertFalse(store.hasData(id, 0, id.getLength()));
+    }
+
+    @Test
+    public void testReload()
+        throws Exception {
+
+        byte[] a = random(1000);
+        byte[] b = random(2000);
+        DataID ida = store.store(new ByteArrayInputStream(a), a.length);
+        DataID idb = store.store(new ByteArrayInputStream(b), b.length);
+        store.acquire(idb);
+        store.flush(false);
+
+        // a goes after the log has it, and the snapshot has not
+        store.setGracePeriod(0);
+        store.setQuota(-1, 0);
+        store.sweep();
+        store.flush(true);
+        store.acquire(idb);
+        store.flush(false);
+        store.stop();
+
+        Properties p = new Properties();
+        p.setProperty("quota_max", "-1");
+        p.setProperty("quota_optimal", "-1");
+        DiskDataStore loaded = new DiskDataStore("test");
+        loaded.load(new File(dir, "store").getPath(), p, null);
+        assertEquals(Arrays.asList(idb), loaded.getStoredIds());
+        assertEquals(2, loaded.getDataTracker(idb).getUseCounter());
+        assertArrayEquals(b, read(loaded, idb));
+        assertFalse(loaded.hasData(ida, 0, ida.getLength()));
+    }
+}
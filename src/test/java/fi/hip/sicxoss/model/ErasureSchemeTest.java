@@ -0,0 +1,188 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.io.DataUtil;
+
+/**
+ * ErasureSchemeTest
+ *
+ * Splits blobs in a DiskDataStore into fragments and puts them back
+ * together, from the data fragments and from the parity ones, and
+ * around a fragment that has gone bad: the sets with it fail, the
+ * next one without it gives the data, and the bad one is discarded
+ * from the store.
+ * @author koskela
+ */
+public class ErasureSchemeTest {
+
+    private File dir;
+    private DiskDataStore store;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        dir = File.createTempFile("erasureschemetest", "");
+        dir.delete();
+        store = new DiskDataStore("test");
+        store.init(new File(dir, "store").getPath(), new Properties(), null);
+        store.start();
+    }
+
+    @After
+    public void tearDown() {
+        store.deleteStore();
+    }
+
+    private static byte[] random(int length) {
+        byte[] ret = new byte[length];
+        new Random(length).nextBytes(ret);
+        return ret;
+    }
+
+    /* stores the blob and all of its fragments */
+    private DataID storeFragments(ErasureScheme es, byte[] data)
+        throws Exception {
+
+        DataID id = store.store(new ByteArrayInputStream(data), data.length);
+        boolean[] all = new boolean[es.getFragments()];
+        Arrays.fill(all, true);
+        File[] files = es.encode(store, id, all, dir);
+        for (int i = 0; i < files.length; i++)
+            store.importFile(es.getFragmentId(id, i), files[i]);
+        return id;
+    }
+
+    private static byte[] read(File f)
+        throws Exception {
+        InputStream in = new FileInputStream(f);
+        try {
+            return DataUtil.toBuf(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testDecode()
+        throws Exception {
+
+        ErasureScheme es = new ErasureScheme(4, 2);
+        byte[] data = random(3 * ErasureScheme.CHUNK_SIZE + 123);
+        DataID id = storeFragments(es, data);
+
+        for (int[] present : new int[][] { { 0, 1, 2, 3 }, { 2, 3, 4, 5 }, { 0, 5, 1, 4 } }) {
+            File f = es.decode(store, id, present, dir);
+            assertNotNull(Arrays.toString(present), f);
+            assertArrayEquals(Arrays.toString(present), data, read(f));
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testNextSubset() {
+
+        ErasureScheme es = new ErasureScheme(2, 2);
+        BitSet have = new BitSet();
+        List<BitSet> tried = new ArrayList<BitSet>();
+        assertNull(es.nextSubset(have, tried));
+
+        have.set(1);
+        have.set(3);
+        assertArrayEquals(new int[] { 1, 3 }, es.nextSubset(have, tried));
+
+        // the ones with the data fragments first, each set once
+        have.set(0);
+        have.set(2);
+        Set<BitSet> seen = new HashSet<BitSet>();
+        int[] next;
+        while ((next = es.nextSubset(have, tried)) != null) {
+            if (seen.isEmpty())
+                assertArrayEquals(new int[] { 0, 1 }, next);
+            BitSet set = new BitSet();
+            for (int i : next)
+                set.set(i);
+            assertTrue(seen.add(set));
+            tried.add(set);
+        }
+        assertEquals(6, seen.size());
+    }
+
+    @Test
+    public void testBadFragment()
+        throws Exception {
+
+        ErasureScheme es = new ErasureScheme(4, 2);
+        byte[] data = random(2 * ErasureScheme.CHUNK_SIZE + 7);
+        DataID id = storeFragments(es, data);
+
+        // fragment 1 goes bad
+        DataID bad = es.getFragmentId(id, 1);
+        File f = File.createTempFile("bad", ".part", dir);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(random((int)bad.getLength() + 1), 1, (int)bad.getLength());
+        out.close();
+        store.discard(bad);
+        assertFalse(store.hasData(bad, 0, bad.getLength()));
+        store.importFile(bad, f);
+
+        BitSet have = new BitSet();
+        have.set(0, es.getFragments());
+        List<BitSet> failed = new ArrayList<BitSet>();
+        File ret = null;
+        int[] present = null;
+        while (ret == null) {
+            present = es.nextSubset(have, failed);
+            assertNotNull("no set gave the data", present);
+            ret = es.decode(store, id, present, dir);
+            if (ret == null) {
+                BitSet set = new BitSet();
+                for (int i : present)
+                    set.set(i);
+                assertTrue(set.get(1));
+                failed.add(set);
+            }
+        }
+        assertArrayEquals(data, read(ret));
+        for (int i : present)
+            assertTrue(i != 1);
+
+        // the suspects are the ones only in the sets that failed;
+        // the bad one, and maybe some good ones with it
+        BitSet suspect = new BitSet();
+        for (BitSet s : failed)
+            suspect.or(s);
+        for (int i : present)
+            suspect.clear(i);
+        assertTrue(suspect.get(1));
+        assertTrue(suspect.cardinality() <= es.getFragments() - es.getDataFragments());
+
+        store.discard(bad);
+        assertFalse(store.hasData(bad, 0, bad.getLength()));
+        assertTrue(store.hasData(es.getFragmentId(id, 0), 0, bad.getLength()));
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.io.*;
+import java.util.*;
+import java.security.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.io.DataUtil;
+import fi.hip.sicxoss.io.LocalObjectServer;
+import fi.hip.sicxoss.io.ObjectStorageClient;
+
+/**
+ * ObjectStoreTest
+ *
+ * Runs an ObjectDataStore against a LocalObjectServer: stores blobs
+ * of different sizes (single and multipart uploads), reads them back
+ * whole and in ranges, stores one again, imports a file, reloads the
+ * store from its trackers and sweeps it, also while the same blobs
+ * are being stored again.
+ * @author koskela
+ */
+public class ObjectStoreTest {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private File dir;
+    private LocalObjectServer server;
+    private Properties p;
+    private ObjectDataStore store;
+    private ObjectStorageClient client;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        dir = File.createTempFile("objectstoretest", "");
+        dir.delete();
+
+        server = new LocalObjectServer(new File(dir, "objects"));
+        p = new Properties();
+        p.setProperty("endpoint", server.start(0, 16));
+        p.setProperty("bucket", "test");
+        p.setProperty("part_size", "" + PART_SIZE);
+        p.setProperty("grace_period", "0");
+
+        store = new ObjectDataStore("test" + System.currentTimeMillis());
+        store.init(new File(dir, "store").getPath(), p, null);
+        store.start();
+        client = new ObjectStorageClient(p.getProperty("endpoint"), "test", null, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        store.deleteStore();
+        server.stop();
+    }
+
+    private static String sha1(byte[] data)
+        throws Exception {
+        return DataUtil.toHex(MessageDigest.getInstance(DiskDataStore.CHECKSUM_ALG).digest(data));
+    }
+
+    private static byte[] random(int length) {
+        byte[] ret = new byte[length];
+        new Random(length).nextBytes(ret);
+        return ret;
+    }
+
+    private static byte[] read(DataStore store, DataID id, long start, long finish)
+        throws Exception {
+        InputStream in = store.getStream(id, start, finish);
+        if (in == null)
+            return null;
+        try {
+            return DataUtil.toBuf(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataID store(DataStore store, byte[] data)
+        throws Exception {
+
+        DataID id = store.store(new ByteArrayInputStream(data), data.length);
+        assertNotNull(id);
+        assertEquals(sha1(data), id.getChecksum());
+        assertEquals(data.length, id.getLength());
+        return id;
+    }
+
+    /* whether the object of the blob is in the storage */
+    private boolean isUploaded(DataID id)
+        throws Exception {
+
+        String cs = id.getChecksum();
+        return client.head(store.getName() + "/" + cs.substring(0, 2) + "/" + cs + "." +
+                           id.getLength() + ".blob") == id.getLength();
+    }
+
+    @Test
+    public void testStoreAndRead()
+        throws Exception {
+
+        for (int s : new int[] { 0, 100, PART_SIZE - 1, PART_SIZE + 1, 3 * PART_SIZE }) {
+            byte[] data = random(s);
+            DataID id = store(store, data);
+            assertTrue(isUploaded(id));
+            assertArrayEquals("reading " + id, data, read(store, id, 0, -1));
+            if (s > 10) {
+                int start = s / 3;
+                int finish = s - 7;
+                assertArrayEquals("reading " + start + "-" + finish + " of " + id, 
+                                  Arrays.copyOfRange(data, start, finish), read(store, id, start, finish));
+            }
+        }
+    }
+
+    @Test
+    public void testStoreAgain()
+        throws Exception {
+
+        byte[] data = random(1000);
+        DataID id = store(store, data);
+
+        // one already there is not uploaded again
+        long before = server.getRequests();
+        assertEquals(id, store(store, data));
+        assertEquals(before, server.getRequests());
+
+        data = random(PART_SIZE + 1);
+        id = store(store, data);
+        assertEquals(id, store(store, data));
+        assertArrayEquals(data, read(store, id, 0, -1));
+    }
+
+    @Test
+    public void testImport()
+        throws Exception {
+
+        // a downloaded file, staged and uploaded in the background
+        byte[] data = random(6 * 1024 * 1024);
+        DataID id = new DataID(sha1(data), data.length);
+        File f = new File(dir, "download");
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(data);
+        fos.close();
+        store.importFile(id, f);
+        assertArrayEquals("reading the staged " + id, data, read(store, id, 0, -1));
+        for (int i = 0; i < 100 && store.getDataTracker(id).getStored() == null; i++)
+            Thread.sleep(100);
+        assertNotNull("uploading the staged " + id, store.getDataTracker(id).getStored());
+        assertTrue(isUploaded(id));
+        assertArrayEquals("reading the uploaded " + id, data, read(store, id, 0, -1));
+    }
+
+    @Test
+    public void testReloadAndSweep()
+        throws Exception {
+
+        List<DataID> ids = new ArrayList<DataID>();
+        for (int s : new int[] { 100, 1000, PART_SIZE + 1 })
+            ids.add(store(store, random(s)));
+        for (DataID d : ids)
+            store.acquire(d);
+        DataID released = ids.get(ids.size() - 1);
+        store.release(released);
+        store.stop();
+
+        p.setProperty("quota_optimal", "" + PART_SIZE);
+        ObjectDataStore reloaded = new ObjectDataStore(store.getName());
+        reloaded.load(new File(dir, "store").getPath(), p, null);
+        reloaded.start();
+        store = reloaded;
+        for (DataID d : ids)
+            assertTrue("the reloaded store having " + d, store.hasData(d, 0, -1));
+
+        store.sweep();
+        assertFalse("sweeping the released " + released, store.hasData(released, 0, -1));
+        assertFalse(isUploaded(released));
+        assertTrue("keeping the used " + ids.get(0), store.hasData(ids.get(0), 0, -1));
+        assertTrue(isUploaded(ids.get(0)));
+    }
+
+    @Test
+    public void testSweepWhileStoring()
+        throws Exception {
+
+        // everything unused goes, at once
+        store.stop();
+        p.setProperty("quota_optimal", "0");
+        ObjectDataStore s = new ObjectDataStore(store.getName());
+        s.load(new File(dir, "store").getPath(), p, null);
+        s.start();
+        store = s;
+
+        final byte[] data = random(1000);
+        final DataID id = store(store, data);
+        for (int i = 0; i < 200; i++) {
+            final DataID[] got = new DataID[1];
+            Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            got[0] = store.store(new ByteArrayInputStream(data), data.length);
+                        } catch (Exception ex) {
+                        }
+                    }
+                };
+            t.start();
+            store.sweep();
+            t.join();
+            assertEquals(id, got[0]);
+
+            // whatever happened, the store must not think it has it if it doesn't
+            if (store.getDataTracker(id) != null && store.getDataTracker(id).getStored() != null)
+                assertTrue("lost " + id + " in round " + i, isUploaded(id));
+            else
+                store(store, data);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * SICX OSS Gateway, Multi-Cloud Storage software. 
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ * 
+ */
+package fi.hip.sicxoss.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import fi.hip.sicxoss.io.DataUtil;
+
+/**
+ * TieredDataStoreTest
+ *
+ * Stores blobs in a TieredDataStore and checks that they make it to
+ * the cold tier and are unpinned in the hot one, also when the store
+ * was stopped between the two. And that a blob stored pinned in a
+ * DiskDataStore is not swept, however small the quota.
+ * @author koskela
+ */
+public class TieredDataStoreTest {
+
+    private File dir;
+    private Properties p;
+
+    @Before
+    public void setUp()
+        throws Exception {
+
+        dir = File.createTempFile("tieredstoretest", "");
+        dir.delete();
+        p = new Properties();
+        p.setProperty("hot.location", new File(dir, "hot").getPath());
+        p.setProperty("hot.quota_max", "-1");
+        p.setProperty("hot.quota_optimal", "0");
+        p.setProperty("hot.grace_period", "0");
+        p.setProperty("cold.quota_max", "-1");
+        p.setProperty("cold.quota_optimal", "-1");
+    }
+
+    private static byte[] random(int length) {
+        byte[] ret = new byte[length];
+        new Random(length).nextBytes(ret);
+        return ret;
+    }
+
+    private static byte[] read(DataStore store, DataID id)
+        throws Exception {
+        InputStream in = store.getStream(id, 0, id.getLength());
+        assertNotNull(in);
+        try {
+            return DataUtil.toBuf(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* the hot tier of the store, on its own */
+    private DiskDataStore loadHot()
+        throws Exception {
+
+        Properties hp = new Properties();
+        hp.setProperty("quota_max", "-1");
+        hp.setProperty("quota_optimal", "-1");
+        DiskDataStore ret = new DiskDataStore("hot");
+        ret.load(p.getProperty("hot.location"), hp, null);
+        return ret;
+    }
+
+    @Test
+    public void testDemoteAndRepair()
+        throws Exception {
+
+        String path = new File(dir, "cold").getPath();
+        TieredDataStore ts = new TieredDataStore("test");
+        ts.init(path, p, 0, null);
+        ts.start();
+
+        byte[] data = random(200 * 1024);
+        DataID id = ts.store(new ByteArrayInputStream(data), data.length);
+        assertNotNull(id);
+        for (int i = 0; i < 100 && ts.getDemoted() < 1; i++)
+            Thread.sleep(100);
+        assertEquals(1, ts.getDemoted());
+        ts.stop();
+
+        // as if we had stopped between the copy and the unpinning
+        DiskDataStore hot = loadHot();
+        assertEquals(0, hot.getDataTracker(id).getUseCounter());
+        hot.acquire(id);
+        hot.stop();
+
+        ts = new TieredDataStore("test");
+        ts.load(path, p, null);
+        ts.start();
+        assertArrayEquals(data, read(ts, id));
+        ts.stop();
+
+        hot = loadHot();
+        assertEquals(0, hot.getDataTracker(id).getUseCounter());
+        hot.stop();
+    }
+
+    @Test
+    public void testStorePinned()
+        throws Exception {
+
+        DiskDataStore ds = new DiskDataStore("test");
+        ds.init(new File(dir, "disk").getPath(), new Properties(), null);
+        ds.setQuota(-1, 0);
+        ds.setGracePeriod(0);
+
+        byte[] data = random(100 * 1024);
+        DataID id = ds.store(new ByteArrayInputStream(data), data.length, true);
+        ds.sweep();
+        assertTrue(ds.hasData(id, 0, id.getLength()));
+        assertEquals(1, ds.getDataTracker(id).getUseCounter());
+
+        // again, the same data
+        assertEquals(id, ds.store(new ByteArrayInputStream(data), data.length, true));
+        assertEquals(2, ds.getDataTracker(id).getUseCounter());
+        ds.sweep();
+        assertTrue(ds.hasData(id, 0, id.getLength()));
+
+        ds.unpin(id);
+        ds.sweep();
+        assertFalse(ds.hasData(id, 0, id.getLength()));
+        ds.deleteStore();
+    }
+}